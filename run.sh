@@ -1,3 +1,3 @@
 #!/bin/sh
 
-java -classpath target/jruby-complete-1.7.12.jar:target/swingx-all-1.6.5-1.jar:target/jsyntaxpane-1.0.0.jar:target/classes kianxali.Kianxali
+java -classpath target/jruby-complete-1.7.12.jar:target/swingx-all-1.6.5-1.jar:target/jsyntaxpane-1.0.0.jar:target/classes kianxali.Kianxali "$@"
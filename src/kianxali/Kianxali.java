@@ -1,10 +1,12 @@
 package kianxali;
 
+import java.util.Arrays;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import kianxali.batch.BatchAnalyzer;
 import kianxali.gui.Controller;
 import kianxali.util.LogFormatter;
 
@@ -23,17 +25,20 @@ public final class Kianxali {
      * @param logLevel the log level to display on the console
      */
     public Kianxali(Level logLevel) {
-        // setup logging
+        setupLogging(logLevel);
+
+        LOG.info("Kianxali starting");
+
+        controller = new Controller();
+    }
+
+    private static void setupLogging(Level logLevel) {
         Handler consoleHandler = new ConsoleHandler();
         consoleHandler.setLevel(logLevel);
         consoleHandler.setFormatter(new LogFormatter());
         LOG.setUseParentHandlers(false);
         LOG.addHandler(consoleHandler);
         LOG.setLevel(logLevel);
-
-        LOG.info("Kianxali starting");
-
-        controller = new Controller();
     }
 
     /**
@@ -44,10 +49,18 @@ public final class Kianxali {
     }
 
     /**
-     * Main entry point of the program: Starts the disassembler and shows the GUI
-     * @param args unused
+     * Main entry point of the program: Starts the disassembler and shows the GUI.
+     * If the first argument is --batch, the files given in the remaining arguments
+     * are analyzed without a GUI, see {@link BatchAnalyzer#usage()}.
+     * @param args --batch and its arguments or nothing
      */
     public static void main(String[] args) {
+        if(args.length > 0 && args[0].equals("--batch")) {
+            System.setProperty("java.awt.headless", "true");
+            setupLogging(Level.INFO);
+            System.exit(BatchAnalyzer.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         Kianxali kianxali = new Kianxali(Level.FINEST);
         kianxali.start();
     }
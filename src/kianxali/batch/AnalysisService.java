@@ -0,0 +1,227 @@
+package kianxali.batch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kianxali.batch.JobResult.Status;
+import kianxali.disassembler.AnalysisBudget;
+import kianxali.disassembler.AnalysisBudget.Limit;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.DisassemblyListener;
+import kianxali.loader.ImageFile;
+import kianxali.loader.ImageLoader;
+import kianxali.loader.ImageLoader.ArchitectureChooser;
+
+/**
+ * Analyzes many image files concurrently in one process. Each file is a job with its
+ * own {@link DisassemblyData}, while the decoders are shared by all jobs because they
+ * are created only once per configuration. A fixed number of jobs runs at a time and
+ * {@link #submit(Path)} blocks while enough jobs are waiting, so the files can be
+ * submitted while a directory is still being listed.
+ * A job is stopped when it exceeds its {@link AnalysisBudget}, the partial result is
+ * passed to the {@link ResultSink} like a complete one. If a checkpoint directory is
+ * set, the analysis of a stopped job is saved there and the next job for the same file
+ * continues from it.
+ * @author fwi
+ *
+ */
+public final class AnalysisService {
+    private static final Logger LOG = Logger.getLogger("kianxali.batch");
+
+    // fat files are analyzed for their first architecture
+    private static final ArchitectureChooser FIRST_ARCHITECTURE = new ArchitectureChooser() {
+        @Override
+        public String choose(List<String> architectures) {
+            return architectures.get(0);
+        }
+    };
+
+    private final ExecutorService pool;
+    private final Semaphore slots;
+    private final int threadsPerJob;
+    private final AnalysisBudget budget;
+    private final Path checkpointDir;
+    private final ResultSink sink;
+
+    /**
+     * Creates a new service and starts its worker threads
+     * @param jobCount the number of jobs that run at the same time
+     * @param threadsPerJob the number of decoding threads of each job
+     * @param budget the budget of each job or null for no limits
+     * @param checkpointDir the directory for the checkpoints of stopped jobs or null for no checkpoints
+     * @param sink receives the results
+     */
+    public AnalysisService(int jobCount, int threadsPerJob, AnalysisBudget budget, Path checkpointDir, ResultSink sink) {
+        if(jobCount < 1 || threadsPerJob < 1) {
+            throw new IllegalArgumentException("invalid job configuration");
+        }
+        this.pool = Executors.newFixedThreadPool(jobCount);
+        this.slots = new Semaphore(2 * jobCount);
+        this.threadsPerJob = threadsPerJob;
+        this.budget = budget;
+        this.checkpointDir = checkpointDir;
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a file to analyze. Blocks while twice as many jobs as can run at a time are
+     * waiting or running.
+     * @param path the image file to analyze
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void submit(final Path path) throws InterruptedException {
+        slots.acquire();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JobResult result = analyze(path);
+                    try {
+                        sink.onResult(result);
+                    } catch(RuntimeException e) {
+                        LOG.log(Level.WARNING, "Result sink failed for " + path + ": " + e.getMessage(), e);
+                    }
+                    if(result.getData() != null) {
+                        result.getData().getMetrics().unregister();
+                    }
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all submitted jobs are finished and stops the worker threads
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException {
+        pool.shutdown();
+        while(!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.fine("Waiting for the remaining jobs");
+        }
+    }
+
+    // the checkpoint of a file, the hash of the full path distinguishes files with the same name
+    private Path getCheckpoint(Path path) {
+        if(checkpointDir == null) {
+            return null;
+        }
+        String full = path.toAbsolutePath().normalize().toString();
+        return checkpointDir.resolve(String.format("%s-%08x.kxdb", path.getFileName(), full.hashCode()));
+    }
+
+    private JobResult analyze(Path path) {
+        long start = System.currentTimeMillis();
+        ImageFile imageFile;
+        DisassemblyData data = new DisassemblyData();
+        Disassembler disassembler;
+        Path checkpoint = getCheckpoint(path);
+        try {
+            imageFile = ImageLoader.load(path, FIRST_ARCHITECTURE);
+            if(checkpoint != null && Files.exists(checkpoint)) {
+                LOG.fine("Continuing " + path + " from " + checkpoint);
+                disassembler = Disassembler.openDatabase(imageFile, data, checkpoint, threadsPerJob);
+            } else {
+                disassembler = new Disassembler(imageFile, data, threadsPerJob);
+            }
+        } catch(Exception e) {
+            LOG.fine("Couldn't load " + path + ": " + e);
+            return JobResult.failed(path, e);
+        }
+        disassembler.setBudget(budget);
+
+        // the metrics stay registered until the sink received the result
+        data.getMetrics().register(path.getFileName().toString());
+        JobMonitor monitor = new JobMonitor();
+        disassembler.addListener(monitor);
+        long analyzeStart = System.currentTimeMillis();
+        Status status;
+        long end;
+        try {
+            disassembler.startAnalyzer();
+            monitor.await();
+            end = System.currentTimeMillis();
+            status = getStatus(disassembler.getExceededLimit());
+            if(checkpoint != null) {
+                saveCheckpoint(disassembler, checkpoint);
+            }
+        } catch(InterruptedException e) {
+            disassembler.stopAnalyzer();
+            data.getMetrics().unregister();
+            Thread.currentThread().interrupt();
+            return JobResult.failed(path, e);
+        } catch(RuntimeException e) {
+            disassembler.stopAnalyzer();
+            data.getMetrics().unregister();
+            return JobResult.failed(path, e);
+        }
+        return new JobResult(path, status, null, imageFile, data, analyzeStart - start, end - analyzeStart, monitor.getErrorCount());
+    }
+
+    private static Status getStatus(Limit limit) {
+        if(limit == null) {
+            return Status.DONE;
+        }
+        switch(limit) {
+        case TIME:          return Status.TIMEOUT;
+        case INSTRUCTIONS:  return Status.INSTRUCTION_LIMIT;
+        case MEMORY:        return Status.MEMORY_LIMIT;
+        default:            throw new IllegalArgumentException("unknown limit: " + limit);
+        }
+    }
+
+    // saves an incomplete analysis so the next job continues it, a complete one doesn't need the checkpoint anymore
+    private static void saveCheckpoint(Disassembler disassembler, Path checkpoint) {
+        try {
+            if(disassembler.isAnalysisComplete()) {
+                Files.deleteIfExists(checkpoint);
+            } else {
+                Files.createDirectories(checkpoint.getParent());
+                disassembler.saveDatabase(checkpoint);
+            }
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, "Couldn't write checkpoint " + checkpoint + ": " + e.getMessage(), e);
+        }
+    }
+
+    // waits until the analyzer of a job has stopped, it stops itself when the budget is exhausted
+    private static final class JobMonitor implements DisassemblyListener {
+        private boolean running = true;
+        private int errorCount;
+
+        synchronized void await() throws InterruptedException {
+            while(running) {
+                wait();
+            }
+        }
+
+        synchronized int getErrorCount() {
+            return errorCount;
+        }
+
+        @Override
+        public void onAnalyzeStart() {
+        }
+
+        @Override
+        public synchronized void onAnalyzeError(long memAddr, String reason) {
+            errorCount++;
+        }
+
+        @Override
+        public synchronized void onAnalyzeStop() {
+            running = false;
+            notifyAll();
+        }
+    }
+}
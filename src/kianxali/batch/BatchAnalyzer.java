@@ -0,0 +1,331 @@
+package kianxali.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import kianxali.batch.JobResult.Status;
+import kianxali.decoder.Data;
+import kianxali.decoder.Data.DataType;
+import kianxali.decoder.DecodedEntity;
+import kianxali.decoder.Instruction;
+import kianxali.disassembler.AnalysisBudget;
+import kianxali.disassembler.AnalysisMetrics;
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.DataEntryVisitor;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.Function;
+import kianxali.loader.ImageFile;
+import kianxali.loader.ImageLoader;
+
+/**
+ * Analyzes image files without a GUI and writes the results to a directory.
+ * The files are analyzed concurrently by an {@link AnalysisService}, each result is
+ * written as soon as its job is finished. For each image file, a directory with the
+ * name of the file is created that contains:
+ * <ul>
+ *  <li>functions.tsv: start address, end address and name of each function</li>
+ *  <li>strings.tsv: address, length and content of each string</li>
+ *  <li>xrefs.tsv: source address, destination address and r or w for read or write access</li>
+ *  <li>stats.txt: the status of the job, the number of entries of each kind and the duration of the analysis and its phases</li>
+ * </ul>
+ * A line with the status of each job is printed to the standard output.
+ * Neither AWT nor the scripting engine are initialized.
+ * @author fwi
+ *
+ */
+public final class BatchAnalyzer implements ResultSink {
+    private static final Logger LOG = Logger.getLogger("kianxali.batch");
+
+    private final Path outputDir;
+    private final Set<String> usedNames;
+    private int failureCount;
+
+    /**
+     * Creates a new batch analyzer
+     * @param outputDir the directory that receives a result directory for each image file
+     */
+    public BatchAnalyzer(Path outputDir) {
+        this.outputDir = outputDir;
+        this.usedNames = new HashSet<>();
+    }
+
+    /**
+     * Entry point for the command line, see {@link #usage()} for the arguments
+     * @param args the command line arguments without the leading --batch
+     * @return the exit code: 0 if all files were analyzed completely, 1 otherwise
+     */
+    public static int run(String[] args) {
+        int jobCount = Runtime.getRuntime().availableProcessors();
+        int threadCount = 1;
+        long timeout = 0, instructionLimit = 0, memoryLimit = 0;
+        Path checkpointDir = null;
+        int pos = 0;
+        try {
+            for(; pos + 1 < args.length && args[pos].startsWith("--"); pos += 2) {
+                if(args[pos].equals("--checkpoints")) {
+                    checkpointDir = Paths.get(args[pos + 1]);
+                    continue;
+                }
+                long value = Long.parseLong(args[pos + 1]);
+                switch(args[pos]) {
+                case "--jobs":          jobCount = (int) value; break;
+                case "--threads":       threadCount = (int) value; break;
+                case "--timeout":       timeout = value * 1000; break;
+                case "--instructions":  instructionLimit = value; break;
+                case "--memory":        memoryLimit = value << 20; break;
+                default:                throw new IllegalArgumentException("unknown option " + args[pos]);
+                }
+            }
+        } catch(IllegalArgumentException e) {
+            jobCount = 0;
+        }
+        if(jobCount < 1 || threadCount < 1 || timeout < 0 || instructionLimit < 0 || memoryLimit < 0 || args.length - pos < 2) {
+            System.err.println(usage());
+            return 1;
+        }
+
+        BatchAnalyzer analyzer = new BatchAnalyzer(Paths.get(args[pos]));
+        AnalysisBudget budget = new AnalysisBudget(timeout, instructionLimit, memoryLimit);
+        AnalysisService service = new AnalysisService(jobCount, threadCount, budget, checkpointDir, analyzer);
+        try {
+            for(int i = pos + 1; i < args.length; i++) {
+                try {
+                    analyzer.submitAll(service, args[i]);
+                } catch(IOException e) {
+                    LOG.severe("Couldn't read " + args[i] + ": " + e);
+                    analyzer.addFailure();
+                }
+            }
+            service.shutdown();
+        } catch(InterruptedException e) {
+            LOG.severe("Interrupted while waiting for the analysis");
+            return 1;
+        }
+        return analyzer.getFailureCount() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Returns a description of the command line arguments
+     * @return the usage text
+     */
+    public static String usage() {
+        return "Usage: kianxali --batch [options] <output directory> <image file, directory or @list file>...\n"
+                + "  --jobs n            number of files to analyze at the same time, default: number of CPUs\n"
+                + "  --threads n         number of decoding threads per file, --jobs scales better, default: 1\n"
+                + "  --timeout s         stop the analysis of a file after s seconds, default: no limit\n"
+                + "  --instructions n    stop the analysis of a file after decoding n instructions, default: no limit\n"
+                + "  --memory mb         stop the analysis of a file when it needs about mb MB, default: no limit\n"
+                + "  --checkpoints dir   save stopped analyses in dir and continue them in the next run\n"
+                + "Directories are searched recursively, a list file contains one path per line.\n"
+                + "Supported are " + ImageLoader.SUPPORTED_FORMATS + ", the first architecture of a fat file is analyzed.";
+    }
+
+    // submits a file, the files in a directory or the files in a list
+    private void submitAll(final AnalysisService service, String arg) throws IOException, InterruptedException {
+        if(arg.startsWith("@")) {
+            try(BufferedReader list = Files.newBufferedReader(Paths.get(arg.substring(1)), StandardCharsets.UTF_8)) {
+                for(String line = list.readLine(); line != null; line = list.readLine()) {
+                    line = line.trim();
+                    if(!line.isEmpty() && !line.startsWith("#")) {
+                        submitAll(service, line);
+                    }
+                }
+            }
+        } else if(Files.isDirectory(Paths.get(arg))) {
+            final InterruptedException[] interrupted = new InterruptedException[1];
+            Files.walkFileTree(Paths.get(arg), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if(!attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        service.submit(file);
+                        return FileVisitResult.CONTINUE;
+                    } catch(InterruptedException e) {
+                        interrupted[0] = e;
+                        return FileVisitResult.TERMINATE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    LOG.warning("Couldn't read " + file + ": " + e);
+                    addFailure();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            if(interrupted[0] != null) {
+                throw interrupted[0];
+            }
+        } else {
+            service.submit(Paths.get(arg));
+        }
+    }
+
+    private synchronized void addFailure() {
+        failureCount++;
+    }
+
+    private synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    // files with the same name get different result directories
+    private synchronized Path createResultDir(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        String unique = name;
+        for(int i = 2; !usedNames.add(unique); i++) {
+            unique = name + "_" + i;
+        }
+        return Files.createDirectories(outputDir.resolve(unique));
+    }
+
+    @Override
+    public void onResult(JobResult result) {
+        Path path = result.getPath();
+        if(result.getStatus() != Status.DONE) {
+            addFailure();
+        }
+
+        Statistics stats = new Statistics();
+        try {
+            Path dir = createResultDir(path);
+            if(result.getData() != null) {
+                stats = writeResults(result.getData(), dir);
+            }
+            try(Writer out = Files.newBufferedWriter(dir.resolve("stats.txt"), StandardCharsets.UTF_8)) {
+                out.write(String.format("file: %s%n", path));
+                out.write(String.format("status: %s%n", result.getStatus()));
+                if(result.getError() != null) {
+                    out.write(String.format("error: %s%n", result.getError()));
+                }
+                ImageFile imageFile = result.getImageFile();
+                if(imageFile != null) {
+                    out.write(String.format("format: %s%n", imageFile.getClass().getSimpleName()));
+                    out.write(String.format("size: %d%n", imageFile.getFileSize()));
+                }
+                out.write(String.format("entries: %d%n", stats.entries));
+                out.write(String.format("instructions: %d%n", stats.instructions));
+                out.write(String.format("data: %d%n", stats.data));
+                out.write(String.format("functions: %d%n", stats.functions));
+                out.write(String.format("strings: %d%n", stats.strings));
+                out.write(String.format("xrefs: %d%n", stats.xrefs));
+                out.write(String.format("errors: %d%n", result.getErrorCount()));
+                out.write(String.format("load time ms: %d%n", result.getLoadTime()));
+                out.write(String.format("analysis time ms: %d%n", result.getAnalyzeTime()));
+                if(result.getData() != null) {
+                    AnalysisMetrics metrics = result.getData().getMetrics();
+                    out.write(String.format("sweep time ms: %d%n", metrics.getSweepTime()));
+                    out.write(String.format("trace time ms: %d%n", metrics.getTraceTime()));
+                    out.write(String.format("data time ms: %d%n", metrics.getDataTime()));
+                    out.write(String.format("function time ms: %d%n", metrics.getFunctionTime()));
+                    out.write(String.format("discovery time ms: %d%n", metrics.getDiscoveryTime()));
+                    out.write(String.format("listener time ms: %d%n", metrics.getListenerTime()));
+                    out.write(String.format("lock wait ms: %d%n", metrics.getLockWaitTime()));
+                }
+            }
+        } catch(IOException e) {
+            LOG.severe("Couldn't write the results of " + path + ": " + e);
+            addFailure();
+        }
+        System.out.println(String.format("%s\t%s\t%d ms\t%d instructions\t%d functions\t%d strings",
+                result.getStatus(), path, result.getLoadTime() + result.getAnalyzeTime(),
+                stats.instructions, stats.functions, stats.strings));
+    }
+
+    // the counters of the written results
+    private static final class Statistics {
+        private int entries, instructions, data, functions, strings, xrefs;
+    }
+
+    private static Statistics writeResults(DisassemblyData data, Path dir) throws IOException {
+        final Statistics stats = new Statistics();
+        try(final BufferedWriter functions = Files.newBufferedWriter(dir.resolve("functions.tsv"), StandardCharsets.UTF_8);
+            final BufferedWriter strings = Files.newBufferedWriter(dir.resolve("strings.tsv"), StandardCharsets.UTF_8);
+            final BufferedWriter xrefs = Files.newBufferedWriter(dir.resolve("xrefs.tsv"), StandardCharsets.UTF_8)) {
+
+            // the visitor can't throw checked exceptions, so they are passed on
+            final IOException[] error = new IOException[1];
+            data.visitEntries(new DataEntryVisitor() {
+                @Override
+                public void onVisit(DataEntry entry) {
+                    if(error[0] != null) {
+                        return;
+                    }
+                    try {
+                        write(entry, stats, functions, strings, xrefs);
+                    } catch(IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            if(error[0] != null) {
+                throw error[0];
+            }
+        }
+        return stats;
+    }
+
+    private static void write(DataEntry entry, Statistics stats, Writer functions, Writer strings, Writer xrefs) throws IOException {
+        long addr = entry.getAddress();
+        stats.entries++;
+
+        DecodedEntity entity = entry.getEntity();
+        if(entity instanceof Instruction) {
+            stats.instructions++;
+        } else if(entity instanceof Data) {
+            stats.data++;
+            Data data = (Data) entity;
+            if(data.getType() == DataType.STRING && data.getRawContent() != null) {
+                stats.strings++;
+                strings.write(String.format("%08X\t%d\t%s%n", addr, data.getSize(), escape(data.getRawContent().toString())));
+            }
+        }
+
+        Function fun = entry.getStartFunction();
+        if(fun != null && fun.getStartAddress() == addr) {
+            stats.functions++;
+            functions.write(String.format("%08X\t%08X\t%s%n", addr, fun.getEndAddress(), fun.getName()));
+        }
+
+        for(Map.Entry<DataEntry, Boolean> ref : entry.getReferences().entrySet()) {
+            stats.xrefs++;
+            xrefs.write(String.format("%08X\t%08X\t%s%n", ref.getKey().getAddress(), addr, ref.getValue() ? "w" : "r"));
+        }
+    }
+
+    // keeps each string on one line of the tab separated file
+    private static String escape(String str) {
+        StringBuilder res = new StringBuilder(str.length());
+        for(int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch(c) {
+            case '\\':  res.append("\\\\"); break;
+            case '\t':  res.append("\\t"); break;
+            case '\n':  res.append("\\n"); break;
+            case '\r':  res.append("\\r"); break;
+            default:
+                if(c < 0x20) {
+                    res.append(String.format("\\x%02X", (int) c));
+                } else {
+                    res.append(c);
+                }
+            }
+        }
+        return res.toString();
+    }
+}
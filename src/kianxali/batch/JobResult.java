@@ -0,0 +1,114 @@
+package kianxali.batch;
+
+import java.nio.file.Path;
+
+import kianxali.disassembler.DisassemblyData;
+import kianxali.loader.ImageFile;
+
+/**
+ * The result of analyzing one image file in an {@link AnalysisService}
+ * @author fwi
+ *
+ */
+public final class JobResult {
+    /** The ways a job can end */
+    public enum Status {
+        /** The analysis is complete */
+        DONE,
+        /** The analysis was stopped because it took too long, the data is partial */
+        TIMEOUT,
+        /** The analysis was stopped because it needed too much memory, the data is partial */
+        MEMORY_LIMIT,
+        /** The analysis was stopped because it decoded too many instructions, the data is partial */
+        INSTRUCTION_LIMIT,
+        /** The file couldn't be loaded or analyzed, there is no data */
+        FAILED
+    }
+
+    private final Path path;
+    private final Status status;
+    private final String error;
+    private final ImageFile imageFile;
+    private final DisassemblyData data;
+    private final long loadTime, analyzeTime;
+    private final int errorCount;
+
+    JobResult(Path path, Status status, String error, ImageFile imageFile, DisassemblyData data, long loadTime, long analyzeTime, int errorCount) {
+        this.path = path;
+        this.status = status;
+        this.error = error;
+        this.imageFile = imageFile;
+        this.data = data;
+        this.loadTime = loadTime;
+        this.analyzeTime = analyzeTime;
+        this.errorCount = errorCount;
+    }
+
+    static JobResult failed(Path path, Throwable e) {
+        return new JobResult(path, Status.FAILED, e.toString(), null, null, 0, 0, 0);
+    }
+
+    /**
+     * Returns the analyzed file
+     * @return the path of the image file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns how the job ended
+     * @return the status of the job
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns why the job failed
+     * @return the error message or null if the job didn't fail
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Returns the loaded image file
+     * @return the image file or null if it couldn't be loaded
+     */
+    public ImageFile getImageFile() {
+        return imageFile;
+    }
+
+    /**
+     * Returns the result of the analysis
+     * @return the disassembly data or null if the job failed
+     */
+    public DisassemblyData getData() {
+        return data;
+    }
+
+    /**
+     * Returns the time needed to load the file and to prepare the disassembler
+     * @return the duration in milliseconds
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Returns the time needed for the analysis
+     * @return the duration in milliseconds
+     */
+    public long getAnalyzeTime() {
+        return analyzeTime;
+    }
+
+    /**
+     * Returns the number of errors that the disassembler reported
+     * @return the number of analysis errors
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+}
@@ -0,0 +1,16 @@
+package kianxali.batch;
+
+/**
+ * Receives the results of an {@link AnalysisService} as soon as each job is finished
+ * @author fwi
+ *
+ */
+public interface ResultSink {
+    /**
+     * Will be called by the worker thread of a job when the job is finished. The calls
+     * for different jobs can overlap. The disassembly data of the job is released when
+     * this method returns, so it must be written or copied here.
+     * @param result the result of the job
+     */
+    void onResult(JobResult result);
+}
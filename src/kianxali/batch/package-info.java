@@ -0,0 +1,6 @@
+/**
+ * Analyzes image files from the command line without a GUI, e.g. on servers without
+ * a display. The main class is {@link kianxali.batch.BatchAnalyzer}, the files are
+ * analyzed concurrently by the {@link kianxali.batch.AnalysisService}
+ */
+package kianxali.batch;
@@ -9,6 +9,8 @@ package kianxali.decoder;
 public interface Context {
     /**
      * Create an instruction decoder for the this context.
+     * The decoder can be shared with other contexts that use the same configuration,
+     * so it must not be modified.
      * @return an instruction decoder matching the configuration of the context
      */
     Decoder createInstructionDecoder();
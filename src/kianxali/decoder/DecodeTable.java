@@ -0,0 +1,93 @@
+package kianxali.decoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is an immutable, compiled version of a {@link DecodeTree}.
+ * Each node stores its sub tables and leaves in dense arrays that are
+ * directly indexed by the byte value, so a lookup doesn't need any
+ * hashing or boxing.
+ * @author fwi
+ *
+ * @param <LeafType> the type of data in the leaves, architecture dependent
+ */
+public final class DecodeTable<LeafType> {
+    private static final int NODE_SIZE = 256;
+    private final DecodeTable<LeafType>[] subTables;
+    private final List<LeafType>[] leaves;
+    private final boolean hasSubTables;
+
+    /**
+     * Compiles a prefix tree into a decode table. Later changes to the
+     * tree will not be reflected in the table.
+     * @param tree the prefix tree to compile
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DecodeTable(DecodeTree<LeafType> tree) {
+        subTables = new DecodeTable[NODE_SIZE];
+        leaves = new List[NODE_SIZE];
+
+        for(short s : tree.getSubTreeCodes()) {
+            subTables[s] = new DecodeTable<>(tree.getSubTree(s));
+        }
+        hasSubTables = tree.hasSubTrees();
+
+        for(short s : tree.getLeaveCodes()) {
+            List<LeafType> list = tree.getLeaves(s);
+            if(list.size() > 0) {
+                leaves[s] = Collections.unmodifiableList(new ArrayList<>(list));
+            }
+        }
+    }
+
+    /**
+     * Returns whether this table has any sub tables
+     * @return true iff there are sub tables
+     */
+    public boolean hasSubTables() {
+        return hasSubTables;
+    }
+
+    /**
+     * Get the sub table for a given byte
+     * @param s the byte to dive into, must be in the range 0 to 255
+     * @return the sub table for this byte or null if there is none
+     */
+    public DecodeTable<LeafType> getSubTable(short s) {
+        return subTables[s];
+    }
+
+    /**
+     * Get a list of all leaves in this node for a given byte
+     * @param s the byte to get the leaves for, must be in the range 0 to 255
+     * @return an unmodifiable list of leaves matching this byte or null if there are none
+     */
+    public List<LeafType> getLeaves(short s) {
+        return leaves[s];
+    }
+
+    /**
+     * Returns all leaves of this table and its sub tables
+     * @return a list containing all leaves of this table, ordered by their byte sequence
+     */
+    public List<LeafType> getAllLeaves() {
+        List<LeafType> res = new ArrayList<>();
+        collectLeaves(res);
+        return res;
+    }
+
+    private void collectLeaves(List<LeafType> res) {
+        for(int i = 0; i < NODE_SIZE; i++) {
+            if(leaves[i] != null) {
+                res.addAll(leaves[i]);
+            }
+        }
+        for(int i = 0; i < NODE_SIZE; i++) {
+            if(subTables[i] != null) {
+                subTables[i].collectLeaves(res);
+            }
+        }
+    }
+}
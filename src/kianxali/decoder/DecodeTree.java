@@ -1,15 +1,16 @@
 package kianxali.decoder;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * This class describes the prefix tree that is used to parse
- * opcodes.
+ * opcodes. It is only used while building the instruction set,
+ * {@link DecodeTable} should be used for the actual decoding.
  * @author fwi
  *
  * @param <LeafType> the type of data in the leaves, architecture dependent
@@ -67,6 +68,14 @@ public class DecodeTree<LeafType> {
         return node.subTrees.values();
     }
 
+    /**
+     * Returns a set of bytes that this tree has sub trees for
+     * @return the set of bytes
+     */
+    public Set<Short> getSubTreeCodes() {
+        return node.subTrees.keySet();
+    }
+
     /**
      * Get a list of all leaves in this node for a given byte
      * @param s the byte to get the leaves for
@@ -98,7 +107,7 @@ public class DecodeTree<LeafType> {
             // leaf
             List<LeafType> leaves = node.leaves.get(s);
             if(leaves == null) {
-                leaves = new LinkedList<>();
+                leaves = new ArrayList<>(2);
                 node.leaves.put(s, leaves);
             }
             leaves.add(leaf);
@@ -4,7 +4,9 @@ import kianxali.loader.ByteSequence;
 
 /**
  * A decoder reads bytes from a sequence until an instruction is fully
- * decoded with all its operands.
+ * decoded with all its operands. Decoders must not store any state of
+ * the decoding process themselves, that is what the {@link Context} is for.
+ * This allows a single decoder to be used by multiple threads at the same time.
  * @author fwi
  *
  */
@@ -16,4 +18,27 @@ public interface Decoder {
      * @return
      */
     Instruction decodeOpcode(Context ctx, ByteSequence seq);
+
+    /**
+     * Decode the next instruction from a byte sequence into a reusable record.
+     * Unlike {@link Decoder#decodeOpcode(Context, ByteSequence)}, this doesn't
+     * create any objects for valid instructions, so it should be preferred
+     * if the decoded instruction doesn't need to be kept.
+     * @param ctx the current context
+     * @param seq the byte sequence to read the instruction from
+     * @param record the record to store the decoded instruction in
+     * @return true if an instruction could be decoded, false otherwise
+     */
+    boolean decodeOpcode(Context ctx, ByteSequence seq, InstructionRecord record);
+
+    /**
+     * Determines the size of the next instruction in a byte sequence without decoding
+     * its operands. This is a lot faster than the other decode methods and should be used
+     * if only the instruction boundaries are needed. If an instruction is found, the sequence
+     * is moved behind it, otherwise the position is not changed.
+     * @param ctx the current context
+     * @param seq the byte sequence to read the instruction from
+     * @return the size of the instruction in bytes or 0 if no instruction could be decoded
+     */
+    int decodeLength(Context ctx, ByteSequence seq);
 }
@@ -0,0 +1,295 @@
+package kianxali.decoder;
+
+import java.util.Arrays;
+
+import kianxali.decoder.Data.DataType;
+
+/**
+ * An immutable summary of how an instruction affects the control flow and
+ * which addresses it references. It is computed once when the instruction is
+ * decoded, so the disassembler can examine instructions without creating
+ * lists and maps for every instruction.
+ * The summary consists of the flow flags (see the FLOW_ constants of
+ * {@link InstructionRecord}), the branch destinations, the dereferenced
+ * data addresses and the immediates that could be pointers to data.
+ * @author fwi
+ *
+ */
+public final class FlowSummary {
+    private static final long[] NO_ADDRESSES = new long[0];
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final DataType[] DATA_TYPES = DataType.values();
+
+    private final int flowFlags;
+    private final long[] branches;
+    private final long[] dataAddresses;
+    private final byte[] dataTypes, dataScalings;
+    private final int dataWriteMask;
+    private final long[] pointers;
+    private final int pointerWriteMask;
+
+    private FlowSummary(int flowFlags, long[] branches, long[] dataAddresses, byte[] dataTypes,
+            byte[] dataScalings, int dataWriteMask, long[] pointers, int pointerWriteMask) {
+        this.flowFlags = flowFlags;
+        this.branches = branches;
+        this.dataAddresses = dataAddresses;
+        this.dataTypes = dataTypes;
+        this.dataScalings = dataScalings;
+        this.dataWriteMask = dataWriteMask;
+        this.pointers = pointers;
+        this.pointerWriteMask = pointerWriteMask;
+    }
+
+    /**
+     * Creates the summary of an instruction that has been decoded into a record.
+     * Immediates are branch destinations if the instruction is a branch, memory
+     * operands with a displacement are data references and all immediates are
+     * probable data pointers.
+     * @param rec the decoded instruction
+     * @param isBranch whether the immediates of the instruction are branch destinations
+     * @return the summary of the instruction
+     */
+    public static FlowSummary fromRecord(InstructionRecord rec, boolean isBranch) {
+        int count = rec.getOperandCount();
+        int branchCount = 0, dataCount = 0, pointerCount = 0;
+        long[] branches = NO_ADDRESSES, dataAddresses = NO_ADDRESSES, pointers = NO_ADDRESSES;
+        byte[] dataTypes = NO_BYTES, dataScalings = NO_BYTES;
+        int dataWriteMask = 0, pointerWriteMask = 0;
+
+        for(int i = 0; i < count; i++) {
+            boolean write = rec.getUsage(i) == UsageType.DEST;
+            switch(rec.getOperandKind(i)) {
+            case IMMEDIATE: {
+                long value = rec.getValue(i);
+                if(isBranch) {
+                    if(branches.length == 0) {
+                        branches = new long[count];
+                    }
+                    branches[branchCount++] = value;
+                }
+
+                // duplicate pointers are stored once, the usage of the last one counts
+                int index = indexOf(pointers, pointerCount, value);
+                if(index < 0) {
+                    if(pointers.length == 0) {
+                        pointers = new long[count];
+                    }
+                    index = pointerCount++;
+                    pointers[index] = value;
+                }
+                if(write) {
+                    pointerWriteMask |= 1 << index;
+                } else {
+                    pointerWriteMask &= ~(1 << index);
+                }
+                break;
+            }
+            case MEMORY:
+                if(!rec.hasValue(i)) {
+                    // only register-based indexing, can't know address
+                    break;
+                }
+                if(dataAddresses.length == 0) {
+                    dataAddresses = new long[count];
+                    dataTypes = new byte[count];
+                    dataScalings = new byte[count];
+                }
+                dataAddresses[dataCount] = rec.getValue(i);
+                if(rec.getRegister(i) == InstructionRecord.NONE && rec.getIndexRegister(i) == InstructionRecord.NONE) {
+                    // only addressed by constant -> great because we know the size then
+                    dataTypes[dataCount] = (byte) getSizedDataType(rec.getPointerSize(i)).ordinal();
+                } else {
+                    dataTypes[dataCount] = (byte) DataType.UNKNOWN.ordinal();
+                    if(rec.getIndexRegister(i) != InstructionRecord.NONE && rec.getScale(i) > 1) {
+                        dataScalings[dataCount] = (byte) rec.getScale(i);
+                    }
+                }
+                if(write) {
+                    dataWriteMask |= 1 << dataCount;
+                }
+                dataCount++;
+                break;
+            default:
+                break;
+            }
+        }
+
+        return new FlowSummary(rec.getFlowFlags(),
+                trim(branches, branchCount), trim(dataAddresses, dataCount),
+                trim(dataTypes, dataCount), trim(dataScalings, dataCount), dataWriteMask,
+                trim(pointers, pointerCount), pointerWriteMask);
+    }
+
+    private static DataType getSizedDataType(int pointerSize) {
+        switch(pointerSize) {
+        case 8:     return DataType.BYTE;
+        case 16:    return DataType.WORD;
+        case 32:    return DataType.DWORD;
+        case 64:    return DataType.QWORD;
+        case 128:   return DataType.DQWORD;
+        case 512:   return DataType.DYWORD;
+        default:    return DataType.UNKNOWN;
+        }
+    }
+
+    private static int indexOf(long[] array, int count, long value) {
+        for(int i = 0; i < count; i++) {
+            if(array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long[] trim(long[] array, int count) {
+        if(count == 0) {
+            return NO_ADDRESSES;
+        } else if(count == array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, count);
+    }
+
+    private static byte[] trim(byte[] array, int count) {
+        if(count == 0) {
+            return NO_BYTES;
+        } else if(count == array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, count);
+    }
+
+    /**
+     * Returns how the instruction affects the control flow
+     * @return a combination of the FLOW_ constants of {@link InstructionRecord}
+     */
+    public int getFlowFlags() {
+        return flowFlags;
+    }
+
+    /**
+     * Returns whether the instruction stops the current execution trace
+     * @return true iff the instruction stops the trace, see {@link Instruction#stopsTrace()}
+     */
+    public boolean stopsTrace() {
+        return (flowFlags & InstructionRecord.FLOW_STOPS_TRACE) != 0;
+    }
+
+    /**
+     * Returns whether the instruction is a function call
+     * @return true iff the instruction is a function call
+     */
+    public boolean isFunctionCall() {
+        return (flowFlags & InstructionRecord.FLOW_CALL) != 0;
+    }
+
+    /**
+     * Returns whether the instruction is an unconditional jump
+     * @return true iff the instruction is an unconditional jump
+     */
+    public boolean isUnconditionalJump() {
+        return (flowFlags & InstructionRecord.FLOW_JUMP) != 0 && stopsTrace();
+    }
+
+    /**
+     * Returns the number of branch destinations
+     * @return the number of branch destinations
+     */
+    public int getBranchCount() {
+        return branches.length;
+    }
+
+    /**
+     * Returns a branch destination
+     * @param i the index of the destination
+     * @return the memory address of the destination
+     */
+    public long getBranchAddress(int i) {
+        return branches[i];
+    }
+
+    /**
+     * Returns the number of dereferenced data addresses
+     * @return the number of data references
+     */
+    public int getDataCount() {
+        return dataAddresses.length;
+    }
+
+    /**
+     * Returns the address of a data reference
+     * @param i the index of the data reference
+     * @return the memory address of the data
+     */
+    public long getDataAddress(int i) {
+        return dataAddresses[i];
+    }
+
+    /**
+     * Returns the type of a data reference
+     * @param i the index of the data reference
+     * @return the type of the data, {@link DataType#UNKNOWN} if unknown
+     */
+    public DataType getDataType(int i) {
+        return DATA_TYPES[dataTypes[i]];
+    }
+
+    /**
+     * Returns the size of the entries if the data reference is a table
+     * @param i the index of the data reference
+     * @return the size of the table entries or 0 if unknown
+     */
+    public int getDataTableScaling(int i) {
+        return dataScalings[i];
+    }
+
+    /**
+     * Returns whether the instruction writes to a data reference
+     * @param i the index of the data reference
+     * @return true iff the data is written
+     */
+    public boolean isDataWrite(int i) {
+        return (dataWriteMask & (1 << i)) != 0;
+    }
+
+    /**
+     * Creates a new data object for a data reference. A new object is returned on
+     * each call because data objects are modified by the analysis.
+     * @param i the index of the data reference
+     * @return a data object with address, type and table scaling of the reference
+     */
+    public Data createData(int i) {
+        Data res = new Data(dataAddresses[i], getDataType(i));
+        if(dataScalings[i] != 0) {
+            res.setTableScaling(dataScalings[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the number of immediates that could be pointers to data.
+     * Each value is contained only once.
+     * @return the number of probable pointers
+     */
+    public int getProbablePointerCount() {
+        return pointers.length;
+    }
+
+    /**
+     * Returns an immediate that could be a pointer to data
+     * @param i the index of the pointer
+     * @return the value of the immediate
+     */
+    public long getProbablePointer(int i) {
+        return pointers[i];
+    }
+
+    /**
+     * Returns whether a probable pointer is used as destination
+     * @param i the index of the pointer
+     * @return true iff the pointer is used as destination
+     */
+    public boolean isProbablePointerWrite(int i) {
+        return (pointerWriteMask & (1 << i)) != 0;
+    }
+}
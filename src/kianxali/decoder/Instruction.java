@@ -79,6 +79,15 @@ public interface Instruction extends DecodedEntity {
      */
     Map<Long, Boolean> getProbableDataPointers();
 
+    /**
+     * Return the control flow summary of this instruction. It contains the same
+     * information as {@link Instruction#getBranchAddresses()}, {@link Instruction#getAssociatedData()},
+     * {@link Instruction#getProbableDataPointers()} and the flow related methods, but is
+     * computed only once and doesn't create any objects when queried.
+     * @return the flow summary of this instruction, may not be null
+     */
+    FlowSummary getFlowSummary();
+
     /**
      * Return the full instruction including operands as an array of bytes
      * @return a byte array containing the full instruction
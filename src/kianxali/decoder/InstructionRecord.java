@@ -0,0 +1,348 @@
+package kianxali.decoder;
+
+import kianxali.loader.ByteSequence;
+
+/**
+ * A mutable description of a decoded instruction that only consists of
+ * primitive values. It is filled by {@link Decoder#decodeOpcode(Context, ByteSequence, InstructionRecord)}
+ * and can be reused for any number of instructions, so a caller that only needs
+ * to look at each instruction once (e.g. a linear sweep) doesn't have to create
+ * objects for every decoded instruction.
+ * Mnemonics, registers, segments and operand types are stored as ordinals of
+ * the enumerations of the architecture, e.g. X86Mnemonic and X86Register for x86.
+ * A record must not be shared between threads.
+ * @author fwi
+ *
+ */
+public final class InstructionRecord {
+    /** The maximum number of operands an instruction can have */
+    public static final int MAX_OPERANDS = 4;
+    /** Used for registers, segments and mnemonics that are not present */
+    public static final int NONE = -1;
+
+    /** Flow flag: the instruction calls a function */
+    public static final int FLOW_CALL = 1;
+    /** Flow flag: the instruction is a conditional or unconditional jump */
+    public static final int FLOW_JUMP = 2;
+    /** Flow flag: the instruction returns from a function */
+    public static final int FLOW_RETURN = 4;
+    /** Flow flag: the instruction stops the execution trace, see {@link Instruction#stopsTrace()} */
+    public static final int FLOW_STOPS_TRACE = 8;
+
+    /**
+     * The different kinds of operands that can be stored in a record
+     * @author fwi
+     *
+     */
+    public enum OperandKind {
+        /** direct register access, e.g. eax */
+        REGISTER,
+        /** an immediate value or branch destination, e.g. 123 */
+        IMMEDIATE,
+        /** a dereferenced address, e.g. [ebx + 4 * ecx + 8] */
+        MEMORY
+    }
+
+    private long address;
+    private int length;
+    private int mnemonic;
+    private int flowFlags;
+    private int operandCount;
+    private final OperandKind[] kinds;
+    private final UsageType[] usages;
+    private final int[] types, sizes, segments;
+    private final int[] registers, indexRegisters, scales;
+    private final long[] values;
+    private final boolean[] hasValue, relative;
+
+    /**
+     * Creates an empty record that can be passed to a decoder.
+     */
+    public InstructionRecord() {
+        kinds = new OperandKind[MAX_OPERANDS];
+        usages = new UsageType[MAX_OPERANDS];
+        types = new int[MAX_OPERANDS];
+        sizes = new int[MAX_OPERANDS];
+        segments = new int[MAX_OPERANDS];
+        registers = new int[MAX_OPERANDS];
+        indexRegisters = new int[MAX_OPERANDS];
+        scales = new int[MAX_OPERANDS];
+        values = new long[MAX_OPERANDS];
+        hasValue = new boolean[MAX_OPERANDS];
+        relative = new boolean[MAX_OPERANDS];
+        clear(0);
+    }
+
+    /**
+     * Resets the record so it can be used for the instruction at a new address
+     * @param addr the memory address of the next instruction
+     */
+    public void clear(long addr) {
+        address = addr;
+        length = 0;
+        mnemonic = NONE;
+        flowFlags = 0;
+        operandCount = 0;
+    }
+
+    /**
+     * Removes all operands, e.g. because a different syntax is tried
+     */
+    public void clearOperands() {
+        operandCount = 0;
+    }
+
+    /**
+     * Stores the mnemonic of the decoded instruction
+     * @param mnemonic the ordinal of the mnemonic or {@link InstructionRecord#NONE}
+     */
+    public void setMnemonic(int mnemonic) {
+        this.mnemonic = mnemonic;
+    }
+
+    /**
+     * Stores how the instruction affects the control flow
+     * @param flowFlags a combination of the FLOW_ constants
+     */
+    public void setFlowFlags(int flowFlags) {
+        this.flowFlags = flowFlags;
+    }
+
+    /**
+     * Stores the length of the decoded instruction. This must be called after
+     * all operands were added because the values of relative operands are
+     * converted to absolute values here.
+     * @param length the size of the instruction in bytes
+     */
+    public void setLength(int length) {
+        this.length = length;
+        for(int i = 0; i < operandCount; i++) {
+            if(relative[i]) {
+                values[i] += length;
+            }
+        }
+    }
+
+    /**
+     * Adds a register operand
+     * @param usage whether the operand is read or written
+     * @param type the ordinal of the operand type
+     * @param register the ordinal of the register
+     */
+    public void addRegister(UsageType usage, int type, int register) {
+        int i = addOperand(OperandKind.REGISTER, usage, type);
+        registers[i] = register;
+    }
+
+    /**
+     * Adds an immediate operand
+     * @param usage whether the operand is read or written
+     * @param type the ordinal of the operand type
+     * @param value the immediate value
+     * @param segment the segment part of a far pointer or {@link InstructionRecord#NONE}
+     * @param relativeToEnd true if the length of the instruction must be added to the value
+     */
+    public void addImmediate(UsageType usage, int type, long value, int segment, boolean relativeToEnd) {
+        int i = addOperand(OperandKind.IMMEDIATE, usage, type);
+        values[i] = value;
+        hasValue[i] = true;
+        segments[i] = segment;
+        relative[i] = relativeToEnd;
+    }
+
+    /**
+     * Adds a memory operand of the form [base + scale * index + displacement].
+     * The displacement can be added later using {@link InstructionRecord#setDisplacement(int, long, boolean)}.
+     * @param usage whether the operand is read or written, can be null if unknown
+     * @param type the ordinal of the operand type
+     * @param size the size of the addressed data in bits, 0 if unknown
+     * @param segment the ordinal of the segment register or {@link InstructionRecord#NONE}
+     * @param base the ordinal of the base register or {@link InstructionRecord#NONE}
+     * @param scale the factor for the index register
+     * @param index the ordinal of the index register or {@link InstructionRecord#NONE}
+     * @return the index of the new operand
+     */
+    public int addMemory(UsageType usage, int type, int size, int segment, int base, int scale, int index) {
+        int i = addOperand(OperandKind.MEMORY, usage, type);
+        sizes[i] = size;
+        segments[i] = segment;
+        registers[i] = base;
+        scales[i] = scale;
+        indexRegisters[i] = index;
+        return i;
+    }
+
+    /**
+     * Sets the displacement of a memory operand
+     * @param i the index of the operand
+     * @param displacement the displacement value
+     * @param relativeToEnd true if the length of the instruction must be added to the value
+     */
+    public void setDisplacement(int i, long displacement, boolean relativeToEnd) {
+        values[i] = displacement;
+        hasValue[i] = true;
+        relative[i] = relativeToEnd;
+    }
+
+    private int addOperand(OperandKind kind, UsageType usage, int type) {
+        if(operandCount == MAX_OPERANDS) {
+            throw new IndexOutOfBoundsException("too many operands");
+        }
+        int i = operandCount++;
+        kinds[i] = kind;
+        usages[i] = usage;
+        types[i] = type;
+        sizes[i] = 0;
+        segments[i] = NONE;
+        registers[i] = NONE;
+        indexRegisters[i] = NONE;
+        scales[i] = 1;
+        values[i] = 0;
+        hasValue[i] = false;
+        relative[i] = false;
+        return i;
+    }
+
+    /**
+     * Returns the memory address of the instruction
+     * @return the memory address of the instruction
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the size of the instruction in bytes
+     * @return the size of the instruction
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the ordinal of the mnemonic
+     * @return the ordinal of the mnemonic or {@link InstructionRecord#NONE}
+     */
+    public int getMnemonic() {
+        return mnemonic;
+    }
+
+    /**
+     * Returns how the instruction affects the control flow
+     * @return a combination of the FLOW_ constants
+     */
+    public int getFlowFlags() {
+        return flowFlags;
+    }
+
+    /**
+     * Returns the number of operands
+     * @return the number of operands
+     */
+    public int getOperandCount() {
+        return operandCount;
+    }
+
+    /**
+     * Returns the kind of an operand
+     * @param i the index of the operand
+     * @return the kind of the operand
+     */
+    public OperandKind getOperandKind(int i) {
+        return kinds[i];
+    }
+
+    /**
+     * Returns whether an operand is read or written
+     * @param i the index of the operand
+     * @return the usage of the operand, can be null if unknown
+     */
+    public UsageType getUsage(int i) {
+        return usages[i];
+    }
+
+    /**
+     * Returns the architecture specific type of an operand
+     * @param i the index of the operand
+     * @return the ordinal of the operand type
+     */
+    public int getOperandType(int i) {
+        return types[i];
+    }
+
+    /**
+     * Returns the size of the data addressed by a memory operand
+     * @param i the index of the operand
+     * @return the size in bits or 0 if unknown
+     */
+    public int getPointerSize(int i) {
+        return sizes[i];
+    }
+
+    /**
+     * Returns the register of a register operand or the base register of a memory operand
+     * @param i the index of the operand
+     * @return the ordinal of the register or {@link InstructionRecord#NONE}
+     */
+    public int getRegister(int i) {
+        return registers[i];
+    }
+
+    /**
+     * Returns the index register of a memory operand
+     * @param i the index of the operand
+     * @return the ordinal of the register or {@link InstructionRecord#NONE}
+     */
+    public int getIndexRegister(int i) {
+        return indexRegisters[i];
+    }
+
+    /**
+     * Returns the factor of the index register of a memory operand
+     * @param i the index of the operand
+     * @return the scale of the index register
+     */
+    public int getScale(int i) {
+        return scales[i];
+    }
+
+    /**
+     * Returns the segment of an operand. For memory operands, this is the
+     * ordinal of the segment register, for immediates it is the segment
+     * part of a far pointer.
+     * @param i the index of the operand
+     * @return the segment or {@link InstructionRecord#NONE}
+     */
+    public int getSegment(int i) {
+        return segments[i];
+    }
+
+    /**
+     * Returns whether an operand has a value, i.e. if it is an immediate
+     * or a memory operand with displacement
+     * @param i the index of the operand
+     * @return true iff {@link InstructionRecord#getValue(int)} is valid
+     */
+    public boolean hasValue(int i) {
+        return hasValue[i];
+    }
+
+    /**
+     * Returns the immediate value or the displacement of a memory operand
+     * @param i the index of the operand
+     * @return the value of the operand
+     */
+    public long getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Returns whether the value of an operand was encoded relative to the
+     * instruction, e.g. for relative branches
+     * @param i the index of the operand
+     * @return true iff the value was encoded relative to the instruction
+     */
+    public boolean isRelative(int i) {
+        return relative[i];
+    }
+}
@@ -32,6 +32,14 @@ public class JumpTable extends Data {
         entries.add(entry);
     }
 
+    /**
+     * Returns the number of code addresses in the table
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
     @Override
     public void analyze(ByteSequence seq) {
         // analyzed by disassembler
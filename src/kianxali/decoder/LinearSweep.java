@@ -0,0 +1,244 @@
+package kianxali.decoder;
+
+import java.util.Arrays;
+
+import kianxali.decoder.InstructionRecord.OperandKind;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.loader.Section;
+
+/**
+ * Decodes a whole section in one linear sweep, i.e. starting at the first
+ * byte of the section and continuing after each decoded instruction.
+ * Bytes that can't be decoded are skipped. Unlike the recursive traversal of the
+ * disassembler, no control flow is followed and nothing is stored in the
+ * disassembly data. The result is kept in primitive columns (offset, length,
+ * mnemonic and flow flags for each instruction), so large sections can be decoded
+ * quickly for listings, coverage estimates and similar tasks. The destinations of
+ * direct calls are stored separately so they can be used as candidates for
+ * function starts.
+ * @author fwi
+ *
+ */
+public final class LinearSweep {
+    private final Section section;
+    private int count, invalidBytes;
+    private int[] offsets;
+    private short[] lengths, mnemonics;
+    private byte[] flowFlags;
+    private int callCount;
+    private int[] callSources;
+    private long[] callTargets;
+
+    private LinearSweep(Section section, int capacity) {
+        this.section = section;
+        this.offsets = new int[capacity];
+        this.lengths = new short[capacity];
+        this.mnemonics = new short[capacity];
+        this.flowFlags = new byte[capacity];
+        this.callSources = new int[16];
+        this.callTargets = new long[16];
+    }
+
+    /**
+     * Decodes a section using a new context and decoder of the image file
+     * @param image the image file that contains the section
+     * @param section the section to decode
+     * @return the decoded instructions of the section
+     */
+    public static LinearSweep decode(ImageFile image, Section section) {
+        Context ctx = image.createContext();
+        return decode(image, section, ctx, ctx.createInstructionDecoder());
+    }
+
+    /**
+     * Decodes a section using the given context and decoder. The section is read
+     * through its own view of the image file, see {@link ImageFile#getByteSequenceView(long)},
+     * so the image doesn't need to be locked and several sections can be swept at the same time.
+     * @param image the image file that contains the section
+     * @param section the section to decode
+     * @param ctx the context to use for decoding
+     * @param decoder the decoder to use
+     * @return the decoded instructions of the section
+     */
+    public static LinearSweep decode(ImageFile image, Section section, Context ctx, Decoder decoder) {
+        long start = section.getStartAddress();
+        long end = section.getEndAddress();
+
+        // most instructions are longer than 3 bytes, so this will rarely need to grow
+        long size = end - start + 1;
+        LinearSweep res = new LinearSweep(section, (int) Math.min(size / 3 + 16, 1 << 20));
+
+        InstructionRecord rec = new InstructionRecord();
+        ByteSequence seq = image.getByteSequenceView(start);
+        long addr = start;
+        while(addr <= end && seq.hasMore()) {
+            long pos = seq.getPosition();
+            ctx.setInstructionPointer(addr);
+            if(decoder.decodeOpcode(ctx, seq, rec)) {
+                res.add((int) (addr - start), rec);
+                addr += rec.getLength();
+                seq.seek(pos + rec.getLength());
+            } else {
+                res.invalidBytes++;
+                addr++;
+                seq.seek(pos + 1);
+            }
+        }
+        res.trim();
+        return res;
+    }
+
+    private void add(int offset, InstructionRecord rec) {
+        if(count == offsets.length) {
+            int newSize = count * 2;
+            offsets = Arrays.copyOf(offsets, newSize);
+            lengths = Arrays.copyOf(lengths, newSize);
+            mnemonics = Arrays.copyOf(mnemonics, newSize);
+            flowFlags = Arrays.copyOf(flowFlags, newSize);
+        }
+        offsets[count] = offset;
+        lengths[count] = (short) rec.getLength();
+        mnemonics[count] = (short) rec.getMnemonic();
+        flowFlags[count] = (byte) rec.getFlowFlags();
+        if((rec.getFlowFlags() & InstructionRecord.FLOW_CALL) != 0) {
+            addCall(rec);
+        }
+        count++;
+    }
+
+    private void addCall(InstructionRecord rec) {
+        for(int i = 0; i < rec.getOperandCount(); i++) {
+            if(rec.getOperandKind(i) != OperandKind.IMMEDIATE) {
+                continue;
+            }
+            if(callCount == callSources.length) {
+                int newSize = callCount * 2;
+                callSources = Arrays.copyOf(callSources, newSize);
+                callTargets = Arrays.copyOf(callTargets, newSize);
+            }
+            callSources[callCount] = count;
+            callTargets[callCount] = rec.getValue(i);
+            callCount++;
+            return;
+        }
+    }
+
+    private void trim() {
+        offsets = Arrays.copyOf(offsets, count);
+        lengths = Arrays.copyOf(lengths, count);
+        mnemonics = Arrays.copyOf(mnemonics, count);
+        flowFlags = Arrays.copyOf(flowFlags, count);
+        callSources = Arrays.copyOf(callSources, callCount);
+        callTargets = Arrays.copyOf(callTargets, callCount);
+    }
+
+    /**
+     * Returns the section that was decoded
+     * @return the decoded section
+     */
+    public Section getSection() {
+        return section;
+    }
+
+    /**
+     * Returns the number of decoded instructions
+     * @return the number of decoded instructions
+     */
+    public int getInstructionCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes that were skipped because they couldn't be decoded
+     * @return the number of invalid bytes
+     */
+    public int getInvalidByteCount() {
+        return invalidBytes;
+    }
+
+    /**
+     * Returns the offset of an instruction relative to the start of the section
+     * @param i the index of the instruction
+     * @return the offset of the instruction inside the section
+     */
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * Returns the memory address of an instruction
+     * @param i the index of the instruction
+     * @return the memory address of the instruction
+     */
+    public long getAddress(int i) {
+        return section.getStartAddress() + offsets[i];
+    }
+
+    /**
+     * Returns the size of an instruction
+     * @param i the index of the instruction
+     * @return the size of the instruction in bytes
+     */
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Returns the mnemonic of an instruction
+     * @param i the index of the instruction
+     * @return the ordinal of the mnemonic or {@link InstructionRecord#NONE}
+     */
+    public int getMnemonic(int i) {
+        return mnemonics[i];
+    }
+
+    /**
+     * Returns how an instruction affects the control flow
+     * @param i the index of the instruction
+     * @return a combination of the FLOW_ constants of {@link InstructionRecord}
+     */
+    public int getFlowFlags(int i) {
+        return flowFlags[i];
+    }
+
+    /**
+     * Returns the index of the instruction that starts at the given address
+     * @param memAddr the memory address to look up
+     * @return the index of the instruction or a negative value if no instruction starts there
+     */
+    public int indexOf(long memAddr) {
+        long offset = memAddr - section.getStartAddress();
+        if(offset < 0 || offset > Integer.MAX_VALUE) {
+            return -1;
+        }
+        int res = Arrays.binarySearch(offsets, (int) offset);
+        return res >= 0 ? res : -1;
+    }
+
+    /**
+     * Returns the number of direct calls, i.e. calls with an immediate destination
+     * @return the number of direct calls
+     */
+    public int getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Returns the instruction of a direct call
+     * @param i the index of the call
+     * @return the index of the call instruction
+     */
+    public int getCallSource(int i) {
+        return callSources[i];
+    }
+
+    /**
+     * Returns the destination of a direct call
+     * @param i the index of the call
+     * @return the memory address the call branches to
+     */
+    public long getCallTarget(int i) {
+        return callTargets[i];
+    }
+}
@@ -0,0 +1,533 @@
+package kianxali.decoder.arch.x86;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import kianxali.decoder.DecodeTable;
+import kianxali.decoder.InstructionRecord;
+import kianxali.decoder.arch.x86.X86CPU.AddressSize;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86CPU.OperandSize;
+import kianxali.decoder.arch.x86.xml.OpcodeEntry;
+import kianxali.decoder.arch.x86.xml.OpcodeGroup;
+import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
+import kianxali.decoder.arch.x86.xml.OperandDesc;
+import kianxali.decoder.arch.x86.xml.OperandDesc.OperandType;
+import kianxali.loader.ByteSequence;
+
+/**
+ * A copy of the decode table that is used to find the length of instructions
+ * without decoding their operands. For each syntax, the information needed to
+ * select it and to skip its operands is packed into a single long, so the
+ * length can be determined with a few table lookups. Syntaxes that can't be
+ * described this way (e.g. because their registers must be validated) use the
+ * {@link SyntaxDecoder} instead, so the result is always the same as the one of
+ * the full decoder.
+ * @author fwi
+ *
+ */
+final class LengthTable {
+    private static final int NODE_SIZE = 256;
+
+    // layout of the packed syntax information
+    private static final long EXTENSION_MASK        = 0x0FL;        // extension + 1 or 0 if not extended
+    private static final int  SECOND_OPCODE_SHIFT   = 4;            // extension in second opcode + 1 or 0
+    private static final long FLAG_MODRM            = 1L << 8;
+    private static final long FLAG_MODRM_MUST_REG   = 1L << 9;
+    private static final long FLAG_MUST_MEM         = 1L << 10;
+    private static final long FLAG_MUST_REG         = 1L << 11;
+    private static final long FLAG_FORCE_GEN        = 1L << 12;
+    private static final long FLAG_NOP              = 1L << 13;
+    private static final long FLAG_PREFIX           = 1L << 14;
+    private static final long FLAG_SLOW             = 1L << 15;
+    private static final long FLAG_MEMORY           = 1L << 16;
+    private static final long FLAG_OP_SIZE          = 1L << 17;
+    private static final long FLAG_POINTER          = 1L << 18;
+    private static final long FLAG_OFFSET           = 1L << 19;
+    private static final long FLAG_NEED_PREFIX      = 1L << 20;
+    private static final long FLAG_LAZY_MODRM       = 1L << 21;
+    private static final int  FIXED_SHIFT           = 24;           // bytes of immediates with fixed size
+    private static final int  S64_SHIFT             = 29;           // number of WORD_DWORD_S64 immediates
+    private static final int  W64_SHIFT             = 31;           // number of WORD_DWORD_64 immediates
+    private static final int  NEED_PREFIX_SHIFT     = 33;           // the byte of the mandatory prefix
+    private static final int  OPCODE_LENGTH_SHIFT   = 41;
+
+    private final LengthTable[] subTables;
+    private final List<OpcodeSyntax>[] leaves;
+    private final long[][] infos;
+
+    /**
+     * Creates a length table from a decode table
+     * @param table the decode table of the decoder
+     */
+    LengthTable(DecodeTable<OpcodeSyntax> table) {
+        this(table, new EnumMap<OperandType, Boolean>(OperandType.class));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private LengthTable(DecodeTable<OpcodeSyntax> table, Map<OperandType, Boolean> generalTypes) {
+        subTables = new LengthTable[NODE_SIZE];
+        leaves = new List[NODE_SIZE];
+        infos = new long[NODE_SIZE][];
+
+        for(short s = 0; s < NODE_SIZE; s++) {
+            DecodeTable<OpcodeSyntax> sub = table.getSubTable(s);
+            if(sub != null) {
+                subTables[s] = new LengthTable(sub, generalTypes);
+            }
+            List<OpcodeSyntax> list = table.getLeaves(s);
+            if(list != null) {
+                leaves[s] = list;
+                infos[s] = new long[list.size()];
+                for(int i = 0; i < list.size(); i++) {
+                    infos[s][i] = buildInfo(list.get(i), generalTypes);
+                }
+            }
+        }
+    }
+
+    private static long buildInfo(OpcodeSyntax syn, Map<OperandType, Boolean> generalTypes) {
+        OpcodeEntry entry = syn.getOpcodeEntry();
+        long info = 0;
+
+        if(syn.isExtended()) {
+            info |= syn.getExtension() + 1;
+        }
+        if(entry.secondOpcode != null) {
+            info |= (long) (((entry.secondOpcode >> 3) & 0x07) + 1) << SECOND_OPCODE_SHIFT;
+        }
+        if(entry.modRM) {
+            info |= FLAG_MODRM;
+        }
+        if(syn.isModRMMustReg()) {
+            info |= FLAG_MODRM_MUST_REG;
+        }
+        if(syn.getMnemonic() == X86Mnemonic.NOP) {
+            info |= FLAG_NOP;
+        }
+        if(entry.belongsTo(OpcodeGroup.PREFIX)) {
+            info |= FLAG_PREFIX;
+        }
+        if(entry.opSize) {
+            info |= FLAG_OP_SIZE;
+        }
+        if(entry.prefix != null) {
+            info |= FLAG_NEED_PREFIX;
+            info |= (long) (entry.prefix & 0xFF) << NEED_PREFIX_SHIFT;
+            info |= (long) syn.getOpcodeLength() << OPCODE_LENGTH_SHIFT;
+        }
+
+        boolean slow = false;
+        int fixed = 0, s64 = 0, w64 = 0, memory = 0, pointer = 0, offset = 0;
+        int registers = 0, operands = 0;
+        boolean lateModRM = false;
+        for(OperandDesc op : syn.getOperands()) {
+            if(op.indirect) {
+                continue;
+            }
+            operands++;
+            int consumed = fixed + s64 + w64 + pointer + offset;
+            int modRMOperands = memory + registers;
+            switch(op.adrType) {
+            case MOD_RM_MUST_M:
+                info |= FLAG_MUST_MEM;
+                memory++;
+                break;
+            case MOD_RM_M_FORCE_GEN:
+                info |= FLAG_FORCE_GEN | FLAG_MUST_REG;
+                memory++;
+                slow |= !isGeneralType(op.operType, generalTypes);
+                break;
+            case MOD_RM_M_FPU_REG:
+            case MOD_RM_M_XMM_REG:
+                info |= FLAG_MUST_REG;
+                memory++;
+                break;
+            case MOD_RM_M:
+            case MOD_RM_R_FORCE_GEN:
+                memory++;
+                slow |= !isGeneralType(op.operType, generalTypes);
+                break;
+            case MOD_RM_M_FPU:
+            case MOD_RM_M_MMX:
+            case MOD_RM_MMX:
+            case MOD_RM_XMM:
+                memory++;
+                break;
+            case MOD_RM_R:
+                registers++;
+                slow |= !isGeneralType(op.operType, generalTypes);
+                break;
+            case MOD_RM_R_MMX:
+            case MOD_RM_R_XMM:
+                registers++;
+                break;
+            case LEAST_REG:
+                slow |= !isGeneralType(op.operType, generalTypes);
+                break;
+            case GROUP:
+                switch(op.directGroup) {
+                case GENERIC:   slow |= !isGeneralType(op.operType, generalTypes); break;
+                case X87FPU:    break;
+                default:        slow = true; break;
+                }
+                break;
+            case OFFSET:
+                offset++;
+                break;
+            case DIRECT:
+            case IMMEDIATE:
+                if(op.hardcoded != null) {
+                    break;
+                }
+                switch(op.operType) {
+                case BYTE:
+                case BYTE_STACK:
+                case BYTE_SGN:          fixed += 1; break;
+                case WORD:              fixed += 2; break;
+                case WORD_DWORD_STACK:  fixed += 4; break;
+                case WORD_DWORD_S64:    s64++; break;
+                case WORD_DWORD_64:     w64++; break;
+                case POINTER:           pointer++; break;
+                default:                slow = true; break;
+                }
+                break;
+            case RELATIVE:
+                switch(op.operType) {
+                case WORD_DWORD_S64:    fixed += 4; break;
+                case BYTE_SGN:          fixed += 1; break;
+                default:                slow = true; break;
+                }
+                break;
+            case ES_EDI_RDI:
+            case DS_ESI_RSI:
+            case DS_EBX_AL_RBX:
+                break;
+            default:
+                // segment, control, debug and test registers need validation
+                slow = true;
+                break;
+            }
+            if(memory + registers > modRMOperands && consumed > 0) {
+                lateModRM = true;
+            }
+        }
+
+        if(memory + registers > 0 && !entry.modRM) {
+            // the operand reads the ModR/M byte itself, so it must be the only one and precede the immediates
+            if(memory + registers > 1 || lateModRM) {
+                slow = true;
+            } else {
+                info |= FLAG_LAZY_MODRM;
+            }
+        }
+        if(memory > 1 || pointer > 1 || offset > 1 || fixed > 15 || s64 > 3 || w64 > 3) {
+            slow = true;
+        }
+        if(operands > InstructionRecord.MAX_OPERANDS) {
+            // rejected by the syntax decoder
+            slow = true;
+        }
+
+        if(memory == 1) {
+            info |= FLAG_MEMORY;
+        }
+        if(pointer == 1) {
+            info |= FLAG_POINTER;
+        }
+        if(offset == 1) {
+            info |= FLAG_OFFSET;
+        }
+        info |= (long) fixed << FIXED_SHIFT;
+        info |= (long) s64 << S64_SHIFT;
+        info |= (long) w64 << W64_SHIFT;
+        if(slow) {
+            info |= FLAG_SLOW;
+        }
+        return info;
+    }
+
+    // whether a general register of this type can always be looked up, i.e. its size is O8 to O64 in all modes
+    private static boolean isGeneralType(OperandType type, Map<OperandType, Boolean> generalTypes) {
+        if(type == null) {
+            return false;
+        }
+        Boolean res = generalTypes.get(type);
+        if(res == null) {
+            res = true;
+            for(ExecutionMode mode : ExecutionMode.values()) {
+                X86Context ctx = new X86Context(Model.ANY, mode);
+                Prefix prefix = ctx.getPrefix();
+                for(int flags = 0; flags < 8 && res; flags++) {
+                    prefix.opSizePrefix = (flags & 1) != 0;
+                    prefix.adrSizePrefix = (flags & 2) != 0;
+                    prefix.rexWPrefix = (flags & 4) != 0;
+                    OperandSize size = X86CPU.findOperandSize(ctx, type);
+                    if(size != OperandSize.O8 && size != OperandSize.O16 && size != OperandSize.O32 && size != OperandSize.O64) {
+                        res = false;
+                    }
+                }
+            }
+            generalTypes.put(type, res);
+        }
+        return res;
+    }
+
+    /**
+     * Moves the sequence behind the next instruction. The context must have been reset.
+     * @param seq the sequence to read from
+     * @param ctx the current context
+     * @return true iff an instruction was found
+     */
+    boolean skipInstruction(ByteSequence seq, X86Context ctx) {
+        LengthTable table = this;
+        while(seq.hasMore()) {
+            short s = seq.readUByte();
+            ctx.getPrefix().pushPrefixByte(s);
+
+            LengthTable sub = table.subTables[s];
+            if(sub != null) {
+                table = sub;
+                continue;
+            }
+
+            long[] info = table.infos[s];
+            if(info == null) {
+                return false;
+            }
+
+            long selected = skipOperands(table.leaves[s], info, seq, ctx);
+            if(selected == 0) {
+                return false;
+            } else if((selected & FLAG_PREFIX) != 0) {
+                table = this;
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // returns the information of the selected syntax or 0 if the operands couldn't be skipped
+    private static long skipOperands(List<OpcodeSyntax> syntaxes, long[] infos, ByteSequence seq, X86Context ctx) {
+        short modRMCode = -1;
+        if(seq.hasMore()) {
+            modRMCode = seq.readUByte();
+            seq.skip(-1);
+        }
+
+        int extension = -1;
+        for(int i = 0; i < infos.length; i++) {
+            if((infos[i] & EXTENSION_MASK) == 0) {
+                continue;
+            }
+            int second = (int) ((infos[i] >>> SECOND_OPCODE_SHIFT) & EXTENSION_MASK);
+            if(second != 0) {
+                extension = second - 1;
+            } else if(modRMCode >= 0) {
+                extension = (modRMCode >> 3) & 0x07;
+            }
+            break;
+        }
+
+        Prefix prefix = ctx.getPrefix();
+        int selected = -1;
+        int bestScore = 0;
+        for(int i = 0; i < infos.length; i++) {
+            int score = getScore(infos[i], prefix, modRMCode, extension);
+            if(score > bestScore) {
+                selected = i;
+                bestScore = score;
+            }
+        }
+        if(selected < 0) {
+            return 0;
+        }
+
+        long info = infos[selected];
+        if((info & FLAG_PREFIX) != 0) {
+            ctx.applyPrefix(syntaxes.get(selected).getOpcodeEntry());
+            return info;
+        }
+
+        if((info & FLAG_SLOW) == 0) {
+            boolean needPrefix = (info & FLAG_NEED_PREFIX) != 0;
+            if(needPrefix) {
+                ctx.savePrefixFlags();
+                ctx.hidePrefix((short) ((info >>> NEED_PREFIX_SHIFT) & 0xFF));
+            }
+            int length = getOperandLength(info, seq, ctx, modRMCode);
+            if(length >= 0 && length <= seq.getRemaining()) {
+                seq.skip(length);
+                return info;
+            }
+            if(needPrefix) {
+                ctx.restorePrefixFlags();
+            }
+        }
+
+        // exact but slower path that also tries the other syntaxes if the selected one fails
+        OpcodeSyntax syntax = SyntaxDecoder.decode(syntaxes, seq, ctx, null);
+        if(syntax == null) {
+            return 0;
+        } else if(syntax.getOpcodeEntry().belongsTo(OpcodeGroup.PREFIX)) {
+            ctx.applyPrefix(syntax.getOpcodeEntry());
+            return FLAG_PREFIX;
+        }
+        return FLAG_SLOW;
+    }
+
+    // same as SyntaxDecoder.getScore, but only uses the packed information
+    private static int getScore(long info, Prefix prefix, short modRMCode, int extension) {
+        int score = 1;
+
+        int ext = (int) (info & EXTENSION_MASK);
+        if(ext != 0 && ext - 1 != extension) {
+            return 0;
+        }
+
+        if((info & FLAG_NEED_PREFIX) != 0) {
+            short needPrefix = (short) ((info >>> NEED_PREFIX_SHIFT) & 0xFF);
+            int opcodeLength = (int) ((info >>> OPCODE_LENGTH_SHIFT) & 0xFF);
+            boolean prefixOk = false;
+            for(int i = 0; i < prefix.getPrefixByteCount() - opcodeLength; i++) {
+                if(prefix.getPrefixByte(i) == needPrefix) {
+                    prefixOk = true;
+                    score++;
+                    break;
+                }
+            }
+            if(!prefixOk) {
+                return 0;
+            }
+        }
+
+        if(modRMCode >= 0) {
+            boolean isRMReg = ModRM.isRMReg(modRMCode);
+            if((info & FLAG_MODRM) != 0 && (info & FLAG_MODRM_MUST_REG) != 0 && !isRMReg) {
+                return 0;
+            }
+            if((info & FLAG_MUST_MEM) != 0 && isRMReg) {
+                return 0;
+            }
+            if((info & FLAG_FORCE_GEN) != 0 && (info & FLAG_MODRM) == 0) {
+                return 0;
+            }
+            if((info & FLAG_MUST_REG) != 0 && !isRMReg) {
+                return 0;
+            }
+        }
+
+        if((info & FLAG_NOP) != 0 && (info & FLAG_MODRM) == 0 && prefix.getPrefixByteCount() == 1) {
+            score++;
+        }
+
+        return score;
+    }
+
+    // returns the number of bytes following the opcode or -1 if the slow path must be used
+    private static int getOperandLength(long info, ByteSequence seq, X86Context ctx, short modRMCode) {
+        Prefix prefix = ctx.getPrefix();
+        if(ctx.getExecMode() != ExecutionMode.LONG && (prefix.rexBPrefix || prefix.rexRPrefix || prefix.rexXPrefix)) {
+            return -1;
+        }
+
+        int length = (int) ((info >>> FIXED_SHIFT) & 0x1F);
+        AddressSize adrSize = X86CPU.getAddressSize(ctx);
+
+        if((info & (FLAG_MODRM | FLAG_LAZY_MODRM)) != 0) {
+            if(modRMCode < 0) {
+                return -1;
+            }
+            length++;
+            if((info & FLAG_MEMORY) != 0 && !ModRM.isRMReg(modRMCode)) {
+                int mem = getMemoryLength(modRMCode, seq, adrSize);
+                if(mem < 0) {
+                    return -1;
+                }
+                length += mem;
+            }
+        }
+
+        int s64 = (int) ((info >>> S64_SHIFT) & 0x03);
+        if(s64 > 0) {
+            OperandSize size = X86CPU.findOperandSize(ctx, OperandType.WORD_DWORD_S64);
+            if(size == OperandSize.O16) {
+                length += 2 * s64;
+            } else if(size == OperandSize.O32 || size == OperandSize.O64) {
+                length += 4 * s64;
+            } else {
+                return -1;
+            }
+        }
+
+        int w64 = (int) ((info >>> W64_SHIFT) & 0x03);
+        if(w64 > 0) {
+            OperandSize size = X86CPU.findOperandSize(ctx, OperandType.WORD_DWORD_64);
+            if(size == OperandSize.O16) {
+                length += 2 * w64;
+            } else if(size == OperandSize.O32) {
+                length += 4 * w64;
+            } else if(size == OperandSize.O64) {
+                length += ((info & FLAG_OP_SIZE) != 0 ? 4 : 8) * w64;
+            } else {
+                return -1;
+            }
+        }
+
+        if((info & FLAG_POINTER) != 0) {
+            OperandSize size = X86CPU.findOperandSize(ctx, OperandType.POINTER);
+            if(size == OperandSize.O16) {
+                length += 2 + 2;
+            } else if(size == OperandSize.O32) {
+                length += 4 + 2;
+            } else {
+                return -1;
+            }
+        }
+
+        if((info & FLAG_OFFSET) != 0) {
+            switch(adrSize) {
+            case A16: length += 2; break;
+            case A32: length += 4; break;
+            case A64: length += 8; break;
+            default: return -1;
+            }
+        }
+
+        return length;
+    }
+
+    // returns the number of bytes following a ModR/M byte that addresses memory, -1 if the SIB byte is missing
+    private static int getMemoryLength(short code, ByteSequence seq, AddressSize adrSize) {
+        int mod = code >> 6;
+        int rm = code & 0x07;
+
+        if(adrSize == AddressSize.A16) {
+            switch(mod) {
+            case 0:     return rm == 6 ? 2 : 0;
+            case 1:     return 1;
+            default:    return 2;
+            }
+        }
+
+        switch(mod) {
+        case 0:
+            if(rm == 4) {
+                // the SIB byte follows the ModR/M byte
+                if(seq.getRemaining() < 2) {
+                    return -1;
+                }
+                seq.skip(1);
+                short sib = seq.readUByte();
+                seq.skip(-2);
+                return (sib & 0x07) == 5 ? 1 + 4 : 1;
+            }
+            return rm == 5 ? 4 : 0;
+        case 1:     return rm == 4 ? 1 + 1 : 1;
+        default:    return rm == 4 ? 1 + 4 : 4;
+        }
+    }
+}
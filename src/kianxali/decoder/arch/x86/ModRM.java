@@ -1,75 +1,75 @@
 package kianxali.decoder.arch.x86;
 
-import kianxali.decoder.Operand;
+import kianxali.decoder.InstructionRecord;
 import kianxali.decoder.arch.x86.X86CPU.AddressSize;
 import kianxali.decoder.arch.x86.X86CPU.X86Register;
 import kianxali.decoder.arch.x86.xml.OperandDesc;
 import kianxali.loader.ByteSequence;
 
 /**
- * Used to parse a ModR/M byte.
+ * Used to parse a ModR/M byte. The decoded operands are stored
+ * directly in an {@link InstructionRecord}.
  * @author fwi
  *
  */
-class ModRM {
-    private final short codedMod;
-    private final short codedReg;
-    private final short codedMem;
-    private final X86Context ctx;
-    private final ByteSequence seq;
+final class ModRM {
+    // Utility class, no constructor
+    private ModRM() {
 
-    public ModRM(ByteSequence seq, X86Context ctx) {
-        this.seq = seq;
-        this.ctx = ctx;
-        short code = seq.readUByte();
-
-        codedMod = (short) (code >> 6);
+    }
 
+    private static short getCodedReg(short code, X86Context ctx) {
         if(ctx.getPrefix().rexRPrefix) {
-            codedReg = (short) (((code >> 3) & 0x07) | 8);
+            return (short) (((code >> 3) & 0x07) | 8);
         } else {
-            codedReg = (short) ((code >> 3) & 0x07);
+            return (short) ((code >> 3) & 0x07);
         }
+    }
 
+    private static short getCodedMem(short code, X86Context ctx) {
         if(ctx.getPrefix().rexBPrefix) {
-            codedMem = (short) ((code & 0x07) | 8);
+            return (short) ((code & 0x07) | 8);
         } else {
-            codedMem = (short) (code & 0x07);
+            return (short) (code & 0x07);
         }
     }
 
-    public boolean isRMMem() {
-        return codedMod != 3;
+    public static boolean isRMReg(short code) {
+        return (code >> 6) == 3;
     }
 
-    public boolean isRMReg() {
-        return codedMod == 3;
+    // returns false if the reg field doesn't describe a valid register for the operand
+    public static boolean decodeReg(short code, OperandDesc op, X86Context ctx, InstructionRecord rec) {
+        X86Register reg = X86CPU.findOperandRegister(op, ctx, getCodedReg(code, ctx));
+        return SyntaxDecoder.addRegister(rec, op, reg);
     }
 
-    public Operand getReg(OperandDesc op) {
-        X86Register reg = X86CPU.getOperandRegister(op, ctx, codedReg);
-        return new RegisterOp(op.usageType, reg);
+    // like decodeReg, but only validates the register
+    public static boolean skipReg(short code, OperandDesc op, X86Context ctx) {
+        return X86CPU.findOperandRegister(op, ctx, getCodedReg(code, ctx)) != null;
     }
 
-    public Operand getMem(OperandDesc op, boolean allowRegister, boolean mustBeRegister) {
+    public static boolean decodeMem(short code, ByteSequence seq, OperandDesc op, X86Context ctx, InstructionRecord rec, boolean allowRegister, boolean mustBeRegister) {
         AddressSize addrSize = X86CPU.getAddressSize(ctx);
         switch(addrSize) {
-        case A16:   return getMem16(op, allowRegister, mustBeRegister);
-        case A32:   return getMem32or64(false, op, allowRegister, mustBeRegister);
-        case A64:   return getMem32or64(true, op, allowRegister, mustBeRegister);
+        case A16:   return decodeMem16(code, seq, op, ctx, rec, allowRegister, mustBeRegister);
+        case A32:   return decodeMem32or64(false, code, seq, op, ctx, rec, allowRegister, mustBeRegister);
+        case A64:   return decodeMem32or64(true, code, seq, op, ctx, rec, allowRegister, mustBeRegister);
         default:    throw new UnsupportedOperationException("invalid address size: " + addrSize);
         }
     }
 
-    private Operand getMem16(OperandDesc op, boolean allowRegister, boolean mustBeRegister) {
-        if(isRMReg()) {
+    private static boolean decodeMem16(short code, ByteSequence seq, OperandDesc op, X86Context ctx, InstructionRecord rec, boolean allowRegister, boolean mustBeRegister) {
+        short codedMod = (short) (code >> 6);
+        short codedMem = getCodedMem(code, ctx);
+        if(isRMReg(code)) {
             // encoding specifies register (or user forced so)
             if(!allowRegister) {
-                return null;
+                return false;
             }
-            return new RegisterOp(op.usageType, X86CPU.getOperandRegister(op, ctx, codedMem));
+            return SyntaxDecoder.addRegister(rec, op, X86CPU.findOperandRegister(op, ctx, codedMem));
         } else if(mustBeRegister) {
-            return null;
+            return false;
         }
 
         X86Register baseReg = null, indexReg = null;
@@ -88,105 +88,150 @@ class ModRM {
         switch(codedMod) {
         case 0: {
             if(codedMem != 6) {
-                PointerOp res = new PointerOp(ctx, baseReg, 1, indexReg);
-                res.setOpType(op.operType);
-                res.setUsage(op.usageType);
-                return res;
+                SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, 1, indexReg);
             } else {
                 long disp = seq.readSWord();
-                PointerOp res = new PointerOp(ctx, disp);
-                res.setOpType(op.operType);
-                res.setUsage(op.usageType);
-                return res;
+                int i = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, null, 1, null);
+                rec.setDisplacement(i, disp, false);
             }
+            return true;
         }
         case 1: {
             long disp = seq.readSByte();
-            PointerOp res = new PointerOp(ctx, baseReg, 1, indexReg, disp);
-            res.setOpType(op.operType);
-            res.setUsage(op.usageType);
-            return res;
+            int i = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, 1, indexReg);
+            rec.setDisplacement(i, disp, false);
+            return true;
         }
         case 2: {
             long disp = seq.readSWord();
-            PointerOp res = new PointerOp(ctx, baseReg, 1, indexReg, disp);
-            res.setOpType(op.operType);
-            res.setUsage(op.usageType);
-            return res;
+            int i = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, 1, indexReg);
+            rec.setDisplacement(i, disp, false);
+            return true;
         }
         default: throw new UnsupportedOperationException("invalid mode: " + codedMod);
         }
     }
 
-    private Operand getMem32or64(boolean is64, OperandDesc op, boolean allowRegister, boolean mustBeRegister) {
-        if(isRMReg()) {
+    private static boolean decodeMem32or64(boolean is64, short code, ByteSequence seq, OperandDesc op, X86Context ctx, InstructionRecord rec, boolean allowRegister, boolean mustBeRegister) {
+        short codedMod = (short) (code >> 6);
+        short codedMem = getCodedMem(code, ctx);
+        if(isRMReg(code)) {
             // encoding specifies register (or user forced so)
             if(!allowRegister) {
-                return null;
+                return false;
             }
-            return new RegisterOp(op.usageType, X86CPU.getOperandRegister(op, ctx, codedMem));
+            return SyntaxDecoder.addRegister(rec, op, X86CPU.findOperandRegister(op, ctx, codedMem));
         } else if(mustBeRegister) {
-            return null;
+            return false;
+        }
+
+        X86Register baseReg = null;
+        boolean hasSIB = codedMem == 4 || codedMem == 12;
+        boolean isRelative = codedMod == 0 && (codedMem == 5 || codedMem == 13);
+        if(!hasSIB && !isRelative) {
+            baseReg = X86CPU.findGenericAddressRegister(ctx, codedMem);
+            if(baseReg == null) {
+                return false;
+            }
         }
 
         switch(codedMod) {
         case 0:
-            if(codedMem == 4 || codedMem == 12) {
-                SIB sib = new SIB(seq, op, codedMod, ctx);
-                return sib.getOp();
-            } else if(codedMem == 5 || codedMem == 13) {
+            if(hasSIB) {
+                return SIB.decode(seq, op, codedMod, ctx, rec) >= 0;
+            } else if(isRelative) {
                 long disp = seq.readUDword();
                 if(is64) {
+                    // RIP-relative, the instruction size is added when it is known
                     disp += ctx.getInstructionPointer();
                 }
-                PointerOp res = new PointerOp(ctx, disp);
-                if(is64) {
-                    res.setNeedSizeFix(true);
-                }
-                res.setOpType(op.operType);
-                res.setUsage(op.usageType);
-                return res;
+                int i = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, null, 1, null);
+                rec.setDisplacement(i, disp, is64);
             } else {
-                PointerOp res;
-                res = new PointerOp(ctx, X86CPU.getGenericAddressRegister(ctx, codedMem));
-                res.setOpType(op.operType);
-                res.setUsage(op.usageType);
-                return res;
+                SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, 1, null);
             }
+            return true;
         case 1:
-            if(codedMem == 4 || codedMem == 12) {
-                SIB sib = new SIB(seq, op, codedMod, ctx);
-                PointerOp pOp = sib.getOp();
-                if(!pOp.hasOffset()) {
-                    pOp.setOffset(seq.readUByte());
+            if(hasSIB) {
+                int i = SIB.decode(seq, op, codedMod, ctx, rec);
+                if(i < 0) {
+                    return false;
+                } else if(!rec.hasValue(i)) {
+                    rec.setDisplacement(i, seq.readUByte(), false);
                 }
-                return pOp;
             } else {
                 long disp = seq.readSByte();
-                PointerOp res;
-                res = new PointerOp(ctx, X86CPU.getGenericAddressRegister(ctx, codedMem), disp);
-                res.setOpType(op.operType);
-                res.setUsage(op.usageType);
-                return res;
+                int i = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, 1, null);
+                rec.setDisplacement(i, disp, false);
             }
+            return true;
         case 2:
-            if(codedMem == 4 || codedMem == 12) {
-                SIB sib = new SIB(seq, op, codedMod, ctx);
-                PointerOp pOp = sib.getOp();
-                if(!pOp.hasOffset()) {
-                    pOp.setOffset(seq.readUDword());
+            if(hasSIB) {
+                int i = SIB.decode(seq, op, codedMod, ctx, rec);
+                if(i < 0) {
+                    return false;
+                } else if(!rec.hasValue(i)) {
+                    rec.setDisplacement(i, seq.readUDword(), false);
                 }
-                return pOp;
             } else {
                 long disp = seq.readSDword();
-                PointerOp res;
-                res = new PointerOp(ctx, X86CPU.getGenericAddressRegister(ctx, codedMem), disp);
-                res.setOpType(op.operType);
-                res.setUsage(op.usageType);
-                return res;
+                int i = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, 1, null);
+                rec.setDisplacement(i, disp, false);
             }
+            return true;
         default:
             throw new UnsupportedOperationException("unsupported mode: " + codedMod);
         }
     }
+
+    // like decodeMem, but only moves seq behind the operand.
+    // Returns false if a register is invalid or the sequence ends within the operand
+    public static boolean skipMem(short code, ByteSequence seq, OperandDesc op, X86Context ctx, boolean allowRegister, boolean mustBeRegister) {
+        short codedMod = (short) (code >> 6);
+        short codedMem = getCodedMem(code, ctx);
+        if(isRMReg(code)) {
+            return allowRegister && X86CPU.findOperandRegister(op, ctx, codedMem) != null;
+        } else if(mustBeRegister) {
+            return false;
+        }
+
+        AddressSize addrSize = X86CPU.getAddressSize(ctx);
+        if(addrSize == AddressSize.A16) {
+            switch(codedMod) {
+            case 0: return codedMem != 6 || skip(seq, 2);
+            case 1: return skip(seq, 1);
+            case 2: return skip(seq, 2);
+            default: throw new UnsupportedOperationException("invalid mode: " + codedMod);
+            }
+        }
+
+        boolean hasSIB = codedMem == 4 || codedMem == 12;
+        boolean isRelative = codedMod == 0 && (codedMem == 5 || codedMem == 13);
+        if(hasSIB) {
+            int disp = SIB.skip(seq, codedMod, ctx);
+            if(disp != 0) {
+                return disp > 0;
+            }
+        } else if(!isRelative && X86CPU.findGenericAddressRegister(ctx, codedMem) == null) {
+            return false;
+        }
+
+        // the displacement if the SIB byte didn't contain one
+        switch(codedMod) {
+        case 0: return !isRelative || skip(seq, 4);
+        case 1: return skip(seq, 1);
+        case 2: return skip(seq, 4);
+        default:
+            throw new UnsupportedOperationException("unsupported mode: " + codedMod);
+        }
+    }
+
+    // moves seq by a given amount if the sequence is long enough
+    static boolean skip(ByteSequence seq, int amount) {
+        if(seq.getRemaining() < amount) {
+            return false;
+        }
+        seq.skip(amount);
+        return true;
+    }
 }
@@ -20,83 +20,22 @@ import kianxali.util.OutputFormatter;
  *
  */
 public class PointerOp implements Operand {
-    // TODO: context should be removed from here
     private static final Logger LOG = Logger.getLogger("kianxali.decoder.arch.x86");
-    private final X86Context context;
     private UsageType usage;
     private OperandType opType;
+    private OperandSize opSize;
     private Segment segment;
     private X86Register baseRegister, indexRegister;
     private Integer indexScale;
     private Long offset;
-    private boolean needSizeFix;
 
-    // ptr [address]
-    PointerOp(X86Context ctx, long offset) {
-        this.context = ctx;
-        this.offset = offset;
-    }
-
-    // ptr [register]
-    PointerOp(X86Context ctx, X86Register baseRegister) {
-        this.context = ctx;
-        this.baseRegister = baseRegister;
-    }
-
-    PointerOp(X86Context ctx, X86Register baseRegister, long offset) {
-        this.context = ctx;
-        this.baseRegister = baseRegister;
-        this.offset = offset;
-    }
-
-    // ptr [scale * register]
-    PointerOp(X86Context ctx, X86Register indexRegister, int scale) {
-        this.context = ctx;
-        this.indexRegister = indexRegister;
-        if(scale > 1 && indexRegister != null) {
-            this.indexScale = scale;
-        }
-    }
-
-    // ptr [scale * register + offset]
-    PointerOp(X86Context ctx, X86Register indexRegister, int scale, long offset) {
-        this.context = ctx;
-        this.indexRegister = indexRegister;
-        if(scale > 1 && indexRegister != null) {
-            this.indexScale = scale;
-        }
-        this.offset = offset;
-    }
-
-    // ptr [base + scale * index]
-    PointerOp(X86Context ctx, X86Register baseRegister, int scale, X86Register indexRegister) {
-        this.context = ctx;
-        this.baseRegister = baseRegister;
-        if(scale > 1 && indexRegister != null) {
-            this.indexScale = scale;
-        }
-        this.indexRegister = indexRegister;
-    }
-
-    // ptr [scale * index + offset]
-    PointerOp(X86Context ctx, int scale, X86Register indexRegister, long offset) {
-        this.context = ctx;
-        if(scale > 1 && indexRegister != null) {
-            this.indexScale = scale;
-        }
-        this.indexRegister = indexRegister;
-        this.offset = offset;
-    }
-
-    // ptr [base + scale * index + offset]
-    PointerOp(X86Context ctx, X86Register baseRegister, int scale, X86Register indexRegister, long offset) {
-        this.context = ctx;
+    // ptr [base + scale * index], the offset is set separately
+    PointerOp(X86Register baseRegister, int scale, X86Register indexRegister) {
         this.baseRegister = baseRegister;
         if(scale > 1 && indexRegister != null) {
             this.indexScale = scale;
         }
         this.indexRegister = indexRegister;
-        this.offset = offset;
     }
 
     /**
@@ -123,6 +62,11 @@ public class PointerOp implements Operand {
         this.opType = opType;
     }
 
+    // the size of the addressed data, determined when decoding because it depends on the prefixes
+    void setOpSize(OperandSize opSize) {
+        this.opSize = opSize;
+    }
+
     void setUsage(UsageType usage) {
         this.usage = usage;
     }
@@ -155,10 +99,8 @@ public class PointerOp implements Operand {
             DataType type;
             // only addressed by constant -> great because we know the size then
             // TODO: work on opType directly for more information
-            try {
-                OperandSize size = X86CPU.getOperandSize(context, opType);
-
-                switch(size) {
+            if(opSize != null) {
+                switch(opSize) {
                 case O8:    type = DataType.BYTE; break;
                 case O16:   type = DataType.WORD; break;
                 case O32:   type = DataType.DWORD; break;
@@ -167,7 +109,7 @@ public class PointerOp implements Operand {
                 case O512:  type = DataType.DYWORD; break;
                 default:    type = DataType.UNKNOWN;
                 }
-            } catch(Exception e) {
+            } else {
                 LOG.warning("Unknown operand size for " + opType);
                 type = DataType.UNKNOWN;
             }
@@ -181,17 +123,12 @@ public class PointerOp implements Operand {
         }
     }
 
-    void setNeedSizeFix(boolean b) {
-        needSizeFix = b;
-    }
-
-    boolean needsSizeFix() {
-        return needSizeFix;
-    }
-
     @Override
     public Short getPointerDestSize() {
-        switch(X86CPU.getOperandSize(context, opType)) {
+        if(opSize == null) {
+            throw new RuntimeException("invalid operand size: " + opType);
+        }
+        switch(opSize) {
         case O8:    return 8;
         case O16:   return 16;
         case O32:   return 32;
@@ -213,27 +150,25 @@ public class PointerOp implements Operand {
             str.append("xmmword ptr ");
             break;
         default:
-            try {
-                switch(X86CPU.getOperandSize(context, opType)) {
-                case O8:    str.append("byte ptr "); break;
-                case O16:   str.append("word ptr "); break;
-                case O32:   str.append("dword ptr "); break;
-                case O64:   str.append("qword ptr "); break;
-                case O80:   str.append("tbyte ptr "); break;
-                case O128:  str.append("dqword ptr "); break;
-                case O512:  str.append("dyword ptr "); break;
-                default: throw new RuntimeException("invalid operand size: " + opType);
-                }
-            } catch(Exception e) {
+            if(opSize == null) {
                 LOG.warning("Unknown operand size for " + opType);
                 str.append("? ptr ");
+                break;
+            }
+            switch(opSize) {
+            case O8:    str.append("byte ptr "); break;
+            case O16:   str.append("word ptr "); break;
+            case O32:   str.append("dword ptr "); break;
+            case O64:   str.append("qword ptr "); break;
+            case O80:   str.append("tbyte ptr "); break;
+            case O128:  str.append("dqword ptr "); break;
+            case O512:  str.append("dyword ptr "); break;
+            default: throw new RuntimeException("invalid operand size: " + opType);
             }
         }
 
         if(segment != null) {
             str.append(segment + ":");
-        } else if(context.getPrefix().overrideSegment != null) {
-            str.append(context.getPrefix().overrideSegment + ":");
         }
 
         str.append("[");
@@ -1,7 +1,6 @@
 package kianxali.decoder.arch.x86;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import kianxali.decoder.arch.x86.X86CPU.Segment;
 
@@ -18,23 +17,72 @@ public class Prefix {
     public boolean lockPrefix, waitPrefix;
     public boolean repZPrefix, repNZPrefix, opSizePrefix, adrSizePrefix;
     public boolean rexWPrefix, rexRPrefix, rexBPrefix, rexXPrefix;
-    public List<Short> prefixBytes;
+    private short[] prefixBytes;
+    private int prefixCount;
 
     public Prefix() {
-        prefixBytes = new ArrayList<>(5);
+        prefixBytes = new short[16];
+    }
+
+    /**
+     * Copies all flags, but not the raw bytes, from another prefix
+     * @param other the prefix to copy the flags from
+     */
+    public void copyFlagsFrom(Prefix other) {
+        overrideSegment = other.overrideSegment;
+        lockPrefix = other.lockPrefix;
+        waitPrefix = other.waitPrefix;
+        repZPrefix = other.repZPrefix;
+        repNZPrefix = other.repNZPrefix;
+        opSizePrefix = other.opSizePrefix;
+        adrSizePrefix = other.adrSizePrefix;
+        rexWPrefix = other.rexWPrefix;
+        rexRPrefix = other.rexRPrefix;
+        rexBPrefix = other.rexBPrefix;
+        rexXPrefix = other.rexXPrefix;
+    }
+
+    /**
+     * Removes all flags and raw bytes so the prefix can be used for the next instruction
+     */
+    public void clear() {
+        overrideSegment = null;
+        lockPrefix = waitPrefix = false;
+        repZPrefix = repNZPrefix = opSizePrefix = adrSizePrefix = false;
+        rexWPrefix = rexRPrefix = rexBPrefix = rexXPrefix = false;
+        prefixCount = 0;
     }
 
     public void pushPrefixByte(short b) {
-        prefixBytes.add(b);
+        if(prefixCount == prefixBytes.length) {
+            prefixBytes = Arrays.copyOf(prefixBytes, prefixCount * 2);
+        }
+        prefixBytes[prefixCount++] = b;
     }
 
     public void popPrefixByte() {
-        int size = prefixBytes.size();
-        if(size > 0) {
-            prefixBytes.remove(size - 1);
+        if(prefixCount > 0) {
+            prefixCount--;
         }
     }
 
+    /**
+     * Returns the number of raw bytes that have been read for the current instruction
+     * @return the number of raw bytes
+     */
+    public int getPrefixByteCount() {
+        return prefixCount;
+    }
+
+    /**
+     * Returns a raw byte that has been read for the current instruction
+     * @param i the index of the byte
+     * @return the raw byte
+     */
+    public short getPrefixByte(int i) {
+        return prefixBytes[i];
+    }
+
     @Override
     public String toString() {
         StringBuilder res = new StringBuilder();
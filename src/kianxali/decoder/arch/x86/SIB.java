@@ -1,5 +1,6 @@
 package kianxali.decoder.arch.x86;
 
+import kianxali.decoder.InstructionRecord;
 import kianxali.decoder.arch.x86.X86CPU.X86Register;
 import kianxali.decoder.arch.x86.xml.OperandDesc;
 import kianxali.loader.ByteSequence;
@@ -9,10 +10,14 @@ import kianxali.loader.ByteSequence;
  * @author fwi
  *
  */
-class SIB {
-    private PointerOp sibOp;
+final class SIB {
+    // Utility class, no constructor
+    private SIB() {
 
-    public SIB(ByteSequence seq, OperandDesc op, short mode, X86Context ctx) {
+    }
+
+    // adds the memory operand to the record and returns its index or -1 if a register is invalid
+    public static int decode(ByteSequence seq, OperandDesc op, short mode, X86Context ctx, InstructionRecord rec) {
         short sib = seq.readUByte();
         int scale = 1 << (sib >> 6);
         short index = (short) ((sib >> 3) & 0x07);
@@ -28,36 +33,79 @@ class SIB {
         if(index == 4) {
             indexReg = null;
         } else {
-            indexReg =  X86CPU.getGenericAddressRegister(ctx, index);
+            indexReg =  X86CPU.findGenericAddressRegister(ctx, index);
+            if(indexReg == null) {
+                return -1;
+            }
         }
 
         long disp;
+        int res;
         if(base == 5 || base == 13) {
             switch(mode) {
             case 0:
                 disp = seq.readSDword();
-                sibOp = new PointerOp(ctx, scale, indexReg, disp);
+                res = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, null, scale, indexReg);
                 break;
             case 1:
                 disp = seq.readSByte();
-                sibOp = new PointerOp(ctx, X86Register.EBP, scale, indexReg, disp);
+                res = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, X86Register.EBP, scale, indexReg);
                 break;
             case 2:
                 disp = seq.readSDword();
-                sibOp = new PointerOp(ctx, X86Register.EBP, scale, indexReg, disp);
+                res = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, X86Register.EBP, scale, indexReg);
                 break;
             default:
                 throw new RuntimeException("invalid base: " + mode);
             }
+            rec.setDisplacement(res, disp, false);
         } else {
-            X86Register baseReg = X86CPU.getGenericAddressRegister(ctx, base);
-            sibOp = new PointerOp(ctx, baseReg, scale, indexReg);
+            X86Register baseReg = X86CPU.findGenericAddressRegister(ctx, base);
+            if(baseReg == null) {
+                return -1;
+            }
+            res = SyntaxDecoder.addMemory(rec, op, op.usageType, ctx, null, baseReg, scale, indexReg);
         }
-        sibOp.setOpType(op.operType);
-        sibOp.setUsage(op.usageType);
+        return res;
     }
 
-    public PointerOp getOp() {
-        return sibOp;
+    // like decode, but only moves seq behind the SIB byte and its displacement.
+    // Returns the size of the displacement or -1 if a register is invalid or the sequence is too short
+    public static int skip(ByteSequence seq, short mode, X86Context ctx) {
+        if(!seq.hasMore()) {
+            return -1;
+        }
+        short sib = seq.readUByte();
+        short index = (short) ((sib >> 3) & 0x07);
+        if(ctx.getPrefix().rexXPrefix) {
+            index |= 8;
+        }
+        short base = (short) (sib & 0x07);
+        if(ctx.getPrefix().rexBPrefix) {
+            base |= 8;
+        }
+
+        if(index != 4 && X86CPU.findGenericAddressRegister(ctx, index) == null) {
+            return -1;
+        }
+
+        if(base == 5 || base == 13) {
+            int size;
+            switch(mode) {
+            case 0: size = 4; break;
+            case 1: size = 1; break;
+            case 2: size = 4; break;
+            default:
+                throw new RuntimeException("invalid base: " + mode);
+            }
+            if(seq.getRemaining() < size) {
+                return -1;
+            }
+            seq.skip(size);
+            return size;
+        } else if(X86CPU.findGenericAddressRegister(ctx, base) == null) {
+            return -1;
+        }
+        return 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,684 @@
+package kianxali.decoder.arch.x86;
+
+import java.util.List;
+
+import kianxali.decoder.InstructionRecord;
+import kianxali.decoder.UsageType;
+import kianxali.decoder.arch.x86.X86CPU.OperandSize;
+import kianxali.decoder.arch.x86.X86CPU.Segment;
+import kianxali.decoder.arch.x86.X86CPU.X86Register;
+import kianxali.decoder.arch.x86.xml.OpcodeEntry;
+import kianxali.decoder.arch.x86.xml.OpcodeGroup;
+import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
+import kianxali.decoder.arch.x86.xml.OperandDesc;
+import kianxali.decoder.arch.x86.xml.OperandDesc.OperandType;
+import kianxali.loader.ByteSequence;
+
+/**
+ * This class selects the correct syntax for an opcode and decodes its
+ * operands into an {@link InstructionRecord}. It doesn't create any objects
+ * while decoding valid instructions, the {@link X86Instruction} objects are
+ * created from the record afterwards if needed.
+ * @author fwi
+ *
+ */
+final class SyntaxDecoder {
+    // the operands can't exceed the sequence if at least this many bytes follow the opcode
+    private static final int MAX_INSTRUCTION_LENGTH = 15;
+
+    // Utility class, no constructor
+    private SyntaxDecoder() {
+
+    }
+
+    /**
+     * Selects the syntax that fits the encoding and decodes its operands
+     * @param syntaxes the syntaxes of the opcode that has been read
+     * @param seq the sequence to read the operands from
+     * @param ctx the current context, the opcode has been pushed to its prefix already
+     * @param rec the record to store the operands in, null to only skip the operands
+     * @return the decoded syntax or null if the operands couldn't be decoded
+     */
+    public static OpcodeSyntax decode(List<OpcodeSyntax> syntaxes, ByteSequence seq, X86Context ctx, InstructionRecord rec) {
+        // peek at the byte following the opcode, it is the ModR/M byte if the opcode has one
+        short modRMCode = -1;
+        if(seq.hasMore()) {
+            modRMCode = seq.readUByte();
+            seq.skip(-1);
+        }
+        int extension = getExtension(syntaxes, modRMCode);
+
+        // the selection is based on the encoding only, so the operands are usually decoded just once.
+        // If the operands of the best syntax can't be decoded, the others are tried in order of their score
+        long rejected = 0;
+        while(true) {
+            int selected = selectSyntax(syntaxes, ctx, modRMCode, extension, rejected);
+            if(selected < 0) {
+                return null;
+            }
+            OpcodeSyntax syntax = syntaxes.get(selected);
+            if(decodeSyntax(syntax, seq, ctx, rec)) {
+                return syntax;
+            } else if(selected >= Long.SIZE) {
+                return null;
+            }
+            rejected |= 1L << selected;
+        }
+    }
+
+    // the opcode extension is stored in the reg field of the ModR/M byte or second opcode
+    private static int getExtension(List<OpcodeSyntax> syntaxes, short modRMCode) {
+        for(int i = 0; i < syntaxes.size(); i++) {
+            OpcodeSyntax syn = syntaxes.get(i);
+            if(!syn.isExtended()) {
+                continue;
+            }
+            Short secondOpcode = syn.getOpcodeEntry().secondOpcode;
+            if(secondOpcode != null) {
+                // TODO: verify that this is always correct
+                return (secondOpcode >> 3) & 0x07;
+            } else if(modRMCode >= 0) {
+                return (modRMCode >> 3) & 0x07;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // returns the index of the syntax with the best score, ignoring those that are set in the rejected mask
+    private static int selectSyntax(List<OpcodeSyntax> syntaxes, X86Context ctx, short modRMCode, int extension, long rejected) {
+        int selected = -1;
+        int bestScore = 0;
+        for(int i = 0; i < syntaxes.size(); i++) {
+            if(i < Long.SIZE && (rejected & (1L << i)) != 0) {
+                continue;
+            }
+            int score = getScore(syntaxes.get(i), ctx, modRMCode, extension);
+            if(score > bestScore) {
+                selected = i;
+                bestScore = score;
+            }
+        }
+        return selected;
+    }
+
+    // the prefix has been read from seq already
+    // returns score where 0 means don't accept
+    private static int getScore(OpcodeSyntax syn, X86Context ctx, short modRMCode, int extension) {
+        int score = 1;
+        Prefix prefix = ctx.getPrefix();
+        OpcodeEntry entry = syn.getOpcodeEntry();
+
+        if(syn.isExtended() && syn.getExtension() != extension) {
+            return 0;
+        }
+
+        // the record can't store more operands
+        List<OperandDesc> operands = syn.getOperands();
+        int operandCount = 0;
+        for(int i = 0; i < operands.size(); i++) {
+            if(!operands.get(i).indirect) {
+                operandCount++;
+            }
+        }
+        if(operandCount > InstructionRecord.MAX_OPERANDS) {
+            return 0;
+        }
+
+        // check if required prefix is present, but only actual prefixes
+        Short needPrefix = entry.prefix;
+        if(needPrefix != null) {
+            boolean prefixOk = false;
+            for(int i = 0; i < prefix.getPrefixByteCount() - syn.getOpcodeLength(); i++) {
+                if(prefix.getPrefixByte(i) == needPrefix) {
+                    prefixOk = true;
+                    score++;
+                    break;
+                }
+            }
+            if(!prefixOk) {
+                return 0;
+            }
+        }
+
+        // check if the mode of the ModR/M byte fits the operands
+        if(modRMCode >= 0) {
+            boolean isRMReg = ModRM.isRMReg(modRMCode);
+            if(entry.modRM && syn.isModRMMustReg() && !isRMReg) {
+                return 0;
+            }
+            for(int i = 0; i < operands.size(); i++) {
+                OperandDesc op = operands.get(i);
+                if(op.indirect) {
+                    continue;
+                }
+                switch(op.adrType) {
+                case MOD_RM_MUST_M:
+                    if(isRMReg) {
+                        return 0;
+                    }
+                    break;
+                case MOD_RM_M_FORCE_GEN:
+                    if(!entry.modRM || !isRMReg) {
+                        return 0;
+                    }
+                    break;
+                case MOD_RM_M_FPU_REG:
+                case MOD_RM_M_XMM_REG:
+                    if(!isRMReg) {
+                        return 0;
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+
+        // prefer NOP over xchg eax, eax
+        if(syn.getMnemonic() == X86Mnemonic.NOP && !entry.modRM && prefix.getPrefixByteCount() == 1) {
+            score++;
+        }
+
+        return score;
+    }
+
+    // decodes the operands using the given syntax, restores the sequence and prefix if that fails
+    private static boolean decodeSyntax(OpcodeSyntax syn, ByteSequence seq, X86Context ctx, InstructionRecord rec) {
+        long oldPos = seq.getPosition();
+
+        Short needPrefix = syn.getOpcodeEntry().prefix;
+        if(needPrefix != null) {
+            ctx.savePrefixFlags();
+            ctx.hidePrefix(needPrefix);
+        }
+
+        boolean valid;
+        if(rec == null) {
+            valid = skipOperands(syn, seq, ctx);
+        } else {
+            // only the skipping checks the length of the sequence, so use it first if the operands could exceed it
+            valid = seq.getRemaining() >= MAX_INSTRUCTION_LENGTH || skipOperands(syn, seq, ctx);
+            if(valid) {
+                seq.seek(oldPos);
+                valid = decodeOperands(syn, seq, ctx, rec);
+            }
+        }
+        if(valid) {
+            return true;
+        }
+
+        seq.seek(oldPos);
+        if(needPrefix != null) {
+            ctx.restorePrefixFlags();
+        }
+        return false;
+    }
+
+    // the prefix has been read from seq already
+    private static boolean decodeOperands(OpcodeSyntax syn, ByteSequence seq, X86Context ctx, InstructionRecord rec) {
+        rec.clearOperands();
+        short modRM = -1;
+        long operandPos = seq.getPosition();
+
+        OpcodeEntry entry = syn.getOpcodeEntry();
+        if(entry.modRM) {
+            modRM = seq.readUByte();
+        }
+
+        List<OperandDesc> operands = syn.getOperands();
+        for(int i = 0; i < operands.size(); i++) {
+            OperandDesc op = operands.get(i);
+            if(op.indirect) {
+                continue;
+            }
+            if(!decodeOperand(syn, op, seq, ctx, rec, modRM)) {
+                // failure to decode one operand -> failure to decode instruction
+                return false;
+            }
+        }
+
+        X86Mnemonic mnemonic = syn.getMnemonic();
+        rec.setMnemonic(mnemonic != null ? mnemonic.ordinal() : InstructionRecord.NONE);
+        rec.setFlowFlags(getFlowFlags(syn));
+        // now that the size is known, relative operands are converted to absolute ones
+        rec.setLength((int) (ctx.getPrefix().getPrefixByteCount() + seq.getPosition() - operandPos));
+        return true;
+    }
+
+    /**
+     * Returns how a syntax affects the control flow
+     * @param syn the syntax to examine
+     * @return a combination of the FLOW_ constants of {@link InstructionRecord}
+     */
+    public static int getFlowFlags(OpcodeSyntax syn) {
+        X86Mnemonic mnemonic = syn.getMnemonic();
+        if(mnemonic == null) {
+            return InstructionRecord.FLOW_STOPS_TRACE;
+        }
+        switch(mnemonic) {
+        case CALL:
+        case CALLF:
+            return InstructionRecord.FLOW_CALL;
+        case JMP:
+        case JMPE:
+        case JMPF:
+            return InstructionRecord.FLOW_JUMP | InstructionRecord.FLOW_STOPS_TRACE;
+        case RETN:
+        case RETF:
+            return InstructionRecord.FLOW_RETURN | InstructionRecord.FLOW_STOPS_TRACE;
+        default:
+            if(syn.getOpcodeEntry().belongsTo(OpcodeGroup.GENERAL_BRANCH)) {
+                // conditional jumps and loops
+                return InstructionRecord.FLOW_JUMP;
+            }
+            return 0;
+        }
+    }
+
+    // modRM is -1 if the opcode doesn't have a ModR/M byte, it will be read from seq then
+    private static boolean decodeOperand(OpcodeSyntax syn, OperandDesc op, ByteSequence seq, X86Context ctx, InstructionRecord rec, short modRM) {
+        switch(op.adrType) {
+        case GROUP:                 return decodeGroup(op, ctx, rec);
+        case OFFSET:                return decodeOffset(seq, op, ctx, rec);
+        case LEAST_REG:             return decodeLeastReg(syn, op, ctx, rec);
+
+        case MOD_RM_R_CTRL:
+        case MOD_RM_R_DEBUG:
+        case MOD_RM_R_TEST:
+        case MOD_RM_R_MMX:
+        case MOD_RM_R_SEG:
+        case MOD_RM_R_XMM:
+        case MOD_RM_R:
+            return ModRM.decodeReg(modRM >= 0 ? modRM : seq.readUByte(), op, ctx, rec);
+        case MOD_RM_R_FORCE_GEN: // sic!
+            return ModRM.decodeMem(modRM >= 0 ? modRM : seq.readUByte(), seq, op, ctx, rec, true, false);
+        case MOD_RM_MUST_M:
+            return ModRM.decodeMem(modRM >= 0 ? modRM : seq.readUByte(), seq, op, ctx, rec, false, false);
+        case MOD_RM_M_FPU_REG:
+        case MOD_RM_M_XMM_REG:
+            return ModRM.decodeMem(modRM >= 0 ? modRM : seq.readUByte(), seq, op, ctx, rec, true, true);
+        case MOD_RM_M_FORCE_GEN:
+            if(modRM < 0) {
+                return false;
+            }
+            return ModRM.decodeMem(modRM, seq, op, ctx, rec, true, true);
+        case MOD_RM_M_FPU:
+        case MOD_RM_M_MMX:
+        case MOD_RM_M:
+            return ModRM.decodeMem(modRM >= 0 ? modRM : seq.readUByte(), seq, op, ctx, rec, true, false);
+        case DIRECT:
+        case IMMEDIATE:             return decodeImmediate(syn, seq, op, ctx, rec);
+        case RELATIVE:              return decodeRelative(seq, op, rec);
+        case ES_EDI_RDI: {
+            // TODO: check
+            X86Register reg;
+            switch(X86CPU.getAddressSize(ctx)) {
+            case A16:   reg = X86Register.DI; break;
+            case A32:   reg = X86Register.EDI; break;
+            case A64:   reg = X86Register.RDI; break;
+            default: throw new UnsupportedOperationException("unsupported address size: " + X86CPU.getAddressSize(ctx));
+            }
+            addMemory(rec, op, op.usageType, ctx, Segment.ES, reg, 1, null);
+            return true;
+        }
+        case DS_ESI_RSI: {
+            // TODO: check
+            X86Register reg;
+            switch(X86CPU.getAddressSize(ctx)) {
+            case A16:   reg = X86Register.SI; break;
+            case A32:   reg = X86Register.ESI; break;
+            case A64:   reg = X86Register.RSI; break;
+            default: throw new UnsupportedOperationException("unsupported address size: " + X86CPU.getAddressSize(ctx));
+            }
+            addMemory(rec, op, op.usageType, ctx, Segment.DS, reg, 1, null);
+            return true;
+        }
+        case MOD_RM_MMX:
+        case MOD_RM_XMM:
+            // TODO: not sure about those two
+            return ModRM.decodeMem(modRM >= 0 ? modRM : seq.readUByte(), seq, op, ctx, rec, true, false);
+        case SEGMENT2:
+        case SEGMENT33:
+        case SEGMENT30:
+            return addRegister(rec, op, X86CPU.findOperandRegister(op, ctx, syn.getOpcodeEntry().opcode));
+        case DS_EBX_AL_RBX: {
+            X86Register reg;
+            switch(X86CPU.getAddressSize(ctx)) {
+            case A16: reg = X86Register.BX; break;
+            case A32: reg = X86Register.EBX; break;
+            case A64: reg = X86Register.RBX; break;
+            default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
+            }
+            addMemory(rec, op, op.usageType, ctx, Segment.DS, reg, 1, X86Register.AL);
+            return true;
+        }
+        case DS_EAX_RAX:
+        case DS_EDI_RDI:
+        case FLAGS:
+        case STACK:
+        default:
+            // syntaxes with these operands are not supported
+            return false;
+        }
+    }
+
+    // like decodeOperands, but only moves seq behind the operands.
+    // Unlike decodeOperands, this also checks that the operands don't exceed the sequence
+    private static boolean skipOperands(OpcodeSyntax syn, ByteSequence seq, X86Context ctx) {
+        short modRM = -1;
+        if(syn.getOpcodeEntry().modRM) {
+            if(!seq.hasMore()) {
+                return false;
+            }
+            modRM = seq.readUByte();
+        }
+
+        List<OperandDesc> operands = syn.getOperands();
+        for(int i = 0; i < operands.size(); i++) {
+            OperandDesc op = operands.get(i);
+            if(op.indirect) {
+                continue;
+            }
+            if(!skipOperand(syn, op, seq, ctx, modRM)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // like decodeOperand, but only moves seq behind the operand.
+    // The registers are still looked up so that invalid encodings are rejected the same way
+    private static boolean skipOperand(OpcodeSyntax syn, OperandDesc op, ByteSequence seq, X86Context ctx, short modRM) {
+        switch(op.adrType) {
+        case GROUP:
+            return X86CPU.findOperandRegister(op, ctx, (short) op.numForGroup) != null;
+        case OFFSET:
+            switch(X86CPU.getAddressSize(ctx)) {
+            case A16: return ModRM.skip(seq, 2);
+            case A32: return ModRM.skip(seq, 4);
+            case A64: return ModRM.skip(seq, 8);
+            default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
+            }
+        case LEAST_REG: {
+            Prefix prefix = ctx.getPrefix();
+            short regId = (short) (prefix.getPrefixByte(prefix.getPrefixByteCount() - 1 - syn.getEncodedRegisterRelativeIndex()) & 0x7);
+            if(prefix.rexBPrefix) {
+                regId |= 8;
+            }
+            return X86CPU.findOperandRegister(op, ctx, regId) != null;
+        }
+        case MOD_RM_R_CTRL:
+        case MOD_RM_R_DEBUG:
+        case MOD_RM_R_TEST:
+        case MOD_RM_R_MMX:
+        case MOD_RM_R_SEG:
+        case MOD_RM_R_XMM:
+        case MOD_RM_R: {
+            short code = nextModRM(seq, modRM);
+            return code >= 0 && ModRM.skipReg(code, op, ctx);
+        }
+        case MOD_RM_R_FORCE_GEN:
+            return skipMem(seq, modRM, op, ctx, true, false);
+        case MOD_RM_MUST_M:
+            return skipMem(seq, modRM, op, ctx, false, false);
+        case MOD_RM_M_FPU_REG:
+        case MOD_RM_M_XMM_REG:
+            return skipMem(seq, modRM, op, ctx, true, true);
+        case MOD_RM_M_FORCE_GEN:
+            if(modRM < 0) {
+                return false;
+            }
+            return skipMem(seq, modRM, op, ctx, true, true);
+        case MOD_RM_M_FPU:
+        case MOD_RM_M_MMX:
+        case MOD_RM_M:
+        case MOD_RM_MMX:
+        case MOD_RM_XMM:
+            return skipMem(seq, modRM, op, ctx, true, false);
+        case DIRECT:
+        case IMMEDIATE: {
+            int size = getImmediateSize(syn, op, ctx);
+            return size >= 0 && ModRM.skip(seq, size);
+        }
+        case RELATIVE:
+            switch(op.operType) {
+            case WORD_DWORD_S64: return ModRM.skip(seq, 4);
+            case BYTE_SGN: return ModRM.skip(seq, 1);
+            default: return false;
+            }
+        case ES_EDI_RDI:
+        case DS_ESI_RSI:
+        case DS_EBX_AL_RBX:
+            return true;
+        case SEGMENT2:
+        case SEGMENT33:
+        case SEGMENT30:
+            return X86CPU.findOperandRegister(op, ctx, syn.getOpcodeEntry().opcode) != null;
+        case DS_EAX_RAX:
+        case DS_EDI_RDI:
+        case FLAGS:
+        case STACK:
+        default:
+            // syntaxes with these operands are not supported
+            return false;
+        }
+    }
+
+    // the ModR/M byte that was read with the opcode or the next byte, -1 if the sequence ends
+    private static short nextModRM(ByteSequence seq, short modRM) {
+        if(modRM >= 0) {
+            return modRM;
+        } else if(!seq.hasMore()) {
+            return -1;
+        }
+        return seq.readUByte();
+    }
+
+    private static boolean skipMem(ByteSequence seq, short modRM, OperandDesc op, X86Context ctx, boolean allowRegister, boolean mustBeRegister) {
+        short code = nextModRM(seq, modRM);
+        return code >= 0 && ModRM.skipMem(code, seq, op, ctx, allowRegister, mustBeRegister);
+    }
+
+    // the number of bytes read by decodeImmediate or -1 if the operand type is not supported
+    private static int getImmediateSize(OpcodeSyntax syn, OperandDesc op, X86Context ctx) {
+        if(op.hardcoded != null) {
+            return 0;
+        }
+        switch(op.operType) {
+        case BYTE:
+        case BYTE_STACK:
+        case BYTE_SGN:
+            return 1;
+        case WORD:
+            return 2;
+        case WORD_DWORD_STACK:
+            return 4;
+        case WORD_DWORD_64:
+            switch(X86CPU.getOperandSize(ctx, op.operType)) {
+            case O16: return 2;
+            case O32: return 4;
+            case O64: return syn.getOpcodeEntry().opSize ? 4 : 8;
+            default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
+            }
+        case WORD_DWORD_S64:
+            switch(X86CPU.getOperandSize(ctx, op.operType)) {
+            case O16: return 2;
+            case O32:
+            case O64: return 4;
+            default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
+            }
+        case POINTER:
+            switch(X86CPU.getOperandSize(ctx, op.operType)) {
+            case O16: return 2 + 2;
+            case O32: return 4 + 2;
+            default: return -1;
+            }
+        default:
+            return -1;
+        }
+    }
+
+    private static boolean decodeRelative(ByteSequence seq, OperandDesc op, InstructionRecord rec) {
+        long relOffset;
+        switch(op.operType) {
+        case WORD_DWORD_S64:
+            relOffset = seq.readSDword();
+            break;
+        case BYTE_SGN:
+            relOffset = seq.readSByte();
+            break;
+        default:
+            return false;
+        }
+
+        // the instruction size is added when it is known
+        rec.addImmediate(op.usageType, getType(op), rec.getAddress() + relOffset, InstructionRecord.NONE, true);
+        return true;
+    }
+
+    private static boolean decodeImmediate(OpcodeSyntax syn, ByteSequence seq, OperandDesc op, X86Context ctx, InstructionRecord rec) {
+        long immediate;
+        if(op.hardcoded != null) {
+            immediate = Long.parseLong(op.hardcoded, 16);
+        } else {
+            switch(op.operType) {
+            case BYTE:
+                immediate = seq.readUByte();
+                break;
+            case BYTE_STACK:
+                immediate = seq.readSByte();
+                break;
+            case BYTE_SGN:
+                immediate = seq.readSByte();
+                break;
+            case WORD:
+                immediate = seq.readUWord();
+                break;
+            case WORD_DWORD_STACK:
+                immediate = seq.readSDword();
+                break;
+            case WORD_DWORD_64:
+                switch(X86CPU.getOperandSize(ctx, op.operType)) {
+                case O16:
+                    immediate = seq.readUWord();
+                    break;
+                case O32:
+                    immediate = seq.readUDword();
+                    break;
+                case O64:
+                    // TODO: not sure if this is correct
+                    if(syn.getOpcodeEntry().opSize) {
+                        immediate = seq.readUDword();
+                    } else {
+                        immediate = seq.readSQword();
+                    }
+                    break;
+                default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
+                }
+                break;
+            case WORD_DWORD_S64:
+                switch(X86CPU.getOperandSize(ctx, op.operType)) {
+                case O16: immediate = seq.readSWord(); break;
+                case O32: immediate = seq.readSDword(); break;
+                case O64: immediate = seq.readSDword(); break; // sign extended doesn't mean the immediate is 64 bit already
+                default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
+                }
+                break;
+            case POINTER: {
+                long seg, off;
+                switch(X86CPU.getOperandSize(ctx, op.operType)) {
+                case O16:  off = seq.readUWord(); break;
+                case O32:  off = seq.readUDword(); break;
+                default: return false;
+                }
+                seg = seq.readUWord();
+                rec.addImmediate(op.usageType, getType(op), off, (int) seg, false);
+                return true;
+            }
+            default:
+                return false;
+            }
+        }
+        rec.addImmediate(op.usageType, getType(op), immediate, InstructionRecord.NONE, false);
+        return true;
+    }
+
+    private static boolean decodeOffset(ByteSequence seq, OperandDesc op, X86Context ctx, InstructionRecord rec) {
+        long offset;
+        switch(X86CPU.getAddressSize(ctx)) {
+        case A16: offset = seq.readUWord(); break;
+        case A32: offset = seq.readUDword(); break;
+        case A64: offset = seq.readSQword(); break;
+        default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
+        }
+        // TODO: the usage isn't set for this type
+        int i = addMemory(rec, op, null, ctx, null, null, 1, null);
+        rec.setDisplacement(i, offset, false);
+        return true;
+    }
+
+    private static boolean decodeLeastReg(OpcodeSyntax syn, OperandDesc op, X86Context ctx, InstructionRecord rec) {
+        Prefix prefix = ctx.getPrefix();
+        int regIndex = prefix.getPrefixByteCount() - 1 - syn.getEncodedRegisterRelativeIndex();
+        short regId = (short) (prefix.getPrefixByte(regIndex) & 0x7);
+        if(prefix.rexBPrefix) {
+            regId |= 8;
+        }
+        return addRegister(rec, op, X86CPU.findOperandRegister(op, ctx, regId));
+    }
+
+    private static boolean decodeGroup(OperandDesc op, X86Context ctx, InstructionRecord rec) {
+        return addRegister(rec, op, X86CPU.findOperandRegister(op, ctx, (short) op.numForGroup));
+    }
+
+    // returns false if the register is null, i.e. the encoding doesn't describe a valid register
+    static boolean addRegister(InstructionRecord rec, OperandDesc op, X86Register reg) {
+        if(reg == null) {
+            return false;
+        }
+        rec.addRegister(op.usageType, getType(op), reg.ordinal());
+        return true;
+    }
+
+    // a null segment means that the segment of the override prefix is used (if any)
+    static int addMemory(InstructionRecord rec, OperandDesc op, UsageType usage, X86Context ctx, Segment segment, X86Register base, int scale, X86Register index) {
+        if(segment == null) {
+            segment = ctx.getPrefix().overrideSegment;
+        }
+        return rec.addMemory(usage, getType(op), getPointerSize(ctx, op.operType),
+                ordinal(segment), ordinal(base), scale, ordinal(index));
+    }
+
+    private static int getType(OperandDesc op) {
+        return ordinal(op.operType);
+    }
+
+    private static int ordinal(Enum<?> e) {
+        if(e == null) {
+            return InstructionRecord.NONE;
+        }
+        return e.ordinal();
+    }
+
+    private static int getPointerSize(X86Context ctx, OperandType opType) {
+        if(opType == null) {
+            return 0;
+        }
+        OperandSize size = X86CPU.findOperandSize(ctx, opType);
+        if(size == null) {
+            return 0;
+        }
+        switch(size) {
+        case O8:    return 8;
+        case O16:   return 16;
+        case O32:   return 32;
+        case O64:   return 64;
+        case O80:   return 80;
+        case O128:  return 128;
+        case O512:  return 512;
+        default:    return 0;
+        }
+    }
+}
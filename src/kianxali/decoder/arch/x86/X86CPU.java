@@ -189,6 +189,15 @@ public final class X86CPU {
      * @return the expected size of the operand
      */
     public static OperandSize getOperandSize(X86Context ctx, OperandType opType) {
+        OperandSize res = findOperandSize(ctx, opType);
+        if(res == null) {
+            throw new UnsupportedOperationException("invalid operand type: " + opType);
+        }
+        return res;
+    }
+
+    // like getOperandSize, but returns null instead of throwing for unsupported types
+    static OperandSize findOperandSize(X86Context ctx, OperandType opType) {
         switch(opType) {
         case BYTE:
             return OperandSize.O8;
@@ -262,11 +271,11 @@ public final class X86CPU {
         case FPU_SIMD_STATE:
             return OperandSize.O512;
         default:
-            throw new UnsupportedOperationException("invalid operand type: " + opType);
+            return null;
         }
     }
 
-    private static X86Register getGenericRegister8(short id) {
+    private static X86Register findGenericRegister8(short id) {
         switch(id) {
         case 0: return X86Register.AL;
         case 1: return X86Register.CL;
@@ -285,11 +294,11 @@ public final class X86CPU {
         case 14:return X86Register.R14B;
         case 15:return X86Register.R15B;
         default:
-            throw new UnsupportedOperationException("invalid generic 8 bit register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getGenericRegister16(short id) {
+    private static X86Register findGenericRegister16(short id) {
         switch(id) {
         case 0: return X86Register.AX;
         case 1: return X86Register.CX;
@@ -308,11 +317,11 @@ public final class X86CPU {
         case 14:return X86Register.R14W;
         case 15:return X86Register.R15W;
         default:
-            throw new UnsupportedOperationException("invalid generic 16 bit register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getGenericRegister32(short id) {
+    private static X86Register findGenericRegister32(short id) {
         switch(id) {
         case 0: return X86Register.EAX;
         case 1: return X86Register.ECX;
@@ -331,11 +340,11 @@ public final class X86CPU {
         case 14:return X86Register.R14D;
         case 15:return X86Register.R15D;
         default:
-            throw new UnsupportedOperationException("invalid generic 32 bit register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getGenericRegister64(short id) {
+    private static X86Register findGenericRegister64(short id) {
         switch(id) {
         case 0: return X86Register.RAX;
         case 1: return X86Register.RCX;
@@ -354,11 +363,11 @@ public final class X86CPU {
         case 14:return X86Register.R14;
         case 15:return X86Register.R15;
         default:
-            throw new UnsupportedOperationException("invalid generic 64 bit register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getSegmentRegister(short id) {
+    private static X86Register findSegmentRegister(short id) {
         switch(id & 0x7) {
         case 0: return X86Register.ES;
         case 1: return X86Register.CS;
@@ -367,11 +376,11 @@ public final class X86CPU {
         case 4: return X86Register.FS;
         case 5: return X86Register.GS;
         default:
-            throw new UnsupportedOperationException("invalid segment register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getFPURegister(short id) {
+    private static X86Register findFPURegister(short id) {
         switch(id & 0x07) {
         case 0: return X86Register.ST0;
         case 1: return X86Register.ST1;
@@ -382,11 +391,11 @@ public final class X86CPU {
         case 6: return X86Register.ST6;
         case 7: return X86Register.ST7;
         default:
-            throw new UnsupportedOperationException("invalid FPU register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getMMXRegister(short id) {
+    private static X86Register findMMXRegister(short id) {
         switch(id & 0x07) {
         case 0: return X86Register.MM0;
         case 1: return X86Register.MM1;
@@ -397,11 +406,11 @@ public final class X86CPU {
         case 6: return X86Register.MM6;
         case 7: return X86Register.MM7;
         default:
-            throw new UnsupportedOperationException("invalid MMX register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getXMMRegister(short id) {
+    private static X86Register findXMMRegister(short id) {
         switch(id) {
         case 0: return X86Register.XMM0;
         case 1: return X86Register.XMM1;
@@ -420,22 +429,22 @@ public final class X86CPU {
         case 14: return X86Register.XMM14;
         case 15: return X86Register.XMM15;
         default:
-            throw new UnsupportedOperationException("invalid XMM register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getControlRegister(short id) {
+    private static X86Register findControlRegister(short id) {
         switch(id) {
         case 0: return X86Register.CR0;
         case 2: return X86Register.CR2;
         case 3: return X86Register.CR3;
         case 4: return X86Register.CR4;
         default:
-            throw new UnsupportedOperationException("invalid control register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getDebugRegister(short id) {
+    private static X86Register findDebugRegister(short id) {
         switch(id) {
         case 0: return X86Register.DR0;
         case 1: return X86Register.DR1;
@@ -446,11 +455,11 @@ public final class X86CPU {
         case 6: return X86Register.DR6;
         case 7: return X86Register.DR7;
         default:
-            throw new UnsupportedOperationException("invalid debug register: " + id);
+            return null;
         }
     }
 
-    private static X86Register getTestRegister(short id) {
+    private static X86Register findTestRegister(short id) {
         switch(id) {
         case 0: return X86Register.TR0;
         case 1: return X86Register.TR1;
@@ -461,7 +470,7 @@ public final class X86CPU {
         case 6: return X86Register.TR6;
         case 7: return X86Register.TR7;
         default:
-            throw new UnsupportedOperationException("invalid test register: " + id);
+            return null;
         }
     }
 
@@ -473,14 +482,24 @@ public final class X86CPU {
      * @return the register represented by the number
      */
     public static X86Register getGenericAddressRegister(X86Context ctx, short id) {
+        X86Register res = findGenericAddressRegister(ctx, id);
+        if(res == null) {
+            throw new UnsupportedOperationException("invalid address register: " + id);
+        }
+        return res;
+    }
+
+    // like getGenericAddressRegister, but returns null instead of throwing for invalid numbers
+    static X86Register findGenericAddressRegister(X86Context ctx, short id) {
         if(ctx.getExecMode() != ExecutionMode.LONG && id > 7) {
-            throw new UnsupportedOperationException("used 64 bit register id in 32 bit mode");
+            // 64 bit register id in 32 bit mode
+            return null;
         }
         AddressSize adrSize = getAddressSize(ctx);
         switch(adrSize) {
-        case A16:   return getGenericRegister16(id);
-        case A32:   return getGenericRegister32(id);
-        case A64:   return getGenericRegister64(id);
+        case A16:   return findGenericRegister16(id);
+        case A32:   return findGenericRegister32(id);
+        case A64:   return findGenericRegister64(id);
         default:    throw new UnsupportedOperationException("invalid adrSize: " + adrSize);
         }
     }
@@ -493,17 +512,21 @@ public final class X86CPU {
      * @param id the register number
      * @return the register represented by the number
      */
-    private static X86Register getOperandRegisterGeneral(OperandDesc op, X86Context ctx, short id) {
+    private static X86Register findOperandRegisterGeneral(OperandDesc op, X86Context ctx, short id) {
         if(ctx.getExecMode() != ExecutionMode.LONG && id > 7) {
-            throw new UnsupportedOperationException("used 64 bit register id in 32 bit mode");
+            // 64 bit register id in 32 bit mode
+            return null;
+        }
+        OperandSize opSize = findOperandSize(ctx, op.operType);
+        if(opSize == null) {
+            return null;
         }
-        OperandSize opSize = getOperandSize(ctx, op.operType);
         switch(opSize) {
-        case O8:    return getGenericRegister8(id);
-        case O16:   return getGenericRegister16(id);
-        case O32:   return getGenericRegister32(id);
-        case O64:   return getGenericRegister64(id);
-        default:    throw new UnsupportedOperationException("invalid opSize: " + opSize);
+        case O8:    return findGenericRegister8(id);
+        case O16:   return findGenericRegister16(id);
+        case O32:   return findGenericRegister32(id);
+        case O64:   return findGenericRegister64(id);
+        default:    return null;
         }
     }
 
@@ -516,44 +539,53 @@ public final class X86CPU {
      * @return the register represented by the number
      */
     public static X86Register getOperandRegister(OperandDesc op, X86Context ctx, short id) {
+        X86Register res = findOperandRegister(op, ctx, id);
+        if(res == null) {
+            throw new UnsupportedOperationException("invalid register " + id + " for " + op.adrType);
+        }
+        return res;
+    }
+
+    // like getOperandRegister, but returns null instead of throwing for invalid numbers
+    static X86Register findOperandRegister(OperandDesc op, X86Context ctx, short id) {
         switch(op.adrType) {
         case MOD_RM_R:
         case MOD_RM_M:
         case LEAST_REG:
         case MOD_RM_R_FORCE_GEN:
         case MOD_RM_M_FORCE_GEN:
-            return getOperandRegisterGeneral(op, ctx, id);
+            return findOperandRegisterGeneral(op, ctx, id);
         case MOD_RM_R_SEG:
-            return getSegmentRegister(id);
+            return findSegmentRegister(id);
         case MOD_RM_M_FPU:
         case MOD_RM_M_FPU_REG:
-            return getFPURegister(id);
+            return findFPURegister(id);
         case MOD_RM_MMX:
         case MOD_RM_R_MMX:
         case MOD_RM_M_MMX:
-            return getMMXRegister(id);
+            return findMMXRegister(id);
         case MOD_RM_M_XMM_REG:
         case MOD_RM_XMM:
         case MOD_RM_R_XMM:
-            return getXMMRegister(id);
+            return findXMMRegister(id);
         case SEGMENT2:
-            return getSegmentRegister((short) ((id >> 3) & 0x3));
+            return findSegmentRegister((short) ((id >> 3) & 0x3));
         case SEGMENT33:
-            return getSegmentRegister((short) ((id >> 3) & 0x7));
+            return findSegmentRegister((short) ((id >> 3) & 0x7));
         case MOD_RM_R_DEBUG:
-            return getDebugRegister(id);
+            return findDebugRegister(id);
         case MOD_RM_R_CTRL:
-            return getControlRegister(id);
+            return findControlRegister(id);
         case MOD_RM_R_TEST:
-            return getTestRegister(id);
+            return findTestRegister(id);
         case GROUP:
             switch(op.directGroup) {
-            case GENERIC:   return getOperandRegisterGeneral(op, ctx, id);
-            case X87FPU:    return getFPURegister(id);
-            default:        throw new UnsupportedOperationException("invalid directGroup: " + op.directGroup);
+            case GENERIC:   return findOperandRegisterGeneral(op, ctx, id);
+            case X87FPU:    return findFPURegister(id);
+            default:        return null;
             }
         default:
-            throw new UnsupportedOperationException("invalid adrType: " + op.adrType);
+            return null;
         }
     }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import kianxali.decoder.Context;
 import kianxali.decoder.Decoder;
+import kianxali.decoder.InstructionRecord;
 import kianxali.decoder.arch.x86.X86CPU.AddressSize;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
@@ -24,7 +25,8 @@ public class X86Context implements Context {
     private Model model;
     private ExecutionMode execMode;
     private long instructionPointer;
-    private Prefix prefix;
+    private final Prefix prefix, savedPrefix;
+    private final InstructionRecord record;
 
     /**
      * Create a context for a certain CPU model in a given execution mode.
@@ -34,7 +36,9 @@ public class X86Context implements Context {
     public X86Context(Model model, ExecutionMode execMode) {
         this.model = model;
         this.execMode = execMode;
-        reset();
+        this.prefix = new Prefix();
+        this.savedPrefix = new Prefix();
+        this.record = new InstructionRecord();
     }
 
     @Override
@@ -51,6 +55,20 @@ public class X86Context implements Context {
         return prefix;
     }
 
+    // used by the decoder to create instruction objects
+    InstructionRecord getRecord() {
+        return record;
+    }
+
+    // saves the prefix flags so they can be restored if a syntax that hides a prefix can't be decoded
+    void savePrefixFlags() {
+        savedPrefix.copyFlagsFrom(prefix);
+    }
+
+    void restorePrefixFlags() {
+        prefix.copyFlagsFrom(savedPrefix);
+    }
+
     boolean acceptsOpcode(OpcodeSyntax syntax) {
         if(!syntax.getOpcodeEntry().isSupportedOn(model, execMode)) {
             return false;
@@ -77,8 +95,7 @@ public class X86Context implements Context {
         return true;
     }
 
-    void applyPrefix(X86Instruction inst) {
-        OpcodeEntry opcode = inst.getOpcode();
+    void applyPrefix(OpcodeEntry opcode) {
         if(!opcode.belongsTo(OpcodeGroup.PREFIX)) {
             throw new UnsupportedOperationException("not a prefix");
         }
@@ -179,13 +196,13 @@ public class X86Context implements Context {
     }
 
     public void reset() {
-        prefix = new Prefix();
+        prefix.clear();
     }
 
     @Override
     public Decoder createInstructionDecoder() {
         try {
-            return X86Decoder.fromXML(model, execMode, "./xml/x86/x86reference.xml", "./xml/x86/x86reference.dtd");
+            return X86Decoder.getDecoder(model, execMode);
         } catch(SAXException | IOException e) {
             System.err.println("Couldn't create X86 decoder: " + e.getMessage());
             e.printStackTrace();
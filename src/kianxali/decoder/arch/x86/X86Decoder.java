@@ -1,20 +1,29 @@
 package kianxali.decoder.arch.x86;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import kianxali.decoder.Context;
+import kianxali.decoder.DecodeTable;
 import kianxali.decoder.DecodeTree;
 import kianxali.decoder.Decoder;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionRecord;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.xml.OpcodeEntry;
+import kianxali.decoder.arch.x86.xml.OpcodeGroup;
+import kianxali.decoder.arch.x86.xml.OpcodeSnapshot;
 import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
 import kianxali.decoder.arch.x86.xml.XMLParserX86;
 import kianxali.loader.ByteSequence;
@@ -25,20 +34,91 @@ import org.xml.sax.SAXException;
  * An instruction decoder for the x86 architecture.
  * It uses an XML file to read the instruction set and creates a prefix
  * tree from that in order to parse opcodes and their operands.
+ * The tree is compiled into a {@link DecodeTable} for fast lookups.
+ * The filtered tree is also stored as an {@link OpcodeSnapshot} next to
+ * the XML file so later runs don't need to parse the XML again.
+ * Decoders are immutable and keep no decoding state, all state is stored
+ * in the {@link X86Context} that is passed to each call. Therefore a single
+ * decoder can be shared by any number of threads, see {@link X86Decoder#getDecoder(Model, ExecutionMode)}.
  * @author fwi
  *
  */
 public final class X86Decoder implements Decoder {
+    /** Path to the XML file that is used for the shared decoders */
+    public static final String DEFAULT_XML_PATH = "./xml/x86/x86reference.xml";
+    /** Path to the DTD file that is used for the shared decoders */
+    public static final String DEFAULT_DTD_PATH = "./xml/x86/x86reference.dtd";
+
     private static final Logger LOG = Logger.getLogger("kianxali.decoder.arch.x86");
-    private static XMLParserX86 parser;
-    private final DecodeTree<OpcodeSyntax> decodeTree;
+    private static final ConcurrentMap<DecoderKey, X86Decoder> sharedDecoders = new ConcurrentHashMap<>();
+    // keyed by the absolute path of the XML file
+    private static final Map<Path, XMLParserX86> parsers = new HashMap<>();
+    private static final Map<Path, byte[]> sourceHashes = new HashMap<>();
+    private static final Map<Path, OpcodeSnapshot> snapshots = new HashMap<>();
+    private final DecodeTable<OpcodeSyntax> decodeTable;
+    private final LengthTable lengthTable;
+
+    private static final class DecoderKey {
+        private final Model cpu;
+        private final ExecutionMode mode;
+
+        public DecoderKey(Model cpu, ExecutionMode mode) {
+            this.cpu = cpu;
+            this.mode = mode;
+        }
+
+        @Override
+        public int hashCode() {
+            return cpu.hashCode() * 31 + mode.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof DecoderKey)) {
+                return false;
+            }
+            DecoderKey other = (DecoderKey) obj;
+            return cpu == other.cpu && mode == other.mode;
+        }
+    }
 
-    private X86Decoder(DecodeTree<OpcodeSyntax> tree) {
-        this.decodeTree = tree;
+    private X86Decoder(DecodeTable<OpcodeSyntax> table) {
+        this.decodeTable = table;
+        this.lengthTable = new LengthTable(table);
     }
 
     /**
-     * Construct a decoder for a given CPU
+     * Returns the shared decoder for a given CPU. The decoder is created from the
+     * default XML file on the first call and then reused for all subsequent calls
+     * with the same arguments. The returned decoder can be used by multiple threads
+     * at the same time as long as each thread uses its own {@link X86Context}.
+     * @param cpu the CPU model to use
+     * @param mode the execution mode to use
+     * @return the shared decoder for the given configuration
+     * @throws SAXException if the XML file couldn't be parsed
+     * @throws IOException if the XML file couldn't be read
+     */
+    public static X86Decoder getDecoder(Model cpu, ExecutionMode mode) throws SAXException, IOException {
+        DecoderKey key = new DecoderKey(cpu, mode);
+        X86Decoder decoder = sharedDecoders.get(key);
+        if(decoder != null) {
+            return decoder;
+        }
+
+        // creation is rare, so it's fine to serialize it with fromXML
+        synchronized(X86Decoder.class) {
+            decoder = sharedDecoders.get(key);
+            if(decoder == null) {
+                decoder = fromXML(cpu, mode, DEFAULT_XML_PATH, DEFAULT_DTD_PATH);
+                sharedDecoders.put(key, decoder);
+            }
+            return decoder;
+        }
+    }
+
+    /**
+     * Construct a new decoder for a given CPU. Use {@link X86Decoder#getDecoder(Model, ExecutionMode)}
+     * to get a shared instance that is only created once.
      * @param cpu the CPU model to use
      * @param mode the execution mode to use
      * @param xmlPath path to the XML file that contains the instruction set
@@ -48,15 +128,86 @@ public final class X86Decoder implements Decoder {
      * @throws IOException if the XML file couldn't be read
      */
     public static synchronized X86Decoder fromXML(Model cpu, ExecutionMode mode, String xmlPath, String dtdPath) throws SAXException, IOException {
-        DecodeTree<OpcodeSyntax> tree = createDecodeTree(cpu, mode, xmlPath, dtdPath);
-        return new X86Decoder(tree);
+        DecodeTable<OpcodeSyntax> table = createDecodeTree(cpu, mode, xmlPath, dtdPath);
+        return new X86Decoder(table);
     }
 
-    private static DecodeTree<OpcodeSyntax> createDecodeTree(Model cpu, ExecutionMode mode, String xmlPath, String dtdPath) throws SAXException, IOException {
+    private static DecodeTable<OpcodeSyntax> createDecodeTree(Model cpu, ExecutionMode mode, String xmlPath, String dtdPath) throws SAXException, IOException {
+        Path xml = Paths.get(xmlPath).toAbsolutePath().normalize();
+        Path snapshotPath = getSnapshotPath(cpu, mode, xml);
+        byte[] sourceHash = sourceHashes.get(xml);
+        if(sourceHash == null) {
+            sourceHash = OpcodeSnapshot.hashSource(xml, X86Decoder.class);
+            sourceHashes.put(xml, sourceHash);
+        }
+
+        // try to use the snapshot of a previous run first
+        OpcodeSnapshot snapshot = snapshots.get(snapshotPath);
+        if(snapshot == null && !parsers.containsKey(xml)) {
+            try {
+                snapshot = OpcodeSnapshot.load(snapshotPath, sourceHash, cpu, mode);
+            } catch(IOException e) {
+                LOG.warning("Couldn't load opcode snapshot, ignoring it: " + e.getMessage());
+            }
+        }
+        if(snapshot != null) {
+            snapshots.put(snapshotPath, snapshot);
+            LOG.config("Creating x86 decoding tree from snapshot...");
+            DecodeTree<OpcodeSyntax> tree = new DecodeTree<>();
+            for(int i = 0; i < snapshot.getEntryCount(); i++) {
+                tree.addEntry(snapshot.getSequence(i), snapshot.getSyntax(i));
+            }
+            return new DecodeTable<>(tree);
+        }
+
+        DecodeTable<OpcodeSyntax> table = parseDecodeTree(cpu, mode, xml, dtdPath);
+
+        // store the result so the XML doesn't need to be parsed on the next run
+        snapshot = new OpcodeSnapshot(cpu, mode);
+        addToSnapshot(snapshot, table, new short[4], 0);
+        snapshots.put(snapshotPath, snapshot);
+        try {
+            snapshot.save(snapshotPath, sourceHash);
+        } catch(IOException e) {
+            LOG.warning("Couldn't save opcode snapshot: " + e.getMessage());
+        }
+
+        return table;
+    }
+
+    private static Path getSnapshotPath(Model cpu, ExecutionMode mode, Path xml) {
+        String name = xml.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return xml.resolveSibling(String.format("%s-%s-%s.snapshot", name, cpu, mode));
+    }
+
+    private static void addToSnapshot(OpcodeSnapshot snapshot, DecodeTable<OpcodeSyntax> table, short[] sequence, int depth) {
+        for(short s = 0; s < 256; s++) {
+            sequence[depth] = s;
+            List<OpcodeSyntax> leaves = table.getLeaves(s);
+            if(leaves != null) {
+                short[] entrySequence = Arrays.copyOf(sequence, depth + 1);
+                for(OpcodeSyntax syntax : leaves) {
+                    snapshot.addEntry(entrySequence, syntax);
+                }
+            }
+            DecodeTable<OpcodeSyntax> subTable = table.getSubTable(s);
+            if(subTable != null) {
+                addToSnapshot(snapshot, subTable, sequence, depth + 1);
+            }
+        }
+    }
+
+    private static DecodeTable<OpcodeSyntax> parseDecodeTree(Model cpu, ExecutionMode mode, Path xml, String dtdPath) throws SAXException, IOException {
+        XMLParserX86 parser = parsers.get(xml);
         if(parser == null) {
             LOG.config("Creating x86 decoding tree from XML...");
             parser = new XMLParserX86();
-            parser.loadXML(xmlPath, dtdPath);
+            parser.loadXML(xml.toString(), dtdPath);
+            parsers.put(xml, parser);
         }
         DecodeTree<OpcodeSyntax> tree = new DecodeTree<>();
 
@@ -81,7 +232,8 @@ public final class X86Decoder implements Decoder {
         // filter decode tree: remove opcodes that have a special version in the requested mode
         filterTree(cpu, mode, tree);
 
-        return tree;
+        // compile into the array based version for decoding
+        return new DecodeTable<>(tree);
     }
 
     private static void filterTree(Model cpu, ExecutionMode mode, DecodeTree<OpcodeSyntax> tree) {
@@ -171,62 +323,87 @@ public final class X86Decoder implements Decoder {
      * @return a list of all available opcode syntaxes
      */
     public List<OpcodeSyntax> getAllSyntaxes() {
-        return getAllSyntaxesFromTree(decodeTree);
+        return Collections.unmodifiableList(decodeTable.getAllLeaves());
     }
 
-    private List<OpcodeSyntax> getAllSyntaxesFromTree(DecodeTree<OpcodeSyntax> tree) {
-        List<OpcodeSyntax> res = new LinkedList<>();
-        for(short s : tree.getLeaveCodes()) {
-            res.addAll(tree.getLeaves(s));
-        }
-        for(DecodeTree<OpcodeSyntax> subTree : tree.getSubTrees()) {
-            res.addAll(getAllSyntaxesFromTree(subTree));
+    @Override
+    public Instruction decodeOpcode(Context context, ByteSequence seq) {
+        X86Context ctx = (X86Context) context;
+        InstructionRecord record = ctx.getRecord();
+        OpcodeSyntax syntax = decode(ctx, seq, record);
+        if(syntax == null) {
+            return null;
         }
-        return Collections.unmodifiableList(res);
+        return new X86Instruction(ctx, syntax, record, seq);
     }
 
     @Override
-    public Instruction decodeOpcode(Context context, ByteSequence seq) {
+    public boolean decodeOpcode(Context context, ByteSequence seq, InstructionRecord record) {
+        return decode((X86Context) context, seq, record) != null;
+    }
+
+    @Override
+    public int decodeLength(Context context, ByteSequence seq) {
         X86Context ctx = (X86Context) context;
+        long start = seq.getPosition();
         ctx.reset();
-        X86Instruction inst = decodeNext(seq, ctx, decodeTree);
-        return inst;
+        if(lengthTable.skipInstruction(seq, ctx)) {
+            return (int) (seq.getPosition() - start);
+        }
+
+        // the length table doesn't backtrack, so the full decoder has the final say
+        seq.seek(start);
+        if(decode(ctx, seq, null) == null) {
+            seq.seek(start);
+            return 0;
+        }
+        return (int) (seq.getPosition() - start);
+    }
+
+    // if record is null, the operands are only skipped
+    private OpcodeSyntax decode(X86Context ctx, ByteSequence seq, InstructionRecord record) {
+        ctx.reset();
+        if(record != null) {
+            record.clear(ctx.getInstructionPointer());
+        }
+        return decodeNext(seq, ctx, decodeTable, record);
     }
 
-    private X86Instruction decodeNext(ByteSequence sequence, X86Context ctx, DecodeTree<OpcodeSyntax> tree) {
+    private OpcodeSyntax decodeNext(ByteSequence sequence, X86Context ctx, DecodeTable<OpcodeSyntax> table, InstructionRecord record) {
         if(!sequence.hasMore()) {
             return null;
         }
         short s = sequence.readUByte();
         ctx.getPrefix().pushPrefixByte(s);
 
-        DecodeTree<OpcodeSyntax> subTree = tree.getSubTree(s);
-        if(subTree != null) {
-            X86Instruction res = decodeNext(sequence, ctx, subTree);
+        DecodeTable<OpcodeSyntax> subTable = table.getSubTable(s);
+        if(subTable != null) {
+            OpcodeSyntax res = decodeNext(sequence, ctx, subTable, record);
             if(res != null) {
                 return res;
             }
         }
 
         // no success in sub tree -> could be in leaf
-        List<OpcodeSyntax> leaves = tree.getLeaves(s);
+        List<OpcodeSyntax> leaves = table.getLeaves(s);
         if(leaves == null) {
             sequence.skip(-1);
             ctx.getPrefix().popPrefixByte();
             return null;
         }
 
-        X86Instruction inst = new X86Instruction(ctx.getInstructionPointer(), leaves);
-        if(!inst.decode(sequence, ctx)) {
+        OpcodeSyntax syntax = SyntaxDecoder.decode(leaves, sequence, ctx, record);
+        if(syntax == null) {
             sequence.skip(-1);
             ctx.getPrefix().popPrefixByte();
             return null;
         }
-        if(inst.isPrefix()) {
-            ctx.applyPrefix(inst);
-            return decodeNext(sequence, ctx, decodeTree);
+        OpcodeEntry entry = syntax.getOpcodeEntry();
+        if(entry.belongsTo(OpcodeGroup.PREFIX)) {
+            ctx.applyPrefix(entry);
+            return decodeNext(sequence, ctx, decodeTable, record);
         } else {
-            return inst;
+            return syntax;
         }
     }
 }
@@ -7,163 +7,59 @@ import java.util.List;
 import java.util.Map;
 
 import kianxali.decoder.Data;
+import kianxali.decoder.FlowSummary;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionRecord;
 import kianxali.decoder.Operand;
 import kianxali.decoder.UsageType;
+import kianxali.decoder.arch.x86.X86CPU.OperandSize;
 import kianxali.decoder.arch.x86.X86CPU.Segment;
 import kianxali.decoder.arch.x86.X86CPU.X86Register;
 import kianxali.decoder.arch.x86.xml.OpcodeEntry;
 import kianxali.decoder.arch.x86.xml.OpcodeGroup;
 import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
-import kianxali.decoder.arch.x86.xml.OperandDesc;
+import kianxali.decoder.arch.x86.xml.OperandDesc.OperandType;
 import kianxali.loader.ByteSequence;
 import kianxali.util.OutputFormatter;
 
 /**
  * This class represents a fully decoded x86 instruction, e.g. including
- * all operands. Its main task is to select the correct syntax and parse
- * all operands.
+ * all operands. The syntax is selected and the operands are parsed by
+ * the {@link SyntaxDecoder}, this class only creates the operand objects
+ * from the resulting {@link InstructionRecord}.
  * @author fwi
  *
  */
 class X86Instruction implements Instruction {
+    private static final X86Register[] REGISTERS = X86Register.values();
+    private static final OperandType[] OPERAND_TYPES = OperandType.values();
+    private static final Segment[] SEGMENTS = Segment.values();
     private final long memAddr;
-    private final List<OpcodeSyntax> syntaxes;
-    private OpcodeSyntax syntax;
+    private final OpcodeSyntax syntax;
     private final List<Operand> operands;
-    private Short parsedExtension;
-    private String prefixString;
-    private short[] rawData;
-    // the size is not known during while decoding operands, so this will cause a (desired) NullPointerException
-    private Integer size;
-
-    public X86Instruction(long memAddr, List<OpcodeSyntax> leaves) {
-        this.memAddr = memAddr;
-        this.syntaxes = leaves;
-        this.operands = new ArrayList<>(5);
-    }
-
-    public boolean decode(ByteSequence seq, X86Context ctx) {
-        OpcodeSyntax selected = null;
-        int bestScore = 0;
-
-        for(OpcodeSyntax syn : syntaxes) {
-            this.syntax = syn;
-            int score;
-            long oldPos = seq.getPosition();
-            try {
-                score = tryDecode(seq, ctx);
-            } catch(Exception e) {
-                continue;
-            } finally {
-                seq.seek(oldPos);
-            }
-
-            if(score > bestScore) {
-                selected = syn;
-                bestScore = score;
-            }
-        }
-
-        syntax = selected;
-        if(syntax != null) {
-            Short needPrefix = syntax.getOpcodeEntry().prefix;
-            if(needPrefix != null) {
-                ctx.hidePrefix(needPrefix);
-            }
-            prefixString = ctx.getPrefix().toString();
-            tryDecode(seq, ctx);
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    // the prefix has been read from seq already
-    // returns score where 0 means don't accept
-    public int tryDecode(ByteSequence seq, X86Context ctx) {
-        int score = 1;
-        Prefix prefix = ctx.getPrefix();
-
-        if(syntax.isExtended()) {
-            if(parsedExtension == null) {
-                if(syntax.getOpcodeEntry().secondOpcode != null) {
-                    // TODO: verify that this is always correct
-                    parsedExtension = (short) ((syntax.getOpcodeEntry().secondOpcode >> 3) & 0x07);
-                } else {
-                    parsedExtension = (short) ((seq.readUByte() >> 3) & 0x07);
-                    seq.skip(-1);
-                }
-            }
-            if(syntax.getExtension() != parsedExtension) {
-                return 0;
-            }
-        }
-
-        // check if required prefix is present, but only actual prefixes
-        Short needPrefix = syntax.getOpcodeEntry().prefix;
-        boolean prefixOk = true;
-        if(needPrefix != null) {
-            prefixOk = false;
-            List<Short> prefixBytes = prefix.prefixBytes;
-            for(int i = 0; i < prefixBytes.size() - syntax.getPrefix().length; i++) {
-                if(prefixBytes.get(i).equals(needPrefix)) {
-                    prefixOk = true;
-                    score++;
-                    break;
-                }
-            }
-        }
-
-        if(!prefixOk) {
-            return 0;
-        }
-
-        operands.clear();
-        ModRM modRM = null;
-        long operandPos = seq.getPosition();
-
-        OpcodeEntry entry = syntax.getOpcodeEntry();
-        if(entry.modRM) {
-            modRM = new ModRM(seq, ctx);
-            if(/*(syntax.isModRMMustMem() && !modRM.isRMMem()) || */(syntax.isModRMMustReg() && !modRM.isRMReg())) {
-                seq.skip(-1);
-                return 0;
-            }
-        }
-
-        for(OperandDesc op : syntax.getOperands()) {
-            if(op.indirect) {
-                continue;
-            }
-            Operand decodedOp = decodeOperand(op, seq, ctx, modRM);
-            if(decodedOp != null) {
-                operands.add(decodedOp);
-            } else {
-                // failure to decode one operand -> failure to decode instruction
-                seq.seek(operandPos);
-                return 0;
-            }
-        }
-        size = (int) (prefix.prefixBytes.size() + seq.getPosition() - operandPos);
-
-        // now that the size is known, convert RelativeOps to ImmediateOps etc.
-        for(int i = 0; i < operands.size(); i++) {
-            Operand op = operands.get(i);
-            if(op instanceof RelativeOp) {
-                operands.set(i, ((RelativeOp) op).toImmediateOp(size));
-            } else if(op instanceof PointerOp) {
-                PointerOp res = (PointerOp) op;
-                if(res.needsSizeFix()) {
-                    res.setOffset(res.getOffset() + size);
-                }
-            }
-        }
-
-        // prefer NOP over xchg eax, eax
-        if(syntax.getMnemonic() == X86Mnemonic.NOP && size == 1) {
-            score++;
-        }
+    private final String prefixString;
+    private final short[] rawData;
+    private final int size;
+    private final FlowSummary flow;
+
+    /**
+     * Creates the instruction from a record that has just been filled by the {@link SyntaxDecoder}.
+     * @param ctx the context that was used to decode the instruction
+     * @param syntax the syntax that was decoded
+     * @param rec the decoded instruction
+     * @param seq the sequence the instruction was decoded from, positioned after the instruction
+     */
+    public X86Instruction(X86Context ctx, OpcodeSyntax syntax, InstructionRecord rec, ByteSequence seq) {
+        this.memAddr = rec.getAddress();
+        this.syntax = syntax;
+        this.size = rec.getLength();
+        this.prefixString = ctx.getPrefix().toString();
+
+        this.operands = new ArrayList<>(rec.getOperandCount());
+        for(int i = 0; i < rec.getOperandCount(); i++) {
+            operands.add(createOperand(rec, i));
+        }
+        this.flow = FlowSummary.fromRecord(rec, isBranch(syntax));
 
         // finally, retrieve the raw bytes
         rawData = new short[size];
@@ -171,255 +67,85 @@ class X86Instruction implements Instruction {
         for(int i = 0; i < size; i++) {
             rawData[i] = seq.readUByte();
         }
-
-        return score;
     }
 
-    public boolean isPrefix() {
-        return syntax.getOpcodeEntry().belongsTo(OpcodeGroup.PREFIX);
-    }
-
-    public OpcodeSyntax getSyntax() {
-        return syntax;
-    }
-
-    public OpcodeEntry getOpcode() {
-        return syntax.getOpcodeEntry();
-    }
-
-    private Operand decodeOperand(OperandDesc op, ByteSequence seq, X86Context ctx, ModRM modRM) {
-        switch(op.adrType) {
-        case GROUP:                 return decodeGroup(op, ctx);
-        case OFFSET:                return decodeOffset(seq, op, ctx);
-        case LEAST_REG:             return decodeLeastReg(op, ctx);
-
-        case MOD_RM_R_CTRL:
-        case MOD_RM_R_DEBUG:
-        case MOD_RM_R_TEST:
-        case MOD_RM_R_MMX:
-        case MOD_RM_R_SEG:
-        case MOD_RM_R_XMM:
-        case MOD_RM_R:
-            if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
-            }
-            return modRM.getReg(op);
-        case MOD_RM_R_FORCE_GEN: // sic!
-            if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
-            }
-            return modRM.getMem(op, true, false);
-        case MOD_RM_MUST_M:
-            if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
-            }
-            return modRM.getMem(op, false, false);
-        case MOD_RM_M_FPU_REG:
-        case MOD_RM_M_XMM_REG:
-            if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
-            }
-            return modRM.getMem(op, true, true);
-        case MOD_RM_M_FORCE_GEN:
-            return modRM.getMem(op, true, true);
-        case MOD_RM_M_FPU:
-        case MOD_RM_M_MMX:
-        case MOD_RM_M:
-            if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
-            }
-            return modRM.getMem(op, true, false);
-        case DIRECT:
-        case IMMEDIATE:             return decodeImmediate(seq, op, ctx);
-        case RELATIVE:              return decodeRelative(seq, op);
-        case ES_EDI_RDI: {
-            // TODO: check
-            PointerOp res;
-            switch(X86CPU.getAddressSize(ctx)) {
-            case A16:   res = new PointerOp(ctx, X86Register.DI); break;
-            case A32:   res = new PointerOp(ctx, X86Register.EDI); break;
-            case A64:   res = new PointerOp(ctx, X86Register.RDI); break;
-            default: throw new UnsupportedOperationException("unsupported address size: " + X86CPU.getAddressSize(ctx));
+    private static Operand createOperand(InstructionRecord rec, int i) {
+        UsageType usage = rec.getUsage(i);
+        switch(rec.getOperandKind(i)) {
+        case REGISTER:
+            return new RegisterOp(usage, REGISTERS[rec.getRegister(i)]);
+        case IMMEDIATE:
+            if(rec.getSegment(i) != InstructionRecord.NONE) {
+                return new ImmediateOp(usage, rec.getSegment(i), rec.getValue(i));
+            } else {
+                return new ImmediateOp(usage, rec.getValue(i));
             }
-            res.setSegment(Segment.ES);
-            res.setOpType(op.operType);
-            res.setUsage(op.usageType);
-            return res;
-        }
-        case DS_ESI_RSI: {
-            // TODO: check
-            PointerOp res;
-            switch(X86CPU.getAddressSize(ctx)) {
-            case A16:   res = new PointerOp(ctx, X86Register.SI); break;
-            case A32:   res = new PointerOp(ctx, X86Register.ESI); break;
-            case A64:   res = new PointerOp(ctx, X86Register.RSI); break;
-            default: throw new UnsupportedOperationException("unsupported address size: " + X86CPU.getAddressSize(ctx));
+        case MEMORY: {
+            PointerOp res = new PointerOp(getRegister(rec.getRegister(i)), rec.getScale(i), getRegister(rec.getIndexRegister(i)));
+            if(rec.hasValue(i)) {
+                res.setOffset(rec.getValue(i));
             }
-            res.setSegment(Segment.DS);
-            res.setOpType(op.operType);
-            res.setUsage(op.usageType);
-            return res;
-        }
-        case MOD_RM_MMX:
-        case MOD_RM_XMM:
-            // TODO: not sure about those two
-            if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+            if(rec.getOperandType(i) != InstructionRecord.NONE) {
+                res.setOpType(OPERAND_TYPES[rec.getOperandType(i)]);
             }
-            return modRM.getMem(op, true, false);
-        case SEGMENT2:
-        case SEGMENT33:
-        case SEGMENT30:
-            X86Register reg = X86CPU.getOperandRegister(op, ctx, syntax.getOpcodeEntry().opcode);
-            return new RegisterOp(op.usageType, reg);
-        case DS_EBX_AL_RBX: {
-            PointerOp res;
-            switch(X86CPU.getAddressSize(ctx)) {
-            case A16: res = new PointerOp(ctx, X86Register.BX, 1, X86Register.AL); break;
-            case A32: res = new PointerOp(ctx, X86Register.EBX, 1, X86Register.AL); break;
-            case A64: res = new PointerOp(ctx, X86Register.RBX, 1, X86Register.AL); break;
-            default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
+            res.setOpSize(getOperandSize(rec.getPointerSize(i)));
+            if(rec.getSegment(i) != InstructionRecord.NONE) {
+                res.setSegment(SEGMENTS[rec.getSegment(i)]);
             }
-            res.setOpType(op.operType);
-            res.setUsage(op.usageType);
-            res.setSegment(Segment.DS);
+            res.setUsage(usage);
             return res;
         }
-        case DS_EAX_RAX:
-        case DS_EDI_RDI:
-        case FLAGS:
-        case STACK:
         default:
-            throw new UnsupportedOperationException("unsupported address type: " + op.adrType);
+            throw new UnsupportedOperationException("invalid operand kind: " + rec.getOperandKind(i));
         }
     }
 
-    private Operand decodeRelative(ByteSequence seq, OperandDesc op) {
-        long relOffset;
-        switch(op.operType) {
-        case WORD_DWORD_S64:
-            relOffset = seq.readSDword();
-            break;
-        case BYTE_SGN:
-            relOffset = seq.readSByte();
-            break;
-        default:
-            throw new UnsupportedOperationException("unsupported relative type: " + op.operType);
+    // we only want call, jmp, jnz etc. as branches
+    private static boolean isBranch(OpcodeSyntax syntax) {
+        if(!syntax.getOpcodeEntry().belongsTo(OpcodeGroup.GENERAL_BRANCH)) {
+            return false;
         }
 
-        return new RelativeOp(op.usageType, memAddr, relOffset);
+        X86Mnemonic mnem = syntax.getMnemonic();
+        if(mnem == X86Mnemonic.RETF || mnem == X86Mnemonic.RETN) {
+            // these are considered branches, but we can't know their address
+            return false;
+        }
+        return true;
     }
 
-    private Operand decodeImmediate(ByteSequence seq, OperandDesc op, X86Context ctx) {
-        long immediate;
-        if(op.hardcoded != null) {
-            immediate = Long.parseLong(op.hardcoded, 16);
-        } else {
-            switch(op.operType) {
-            case BYTE:
-                immediate = seq.readUByte();
-                break;
-            case BYTE_STACK:
-                immediate = seq.readSByte();
-                break;
-            case BYTE_SGN:
-                immediate = seq.readSByte();
-                break;
-            case WORD:
-                immediate = seq.readUWord();
-                break;
-            case WORD_DWORD_STACK:
-                immediate = seq.readSDword();
-                break;
-            case WORD_DWORD_64:
-                switch(X86CPU.getOperandSize(ctx, op.operType)) {
-                case O16:
-                    immediate = seq.readUWord();
-                    break;
-                case O32:
-                    immediate = seq.readUDword();
-                    break;
-                case O64:
-                    // TODO: not sure if this is correct
-                    if(syntax.getOpcodeEntry().opSize) {
-                        immediate = seq.readUDword();
-                    } else {
-                        immediate = seq.readSQword();
-                    }
-                    break;
-                default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
-                }
-                break;
-            case WORD_DWORD_S64:
-                switch(X86CPU.getOperandSize(ctx, op.operType)) {
-                case O16: immediate = seq.readSWord(); break;
-                case O32: immediate = seq.readSDword(); break;
-                case O64: immediate = seq.readSDword(); break; // sign extended doesn't mean the immediate is 64 bit already
-                default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
-                }
-                break;
-            case POINTER: {
-                long seg, off;
-                switch(X86CPU.getOperandSize(ctx, op.operType)) {
-                case O16:  off = seq.readUWord(); break;
-                case O32:  off = seq.readUDword(); break;
-                default: throw new UnsupportedOperationException("unsupported pointer type: " + X86CPU.getOperandSize(ctx, op.operType));
-                }
-                seg = seq.readUWord();
-                return new ImmediateOp(op.usageType, seg, off);
-            }
-            default:
-                throw new UnsupportedOperationException("unsupported immediate type: " + op.operType);
-            }
+    private static OperandSize getOperandSize(int bits) {
+        switch(bits) {
+        case 8:     return OperandSize.O8;
+        case 16:    return OperandSize.O16;
+        case 32:    return OperandSize.O32;
+        case 64:    return OperandSize.O64;
+        case 80:    return OperandSize.O80;
+        case 128:   return OperandSize.O128;
+        case 512:   return OperandSize.O512;
+        default:    return null;
         }
-        return new ImmediateOp(op.usageType, immediate);
     }
 
-    private Operand decodeOffset(ByteSequence seq, OperandDesc op, X86Context ctx) {
-        long offset;
-        switch(X86CPU.getAddressSize(ctx)) {
-        case A16: offset = seq.readUWord(); break;
-        case A32: offset = seq.readUDword(); break;
-        case A64: offset = seq.readSQword(); break;
-        default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
+    private static X86Register getRegister(int ordinal) {
+        if(ordinal == InstructionRecord.NONE) {
+            return null;
         }
-        PointerOp res = new PointerOp(ctx, offset);
-        res.setOpType(op.operType);
-        return res;
+        return REGISTERS[ordinal];
     }
 
-    private Operand decodeLeastReg(OperandDesc op, X86Context ctx) {
-        int regIndex = ctx.getPrefix().prefixBytes.size() - 1 - syntax.getEncodedRegisterRelativeIndex();
-        short regId = (short) (ctx.getPrefix().prefixBytes.get(regIndex) & 0x7);
-        if(ctx.getPrefix().rexBPrefix) {
-            regId |= 8;
-        }
-        X86Register reg = X86CPU.getOperandRegister(op, ctx, regId);
-        return new RegisterOp(op.usageType, reg);
+    public OpcodeSyntax getSyntax() {
+        return syntax;
     }
 
-    private Operand decodeGroup(OperandDesc op, X86Context ctx) {
-        X86Register reg = X86CPU.getOperandRegister(op, ctx, (short) op.numForGroup);
-        return new RegisterOp(op.usageType, reg);
+    public OpcodeEntry getOpcode() {
+        return syntax.getOpcodeEntry();
     }
 
     // whether this instruction stops an execution trace
     @Override
     public boolean stopsTrace() {
-        X86Mnemonic mnemonic = syntax.getMnemonic();
-        if(mnemonic == null) {
-            return true;
-        }
-        switch(mnemonic) {
-        case JMP:
-        case JMPE:
-        case JMPF:
-        case RETN:
-        case RETF:
-            return true;
-        default:
-            return false;
-        }
+        return flow.stopsTrace();
     }
 
     @Override
@@ -485,27 +211,15 @@ class X86Instruction implements Instruction {
     }
 
     @Override
-    public List<Long> getBranchAddresses() {
-        List<Long> res = new ArrayList<>(3);
-
-        // we only want call, jmp, jnz etc.
-        if(!syntax.getOpcodeEntry().belongsTo(OpcodeGroup.GENERAL_BRANCH)) {
-            return res;
-        }
-
-        X86Mnemonic mnem = syntax.getMnemonic();
-        if(mnem == X86Mnemonic.RETF || mnem == X86Mnemonic.RETN) {
-            // these are considered branches, but we can't know their address
-            return res;
-        }
+    public FlowSummary getFlowSummary() {
+        return flow;
+    }
 
-        for(Operand op : operands) {
-            if(op instanceof ImmediateOp) {
-                res.add(((ImmediateOp) op).getImmediate());
-            } else if(op instanceof PointerOp) {
-                // TODO: think about this. Probably not return because it's [addr] and therefore data and not inst
-                continue;
-            }
+    @Override
+    public List<Long> getBranchAddresses() {
+        List<Long> res = new ArrayList<>(flow.getBranchCount());
+        for(int i = 0; i < flow.getBranchCount(); i++) {
+            res.add(flow.getBranchAddress(i));
         }
         return res;
     }
@@ -513,13 +227,8 @@ class X86Instruction implements Instruction {
     @Override
     public Map<Data, Boolean> getAssociatedData() {
         Map<Data, Boolean> res = new HashMap<Data, Boolean>();
-        for(Operand op : operands) {
-            if(op instanceof PointerOp) {
-                Data data = ((PointerOp) op).getProbableData();
-                if(data != null) {
-                    res.put(data, op.getUsage() == UsageType.DEST);
-                }
-            }
+        for(int i = 0; i < flow.getDataCount(); i++) {
+            res.put(flow.createData(i), flow.isDataWrite(i));
         }
         return res;
     }
@@ -527,10 +236,8 @@ class X86Instruction implements Instruction {
     @Override
     public Map<Long, Boolean> getProbableDataPointers() {
         Map<Long, Boolean> res = new HashMap<Long, Boolean>();
-        for(Operand op : operands) {
-            if(op instanceof ImmediateOp) {
-                res.put(((ImmediateOp) op).getImmediate(), op.getUsage() == UsageType.DEST);
-            }
+        for(int i = 0; i < flow.getProbablePointerCount(); i++) {
+            res.put(flow.getProbablePointer(i), flow.isProbablePointerWrite(i));
         }
         return res;
     }
@@ -547,20 +254,12 @@ class X86Instruction implements Instruction {
 
     @Override
     public boolean isFunctionCall() {
-        X86Mnemonic mnem = syntax.getMnemonic();
-        if(mnem == X86Mnemonic.CALL || mnem == X86Mnemonic.CALLF) {
-            return true;
-        }
-        return false;
+        return flow.isFunctionCall();
     }
 
     @Override
     public boolean isUnconditionalJump() {
-        X86Mnemonic mnem = syntax.getMnemonic();
-        if(mnem == X86Mnemonic.JMP || mnem == X86Mnemonic.JMPE || mnem == X86Mnemonic.JMPF) {
-            return true;
-        }
-        return false;
+        return flow.isUnconditionalJump();
     }
 
     @Override
@@ -568,40 +267,3 @@ class X86Instruction implements Instruction {
         return syntax.getOpcodeEntry().briefDescription;
     }
 }
-
-// lives only temporarily, will be converted to ImmediateOp
-class RelativeOp implements Operand {
-    private final UsageType usage;
-    private final long relOffset, baseAddr;
-
-    public RelativeOp(UsageType usage, long baseAddr, long relOffset) {
-        this.usage = usage;
-        this.baseAddr = baseAddr;
-        this.relOffset = relOffset;
-    }
-
-    public ImmediateOp toImmediateOp(int instSize) {
-        return new ImmediateOp(usage, baseAddr + instSize + relOffset);
-    }
-
-    @Override
-    public UsageType getUsage() {
-        return usage;
-    }
-
-    @Override
-    public String asString(OutputFormatter options) {
-        return null;
-    }
-
-    @Override
-    public Number asNumber() {
-        return null;
-    }
-
-    @Override
-    public Short getPointerDestSize() {
-        return null;
-    }
-}
-
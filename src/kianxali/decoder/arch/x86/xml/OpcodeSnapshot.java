@@ -0,0 +1,431 @@
+package kianxali.decoder.arch.x86.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import kianxali.decoder.UsageType;
+import kianxali.decoder.arch.x86.X86Mnemonic;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.InstructionSetExtension;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.xml.OperandDesc.AddressType;
+import kianxali.decoder.arch.x86.xml.OperandDesc.DirectGroup;
+import kianxali.decoder.arch.x86.xml.OperandDesc.OperandType;
+
+/**
+ * A snapshot stores the already filtered opcode syntaxes of one CPU model and execution
+ * mode together with the byte sequences they are decoded from. It can be written to a
+ * compact binary file so the XML document doesn't have to be parsed again on the next start.
+ * The file contains a hash of its source, see {@link #hashSource(Path, Class)}, and is
+ * only accepted if the hash matches.
+ * @author fwi
+ *
+ */
+public class OpcodeSnapshot {
+    private static final int MAGIC = 0x4B584F53; // "KXOS"
+    // must be increased whenever the format changes, changed enums and code are detected by the source hash
+    private static final int VERSION = 2;
+
+    private final Model model;
+    private final ExecutionMode mode;
+    private final List<short[]> sequences;
+    private final List<OpcodeSyntax> syntaxes;
+
+    /**
+     * Creates an empty snapshot for a given CPU model and execution mode.
+     * @param model the CPU model the syntaxes were filtered for
+     * @param mode the execution mode the syntaxes were filtered for
+     */
+    public OpcodeSnapshot(Model model, ExecutionMode mode) {
+        this.model = model;
+        this.mode = mode;
+        this.sequences = new ArrayList<>();
+        this.syntaxes = new ArrayList<>();
+    }
+
+    /**
+     * Adds a syntax that is decoded from a given byte sequence.
+     * The order of the calls is preserved when loading the snapshot.
+     * @param sequence the opcode bytes leading to the syntax
+     * @param syntax the syntax to add
+     */
+    public void addEntry(short[] sequence, OpcodeSyntax syntax) {
+        sequences.add(Arrays.copyOf(sequence, sequence.length));
+        syntaxes.add(syntax);
+    }
+
+    /**
+     * Returns the number of entries in this snapshot
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return syntaxes.size();
+    }
+
+    /**
+     * Returns the byte sequence of an entry
+     * @param index the index of the entry
+     * @return the opcode bytes of the entry
+     */
+    public short[] getSequence(int index) {
+        return Arrays.copyOf(sequences.get(index), sequences.get(index).length);
+    }
+
+    /**
+     * Returns the syntax of an entry
+     * @param index the index of the entry
+     * @return the syntax of the entry
+     */
+    public OpcodeSyntax getSyntax(int index) {
+        return syntaxes.get(index);
+    }
+
+    /**
+     * Calculates the hash that is stored in the snapshot to detect outdated snapshots.
+     * It covers the XML document, the constants of all enums that are stored by their
+     * ordinal and the code of the classes that parse, filter and store the syntaxes,
+     * so a snapshot is also rejected after one of these was changed.
+     * @param xmlPath the XML document the snapshot is created from
+     * @param filterClass the class that filters the syntaxes before they are stored
+     * @return the hash of the snapshot source
+     * @throws IOException if the XML document couldn't be read
+     */
+    public static byte[] hashSource(Path xmlPath, Class<?> filterClass) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("no hash algorithm available", e);
+        }
+        digest.update(Files.readAllBytes(xmlPath));
+
+        Class<?>[] enums = {ExecutionMode.class, InstructionSetExtension.class, Model.class, OpcodeGroup.class,
+                X86Mnemonic.class, DirectGroup.class, UsageType.class, AddressType.class, OperandType.class};
+        for(Class<?> enumClass : enums) {
+            digest.update(enumClass.getName().getBytes(StandardCharsets.UTF_8));
+            for(Object constant : enumClass.getEnumConstants()) {
+                digest.update(((Enum<?>) constant).name().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        Class<?>[] classes = {OpcodeSnapshot.class, XMLParserX86.class, OpcodeEntry.class, OpcodeSyntax.class,
+                OperandDesc.class, filterClass};
+        for(Class<?> codeClass : classes) {
+            digest.update(readClassFile(codeClass));
+        }
+        return digest.digest();
+    }
+
+    // the compiled code of a class, or only its name if the class file isn't available
+    private static byte[] readClassFile(Class<?> clazz) throws IOException {
+        String name = clazz.getName();
+        try(InputStream in = clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            if(in == null) {
+                return name.getBytes(StandardCharsets.UTF_8);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int count;
+            while((count = in.read(buf)) > 0) {
+                out.write(buf, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Writes the snapshot to a file. The file is first written to a temporary file
+     * and then moved to the destination so that concurrent readers never see a
+     * partially written snapshot.
+     * @param path the file to write to
+     * @param sourceHash the hash of the source the snapshot was created from
+     * @throws IOException if the file couldn't be written
+     */
+    public void save(Path path, byte[] sourceHash) throws IOException {
+        Path tmpPath = Files.createTempFile(path.toAbsolutePath().getParent(), "opcodes", ".tmp");
+        try {
+            try(OutputStream fileOut = Files.newOutputStream(tmpPath);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                writeTo(out, sourceHash);
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * Loads a snapshot from a file.
+     * @param path the file to read from
+     * @param sourceHash the hash of the current source
+     * @param model the CPU model the snapshot must have been created for
+     * @param mode the execution mode the snapshot must have been created for
+     * @return the snapshot or null if the file doesn't exist or doesn't match the arguments
+     * @throws IOException if the file couldn't be read or is corrupt
+     */
+    public static OpcodeSnapshot load(Path path, byte[] sourceHash, Model model, ExecutionMode mode) throws IOException {
+        if(!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        // read everything at once, the files are small
+        byte[] contents = Files.readAllBytes(path);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+        }
+        byte[] hash = new byte[in.readUnsignedByte()];
+        in.readFully(hash);
+        if(!Arrays.equals(hash, sourceHash)) {
+            return null;
+        }
+        if(in.readByte() != model.ordinal() || in.readByte() != mode.ordinal()) {
+            return null;
+        }
+
+        OpcodeSnapshot res = new OpcodeSnapshot(model, mode);
+        res.readFrom(in);
+        return res;
+    }
+
+    private void writeTo(DataOutputStream out, byte[] sourceHash) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(sourceHash.length);
+        out.write(sourceHash);
+        out.writeByte(model.ordinal());
+        out.writeByte(mode.ordinal());
+
+        // the same entries and syntaxes are shared by several sequences, so store them only once
+        Map<OpcodeEntry, Integer> entryIndices = new IdentityHashMap<>();
+        Map<OpcodeSyntax, Integer> syntaxIndices = new IdentityHashMap<>();
+        List<OpcodeEntry> entryList = new ArrayList<>();
+        List<OpcodeSyntax> syntaxList = new ArrayList<>();
+        for(OpcodeSyntax syntax : syntaxes) {
+            if(!syntaxIndices.containsKey(syntax)) {
+                syntaxIndices.put(syntax, syntaxList.size());
+                syntaxList.add(syntax);
+            }
+            OpcodeEntry entry = syntax.getOpcodeEntry();
+            if(!entryIndices.containsKey(entry)) {
+                entryIndices.put(entry, entryList.size());
+                entryList.add(entry);
+            }
+        }
+
+        out.writeInt(entryList.size());
+        for(OpcodeEntry entry : entryList) {
+            writeEntry(out, entry);
+        }
+
+        out.writeInt(syntaxList.size());
+        for(OpcodeSyntax syntax : syntaxList) {
+            out.writeInt(entryIndices.get(syntax.getOpcodeEntry()));
+            writeSyntax(out, syntax);
+        }
+
+        out.writeInt(syntaxes.size());
+        for(int i = 0; i < syntaxes.size(); i++) {
+            short[] sequence = sequences.get(i);
+            out.writeByte(sequence.length);
+            for(short s : sequence) {
+                out.writeByte(s);
+            }
+            out.writeInt(syntaxIndices.get(syntaxes.get(i)));
+        }
+    }
+
+    private void readFrom(DataInputStream in) throws IOException {
+        OpcodeEntry[] entryList = new OpcodeEntry[in.readInt()];
+        for(int i = 0; i < entryList.length; i++) {
+            entryList[i] = readEntry(in);
+        }
+
+        OpcodeSyntax[] syntaxList = new OpcodeSyntax[in.readInt()];
+        for(int i = 0; i < syntaxList.length; i++) {
+            OpcodeEntry entry = entryList[in.readInt()];
+            syntaxList[i] = readSyntax(in, entry);
+            entry.addSyntax(syntaxList[i]);
+        }
+
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            short[] sequence = new short[in.readUnsignedByte()];
+            for(int j = 0; j < sequence.length; j++) {
+                sequence[j] = (short) in.readUnsignedByte();
+            }
+            sequences.add(sequence);
+            syntaxes.add(syntaxList[in.readInt()]);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, OpcodeEntry entry) throws IOException {
+        writeShort(out, entry.prefix);
+        out.writeBoolean(entry.twoByte);
+        out.writeShort(entry.opcode);
+        writeShort(out, entry.secondOpcode);
+        writeEnum(out, entry.mode);
+        out.writeBoolean(entry.modRM);
+        writeEnum(out, entry.instrExt);
+        writeString(out, entry.briefDescription);
+        out.writeByte(entry.groups.size());
+        for(OpcodeGroup group : entry.groups) {
+            out.writeByte(group.ordinal());
+        }
+        out.writeBoolean(entry.invalid);
+        out.writeBoolean(entry.undefined);
+        out.writeBoolean(entry.direction);
+        out.writeBoolean(entry.sgnExt);
+        out.writeBoolean(entry.opSize);
+        out.writeBoolean(entry.lock);
+        out.writeBoolean(entry.particular);
+        out.writeByte(entry.tttn);
+        writeEnum(out, entry.startModel);
+        writeEnum(out, entry.lastModel);
+        out.writeBoolean(entry.memFormat != null);
+        if(entry.memFormat != null) {
+            out.writeInt(entry.memFormat);
+        }
+    }
+
+    private static OpcodeEntry readEntry(DataInputStream in) throws IOException {
+        OpcodeEntry entry = new OpcodeEntry();
+        entry.prefix = readShort(in);
+        entry.twoByte = in.readBoolean();
+        entry.opcode = in.readShort();
+        entry.secondOpcode = readShort(in);
+        entry.mode = readEnum(in, ExecutionMode.values());
+        entry.modRM = in.readBoolean();
+        entry.instrExt = readEnum(in, InstructionSetExtension.values());
+        entry.briefDescription = readString(in);
+        int groupCount = in.readUnsignedByte();
+        for(int i = 0; i < groupCount; i++) {
+            entry.addOpcodeGroup(OpcodeGroup.values()[in.readUnsignedByte()]);
+        }
+        entry.invalid = in.readBoolean();
+        entry.undefined = in.readBoolean();
+        entry.direction = in.readBoolean();
+        entry.sgnExt = in.readBoolean();
+        entry.opSize = in.readBoolean();
+        entry.lock = in.readBoolean();
+        entry.particular = in.readBoolean();
+        entry.tttn = in.readByte();
+        entry.setStartProcessor(readEnum(in, Model.values()));
+        entry.setEndProcessor(readEnum(in, Model.values()));
+        if(in.readBoolean()) {
+            entry.memFormat = in.readInt();
+        }
+        return entry;
+    }
+
+    private static void writeSyntax(DataOutputStream out, OpcodeSyntax syntax) throws IOException {
+        writeShort(out, syntax.getExtension());
+        out.writeBoolean(syntax.isModRMMustMem());
+        out.writeBoolean(syntax.isModRMMustReg());
+        writeEnum(out, syntax.getMnemonic());
+        List<OperandDesc> operands = syntax.getOperands();
+        out.writeByte(operands.size());
+        for(OperandDesc op : operands) {
+            writeEnum(out, op.directGroup);
+            writeString(out, op.hardcoded);
+            out.writeLong(op.numForGroup);
+            out.writeBoolean(op.indirect);
+            out.writeBoolean(op.depends);
+            writeEnum(out, op.usageType);
+            writeEnum(out, op.adrType);
+            writeEnum(out, op.operType);
+        }
+    }
+
+    private static OpcodeSyntax readSyntax(DataInputStream in, OpcodeEntry entry) throws IOException {
+        OpcodeSyntax syntax;
+        Short extension = readShort(in);
+        if(extension != null) {
+            syntax = new OpcodeSyntax(entry, extension);
+        } else {
+            syntax = new OpcodeSyntax(entry);
+        }
+        syntax.setModRMMustMem(in.readBoolean());
+        syntax.setModRMMustReg(in.readBoolean());
+        syntax.setMnemonic(readEnum(in, X86Mnemonic.values()));
+        int opCount = in.readUnsignedByte();
+        for(int i = 0; i < opCount; i++) {
+            OperandDesc op = new OperandDesc();
+            op.directGroup = readEnum(in, DirectGroup.values());
+            op.hardcoded = readString(in);
+            op.numForGroup = in.readLong();
+            op.indirect = in.readBoolean();
+            op.depends = in.readBoolean();
+            op.usageType = readEnum(in, UsageType.values());
+            op.adrType = readEnum(in, AddressType.values());
+            op.operType = readEnum(in, OperandType.values());
+            syntax.addOperand(op);
+        }
+        return syntax;
+    }
+
+    private static void writeShort(DataOutputStream out, Short s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null) {
+            out.writeShort(s);
+        }
+    }
+
+    private static Short readShort(DataInputStream in) throws IOException {
+        if(in.readBoolean()) {
+            return in.readShort();
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if(str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if(in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException {
+        if(value != null) {
+            out.writeShort(value.ordinal());
+        } else {
+            out.writeShort(-1);
+        }
+    }
+
+    private static <T extends Enum<T>> T readEnum(DataInputStream in, T[] values) throws IOException {
+        int ordinal = in.readShort();
+        if(ordinal < 0) {
+            return null;
+        }
+        if(ordinal >= values.length) {
+            throw new IOException("invalid enum value in snapshot: " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
@@ -16,13 +16,14 @@ import kianxali.decoder.arch.x86.xml.OperandDesc.AddressType;
  */
 public class OpcodeSyntax {
     private final OpcodeEntry entry; // syntax belongs to this entry
-    private final List<OperandDesc> operands;
+    private final List<OperandDesc> operands, operandView;
     private Short extension;
     private boolean modRMMustMem, modRMMustReg;
     private X86Mnemonic mnemonic;
 
     {
         this.operands = new ArrayList<>(4);
+        this.operandView = Collections.unmodifiableList(operands);
     }
 
     OpcodeSyntax(OpcodeEntry entry) {
@@ -109,7 +110,7 @@ public class OpcodeSyntax {
      * @return the operands as an unmodifable list, never null
      */
     public List<OperandDesc> getOperands() {
-        return Collections.unmodifiableList(operands);
+        return operandView;
     }
 
     // negative from end of opcode
@@ -150,6 +151,22 @@ public class OpcodeSyntax {
         return Arrays.copyOf(res, i);
     }
 
+    /**
+     * Returns the number of bytes returned by {@link OpcodeSyntax#getPrefix()}
+     * without creating the array.
+     * @return the number of bytes that make up this opcode, excluding mandatory prefix
+     */
+    public int getOpcodeLength() {
+        int res = 1;
+        if(entry.twoByte) {
+            res++;
+        }
+        if(entry.secondOpcode != null) {
+            res++;
+        }
+        return res;
+    }
+
     /**
      * Returns a hex string representation of the full opcode bytes,
      * including mandatory prefixes but excluding operands.
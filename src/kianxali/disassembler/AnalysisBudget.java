@@ -0,0 +1,66 @@
+package kianxali.disassembler;
+
+/**
+ * Limits a run of the {@link Disassembler}. The limits are checked between the
+ * work items of the analysis, so an exhausted budget stops the analyzer at a point
+ * where the memory map and the pending work are consistent: the analysis can be
+ * continued by starting the analyzer again or saved as a checkpoint, see
+ * {@link Disassembler#saveDatabase(java.nio.file.Path)}.
+ * The memory of an analysis can't be measured directly because the heap is shared by
+ * the jobs of a batch, so it is estimated from the sizes of its structures: the entries
+ * of the memory map, the cross references, the work queue and the instructions that
+ * were decoded ahead. Structures with a fixed size per image, e.g. the coverage bitmaps,
+ * and the mapped image file itself are not counted.
+ * @author fwi
+ *
+ */
+public final class AnalysisBudget {
+    private final long time, instructions, memory;
+
+    /**
+     * The limit that stopped an analysis
+     */
+    public enum Limit {
+        TIME, INSTRUCTIONS, MEMORY
+    }
+
+    /**
+     * Creates a new budget, a limit of 0 means that the resource is not limited
+     * @param time the maximum duration of a run in milliseconds
+     * @param instructions the maximum number of instructions decoded during a run
+     * @param memory the maximum estimated heap of the analysis in bytes
+     */
+    public AnalysisBudget(long time, long instructions, long memory) {
+        if(time < 0 || instructions < 0 || memory < 0) {
+            throw new IllegalArgumentException("invalid budget");
+        }
+        this.time = time;
+        this.instructions = instructions;
+        this.memory = memory;
+    }
+
+    /**
+     * Checks the usage of a run against the limits
+     * @param elapsed the duration of the run in milliseconds
+     * @param decoded the number of instructions decoded during the run
+     * @param memoryUsed the estimated heap of the analysis in bytes
+     * @return the exceeded limit or null if the run is within the budget
+     */
+    Limit check(long elapsed, long decoded, long memoryUsed) {
+        if(time > 0 && elapsed > time) {
+            return Limit.TIME;
+        }
+        if(instructions > 0 && decoded >= instructions) {
+            return Limit.INSTRUCTIONS;
+        }
+        if(memory > 0 && memoryUsed > memory) {
+            return Limit.MEMORY;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("time %d ms, %d instructions, memory %d bytes", time, instructions, memory);
+    }
+}
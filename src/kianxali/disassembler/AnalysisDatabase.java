@@ -0,0 +1,642 @@
+package kianxali.disassembler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import kianxali.disassembler.WorkQueue.Work;
+import kianxali.decoder.Data;
+import kianxali.decoder.Data.DataType;
+import kianxali.decoder.DecodedEntity;
+import kianxali.decoder.Instruction;
+import kianxali.decoder.JumpTable;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+
+/**
+ * Stores the result of an analysis in a binary file so that it can be opened again
+ * without disassembling the image file. The file contains the entries of the memory
+ * map, the functions, the cross references, the comments and the patches of the image.
+ * All records have a fixed size, so the file is read through a memory mapping without
+ * parsing it into intermediate objects. The entries of the memory map are only created
+ * when they are accessed, see {@link StoredEntries}. The instructions are not stored,
+ * only their address and size: they are decoded again when they are used, see
+ * {@link StoredInstruction}. The data items are analyzed again when their entry is
+ * created because that's cheap and their content depends on the patches.
+ * An analysis that was stopped before it was complete is saved with its pending work,
+ * so it can be continued after opening it. The dependencies between the traces are not
+ * stored, the pending work is restored as if it didn't depend on other results.
+ * The image file is identified by a SHA-256 hash of its unpatched content. The data
+ * types are stored by their index in the type block, which contains their names, so
+ * the file stays valid if the types are reordered.
+ * The format is big-endian:
+ * <ul>
+ *  <li>header: magic, version, image size, entry point, image hash, the number of records in each block and the pending phases</li>
+ *  <li>types: the names of the data types</li>
+ *  <li>entries: address, kind, data type, table scaling, entity size, table entry count, attached data, start function, end function, comment</li>
+ *  <li>functions: start address, end address, name</li>
+ *  <li>function assignments of the disassembler: trace address, function</li>
+ *  <li>references: source address, destination address, write flag</li>
+ *  <li>patches: file offset, length; followed by the patched bytes</li>
+ *  <li>pending work: address, kind, careful flag, data type, table scaling</li>
+ *  <li>strings: length and UTF-8 bytes, referred to by their offset in this block</li>
+ * </ul>
+ * @author fwi
+ *
+ */
+final class AnalysisDatabase {
+    private static final int MAGIC = 0x4B584442; // "KXDB"
+    private static final int VERSION = 3;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_SIZE = 32;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + HASH_SIZE + 8 * 4 + 8;
+    private static final int TYPE_SIZE = 4;
+    private static final int ENTRY_SIZE = 8 + 1 + 1 + 1 + 1 + 4 + 4 + 8 + 1 + 4 + 4 + 4;
+    private static final int FUNCTION_SIZE = 8 + 8 + 4;
+    private static final int ASSIGNMENT_SIZE = 8 + 4;
+    private static final int REFERENCE_SIZE = 8 + 8 + 1;
+    private static final int PATCH_SIZE = 8 + 4;
+    private static final int WORK_SIZE = 8 + 1 + 1 + 1 + 1;
+
+    // the phases of an incomplete analysis that didn't run yet
+    static final int PENDING_DISCOVERY = 1;
+    static final int PENDING_SWEEP = 2;
+
+    private static final byte KIND_NONE = 0;
+    private static final byte KIND_INSTRUCTION = 1;
+    private static final byte KIND_DATA = 2;
+    private static final byte KIND_JUMP_TABLE = 3;
+    private static final byte NO_TYPE = -1;
+    private static final int NONE = -1;
+
+    private static final byte WORK_CODE = 1;
+    private static final byte WORK_DATA = 2;
+    private static final byte WORK_JUMP_TABLE = 3;
+    private static final byte WORK_REANALYZE = 4;
+
+    private AnalysisDatabase() {
+    }
+
+    // collects the strings and assigns each one an offset in the string block
+    private static final class StringPool {
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        int add(String str) throws IOException {
+            if(str == null) {
+                return NONE;
+            }
+            Integer res = offsets.get(str);
+            if(res == null) {
+                res = out.size();
+                byte[] utf = str.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf.length);
+                out.write(utf);
+                offsets.put(str, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Writes the analysis to a file. The file is written next to the destination first
+     * and then moved there, so an existing database isn't damaged if writing fails.
+     * @param path the file to write
+     * @param imageFile the analyzed image file
+     * @param data the disassembly data of the image file
+     * @param functionInfo the trace addresses and their functions as assigned by the disassembler
+     * @param pending the pending work of the disassembler
+     * @param reanalyze the pending reanalysis requests
+     * @param state the phases that didn't run yet, a combination of the PENDING flags
+     * @throws IOException if the file couldn't be written
+     */
+    static void write(Path path, ImageFile imageFile, DisassemblyData data, Map<Long, Function> functionInfo,
+            List<Work> pending, Collection<Long> reanalyze, int state) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        StringPool strings = new StringPool();
+        Map<Function, Integer> functionIndex = new IdentityHashMap<>();
+        List<Function> functions = new ArrayList<>();
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            synchronized(data) {
+                for(DataEntry entry : data.getEntries()) {
+                    addFunction(entry.getStartFunction(), functions, functionIndex);
+                    addFunction(entry.getEndFunction(), functions, functionIndex);
+                }
+                for(Function fun : functionInfo.values()) {
+                    addFunction(fun, functions, functionIndex);
+                }
+
+                XrefStore xrefs = data.getReferenceStore();
+                ByteSequence bytes = imageFile.getBytes();
+                long[] patches = bytes.getPatchedRanges();
+                long patchBytes = 0;
+                for(int i = 0; i < patches.length; i += 2) {
+                    patchBytes += patches[i + 1] - patches[i];
+                }
+
+                DataType[] types = DataType.values();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(bytes.getSize());
+                out.writeLong(imageFile.getCodeEntryPointMem());
+                out.write(hashImage(bytes));
+                out.writeInt(types.length);
+                out.writeInt(data.getEntries().size());
+                out.writeInt(functions.size());
+                out.writeInt(functionInfo.size());
+                out.writeInt(xrefs.size());
+                out.writeInt(patches.length / 2);
+                out.writeInt(countWork(pending) + reanalyze.size());
+                out.writeInt(state);
+                out.writeLong(patchBytes);
+
+                for(DataType type : types) {
+                    out.writeInt(strings.add(type.name()));
+                }
+                for(DataEntry entry : data.getEntries()) {
+                    writeEntry(out, entry, functionIndex, strings);
+                }
+                for(Function fun : functions) {
+                    out.writeLong(fun.getStartAddress());
+                    out.writeLong(fun.getEndAddress());
+                    out.writeInt(strings.add(fun.getName()));
+                }
+                for(Map.Entry<Long, Function> info : functionInfo.entrySet()) {
+                    out.writeLong(info.getKey());
+                    out.writeInt(functionIndex.get(info.getValue()));
+                }
+                for(DataEntry entry : data.getEntries()) {
+                    long dst = entry.getAddress();
+                    for(long src : xrefs.getSources(dst)) {
+                        out.writeLong(src);
+                        out.writeLong(dst);
+                        out.writeByte(xrefs.isWrite(src, dst) ? 1 : 0);
+                    }
+                }
+                for(int i = 0; i < patches.length; i += 2) {
+                    out.writeLong(patches[i]);
+                    out.writeInt((int) (patches[i + 1] - patches[i]));
+                }
+                for(int i = 0; i < patches.length; i += 2) {
+                    for(long offset = patches[i]; offset < patches[i + 1]; offset++) {
+                        out.writeByte(bytes.readSByte(offset));
+                    }
+                }
+                for(Work work : pending) {
+                    writeWork(out, work);
+                }
+                for(long addr : reanalyze) {
+                    out.writeLong(addr);
+                    out.writeByte(WORK_REANALYZE);
+                    out.writeByte(0);
+                    out.writeByte(NO_TYPE);
+                    out.writeByte(0);
+                }
+            }
+            strings.bytes.writeTo(out);
+        } catch(IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // hashes the content of the image file without the patches
+    private static byte[] hashImage(ByteSequence bytes) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            bytes.digestOriginal(digest);
+            return digest.digest();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("can't hash the image file", e);
+        }
+    }
+
+    private static int countWork(List<Work> pending) {
+        int res = 0;
+        for(Work work : pending) {
+            res += (work.code ? 1 : 0) + work.data.size();
+        }
+        return res;
+    }
+
+    private static void writeWork(DataOutputStream out, Work work) throws IOException {
+        if(work.code) {
+            out.writeLong(work.address);
+            out.writeByte(WORK_CODE);
+            out.writeByte(work.careful ? 1 : 0);
+            out.writeByte(NO_TYPE);
+            out.writeByte(0);
+        }
+        for(Data item : work.data) {
+            out.writeLong(work.address);
+            out.writeByte(item instanceof JumpTable ? WORK_JUMP_TABLE : WORK_DATA);
+            out.writeByte(0);
+            out.writeByte(item.getType().ordinal());
+            out.writeByte(item.getTableScaling());
+        }
+    }
+
+    private static void addFunction(Function fun, List<Function> functions, Map<Function, Integer> functionIndex) {
+        if(fun != null && !functionIndex.containsKey(fun)) {
+            functionIndex.put(fun, functions.size());
+            functions.add(fun);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, DataEntry entry, Map<Function, Integer> functionIndex, StringPool strings) throws IOException {
+        DecodedEntity entity = entry.getEntity();
+        byte kind = KIND_NONE;
+        byte type = NO_TYPE;
+        byte scaling = 0;
+        int count = 0;
+        if(entity instanceof Instruction) {
+            kind = KIND_INSTRUCTION;
+        } else if(entity instanceof JumpTable) {
+            JumpTable table = (JumpTable) entity;
+            kind = KIND_JUMP_TABLE;
+            scaling = (byte) table.getTableScaling();
+            count = table.getEntryCount();
+        } else if(entity instanceof Data) {
+            kind = KIND_DATA;
+            type = (byte) ((Data) entity).getType().ordinal();
+            scaling = (byte) ((Data) entity).getTableScaling();
+        }
+
+        Data attached = entry.getAttachedData();
+        out.writeLong(entry.getAddress());
+        out.writeByte(kind);
+        out.writeByte(type);
+        out.writeByte(scaling);
+        out.writeByte(0); // padding
+        // the size of the entity is needed to restore the coverage without analyzing the data
+        out.writeInt(entity != null ? entity.getSize() : 0);
+        out.writeInt(count);
+        out.writeLong(attached != null ? attached.getMemAddress() : 0);
+        out.writeByte(attached != null ? attached.getType().ordinal() : NO_TYPE);
+        out.writeInt(entry.getStartFunction() != null ? functionIndex.get(entry.getStartFunction()) : NONE);
+        out.writeInt(entry.getEndFunction() != null ? functionIndex.get(entry.getEndFunction()) : NONE);
+        out.writeInt(strings.add(entry.getComment()));
+    }
+
+    /**
+     * Reads an analysis into empty disassembly data. The patches are applied to the image
+     * file first. The entries of the memory map are only created when they are accessed.
+     * @param path the file to read
+     * @param imageFile the image file that was analyzed, the database must have been written for it
+     * @param data the disassembly data to fill, the image file must have been inserted already
+     * @param nameListener the listener for the functions, i.e. the disassembler
+     * @param functionInfo receives the trace addresses and their functions
+     * @param workQueue receives the pending work
+     * @param reanalyze receives the pending reanalysis requests
+     * @return the phases that didn't run yet, a combination of the PENDING flags
+     * @throws IOException if the file couldn't be read or doesn't belong to the image file
+     */
+    static int read(Path path, ImageFile imageFile, DisassemblyData data, AddressNameListener nameListener,
+            Map<Long, Function> functionInfo, WorkQueue workQueue, Queue<Long> reanalyze) throws IOException {
+        ByteBuffer buf;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("invalid database size: " + channel.size());
+            }
+            buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // the older versions didn't identify the image by its content
+        if(buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("not a database of this version: " + path);
+        }
+        ByteSequence bytes = imageFile.getBytes();
+        byte[] hash = new byte[HASH_SIZE];
+        ByteBuffer stored = buf.duplicate();
+        stored.position(24);
+        stored.get(hash);
+        if(buf.getLong(8) != bytes.getSize() || buf.getLong(16) != imageFile.getCodeEntryPointMem()
+                || !Arrays.equals(hash, hashImage(bytes))) {
+            throw new IOException("the database doesn't belong to the image file: " + path);
+        }
+        int at = 24 + HASH_SIZE;
+        int typeCount = buf.getInt(at);
+        int entryCount = buf.getInt(at + 4);
+        int functionCount = buf.getInt(at + 8);
+        int assignmentCount = buf.getInt(at + 12);
+        int referenceCount = buf.getInt(at + 16);
+        int patchCount = buf.getInt(at + 20);
+        int workCount = buf.getInt(at + 24);
+        int state = buf.getInt(at + 28);
+        long patchBytes = buf.getLong(at + 32);
+
+        long typeNames = HEADER_SIZE;
+        long entries = typeNames + (long) typeCount * TYPE_SIZE;
+        long functions = entries + (long) entryCount * ENTRY_SIZE;
+        long assignments = functions + (long) functionCount * FUNCTION_SIZE;
+        long references = assignments + (long) assignmentCount * ASSIGNMENT_SIZE;
+        long patches = references + (long) referenceCount * REFERENCE_SIZE;
+        long patchData = patches + (long) patchCount * PATCH_SIZE;
+        long work = patchData + patchBytes;
+        long strings = work + (long) workCount * WORK_SIZE;
+        if(typeCount < 0 || entryCount < 0 || strings > buf.limit()) {
+            throw new IOException("database is truncated: " + path);
+        }
+
+        DataType[] types = new DataType[typeCount];
+        for(int i = 0; i < typeCount; i++) {
+            String name = readString(buf, (int) strings, buf.getInt((int) (typeNames + (long) i * TYPE_SIZE)));
+            try {
+                types[i] = DataType.valueOf(name);
+            } catch(IllegalArgumentException | NullPointerException e) {
+                throw new IOException("unknown data type " + name + " in " + path);
+            }
+        }
+
+        // the data must be analyzed with the patched bytes
+        bytes.lock();
+        try {
+            long pos = patchData;
+            for(int i = 0; i < patchCount; i++) {
+                int patch = (int) (patches + (long) i * PATCH_SIZE);
+                long offset = buf.getLong(patch);
+                int length = buf.getInt(patch + 8);
+                for(int j = 0; j < length; j++) {
+                    bytes.patchByte(offset + j, buf.get((int) pos++));
+                }
+            }
+        } finally {
+            bytes.unlock();
+        }
+
+        Function[] funs = new Function[functionCount];
+        for(int i = 0; i < functionCount; i++) {
+            int fun = (int) (functions + (long) i * FUNCTION_SIZE);
+            String name = readString(buf, (int) strings, buf.getInt(fun + 16));
+            funs[i] = new Function(buf.getLong(fun), buf.getLong(fun + 8), name, nameListener);
+        }
+        for(int i = 0; i < assignmentCount; i++) {
+            int assignment = (int) (assignments + (long) i * ASSIGNMENT_SIZE);
+            functionInfo.put(buf.getLong(assignment), funs[buf.getInt(assignment + 8)]);
+        }
+
+        data.restoreEntries(new StoredEntries(buf, (int) entries, entryCount, (int) strings, funs, types, imageFile));
+
+        long[] srcs = new long[referenceCount];
+        long[] dsts = new long[referenceCount];
+        boolean[] writes = new boolean[referenceCount];
+        for(int i = 0; i < referenceCount; i++) {
+            int ref = (int) (references + (long) i * REFERENCE_SIZE);
+            srcs[i] = buf.getLong(ref);
+            dsts[i] = buf.getLong(ref + 8);
+            writes[i] = buf.get(ref + 16) != 0;
+        }
+        data.restoreReferences(srcs, dsts, writes, referenceCount);
+        data.restoreDone();
+
+        for(int i = 0; i < workCount; i++) {
+            int record = (int) (work + (long) i * WORK_SIZE);
+            long memAddr = buf.getLong(record);
+            switch(buf.get(record + 8)) {
+            case WORK_CODE:
+                workQueue.addCode(memAddr, buf.get(record + 9) != 0, null);
+                break;
+            case WORK_DATA:
+                Data item = new Data(memAddr, types[buf.get(record + 10)]);
+                item.setTableScaling(buf.get(record + 11));
+                workQueue.addData(item, null);
+                break;
+            case WORK_JUMP_TABLE:
+                JumpTable table = new JumpTable(memAddr);
+                table.setTableScaling(buf.get(record + 11));
+                workQueue.addData(table, null);
+                break;
+            case WORK_REANALYZE:
+                reanalyze.add(memAddr);
+                break;
+            default:
+                throw new IOException("invalid work record in " + path);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * The entries of the memory map in a database that weren't accessed yet. An entry is
+     * created from its record when it is accessed for the first time and then belongs to
+     * the memory map of the {@link DisassemblyData}, the record is marked as taken.
+     * The records are sorted by address, so they are searched directly in the mapped file.
+     * This class is not thread-safe, {@link DisassemblyData} synchronizes the access.
+     */
+    static final class StoredEntries {
+        private final ByteBuffer buf;
+        private final int entries, count, strings;
+        private final Function[] funs;
+        private final DataType[] types;
+        private final ImageFile imageFile;
+        private final StoredInstruction.Source source;
+        private final BitSet taken;
+        private int remaining;
+        private ByteSequence view;
+
+        StoredEntries(ByteBuffer buf, int entries, int count, int strings, Function[] funs, DataType[] types, ImageFile imageFile) {
+            this.buf = buf;
+            this.entries = entries;
+            this.count = count;
+            this.strings = strings;
+            this.funs = funs;
+            this.types = types;
+            this.imageFile = imageFile;
+            this.source = new StoredInstruction.Source(imageFile);
+            this.taken = new BitSet(count);
+            this.remaining = count;
+        }
+
+        /**
+         * Returns the number of records that weren't taken yet
+         * @return the number of remaining records
+         */
+        int size() {
+            return remaining;
+        }
+
+        long getAddress(int index) {
+            return buf.getLong(entries + index * ENTRY_SIZE);
+        }
+
+        boolean isInstruction(int index) {
+            return buf.get(entries + index * ENTRY_SIZE + 8) == KIND_INSTRUCTION;
+        }
+
+        // the end of the entity or the address itself if the entry has no entity
+        long getEnd(int index) {
+            return getAddress(index) + buf.getInt(entries + index * ENTRY_SIZE + 12);
+        }
+
+        // the index of the first record whose address is not smaller than memAddr
+        private int search(long memAddr) {
+            int lo = 0, hi = count;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(getAddress(mid) < memAddr) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Finds the remaining record of an address
+         * @param memAddr the address to find
+         * @return the index of the record or -1 if there is none or it was taken
+         */
+        int find(long memAddr) {
+            int index = search(memAddr);
+            if(index < count && getAddress(index) == memAddr && !taken.get(index)) {
+                return index;
+            }
+            return -1;
+        }
+
+        /**
+         * Finds the remaining record with the highest address that is not greater than memAddr
+         * @param memAddr the address to search
+         * @return the index of the record or -1
+         */
+        int floor(long memAddr) {
+            int index = search(memAddr);
+            if(index == count || getAddress(index) > memAddr) {
+                index--;
+            }
+            return index < 0 ? -1 : taken.previousClearBit(index);
+        }
+
+        /**
+         * Finds the remaining record with the lowest address that is not smaller than memAddr
+         * @param memAddr the address to search
+         * @return the index of the record or -1
+         */
+        int ceiling(long memAddr) {
+            int index = taken.nextClearBit(search(memAddr));
+            return index < count ? index : -1;
+        }
+
+        /**
+         * Returns the next remaining record
+         * @param index the index of a record
+         * @return the index of the next remaining record or -1
+         */
+        int next(int index) {
+            index = taken.nextClearBit(index + 1);
+            return index < count ? index : -1;
+        }
+
+        /**
+         * Creates the entry of a record and marks the record as taken. The entry must
+         * be stored in the memory map before, so attached data that refers back to it
+         * doesn't create it again.
+         * @param index the index of the record
+         * @param data the data that owns the entry, used to find the attached data
+         * @param entry the new entry of the record's address
+         */
+        void take(int index, DisassemblyData data, DataEntry entry) {
+            taken.set(index);
+            remaining--;
+
+            int at = entries + index * ENTRY_SIZE;
+            long memAddr = entry.getAddress();
+            int scaling = buf.get(at + 10);
+            switch(buf.get(at + 8)) {
+            case KIND_INSTRUCTION:
+                entry.setEntity(new StoredInstruction(memAddr, buf.getInt(at + 12), source));
+                break;
+            case KIND_DATA:
+                Data item = new Data(memAddr, types[buf.get(at + 9)]);
+                item.setTableScaling(scaling);
+                item.analyze(seek(memAddr));
+                entry.setEntity(item);
+                break;
+            case KIND_JUMP_TABLE:
+                JumpTable table = new JumpTable(memAddr);
+                table.setTableScaling(scaling);
+                ByteSequence seq = seek(memAddr);
+                for(int j = buf.getInt(at + 16); j > 0; j--) {
+                    table.addEntry(readTableEntry(seq, scaling));
+                }
+                entry.setEntity(table);
+                break;
+            default:
+                break;
+            }
+            int startFunction = buf.getInt(at + 29);
+            int endFunction = buf.getInt(at + 33);
+            entry.setStartFunction(startFunction != NONE ? funs[startFunction] : null);
+            entry.setEndFunction(endFunction != NONE ? funs[endFunction] : null);
+            entry.setComment(readString(buf, strings, buf.getInt(at + 37)));
+
+            byte type = buf.get(at + 28);
+            if(type != NO_TYPE) {
+                long attached = buf.getLong(at + 20);
+                DecodedEntity entity = data.getEntityOnExactAddress(attached);
+                if(!(entity instanceof Data) || ((Data) entity).getType() != types[type]) {
+                    // the data was replaced after it was attached
+                    Data item = new Data(attached, types[type]);
+                    item.analyze(seek(attached));
+                    entity = item;
+                }
+                entry.attachData((Data) entity);
+            }
+        }
+
+        private ByteSequence seek(long memAddr) {
+            if(view == null) {
+                view = imageFile.getByteSequenceView(memAddr);
+            } else {
+                view.seek(imageFile.toFileAddress(memAddr));
+            }
+            return view;
+        }
+    }
+
+    private static long readTableEntry(ByteSequence seq, int scaling) {
+        switch(scaling) {
+        case 1: return seq.readUByte();
+        case 2: return seq.readUWord();
+        case 4: return seq.readUDword();
+        case 8: return seq.readSDword(); // same as the disassembler
+        default: throw new UnsupportedOperationException("invalid jump table entry size: " + scaling);
+        }
+    }
+
+    private static String readString(ByteBuffer buf, int strings, int offset) {
+        if(offset == NONE) {
+            return null;
+        }
+        int length = buf.getInt(strings + offset);
+        byte[] utf = new byte[length];
+        ByteBuffer src = buf.duplicate();
+        src.position(strings + offset + 4);
+        src.get(utf);
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,305 @@
+package kianxali.disassembler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work of a {@link Disassembler} and its {@link DisassemblyData} while the
+ * analysis runs, e.g. to find out which phase of the analysis is slow for a certain
+ * image file. The counters are updated by the analysis thread and can be read at any
+ * time, either directly or through JMX after calling {@link #register(String)}.
+ * The durations are measured with {@link System#nanoTime()} around whole phases,
+ * work items and listener calls, so measuring them is cheap compared to the measured
+ * work. The lock wait time is the time the analysis thread was blocked on a monitor,
+ * as counted by the JVM's thread contention monitoring, which is enabled for this.
+ * The analysis thread only competes with other threads for the lock of the memory map,
+ * e.g. when a user interface reads it, so this shows how much they slow the analysis down.
+ * The counters are never reset, i.e. a reanalysis adds to them.
+ * @author fwi
+ *
+ */
+public final class AnalysisMetrics implements AnalysisMetricsMBean {
+    private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    /**
+     * The phases of the analysis
+     */
+    enum Phase {
+        SWEEP, TRACE, DATA, FUNCTIONS, DISCOVERY, INVALIDATION
+    }
+
+    private final AtomicLong instructions, codeWork, dataWork, errors;
+    private final AtomicLong listenerTime, lockWaitTime, analysisTime;
+    private final AtomicLong[] phaseTimes;
+    private volatile int queueDepth;
+    private volatile Phase phase;
+    // start of the current run or 0 if the analyzer isn't running
+    private volatile long runStart;
+    // the thread running the analysis and its blocked time in ms when it started or -1
+    private volatile long runThread, runBlocked;
+    private ObjectName name;
+
+    AnalysisMetrics() {
+        this.instructions = new AtomicLong();
+        this.codeWork = new AtomicLong();
+        this.dataWork = new AtomicLong();
+        this.errors = new AtomicLong();
+        this.listenerTime = new AtomicLong();
+        this.lockWaitTime = new AtomicLong();
+        this.analysisTime = new AtomicLong();
+        this.runThread = -1;
+        this.phaseTimes = new AtomicLong[Phase.values().length];
+        for(int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Registers these metrics at the platform MBean server so they can be watched with
+     * a JMX client like jconsole. Registration errors are logged, the analysis doesn't
+     * depend on it.
+     * @param imageName the name of the analyzed image, part of the object name
+     */
+    public synchronized void register(String imageName) {
+        if(name != null) {
+            return;
+        }
+        try {
+            ObjectName objName = new ObjectName("kianxali:type=Analysis,id=" + NEXT_ID.incrementAndGet()
+                    + ",name=" + ObjectName.quote(imageName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objName);
+            name = objName;
+        } catch(JMException e) {
+            LOG.log(Level.WARNING, "Couldn't register analysis metrics: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server if they were registered
+     */
+    public synchronized void unregister() {
+        if(name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch(JMException e) {
+            LOG.log(Level.WARNING, "Couldn't unregister analysis metrics: " + e.getMessage(), e);
+        }
+        name = null;
+    }
+
+    void startRun() {
+        runStart = System.nanoTime();
+    }
+
+    void stopRun() {
+        long start = runStart;
+        if(start != 0) {
+            analysisTime.addAndGet(System.nanoTime() - start);
+            runStart = 0;
+        }
+        long blocked = getBlockedTime(runThread);
+        if(blocked >= 0) {
+            lockWaitTime.addAndGet(blocked - runBlocked);
+        }
+        runThread = -1;
+        phase = null;
+    }
+
+    // called by the analysis thread when it starts, its blocked time is counted from now on
+    void startThread() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            if(threads.isThreadContentionMonitoringSupported() && !threads.isThreadContentionMonitoringEnabled()) {
+                threads.setThreadContentionMonitoringEnabled(true);
+            }
+        } catch(SecurityException e) {
+            LOG.fine("Couldn't enable thread contention monitoring: " + e.getMessage());
+        }
+        long id = Thread.currentThread().getId();
+        runBlocked = getBlockedTime(id);
+        runThread = runBlocked >= 0 ? id : -1;
+    }
+
+    // the accumulated blocked time of a thread in ms or -1 if it isn't available
+    private static long getBlockedTime(long threadId) {
+        if(threadId < 0) {
+            return -1;
+        }
+        ThreadInfo info = ManagementFactory.getThreadMXBean().getThreadInfo(threadId);
+        if(info == null) {
+            return -1;
+        }
+        return info.getBlockedTime();
+    }
+
+    /**
+     * Marks the beginning of a phase
+     * @param newPhase the phase that is entered
+     * @return the start time to pass to {@link #leavePhase(Phase, long)}
+     */
+    long enterPhase(Phase newPhase) {
+        phase = newPhase;
+        return System.nanoTime();
+    }
+
+    void leavePhase(Phase oldPhase, long start) {
+        phaseTimes[oldPhase.ordinal()].addAndGet(System.nanoTime() - start);
+    }
+
+    void addInstruction() {
+        instructions.incrementAndGet();
+    }
+
+    void addCodeWork() {
+        codeWork.incrementAndGet();
+    }
+
+    void addDataWork() {
+        dataWork.incrementAndGet();
+    }
+
+    void addError() {
+        errors.incrementAndGet();
+    }
+
+    void setQueueDepth(int depth) {
+        queueDepth = depth;
+    }
+
+    void addListenerTime(long start) {
+        listenerTime.addAndGet(System.nanoTime() - start);
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private long getPhaseTime(Phase p) {
+        return toMillis(phaseTimes[p.ordinal()].get());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return runStart != 0;
+    }
+
+    @Override
+    public String getCurrentPhase() {
+        Phase current = phase;
+        return current != null ? current.name() : "IDLE";
+    }
+
+    @Override
+    public long getAnalysisTime() {
+        long res = analysisTime.get();
+        long start = runStart;
+        if(start != 0) {
+            res += System.nanoTime() - start;
+        }
+        return toMillis(res);
+    }
+
+    @Override
+    public long getInstructionCount() {
+        return instructions.get();
+    }
+
+    @Override
+    public double getDecodeRate() {
+        long time = getAnalysisTime();
+        if(time == 0) {
+            return 0;
+        }
+        return instructions.get() * 1000.0 / time;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    @Override
+    public long getCodeWorkCount() {
+        return codeWork.get();
+    }
+
+    @Override
+    public long getDataWorkCount() {
+        return dataWork.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public long getListenerTime() {
+        return toMillis(listenerTime.get());
+    }
+
+    @Override
+    public long getLockWaitTime() {
+        long res = lockWaitTime.get();
+        long thread = runThread;
+        long start = runBlocked;
+        long blocked = getBlockedTime(thread);
+        if(blocked >= 0 && thread == runThread) {
+            res += blocked - start;
+        }
+        return res;
+    }
+
+    @Override
+    public long getSweepTime() {
+        return getPhaseTime(Phase.SWEEP);
+    }
+
+    @Override
+    public long getTraceTime() {
+        return getPhaseTime(Phase.TRACE);
+    }
+
+    @Override
+    public long getDataTime() {
+        return getPhaseTime(Phase.DATA);
+    }
+
+    @Override
+    public long getFunctionTime() {
+        return getPhaseTime(Phase.FUNCTIONS);
+    }
+
+    @Override
+    public long getDiscoveryTime() {
+        return getPhaseTime(Phase.DISCOVERY);
+    }
+
+    @Override
+    public long getInvalidationTime() {
+        return getPhaseTime(Phase.INVALIDATION);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d instructions in %d ms (%.0f/s), %d traces, %d data items, %d errors; "
+                + "phases: sweep %d ms, trace %d ms, data %d ms, functions %d ms, discovery %d ms, invalidation %d ms; "
+                + "listeners %d ms, lock wait %d ms",
+                getInstructionCount(), getAnalysisTime(), getDecodeRate(), getCodeWorkCount(), getDataWorkCount(), getErrorCount(),
+                getSweepTime(), getTraceTime(), getDataTime(), getFunctionTime(), getDiscoveryTime(), getInvalidationTime(),
+                getListenerTime(), getLockWaitTime());
+    }
+}
@@ -0,0 +1,112 @@
+package kianxali.disassembler;
+
+/**
+ * The management interface of {@link AnalysisMetrics}. All durations are in milliseconds.
+ * @author fwi
+ *
+ */
+public interface AnalysisMetricsMBean {
+    /**
+     * Returns whether the analyzer is running
+     * @return true iff the analyzer is running
+     */
+    boolean isRunning();
+
+    /**
+     * Returns the phase that the analyzer is currently in
+     * @return the name of the phase or IDLE if the analyzer isn't running
+     */
+    String getCurrentPhase();
+
+    /**
+     * Returns the time the analyzer was running, including the current run
+     * @return the analysis time
+     */
+    long getAnalysisTime();
+
+    /**
+     * Returns the number of instructions that were decoded and inserted into the memory map
+     * @return the number of decoded instructions
+     */
+    long getInstructionCount();
+
+    /**
+     * Returns the average number of instructions decoded per second of analysis time
+     * @return the decode rate
+     */
+    double getDecodeRate();
+
+    /**
+     * Returns the number of addresses waiting in the work queue
+     * @return the queue depth when the last work item was taken from the queue
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of traces that were decoded
+     * @return the number of code work items
+     */
+    long getCodeWorkCount();
+
+    /**
+     * Returns the number of data items that were analyzed
+     * @return the number of data work items
+     */
+    long getDataWorkCount();
+
+    /**
+     * Returns the number of instructions and data items that couldn't be decoded
+     * @return the number of decode errors
+     */
+    long getErrorCount();
+
+    /**
+     * Returns the time spent in the listeners of the disassembler and the memory map
+     * @return the listener time
+     */
+    long getListenerTime();
+
+    /**
+     * Returns the time the analysis thread waited for locks, mostly for the one of the
+     * memory map while other threads read it. It is 0 if the JVM doesn't support thread
+     * contention monitoring.
+     * @return the lock wait time
+     */
+    long getLockWaitTime();
+
+    /**
+     * Returns the time spent seeding the work queue by a linear sweep
+     * @return the duration of the sweep phase
+     */
+    long getSweepTime();
+
+    /**
+     * Returns the time spent decoding traces
+     * @return the duration of the trace phase
+     */
+    long getTraceTime();
+
+    /**
+     * Returns the time spent analyzing data items
+     * @return the duration of the data phase
+     */
+    long getDataTime();
+
+    /**
+     * Returns the time spent propagating function information
+     * @return the duration of the function phase
+     */
+    long getFunctionTime();
+
+    /**
+     * Returns the time spent searching functions that are not called directly
+     * @return the duration of the discovery phase
+     */
+    long getDiscoveryTime();
+
+    /**
+     * Returns the time spent invalidating results before a reanalysis
+     * @return the duration of the invalidation phase
+     */
+    long getInvalidationTime();
+}
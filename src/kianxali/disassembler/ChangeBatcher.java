@@ -0,0 +1,113 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the changed addresses of a {@link DisassemblyData} instance and delivers
+ * them to the {@link DataBatchListener} instances in batches. The changes are recorded
+ * in a growing array that is sorted and freed from duplicates when it runs full, so
+ * an address that changes often doesn't use more memory.
+ * A delivery thread is started with the first change. It creates a batch when the
+ * interval has passed or when the maximum number of changes was recorded, and it
+ * terminates when no changes were recorded during a whole interval.
+ * @author fwi
+ *
+ */
+final class ChangeBatcher implements Runnable {
+    private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
+
+    private final DisassemblyData data;
+    private long[] dirty;
+    private int dirtyCount;
+    // number of changes since the last batch, including duplicates
+    private int changes;
+    private long interval;
+    private int maxChanges;
+    private Thread worker;
+
+    ChangeBatcher(DisassemblyData data, long interval, int maxChanges) {
+        this.data = data;
+        this.dirty = new long[1024];
+        setLimits(interval, maxChanges);
+    }
+
+    synchronized void setLimits(long interval, int maxChanges) {
+        if(interval <= 0 || maxChanges <= 0) {
+            throw new IllegalArgumentException("interval and maximum number of changes must be positive");
+        }
+        this.interval = interval;
+        this.maxChanges = maxChanges;
+        notifyAll();
+    }
+
+    synchronized void add(long memAddr) {
+        if(dirtyCount == dirty.length) {
+            dirtyCount = sortUnique(dirty, dirtyCount);
+            if(2 * dirtyCount > dirty.length) {
+                dirty = Arrays.copyOf(dirty, dirty.length * 2);
+            }
+        }
+        dirty[dirtyCount++] = memAddr;
+        changes++;
+
+        if(worker == null) {
+            worker = new Thread(this, "kianxali change batcher");
+            worker.setDaemon(true);
+            worker.start();
+        } else if(changes == maxChanges) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            long[] batch;
+            synchronized(this) {
+                waitForChanges();
+                if(dirtyCount == 0) {
+                    worker = null;
+                    return;
+                }
+                batch = Arrays.copyOf(dirty, sortUnique(dirty, dirtyCount));
+                dirtyCount = 0;
+                changes = 0;
+            }
+
+            try {
+                data.tellBatchListeners(batch);
+            } catch(RuntimeException e) {
+                LOG.log(Level.WARNING, "Batch listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // waits until the interval has passed or enough changes were recorded
+    private void waitForChanges() {
+        long deadline = System.currentTimeMillis() + interval;
+        long wait = interval;
+        try {
+            while(changes < maxChanges && wait > 0) {
+                wait(wait);
+                wait = deadline - System.currentTimeMillis();
+            }
+        } catch(InterruptedException e) {
+            // deliver the pending changes without waiting, the thread ends when they are done
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // sorts the first count values and moves the distinct ones to the front, returns their number
+    private static int sortUnique(long[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int res = 0;
+        for(int i = 0; i < count; i++) {
+            if(res == 0 || values[res - 1] != values[i]) {
+                values[res++] = values[i];
+            }
+        }
+        return res;
+    }
+}
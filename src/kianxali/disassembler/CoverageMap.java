@@ -0,0 +1,241 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import kianxali.loader.Section;
+
+/**
+ * Stores two bits for each address of the sections of an image file: whether an
+ * instruction starts there and whether the address is covered by an instruction
+ * or data. This allows to answer these questions without searching the memory map.
+ * The bits are stored in pages that are allocated when they are first needed,
+ * so large uninitialized sections don't use memory.
+ * This class is not thread-safe, {@link DisassemblyData} synchronizes the access.
+ * @author fwi
+ *
+ */
+final class CoverageMap {
+    private static final int PAGE_BITS = 18;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int WORDS_PER_PAGE = PAGE_SIZE / 64;
+
+    // sorted by start address, the ranges don't overlap
+    private final long[] starts, ends;
+    private final long[][][] starting, covering;
+
+    CoverageMap(List<Section> sections) {
+        Section[] sorted = sections.toArray(new Section[sections.size()]);
+        Arrays.sort(sorted, new Comparator<Section>() {
+            @Override
+            public int compare(Section o1, Section o2) {
+                return Long.compare(o1.getStartAddress(), o2.getStartAddress());
+            }
+        });
+
+        int count = 0;
+        starts = new long[sorted.length];
+        ends = new long[sorted.length];
+        for(Section section : sorted) {
+            long start = section.getStartAddress();
+            long end = section.getEndAddress() + 1;
+            if(count > 0 && start < ends[count - 1]) {
+                // the end addresses are inclusive, so adjacent sections can share an address
+                start = ends[count - 1];
+                if(start >= end) {
+                    continue;
+                }
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        starting = new long[count][][];
+        covering = new long[count][][];
+        for(int i = 0; i < count; i++) {
+            int pages = (int) ((ends[i] - starts[i] + PAGE_SIZE - 1) >>> PAGE_BITS);
+            starting[i] = new long[pages][];
+            covering[i] = new long[pages][];
+        }
+    }
+
+    private int findSection(long memAddr) {
+        int lo = 0, hi = starting.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(memAddr < starts[mid]) {
+                hi = mid - 1;
+            } else if(memAddr >= ends[mid]) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the bits of an address are stored in this map
+     * @param memAddr the address to check
+     * @return true iff the address is inside a section
+     */
+    boolean contains(long memAddr) {
+        return findSection(memAddr) >= 0;
+    }
+
+    /**
+     * Checks whether the whole range is stored in this map
+     * @param start the first address
+     * @param end the address behind the last address
+     * @return true iff the range is inside a single section
+     */
+    boolean contains(long start, long end) {
+        int section = findSection(start);
+        return section >= 0 && end <= ends[section];
+    }
+
+    boolean isInstructionStart(long memAddr) {
+        return get(starting, memAddr);
+    }
+
+    boolean isCovered(long memAddr) {
+        return get(covering, memAddr);
+    }
+
+    void setInstructionStart(long memAddr, boolean value) {
+        set(starting, memAddr, memAddr + 1, value);
+    }
+
+    void setCovered(long start, long end, boolean value) {
+        set(covering, start, end, value);
+    }
+
+    private boolean get(long[][][] bits, long memAddr) {
+        int section = findSection(memAddr);
+        if(section < 0) {
+            return false;
+        }
+        long offset = memAddr - starts[section];
+        long[] page = bits[section][(int) (offset >>> PAGE_BITS)];
+        if(page == null) {
+            return false;
+        }
+        int bit = (int) (offset & (PAGE_SIZE - 1));
+        return (page[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    // sets or clears the bits in [start, end), the addresses outside of the sections are ignored
+    private void set(long[][][] bits, long start, long end, boolean value) {
+        while(start < end) {
+            int section = findSection(start);
+            if(section < 0) {
+                start = nextSectionStart(start);
+                continue;
+            }
+            long sectionEnd = Math.min(end, ends[section]);
+            while(start < sectionEnd) {
+                long offset = start - starts[section];
+                int pageIndex = (int) (offset >>> PAGE_BITS);
+                long[] page = bits[section][pageIndex];
+                if(page == null) {
+                    if(!value) {
+                        start = Math.min(sectionEnd, starts[section] + ((long) (pageIndex + 1) << PAGE_BITS));
+                        continue;
+                    }
+                    page = new long[WORDS_PER_PAGE];
+                    bits[section][pageIndex] = page;
+                }
+                int from = (int) (offset & (PAGE_SIZE - 1));
+                int to = (int) Math.min(PAGE_SIZE, from + (sectionEnd - start));
+                setBits(page, from, to, value);
+                start += to - from;
+            }
+        }
+    }
+
+    private long nextSectionStart(long memAddr) {
+        for(int i = 0; i < starts.length; i++) {
+            if(starts[i] > memAddr) {
+                return starts[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static void setBits(long[] words, int from, int to, boolean value) {
+        while(from < to) {
+            int word = from >>> 6;
+            int last = Math.min(to, (word + 1) << 6);
+            long mask = (-1L >>> (64 - (last - from))) << from;
+            if(value) {
+                words[word] |= mask;
+            } else {
+                words[word] &= ~mask;
+            }
+            from = last;
+        }
+    }
+
+    /**
+     * Returns the covered ranges in [start, end), the range must be inside a section
+     * @param start the first address
+     * @param end the address behind the last address
+     * @return pairs of first and behind-last address in ascending order
+     */
+    long[] getCoveredRanges(long start, long end) {
+        long[] res = new long[16];
+        int count = 0;
+        long addr = start;
+        while(addr < end) {
+            long from = nextBit(addr, end, true);
+            if(from >= end) {
+                break;
+            }
+            long to = nextBit(from, end, false);
+            if(count == res.length) {
+                res = Arrays.copyOf(res, count * 2);
+            }
+            res[count++] = from;
+            res[count++] = to;
+            addr = to;
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    // returns the first address in [start, end) whose covered bit is value, or end
+    private long nextBit(long start, long end, boolean value) {
+        int section = findSection(start);
+        long sectionStart = starts[section];
+        long addr = start;
+        while(addr < end) {
+            long offset = addr - sectionStart;
+            long[] page = covering[section][(int) (offset >>> PAGE_BITS)];
+            long pageEnd = Math.min(end, addr - (offset & (PAGE_SIZE - 1)) + PAGE_SIZE);
+            if(page == null) {
+                if(!value) {
+                    return addr;
+                }
+                addr = pageEnd;
+                continue;
+            }
+            int bit = (int) (offset & (PAGE_SIZE - 1));
+            int lastBit = (int) (pageEnd - addr) + bit;
+            while(bit < lastBit) {
+                long word = page[bit >>> 6];
+                if(!value) {
+                    word = ~word;
+                }
+                word &= -1L << bit;
+                if(word != 0) {
+                    int found = ((bit >>> 6) << 6) + Long.numberOfTrailingZeros(word);
+                    return Math.min(end, addr + (found - (int) (offset & (PAGE_SIZE - 1))));
+                }
+                bit = ((bit >>> 6) + 1) << 6;
+            }
+            addr = pageEnd;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,21 @@
+package kianxali.disassembler;
+
+/**
+ * A listener that is informed about the changes of the {@link DisassemblyData}
+ * in batches instead of once per change like a {@link DataListener}.
+ * The changed addresses are collected while the analysis runs and delivered
+ * by a separate thread, either after a time interval or when enough changes
+ * were collected. This way, the analysis doesn't have to wait for the listeners.
+ * @author fwi
+ *
+ */
+public interface DataBatchListener {
+    /**
+     * Will be called with the addresses whose information changed since the last batch
+     * @param memAddrs the changed memory addresses, sorted and without duplicates
+     * @param entries the entries for the addresses when the batch was created, an entry
+     *        is null if it was cleared. The arrays are shared by all listeners and must
+     *        not be modified.
+     */
+    void onAnalyzeChanges(long[] memAddrs, DataEntry[] entries);
+}
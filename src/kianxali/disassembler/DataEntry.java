@@ -1,7 +1,5 @@
 package kianxali.disassembler;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import kianxali.decoder.Data;
 import kianxali.decoder.DecodedEntity;
@@ -19,6 +17,7 @@ import kianxali.loader.Section;
  *
  */
 public class DataEntry {
+    private final DisassemblyData owner;
     private final long address;
     private ImageFile startImageFile;
     private Section startSection, endSection;
@@ -26,11 +25,10 @@ public class DataEntry {
     private DecodedEntity entity;
     private Data attachedData;
     private String comment;
-    private final Map<DataEntry, Boolean> references;
 
-    DataEntry(long address) {
+    DataEntry(DisassemblyData owner, long address) {
+        this.owner = owner;
         this.address = address;
-        references = new HashMap<>();
     }
 
     /**
@@ -59,26 +57,22 @@ public class DataEntry {
         attachedData = null;
     }
 
-    void clearReferences() {
-        references.clear();
-    }
-
-    void addReferenceFrom(DataEntry src, boolean isWrite) {
-        references.put(src, isWrite);
-    }
-
-    boolean removeReference(DataEntry src) {
-        Boolean res = references.remove(src);
-        return (res != null);
-    }
-
     /**
      * Get all from-references to this entry, i.e. all locations that
      * refer to this address. The boolean is true iff it is a write-access.
-     * @return a set of entries that refer to this address
+     * The map is a snapshot of the cross references of the disassembly data
+     * and is sorted by the address of the referring entries.
+     * @return an unmodifiable map of the entries that refer to this address
      */
     public Map<DataEntry, Boolean> getReferences() {
-        return Collections.unmodifiableMap(references);
+        return owner.getReferences(address);
+    }
+
+    // an empty entry carries no information and can be removed from the memory map
+    boolean isEmpty() {
+        return startImageFile == null && startSection == null && endSection == null
+                && startFunction == null && endFunction == null && entity == null
+                && attachedData == null && comment == null && !owner.hasReferencesTo(address);
     }
 
     /**
@@ -0,0 +1,16 @@
+package kianxali.disassembler;
+
+/**
+ * Implementation of this interface can be passed to {@link DisassemblyData#visitEntries(DataEntryVisitor)}
+ * to allow a traversal through all entries of the memory map.
+ * @author fwi
+ *
+ */
+public interface DataEntryVisitor {
+    /**
+     * Will be called for each entry of the memory map.
+     * They will be called in order of the addresses
+     * @param entry an entry of the memory map
+     */
+    void onVisit(DataEntry entry);
+}
@@ -0,0 +1,303 @@
+package kianxali.disassembler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import kianxali.decoder.Data;
+
+/**
+ * Records what the analysis steps of the {@link Disassembler} produced so that
+ * a part of the analysis can be undone after the image was patched.
+ * Each code trace and each analyzed data item is a product. A product knows the
+ * references it inserted and the products that were queued because of it, e.g.
+ * branch destinations, data and jump table entries. A product that loses all its
+ * producers is invalid, unless it is a root like the entry point. Invalid
+ * products are found by marking everything that can be reached from the roots,
+ * so traces that produce each other, e.g. in a loop, are removed as well.
+ * @author fwi
+ *
+ */
+final class DependencyTracker {
+    private static final long[] NO_REFERENCES = new long[0];
+
+    private final NavigableMap<Long, Product> traces;
+    private final Map<Long, Product> dataItems;
+
+    /**
+     * The result of a single analysis step, i.e. a code trace or a data item
+     */
+    static final class Product {
+        final long start;
+        final boolean root;
+        // the analyzed data, null for code traces
+        final Data data;
+        // behind the last instruction of a code trace
+        long end;
+        // the function the trace was assigned to when it ended and the end it reported
+        Function function;
+        long functionEnd;
+        private final List<Product> producers;
+        private List<Product> children;
+        // pairs of source and destination address
+        private long[] references;
+        private int referenceCount;
+
+        private Product(long start, Data data, boolean root) {
+            this.start = start;
+            this.data = data;
+            this.root = root;
+            this.end = start;
+            this.producers = new ArrayList<>(1);
+            this.children = Collections.emptyList();
+            this.references = NO_REFERENCES;
+        }
+
+        boolean isCode() {
+            return data == null;
+        }
+
+        void addReference(long src, long dst) {
+            if(referenceCount + 2 > references.length) {
+                references = Arrays.copyOf(references, Math.max(8, references.length * 2));
+            }
+            references[referenceCount++] = src;
+            references[referenceCount++] = dst;
+        }
+
+        int getReferenceCount() {
+            return referenceCount / 2;
+        }
+
+        long getReferenceSource(int i) {
+            return references[2 * i];
+        }
+
+        long getReferenceDestination(int i) {
+            return references[2 * i + 1];
+        }
+
+        private void addChild(Product child) {
+            if(children.isEmpty()) {
+                children = new ArrayList<>(2);
+            }
+            children.add(child);
+        }
+
+        // forget everything this product produced, but keep the producers
+        private void reset() {
+            end = start;
+            function = null;
+            functionEnd = start;
+            children = Collections.emptyList();
+            references = NO_REFERENCES;
+            referenceCount = 0;
+        }
+    }
+
+    DependencyTracker() {
+        this.traces = new TreeMap<>();
+        this.dataItems = new HashMap<>();
+    }
+
+    /**
+     * Returns the product for a code trace starting at the given address. An existing
+     * product is reused, e.g. after it was reset by {@link #invalidate(Collection)}.
+     * @param start the start address of the trace
+     * @param producer the product that queued the trace or null if it is a root
+     * @return the product of the trace
+     */
+    Product startTrace(long start, Product producer) {
+        Product res = traces.get(start);
+        if(res == null) {
+            res = new Product(start, null, producer == null);
+            traces.put(start, res);
+        }
+        link(producer, res);
+        return res;
+    }
+
+    /**
+     * Returns the product for an analyzed data item
+     * @param data the data item
+     * @param producer the product that queued the data or null if it is a root
+     * @return the product of the data item
+     */
+    Product startData(Data data, Product producer) {
+        long addr = data.getMemAddress();
+        Product res = dataItems.get(addr);
+        if(res == null || res.data != data) {
+            res = new Product(addr, data, producer == null);
+            dataItems.put(addr, res);
+        }
+        link(producer, res);
+        return res;
+    }
+
+    /**
+     * Adds a producer to an existing product, e.g. when a trace runs into the start
+     * of an already decoded trace
+     * @param producer the product that depends on the other one, can be null
+     * @param product the product that is needed by the producer
+     */
+    void link(Product producer, Product product) {
+        if(producer == null || producer == product || product.producers.contains(producer)) {
+            return;
+        }
+        producer.addChild(product);
+        product.producers.add(producer);
+    }
+
+    /**
+     * Returns the code trace that contains the given address
+     * @param memAddr the address to look up
+     * @return the trace that decoded an instruction covering the address or null
+     */
+    Product findTrace(long memAddr) {
+        Entry<Long, Product> entry = traces.floorEntry(memAddr);
+        if(entry == null || memAddr >= entry.getValue().end) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Returns the analyzed data item at the given address
+     * @param memAddr the start address of the data
+     * @return the product of the data or null
+     */
+    Product findData(long memAddr) {
+        return dataItems.get(memAddr);
+    }
+
+    /**
+     * Removes a product from the tracker without affecting the products it produced
+     * @param product the product to remove
+     */
+    void discard(Product product) {
+        if(product.isCode()) {
+            traces.remove(product.start);
+        } else if(dataItems.get(product.start) == product) {
+            dataItems.remove(product.start);
+        }
+    }
+
+    /**
+     * Invalidates products: they are reset so that they can be analyzed again, and
+     * all products that can't be reached from a root anymore are removed. The reset
+     * products are removed as well if they became unreachable.
+     * @param products the products to invalidate
+     * @return copies of the reset products in the given order followed by all removed
+     *         products, the caller must undo their effects on the disassembly data
+     */
+    List<Product> invalidate(Collection<Product> products) {
+        List<Product> res = new ArrayList<>();
+        for(Product product : products) {
+            res.add(copyOf(product));
+            release(product);
+            product.reset();
+        }
+
+        // mark everything that can still be reached, this also handles cycles like loops
+        Set<Product> reachable = new HashSet<>();
+        Deque<Product> stack = new ArrayDeque<>();
+        for(Product product : traces.values()) {
+            if(product.root) {
+                stack.push(product);
+            }
+        }
+        for(Product product : dataItems.values()) {
+            if(product.root) {
+                stack.push(product);
+            }
+        }
+        while(!stack.isEmpty()) {
+            Product cur = stack.pop();
+            if(reachable.add(cur)) {
+                for(Product child : cur.children) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        List<Product> unreachable = new ArrayList<>();
+        for(Product product : traces.values()) {
+            if(!reachable.contains(product)) {
+                unreachable.add(product);
+            }
+        }
+        for(Product product : dataItems.values()) {
+            if(!reachable.contains(product)) {
+                unreachable.add(product);
+            }
+        }
+        for(Product product : unreachable) {
+            discard(product);
+            release(product);
+            res.add(product);
+        }
+        return res;
+    }
+
+    /**
+     * Checks whether a product is still known to the tracker
+     * @param product the product to check
+     * @return true iff the product wasn't removed
+     */
+    boolean contains(Product product) {
+        if(product.isCode()) {
+            return traces.get(product.start) == product;
+        } else {
+            return dataItems.get(product.start) == product;
+        }
+    }
+
+    // detaches a product from the products it produced
+    private void release(Product product) {
+        for(Product child : product.children) {
+            child.producers.remove(product);
+        }
+    }
+
+    // the caller needs the old range and references of a product that is reset
+    private static Product copyOf(Product product) {
+        Product res = new Product(product.start, product.data, product.root);
+        res.end = product.end;
+        res.function = product.function;
+        res.functionEnd = product.functionEnd;
+        res.references = product.references;
+        res.referenceCount = product.referenceCount;
+        return res;
+    }
+
+    /**
+     * Computes the ends of functions from the traces that are assigned to them
+     * @param functions the functions to examine
+     * @return the largest end address of the traces of each function, or the start of
+     *         the function if there are none
+     */
+    Map<Function, Long> getFunctionEnds(Set<Function> functions) {
+        Map<Function, Long> res = new HashMap<>();
+        for(Function function : functions) {
+            res.put(function, function.getStartAddress());
+        }
+        for(Product trace : traces.values()) {
+            Long end = res.get(trace.function);
+            if(end != null && trace.functionEnd > end) {
+                res.put(trace.function, trace.functionEnd);
+            }
+        }
+        return res;
+    }
+}
@@ -1,21 +1,41 @@
 package kianxali.disassembler;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import kianxali.disassembler.AnalysisBudget.Limit;
+import kianxali.disassembler.AnalysisMetrics.Phase;
+import kianxali.disassembler.DependencyTracker.Product;
+import kianxali.disassembler.WorkQueue.Work;
 import kianxali.decoder.Context;
 import kianxali.decoder.Data;
 import kianxali.decoder.Data.DataType;
 import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Decoder;
+import kianxali.decoder.FlowSummary;
 import kianxali.decoder.Instruction;
 import kianxali.decoder.JumpTable;
+import kianxali.decoder.LinearSweep;
 import kianxali.loader.ByteSequence;
 import kianxali.loader.ImageFile;
 import kianxali.loader.Section;
@@ -25,41 +45,53 @@ import kianxali.util.AddressNameResolver;
  * This class implements a recursive-traversal disassembler. It gets
  * an {@link ImageFile} and fills a {@link DisassemblyData} instance,
  * informing {@link DisassemblyListener} implementations during the analysis.
+ * Optionally, the traversal can be seeded by a linear sweep, see {@link Strategy}.
  * @author fwi
  *
  */
 public class Disassembler implements AddressNameResolver, AddressNameListener {
     private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
 
-    // TODO: start at first address of the code segment, walking linear to the end
-    //       while building the queue. Then iterate again until queue is empty
-
-    private final Queue<WorkItem> workQueue;
+    private final WorkQueue workQueue;
+    private final Queue<Long> reanalyzeQueue;
+    private final DependencyTracker tracker;
     private final Set<DisassemblyListener> listeners;
     private final Map<Long, Function> functionInfo; // stores which trace start belongs to which function
     private final DisassemblyData disassemblyData;
+    private final AnalysisMetrics metrics;
     private final ImageFile imageFile;
     private final Context ctx;
     private final Decoder decoder;
-    private Thread analyzeThread;
-    private boolean unknownDiscoveryRan;
-
-    private class WorkItem implements Comparable<WorkItem> {
-        // determines whether the work should analyze code (data == null) or data (data has type set)
-        public Data data;
-        public Long address;
-        // only add trace if it runs without decoder errors; used for unknown function detection etc.
-        public boolean careful;
-
-        public WorkItem(Long address, Data data) {
-            this.address = address;
-            this.data = data;
-        }
+    // the analysis thread reads through its own view, so it doesn't need to lock the image
+    private ByteSequence view;
+    private final int threadCount;
+    // the thread that should run the analysis and the one that is still running it after a stop request
+    private Thread analyzeThread, runningThread;
+    private ExecutorService pool;
+    private volatile TracePredecoder predecoder;
+    private Strategy strategy;
+    private boolean unknownDiscoveryRan, linearSweepRan;
+    private EditJournal journal;
+    // names from the journal whose functions weren't found yet when it was replayed
+    private final Map<Long, String> pendingNames;
+    private volatile AnalysisBudget budget;
+    private volatile Limit exceededLimit;
+    // usage at the start of the current run, compared against the budget
+    private long runStart, runInstructions;
 
-        @Override
-        public int compareTo(WorkItem o) {
-            return address.compareTo(o.address);
-        }
+    /**
+     * The strategies that can be used to find the code of the image file
+     */
+    public enum Strategy {
+        /** Only follow the control flow, starting at the entry point and the imports */
+        RECURSIVE,
+        /**
+         * Walk linearly through the executable sections first to find the destinations
+         * of direct calls. They are added to the work queue in ascending order before
+         * following the control flow. Only destinations that are also instruction starts
+         * in the linear sweep are used, the recursive traversal then confirms them.
+         */
+        HYBRID
     }
 
     /**
@@ -70,16 +102,51 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
      * @param data the data object to fill during the analysis
      */
     public Disassembler(ImageFile imageFile, DisassemblyData data) {
+        this(imageFile, data, 1);
+    }
+
+    /**
+     * Create a new disassembler that uses several threads for the analysis.
+     * The instructions are decoded ahead by a pool of worker threads while the
+     * analysis thread stores the results in the same order as a single-threaded
+     * analysis would, so the resulting disassembly data doesn't depend on the
+     * number of threads. The analysis of data and the storing of all results is
+     * still done by the analysis thread, so only the decoding and the search for
+     * uncalled functions run in parallel. Both are only a few percent of the analysis
+     * time, so more threads don't make the analysis of a single file notably faster.
+     * Analyzing several files at the same time scales better.
+     * @param imageFile the image file to disassemble
+     * @param data the data object to fill during the analysis
+     * @param threadCount the number of worker threads, 1 means that everything is done by the analysis thread
+     */
+    public Disassembler(ImageFile imageFile, DisassemblyData data, int threadCount) {
+        this(imageFile, data, threadCount, true);
+    }
+
+    private Disassembler(ImageFile imageFile, DisassemblyData data, int threadCount, boolean seed) {
+        if(threadCount < 1) {
+            throw new IllegalArgumentException("invalid thread count: " + threadCount);
+        }
+        this.threadCount = threadCount;
         this.imageFile = imageFile;
         this.disassemblyData = data;
+        this.metrics = data.getMetrics();
         this.functionInfo = new TreeMap<Long, Function>();
+        this.pendingNames = new TreeMap<>();
         this.listeners = new CopyOnWriteArraySet<>();
-        this.workQueue = new PriorityQueue<>();
+        this.workQueue = new WorkQueue();
+        this.reanalyzeQueue = new ConcurrentLinkedQueue<>();
+        this.tracker = new DependencyTracker();
         this.ctx = imageFile.createContext();
         this.decoder = ctx.createInstructionDecoder();
+        this.strategy = Strategy.RECURSIVE;
         this.unknownDiscoveryRan = false;
+        this.linearSweepRan = false;
 
         disassemblyData.insertImageFileWithSections(imageFile);
+        if(!seed) {
+            return;
+        }
         Map<Long, String> imports = imageFile.getImports();
 
         // add imports as functions
@@ -88,7 +155,149 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         }
 
         long entry = imageFile.getCodeEntryPointMem();
-        addCodeWork(entry, false);
+        addCodeWork(entry, false, null);
+    }
+
+    /**
+     * Opens an analysis that was saved with {@link #saveDatabase(Path)}. The patches
+     * stored in the database are applied to the image file and the disassembly data
+     * is filled without decoding the image again. If the analysis was saved before it
+     * was complete, starting the analyzer continues with the pending work. Otherwise,
+     * starting the analyzer only handles reanalysis requests.
+     * @param imageFile the image file that was analyzed
+     * @param data an empty data object to fill
+     * @param path the database file
+     * @return a disassembler for the restored analysis
+     * @throws IOException if the database couldn't be read or belongs to another image
+     */
+    public static Disassembler openDatabase(ImageFile imageFile, DisassemblyData data, Path path) throws IOException {
+        return openDatabase(imageFile, data, path, 1);
+    }
+
+    /**
+     * Opens an analysis like {@link #openDatabase(ImageFile, DisassemblyData, Path)},
+     * the pending work is continued with several threads.
+     * @param imageFile the image file that was analyzed
+     * @param data an empty data object to fill
+     * @param path the database file
+     * @param threadCount the number of worker threads, see {@link #Disassembler(ImageFile, DisassemblyData, int)}
+     * @return a disassembler for the restored analysis
+     * @throws IOException if the database couldn't be read or belongs to another image
+     */
+    public static Disassembler openDatabase(ImageFile imageFile, DisassemblyData data, Path path, int threadCount) throws IOException {
+        Disassembler res = new Disassembler(imageFile, data, threadCount, false);
+        int state = AnalysisDatabase.read(path, imageFile, data, res, res.functionInfo, res.workQueue, res.reanalyzeQueue);
+        res.unknownDiscoveryRan = (state & AnalysisDatabase.PENDING_DISCOVERY) == 0;
+        res.linearSweepRan = (state & AnalysisDatabase.PENDING_SWEEP) == 0;
+        if(!res.linearSweepRan) {
+            res.strategy = Strategy.HYBRID;
+        }
+        return res;
+    }
+
+    /**
+     * Saves the analysis including user comments, function names and patches, so it
+     * can be opened again with {@link #openDatabase(ImageFile, DisassemblyData, Path)}.
+     * If the analyzer was stopped before the analysis was complete, e.g. because its
+     * budget was exhausted, the pending work is saved as well. This way, the file is a
+     * checkpoint that a later run can continue from.
+     * If the edits are journaled for this database, the journal is compacted.
+     * @param path the file to write
+     * @throws IOException if the file couldn't be written
+     */
+    public void saveDatabase(Path path) throws IOException {
+        EditJournal current;
+        synchronized(this) {
+            current = journal;
+        }
+        if(current != null && current.getDatabase().equals(path)) {
+            current.compact();
+        } else {
+            writeDatabase(path);
+        }
+    }
+
+    synchronized void writeDatabase(Path path) throws IOException {
+        if(analyzeThread != null || runningThread != null) {
+            throw new IllegalStateException("can't save while the analyzer is running");
+        }
+        int state = 0;
+        if(!unknownDiscoveryRan) {
+            state |= AnalysisDatabase.PENDING_DISCOVERY;
+        }
+        if(strategy == Strategy.HYBRID && !linearSweepRan) {
+            state |= AnalysisDatabase.PENDING_SWEEP;
+        }
+        AnalysisDatabase.write(path, imageFile, disassemblyData, functionInfo, workQueue.getPending(), reanalyzeQueue, state);
+    }
+
+    /**
+     * Starts to record the edits of the user, i.e. comments, function names and patches,
+     * in a journal next to a database, see {@link #saveDatabase(Path)}. The edits that are
+     * already in the journal are applied first, patched code is analyzed again. The journal
+     * is merged into the database in the background when it grows and when the database
+     * is saved. The edits are only recorded when they are made outside of the analysis.
+     * @param database the database the journal belongs to, it doesn't need to exist yet
+     * @throws IOException if the journal couldn't be read or written
+     */
+    public synchronized void startJournal(Path database) throws IOException {
+        if(journal != null) {
+            throw new IllegalStateException("journal already started");
+        }
+        EditJournal res = new EditJournal(database, this, disassemblyData, imageFile);
+        List<Long> patched = res.open();
+        journal = res;
+        for(long offset : patched) {
+            long memAddr = imageFile.toMemAddress(offset);
+            if(imageFile.isValidAddress(memAddr)) {
+                reanalyze(memAddr);
+            }
+        }
+    }
+
+    /**
+     * Stops recording the edits and closes the journal
+     * @throws IOException if the journal couldn't be written
+     */
+    public void stopJournal() throws IOException {
+        EditJournal current;
+        synchronized(this) {
+            current = journal;
+            journal = null;
+        }
+        if(current != null) {
+            current.close();
+        }
+    }
+
+    // renames a function without recording it in the journal, used to replay the journal.
+    // If the function wasn't found yet, the name is assigned when the analysis finds it.
+    synchronized void restoreFunctionName(long memAddr, String name) {
+        Function fun = functionInfo.get(memAddr);
+        if(fun != null && fun.getStartAddress() == memAddr) {
+            pendingNames.remove(memAddr);
+            fun.setName(name);
+        } else {
+            pendingNames.put(memAddr, name);
+        }
+    }
+
+    // assigns the pending names of the functions that were found by now
+    private synchronized void restorePendingNames() {
+        Iterator<Map.Entry<Long, String>> it = pendingNames.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Long, String> name = it.next();
+            Function fun = functionInfo.get(name.getKey());
+            if(fun != null && fun.getStartAddress() == name.getKey()) {
+                it.remove();
+                fun.setName(name.getValue());
+            }
+        }
+    }
+
+    // the names that are still pending, the journal keeps them when it is compacted
+    synchronized Map<Long, String> getPendingNames() {
+        return new TreeMap<>(pendingNames);
     }
 
     /**
@@ -108,81 +317,365 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         listeners.remove(listener);
     }
 
+    /**
+     * Selects the strategy of the analysis. It must be set before starting the analysis.
+     * @param strategy the strategy to use, {@link Strategy#RECURSIVE} by default
+     */
+    public synchronized void setStrategy(Strategy strategy) {
+        if(analyzeThread != null || runningThread != null) {
+            throw new IllegalStateException("can't change strategy while running");
+        }
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns the strategy of the analysis
+     * @return the current strategy
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Limits the following runs of the analyzer. When the budget is exhausted, the
+     * analyzer stops before the next work item, see {@link #getExceededLimit()}.
+     * @param budget the budget of each run or null for no limits
+     */
+    public void setBudget(AnalysisBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the limit that stopped the last run of the analyzer
+     * @return the exceeded limit or null if the last run wasn't stopped by its budget
+     */
+    public Limit getExceededLimit() {
+        return exceededLimit;
+    }
+
+    /**
+     * Returns whether the analysis is complete, i.e. whether the analyzer finished all
+     * of its work instead of being stopped before
+     * @return true iff the analyzer isn't running and has no pending work
+     */
+    public synchronized boolean isAnalysisComplete() {
+        if(analyzeThread != null || runningThread != null) {
+            return false;
+        }
+        return workQueue.isEmpty() && reanalyzeQueue.isEmpty() && unknownDiscoveryRan
+                && (strategy != Strategy.HYBRID || linearSweepRan);
+    }
+
     /**
      * Starts the actual disassembly. It will be run in a separate thread, i.e. this method
      * won't block. The listeners will be informed when the analysis is done or runs into
-     * an error.
+     * an error. If the analyzer was stopped before, it continues with the pending work
+     * once the previous analysis thread has finished its current work item.
      */
     public synchronized void startAnalyzer() {
         if(analyzeThread != null) {
             throw new IllegalStateException("disassembler already running");
         }
+        try {
+            while(runningThread != null && runningThread != Thread.currentThread()) {
+                wait();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the previous analysis");
+        }
 
+        exceededLimit = null;
+        runStart = System.currentTimeMillis();
+        runInstructions = metrics.getInstructionCount();
+        metrics.startRun();
+        long start = System.nanoTime();
         for(DisassemblyListener listener : listeners) {
             listener.onAnalyzeStart();
         }
+        metrics.addListenerTime(start);
+
+        if(threadCount > 1) {
+            pool = new ForkJoinPool(threadCount);
+            predecoder = new TracePredecoder(imageFile, pool);
+            for(long addr : workQueue.getPendingCode()) {
+                predecoder.schedule(addr);
+            }
+        }
 
         analyzeThread = new Thread(new Runnable() {
             public void run() {
-                analyze();
+                metrics.startThread();
+                try {
+                    analyze();
+                } finally {
+                    finishRun();
+                }
             }
         });
+        runningThread = analyzeThread;
         LOG.fine("Starting analyzer");
         analyzeThread.start();
     }
 
     /**
-     * Stops the analysis thread. It can be started again with {@link Disassembler#startAnalyzer()}.
+     * Stops the analysis thread. The thread finishes its current work item, the remaining
+     * work stays pending. The listeners are informed when the thread has finished, then the
+     * analysis can be continued with {@link Disassembler#startAnalyzer()} or saved as a
+     * checkpoint with {@link #saveDatabase(Path)}.
      */
     public synchronized void stopAnalyzer() {
         if(analyzeThread != null) {
             analyzeThread.interrupt();
             analyzeThread = null;
-            for(DisassemblyListener listener : listeners) {
-                listener.onAnalyzeStop();
+            if(pool != null) {
+                pool.shutdownNow();
+                pool = null;
+                predecoder = null;
             }
             LOG.fine("Stopped analyzer");
         }
     }
 
+    // called by the analysis thread when it ends, the listeners are called without holding the lock
+    private void finishRun() {
+        synchronized(this) {
+            if(analyzeThread == Thread.currentThread()) {
+                stopAnalyzer();
+            }
+            metrics.stopRun();
+            runningThread = null;
+            notifyAll();
+        }
+        // the thread ends now, the listeners shouldn't see the interruption of a stop request
+        Thread.interrupted();
+        long start = System.nanoTime();
+        for(DisassemblyListener listener : listeners) {
+            listener.onAnalyzeStop();
+        }
+        metrics.addListenerTime(start);
+    }
+
     /**
-     * Informs the disassembler that the given address should be analyzed again.
-     * Subsequent addresses will also be analyzed.
+     * Informs the disassembler that the given address should be analyzed again,
+     * e.g. because the image was patched. The trace that contains the address
+     * is decoded again. Everything that was only found because of that trace, e.g.
+     * references, data, jump tables and called functions, is removed first and
+     * will be found again if the new decoding still leads to it.
      * @param addr the address to visit again
      */
     public synchronized void reanalyze(long addr) {
-        disassemblyData.clearDecodedEntity(addr);
+        if(predecoder != null) {
+            // the image could have been patched, so previously decoded instructions are dropped
+            // and the pending work is scheduled again by the analysis thread after the invalidation
+            predecoder.cancel();
+            predecoder = new TracePredecoder(imageFile, pool);
+        }
 
-        addCodeWork(addr, false);
+        // the analysis thread applies the request so it doesn't interfere with a running analysis
+        reanalyzeQueue.add(addr);
         if(analyzeThread == null) {
             startAnalyzer();
         }
     }
 
+    // undoes the analysis results that depend on the traces or data covering the addresses
+    private void invalidate(List<Long> addrs) {
+        // the traces at the visited addresses can have a different result now
+        workQueue.clearVisited();
+
+        Map<Product, Long> products = new LinkedHashMap<>();
+        for(long addr : addrs) {
+            Product product = tracker.findTrace(addr);
+            if(product == null) {
+                DataEntry cover = disassemblyData.getInfoCoveringAddress(addr);
+                if(cover != null && cover.hasData()) {
+                    product = tracker.findData(cover.getAddress());
+                }
+            }
+            if(product == null) {
+                // nothing was derived from this address yet
+                disassemblyData.clearDecodedEntity(addr);
+                addCodeWork(addr, false, null);
+            } else if(!products.containsKey(product)) {
+                products.put(product, addr);
+            }
+        }
+        if(products.isEmpty()) {
+            return;
+        }
+
+        Set<Function> functions = new HashSet<>();
+        Set<Function> removedFunctions = new HashSet<>();
+        List<Product> undone = tracker.invalidate(products.keySet());
+        for(int i = 0; i < undone.size(); i++) {
+            Product old = undone.get(i);
+            for(int j = 0; j < old.getReferenceCount(); j++) {
+                disassemblyData.removeReference(old.getReferenceSource(j), old.getReferenceDestination(j));
+            }
+            if(!old.isCode()) {
+                disassemblyData.clearData(old.data);
+                continue;
+            }
+            disassemblyData.clearInstructions(old.start, old.end);
+            if(old.function != null && functionInfo.get(old.function.getStartAddress()) == old.function) {
+                functions.add(old.function);
+            }
+
+            // the invalidated traces come first, the others were removed completely
+            Function fun = functionInfo.get(old.start);
+            if(i >= products.size() && fun != null) {
+                if(fun.getStartAddress() != old.start) {
+                    functionInfo.remove(old.start);
+                } else if(!imageFile.getImports().containsKey(old.start)) {
+                    functionInfo.remove(old.start);
+                    disassemblyData.removeFunction(fun);
+                    removedFunctions.add(fun);
+                }
+            }
+        }
+        functions.removeAll(removedFunctions);
+        if(!removedFunctions.isEmpty()) {
+            // branch destinations that were assigned to the removed functions
+            Iterator<Function> it = functionInfo.values().iterator();
+            while(it.hasNext()) {
+                if(removedFunctions.contains(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        LOG.fine(String.format("Reanalyzing %d addresses: invalidated %d traces and data items", addrs.size(), undone.size()));
+
+        // the remaining traces determine the function ends until the traces are decoded again
+        for(Map.Entry<Function, Long> end : tracker.getFunctionEnds(functions).entrySet()) {
+            if(end.getKey().getEndAddress() != end.getValue()) {
+                disassemblyData.updateFunctionEnd(end.getKey(), end.getValue());
+            }
+        }
+
+        for(Map.Entry<Product, Long> entry : products.entrySet()) {
+            Product product = entry.getKey();
+            if(!product.isCode()) {
+                // the data is overwritten by code
+                tracker.discard(product);
+                addCodeWork(entry.getValue(), false, null);
+            } else if(tracker.contains(product)) {
+                addCodeWork(product.start, false, null);
+            }
+        }
+    }
+
     private void workOnQueue() {
-        while(!Thread.interrupted()) {
-            WorkItem item = workQueue.poll();
-            if(item == null) {
-                // no more work
+        // the flag isn't cleared, so the remaining steps of a stopped analysis are skipped as well
+        while(!Thread.currentThread().isInterrupted() && !isOverBudget()) {
+            if(!reanalyzeQueue.isEmpty()) {
+                // invalidate all pending addresses at once
+                List<Long> addrs = new ArrayList<>();
+                for(Long addr = reanalyzeQueue.poll(); addr != null; addr = reanalyzeQueue.poll()) {
+                    addrs.add(addr);
+                }
+                long start = metrics.enterPhase(Phase.INVALIDATION);
+                invalidate(addrs);
+                TracePredecoder pre = predecoder;
+                if(pre != null) {
+                    for(long addr : workQueue.getPendingCode()) {
+                        pre.schedule(addr);
+                    }
+                }
+                metrics.leavePhase(Phase.INVALIDATION, start);
+                continue;
+            }
+
+            Work work = workQueue.poll();
+            if(work == null) {
+                // no more work, the instructions that weren't taken by now are not needed
+                TracePredecoder pre = predecoder;
+                if(pre != null) {
+                    pre.prune();
+                }
                 break;
             }
-            if(item.data == null) {
-                disassembleTrace(item);
-            } else {
+            metrics.setQueueDepth(workQueue.size());
+            if(work.code) {
+                metrics.addCodeWork();
+                long start = metrics.enterPhase(Phase.TRACE);
+                disassembleTrace(work);
+                metrics.leavePhase(Phase.TRACE, start);
+            }
+            for(int i = 0; i < work.data.size(); i++) {
+                Data data = work.data.get(i);
+                metrics.addDataWork();
+                long start = metrics.enterPhase(Phase.DATA);
                 try {
-                    analyzeData(item.data);
+                    analyzeData(data, work.dataProducers.get(i));
                 } catch(Exception e) {
-                    LOG.info(String.format("Couldn't parse data at %X: %s", item.data.getMemAddress(), e.getMessage()));
+                    LOG.info(String.format("Couldn't parse data at %X: %s", data.getMemAddress(), e.getMessage()));
                 }
+                metrics.leavePhase(Phase.DATA, start);
             }
         }
     }
 
     private void analyze() {
+        do {
+            analyzeOnce();
+        } while(!stopIfIdle());
+    }
+
+    // stops the analyzer unless reanalysis was requested in the meantime
+    private synchronized boolean stopIfIdle() {
+        if(analyzeThread != Thread.currentThread()) {
+            // already stopped
+            return true;
+        }
+        if(!reanalyzeQueue.isEmpty() && exceededLimit == null) {
+            return false;
+        }
+        stopAnalyzer();
+        return true;
+    }
+
+    // checks the budget before the next work item
+    private boolean isOverBudget() {
+        AnalysisBudget current = budget;
+        if(current == null) {
+            return false;
+        }
+        if(exceededLimit == null) {
+            long elapsed = System.currentTimeMillis() - runStart;
+            Limit limit = current.check(elapsed, metrics.getInstructionCount() - runInstructions, estimateMemory());
+            if(limit == null) {
+                return false;
+            }
+            LOG.info(String.format("Stopping analysis after %d ms, budget exceeded: %s", elapsed, limit));
+            exceededLimit = limit;
+        }
+        return true;
+    }
+
+    // the heap of the analysis as estimated by its structures, see AnalysisBudget
+    long estimateMemory() {
+        long res = disassemblyData.estimateMemory() + workQueue.estimateMemory();
+        TracePredecoder pre = predecoder;
+        if(pre != null) {
+            res += pre.estimateMemory();
+        }
+        return res;
+    }
+
+    private void analyzeOnce() {
+        if(strategy == Strategy.HYBRID && !linearSweepRan) {
+            long phaseStart = metrics.enterPhase(Phase.SWEEP);
+            seedFromLinearSweep();
+            metrics.leavePhase(Phase.SWEEP, phaseStart);
+            linearSweepRan = true;
+        }
+
         // Analyze code and data
         workOnQueue();
 
         // Propagate function information
+        long phaseStart = metrics.enterPhase(Phase.FUNCTIONS);
         for(Function fun : functionInfo.values()) {
             disassemblyData.insertFunction(fun);
 
@@ -191,10 +684,10 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
             DataEntry entry = disassemblyData.getInfoOnExactAddress(start);
             if(entry != null && entry.getEntity() instanceof Instruction) {
                 Instruction inst = (Instruction) entry.getEntity();
-                if(inst.isUnconditionalJump() && inst.getAssociatedData().size() == 1) {
+                FlowSummary flow = inst.getFlowSummary();
+                if(flow.isUnconditionalJump() && flow.getDataCount() == 1) {
                     // the function immediately jumps somewhere else, take name from there
-                    Data data = inst.getAssociatedData().keySet().iterator().next();
-                    long branch = data.getMemAddress();
+                    long branch = flow.getDataAddress(0);
                     Function realFun = functionInfo.get(branch);
                     if(realFun != null) {
                         fun.setName("!" + realFun.getName());
@@ -203,40 +696,136 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 }
             }
         }
+        metrics.leavePhase(Phase.FUNCTIONS, phaseStart);
 
         // Now try to fill black holes by discovering functions that were not directly called
-        if(!unknownDiscoveryRan) {
-            discoverUncalledFunctions();
+        if(!unknownDiscoveryRan && !Thread.currentThread().isInterrupted() && exceededLimit == null) {
+            phaseStart = metrics.enterPhase(Phase.DISCOVERY);
+            // the functions are pending once they were found, so a stop after this point doesn't repeat the search
+            unknownDiscoveryRan = discoverUncalledFunctions();
+            metrics.leavePhase(Phase.DISCOVERY, phaseStart);
             workOnQueue();
-            unknownDiscoveryRan = true;
         }
 
-        stopAnalyzer();
+        // the names of the user take precedence over the ones of the analysis
+        restorePendingNames();
+    }
+
+    private void addCodeWork(long address, boolean careful, Product producer) {
+        if(disassemblyData.isInstructionStart(address)) {
+            // the trace would stop immediately, only record that the producer needs it
+            Product visited = tracker.findTrace(address);
+            if(visited != null) {
+                tracker.link(producer, visited);
+            }
+            extendFunction(functionInfo.get(address), address);
+            return;
+        }
+
+        if(workQueue.addCode(address, careful, producer)) {
+            TracePredecoder pre = predecoder;
+            if(pre != null) {
+                pre.schedule(address);
+            }
+        }
+    }
+
+    // adds the destinations of direct calls found by a linear sweep as functions
+    private void seedFromLinearSweep() {
+        LOG.fine("Seeding work queue by linear sweep...");
+        List<LinearSweep> sweeps = new ArrayList<>();
+        for(Section section : imageFile.getSections()) {
+            if(section.isExecutable()) {
+                sweeps.add(LinearSweep.decode(imageFile, section, ctx, decoder));
+            }
+        }
+
+        long[] targets = new long[16];
+        int count = 0;
+        for(LinearSweep sweep : sweeps) {
+            for(int i = 0; i < sweep.getCallCount(); i++) {
+                long target = sweep.getCallTarget(i);
+                if(!isLinearInstructionStart(sweeps, target)) {
+                    // the call is either misaligned or points into data
+                    continue;
+                }
+                if(count == targets.length) {
+                    targets = Arrays.copyOf(targets, count * 2);
+                }
+                targets[count++] = target;
+            }
+        }
+
+        // adding in ascending order keeps the queue operations cheap
+        targets = Arrays.copyOf(targets, count);
+        Arrays.sort(targets);
+        long last = -1;
+        int added = 0;
+        for(long target : targets) {
+            if(target == last) {
+                continue;
+            }
+            last = target;
+            detectFunction(target, null);
+            addCodeWork(target, true, null);
+            added++;
+        }
+        LOG.fine(String.format("Linear sweep found %d call destinations", added));
+    }
+
+    private boolean isLinearInstructionStart(List<LinearSweep> sweeps, long memAddr) {
+        for(LinearSweep sweep : sweeps) {
+            Section section = sweep.getSection();
+            if(memAddr >= section.getStartAddress() && memAddr <= section.getEndAddress()) {
+                return sweep.indexOf(memAddr) >= 0;
+            }
+        }
+        return false;
+    }
+
+    private ByteSequence getView(long memAddr) {
+        if(view == null) {
+            view = imageFile.getByteSequenceView(memAddr);
+        } else {
+            view.seek(imageFile.toFileAddress(memAddr));
+        }
+        return view;
     }
 
-    private void addCodeWork(long address, boolean careful) {
-        WorkItem itm = new WorkItem(address, null);
-        itm.careful = careful;
-        workQueue.add(itm);
+    private void addDataWork(Data data, Product producer) {
+        workQueue.addData(data, producer);
     }
 
-    private void addDataWork(Data data) {
-        workQueue.add(new WorkItem(data.getMemAddress(), data));
+    // creates or reuses the product of a trace and links all products that requested it
+    private Product startTrace(Work work) {
+        Product trace = tracker.startTrace(work.address, work.root ? null : work.producers.get(0));
+        for(Product producer : work.producers) {
+            tracker.link(producer, trace);
+        }
+        return trace;
     }
 
-    private void disassembleTrace(WorkItem item) {
-        long memAddr = item.address;
+    private void disassembleTrace(Work work) {
+        long memAddr = work.address;
         Function function = functionInfo.get(memAddr);
+        TracePredecoder pre = predecoder;
+        Product trace = null;
         while(true) {
-            DecodedEntity old = disassemblyData.getEntityOnExactAddress(memAddr);
-            if(old instanceof Instruction) {
+            if(disassemblyData.isInstructionStart(memAddr)) {
                 // Already visited this trace
                 // If it is data, now we'll overwrite it to code
+                Product visited = tracker.findTrace(memAddr);
+                if(visited != null && trace != null) {
+                    tracker.link(trace, visited);
+                } else if(visited != null) {
+                    for(Product producer : work.producers) {
+                        tracker.link(producer, visited);
+                    }
+                }
                 break;
             }
 
-            DecodedEntity covering = disassemblyData.findEntityOnAddress(memAddr);
-            if(covering != null) {
+            if(disassemblyData.isCovered(memAddr)) {
                 LOG.warning(String.format("%08X already covered", memAddr));
                 // TODO: covers other instruction or data
                 break;
@@ -247,36 +836,44 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 break;
             }
 
-            ctx.setInstructionPointer(memAddr);
             Instruction inst = null;
-            ByteSequence seq = null;
-            try {
-                seq = imageFile.getByteSequence(memAddr, true);
-                inst = decoder.decodeOpcode(ctx, seq);
-            } catch(Exception e) {
-                LOG.log(Level.WARNING, String.format("Disassemble error (%s) at %08X: %s", e, memAddr, inst), e);
-                if(item.careful) {
-                    // TODO: undo everything or something
-                }
-                break;
-            } finally {
-                if(seq != null) {
-                    seq.unlock();
+            if(pre != null) {
+                inst = pre.take(memAddr);
+            }
+            if(inst == null) {
+                ctx.setInstructionPointer(memAddr);
+                try {
+                    inst = decoder.decodeOpcode(ctx, getView(memAddr));
+                } catch(Exception e) {
+                    LOG.log(Level.WARNING, String.format("Disassemble error (%s) at %08X: %s", e, memAddr, inst), e);
+                    metrics.addError();
+                    if(work.careful) {
+                        // TODO: undo everything or something
+                    }
+                    break;
                 }
             }
 
             if(inst == null) {
                 // couldn't decode instruction
                 // TODO: change to data
+                metrics.addError();
+                long start = System.nanoTime();
                 for(DisassemblyListener listener : listeners) {
                     listener.onAnalyzeError(memAddr, "Couldn't decode instruction");
                 }
+                metrics.addListenerTime(start);
                 break;
             }
 
+            if(trace == null) {
+                trace = startTrace(work);
+            }
             disassemblyData.insertEntity(inst);
+            metrics.addInstruction();
+            trace.end = memAddr + inst.getSize();
 
-            examineInstruction(inst, function);
+            examineInstruction(inst, function, trace);
 
             if(inst.stopsTrace()) {
                 break;
@@ -291,12 +888,20 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 function = newFunction;
             }
         }
+        if(trace != null) {
+            trace.function = function;
+            trace.functionEnd = memAddr;
+        }
+        extendFunction(function, memAddr);
+    }
+
+    private void extendFunction(Function function, long memAddr) {
         if(function != null && function.getEndAddress() < memAddr) {
             disassemblyData.updateFunctionEnd(function, memAddr);
         }
     }
 
-    private void analyzeData(Data data) {
+    private void analyzeData(Data data, Product producer) {
         long memAddr = data.getMemAddress();
         DataEntry cover = disassemblyData.getInfoCoveringAddress(memAddr);
         if(cover != null) {
@@ -305,39 +910,56 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 return;
             } else if(cover.hasData()) {
                 // TODO: new information about data, e.g. DWORD also accessed byte-wise
+                Product known = tracker.findData(cover.getAddress());
+                if(known != null) {
+                    tracker.link(producer, known);
+                }
+                if(cover.getAddress() == memAddr) {
+                    // attach the known data to references that were added after it was analyzed
+                    attachToReferences(cover);
+                }
                 return;
             }
         }
 
-        ByteSequence seq = imageFile.getByteSequence(memAddr, true);
+        Product product = tracker.startData(data, producer);
+
+        ByteSequence seq = getView(memAddr);
 
         try {
             // jump tables are a special case: need to guess the number of entries
             if(data instanceof JumpTable) {
-                analyzeJumpTable(seq, (JumpTable) data);
+                analyzeJumpTable(seq, (JumpTable) data, product);
             } else {
                 data.analyze(seq);
             }
             DataEntry entry = disassemblyData.insertEntity(data);
-
-            // attach data information to entries that point to this data
-            for(DataEntry ref : entry.getReferences().keySet()) {
-                ref.attachData(data);
-                disassemblyData.tellListeners(ref.getAddress());
-            }
+            attachToReferences(entry);
         } catch(Exception e) {
             LOG.log(Level.WARNING, String.format("Data decode error (%s) at %08X", e, data.getMemAddress()));
             // TODO: change to raw data
+            metrics.addError();
+            long start = System.nanoTime();
             for(DisassemblyListener listener : listeners) {
                 listener.onAnalyzeError(data.getMemAddress(), "Couldn't decode data");
             }
+            metrics.addListenerTime(start);
             throw e;
-        } finally {
-            seq.unlock();
         }
     }
 
-    private void analyzeJumpTable(ByteSequence seq, JumpTable table) {
+    // attach data information to entries that point to this data
+    private void attachToReferences(DataEntry entry) {
+        Data data = (Data) entry.getEntity();
+        for(DataEntry ref : entry.getReferences().keySet()) {
+            if(ref.getAttachedData() != data) {
+                ref.attachData(data);
+                disassemblyData.tellListeners(ref.getAddress());
+            }
+        }
+    }
+
+    private void analyzeJumpTable(ByteSequence seq, JumpTable table, Product product) {
         // strategy: evaluate entries until either an invalid memory address is found
         // or something that is already covered by code but not the start of an instruction
         int entrySize = table.getTableScaling();
@@ -369,7 +991,7 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
             if(!badEntry) {
                 table.addEntry(entryAddr);
                 disassemblyData.insertComment(entryAddr, String.format("Entry %d of jump table %08X", i, table.getMemAddress()));
-                addCodeWork(entryAddr, true);
+                addCodeWork(entryAddr, true, product);
                 i++;
             }
         } while(!badEntry);
@@ -390,20 +1012,23 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
     }
 
     // checks whether the instruction's operands could start a new trace or data
-    private void examineInstruction(Instruction inst, Function function) {
+    private void examineInstruction(Instruction inst, Function function, Product trace) {
         DataEntry srcEntry = disassemblyData.getInfoCoveringAddress(inst.getMemAddress());
 
+        FlowSummary flow = inst.getFlowSummary();
+
         // check if we have branch addresses to be analyzed later
-        for(long addr : inst.getBranchAddresses()) {
+        for(int i = 0; i < flow.getBranchCount(); i++) {
+            long addr = flow.getBranchAddress(i);
             if(imageFile.isValidAddress(addr)) {
-                disassemblyData.insertReference(srcEntry, addr, false);
-                if(inst.isFunctionCall()) {
+                insertReference(trace, srcEntry, addr, false);
+                if(flow.isFunctionCall()) {
                     detectFunction(addr, null);
                 } else if(function != null) {
                     // if the branch is not a function call, it should belong to the current function
                     functionInfo.put(addr, function);
                 }
-                addCodeWork(addr, false);
+                addCodeWork(addr, false, trace);
                 return;
             } else {
                 LOG.warning(String.format("Code at %08X references invalid address %08X", inst.getMemAddress(), addr));
@@ -411,101 +1036,162 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         }
 
         // check if we have associated data to be analyzed later
-        Map<Data, Boolean> dataMap = inst.getAssociatedData();
-        for(Data data : dataMap.keySet()) {
-            long addr = data.getMemAddress();
+        for(int i = 0; i < flow.getDataCount(); i++) {
+            long addr = flow.getDataAddress(i);
             if(!imageFile.isValidAddress(addr)) {
                 continue;
             }
 
-            if(inst.isUnconditionalJump() && !imageFile.getImports().containsKey(addr)) {
+            if(flow.isUnconditionalJump() && !imageFile.getImports().containsKey(addr)) {
                 // a jump into a dereferenced data pointer means that the data is a table with jump destinations
                 // imports are a trivial single-entry jump table, hence they are discarded
                 LOG.finer(String.format("Probable jump table: %08X into %08X", inst.getMemAddress(), addr));
 
                 // contents of the jump table will be evaluated in the data analyze pass
                 JumpTable table = new JumpTable(addr);
-                if(data.getTableScaling() == 0) {
+                if(flow.getDataTableScaling(i) == 0) {
                     table.setTableScaling(ctx.getDefaultAddressSize());
                 } else {
-                    table.setTableScaling(data.getTableScaling());
+                    table.setTableScaling(flow.getDataTableScaling(i));
                 }
-                disassemblyData.insertReference(srcEntry, addr, dataMap.get(data));
-                addDataWork(table);
+                insertReference(trace, srcEntry, addr, flow.isDataWrite(i));
+                addDataWork(table, trace);
             } else {
-                disassemblyData.insertReference(srcEntry, addr, dataMap.get(data));
-                addDataWork(data);
+                insertReference(trace, srcEntry, addr, flow.isDataWrite(i));
+                addDataWork(flow.createData(i), trace);
             }
         }
 
         // Check for probable pointers
-        Map<Long, Boolean> pointers = inst.getProbableDataPointers();
-        for(long addr : pointers.keySet()) {
+        for(int i = 0; i < flow.getProbablePointerCount(); i++) {
+            long addr = flow.getProbablePointer(i);
             if(imageFile.isValidAddress(addr)) {
-                if(disassemblyData.getEntityOnExactAddress(addr) != null) {
-                    continue;
-                }
-                disassemblyData.insertReference(srcEntry, addr, pointers.get(addr));
+                insertReference(trace, srcEntry, addr, flow.isProbablePointerWrite(i));
 
-                if(imageFile.isCodeAddress(addr)) {
-                    addCodeWork(addr, true);
-                } else {
-                    Data data = new Data(addr, DataType.UNKNOWN);
-                    addDataWork(data);
+                DecodedEntity known = disassemblyData.getEntityOnExactAddress(addr);
+                if(known == null) {
+                    if(imageFile.isCodeAddress(addr)) {
+                        addCodeWork(addr, true, trace);
+                    } else {
+                        Data data = new Data(addr, DataType.UNKNOWN);
+                        addDataWork(data, trace);
+                    }
+                } else if(known instanceof Data) {
+                    // the data was analyzed already, only record that this trace needs it
+                    Product product = tracker.findData(addr);
+                    if(product != null) {
+                        tracker.link(trace, product);
+                    }
+                    attachToReferences(disassemblyData.getInfoOnExactAddress(addr));
                 }
             }
         }
     }
 
-    private void discoverUncalledFunctions() {
+    private void insertReference(Product trace, DataEntry srcEntry, long dstAddress, boolean isWrite) {
+        disassemblyData.insertReference(srcEntry, dstAddress, isWrite);
+        trace.addReference(srcEntry.getAddress(), dstAddress);
+    }
+
+    // returns false if the search was interrupted
+    private boolean discoverUncalledFunctions() {
         LOG.fine("Discovering uncalled functions...");
-        for(Section section : imageFile.getSections()) {
+        List<Callable<long[]>> searches = new ArrayList<>();
+        for(final Section section : imageFile.getSections()) {
             if(!section.isExecutable()) {
                 continue;
             }
+            searches.add(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    return findFunctionSignatures(section);
+                }
+            });
+        }
 
-            // searching for signature 55 8B EC or 55 89 E5 (both are push ebp; mov ebp, esp)
-            boolean got55 = false, got558B = false, got5589 = false;
-            long startAddr = section.getStartAddress();
-            ByteSequence seq = imageFile.getByteSequence(startAddr, false);
-            long size = section.getEndAddress() - startAddr;
-            for(long i = 0; i < size; i++) {
-                short s = seq.readUByte();
-                if(disassemblyData.findEntityOnAddress(startAddr + i) != null) {
-                    continue;
+        // the sections can be searched in parallel, but the functions are added in order
+        List<long[]> results = new ArrayList<>(searches.size());
+        ExecutorService workers = pool;
+        try {
+            if(workers != null) {
+                for(Future<long[]> future : workers.invokeAll(searches)) {
+                    results.add(future.get());
+                }
+            } else {
+                for(Callable<long[]> search : searches) {
+                    results.add(search.call());
                 }
+            }
+        } catch(InterruptedException | CancellationException | RejectedExecutionException e) {
+            // the analyzer was stopped and the pool shut down
+            Thread.currentThread().interrupt();
+            return false;
+        } catch(Exception e) {
+            throw new RuntimeException("couldn't search for functions", e);
+        }
 
-                if(s == 0x55) {
-                    got55 = true;
-                    got558B = false;
-                    got5589 = false;
-                } else if(s == 0x8B && got55) {
-                    got55 = false;
-                    got558B = true;
-                    got5589 = false;
-                } else if(s == 0x89 && got55) {
-                    got55 = false;
-                    got558B = false;
-                    got5589 = true;
-                } else if((s == 0xEC && got558B) || (s == 0xE5 && got5589)) {
-                    // found signature
-                    got55 = false;
-                    got558B = false;
-                    got5589 = false;
-                    long funAddr = startAddr + i - 2;
-                    LOG.finer(String.format("Discovered indirect function %08X", funAddr));
-                    Function fun = detectFunction(funAddr, null);
-                    if(fun != null) {
-                        fun.setName(fun.getName() + "_i"); // mark as indirectly called
-                    }
-                    addCodeWork(funAddr, true);
-                } else {
-                    got55 = false;
-                    got558B = false;
-                    got5589 = false;
+        for(long[] funAddrs : results) {
+            for(long funAddr : funAddrs) {
+                LOG.finer(String.format("Discovered indirect function %08X", funAddr));
+                Function fun = detectFunction(funAddr, null);
+                if(fun != null) {
+                    fun.setName(fun.getName() + "_i"); // mark as indirectly called
                 }
+                addCodeWork(funAddr, true, null);
             }
         }
+        return true;
+    }
+
+    // searches the bytes of a section that are not covered by code or data yet for the
+    // signature 55 8B EC or 55 89 E5 (both are push ebp; mov ebp, esp)
+    private long[] findFunctionSignatures(Section section) {
+        long startAddr = section.getStartAddress();
+        long size = section.getEndAddress() - startAddr;
+        long[] covered = disassemblyData.getCoveredRanges(startAddr, startAddr + size);
+        ByteSequence seq = imageFile.getByteSequenceView(startAddr);
+
+        long[] res = new long[16];
+        int count = 0, range = 0;
+        boolean got55 = false, got558B = false, got5589 = false;
+        for(long i = 0; i < size; i++) {
+            short s = seq.readUByte();
+            long memAddr = startAddr + i;
+            while(range < covered.length && covered[range + 1] <= memAddr) {
+                range += 2;
+            }
+            if(range < covered.length && covered[range] <= memAddr) {
+                continue;
+            }
+
+            if(s == 0x55) {
+                got55 = true;
+                got558B = false;
+                got5589 = false;
+            } else if(s == 0x8B && got55) {
+                got55 = false;
+                got558B = true;
+                got5589 = false;
+            } else if(s == 0x89 && got55) {
+                got55 = false;
+                got558B = false;
+                got5589 = true;
+            } else if((s == 0xEC && got558B) || (s == 0xE5 && got5589)) {
+                // found signature
+                got55 = false;
+                got558B = false;
+                got5589 = false;
+                if(count == res.length) {
+                    res = Arrays.copyOf(res, count * 2);
+                }
+                res[count++] = memAddr - 2;
+            } else {
+                got55 = false;
+                got558B = false;
+                got5589 = false;
+            }
+        }
+        return Arrays.copyOf(res, count);
     }
 
     @Override
@@ -532,5 +1218,14 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         for(DataEntry ref : entry.getReferences().keySet()) {
             disassemblyData.tellListeners(ref.getAddress());
         }
+
+        EditJournal current;
+        synchronized(this) {
+            // names that the analysis assigns are found again, so they aren't recorded
+            current = Thread.currentThread() != runningThread ? journal : null;
+        }
+        if(current != null) {
+            current.rename(fun);
+        }
     }
 }
@@ -1,10 +1,17 @@
 package kianxali.disassembler;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import kianxali.decoder.Data;
 import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Instruction;
 import kianxali.loader.ImageFile;
@@ -18,15 +25,42 @@ import kianxali.loader.Section;
  *
  */
 public class DisassemblyData {
+    private static final long DEFAULT_BATCH_INTERVAL = 100;
+    private static final int DEFAULT_BATCH_CHANGES = 10000;
+    // retained heap of an entry with its entity but without the references, measured after analyzing large ELF files
+    private static final long BYTES_PER_ENTRY = 430;
+
     private final CopyOnWriteArraySet<DataListener> listeners;
+    private final CopyOnWriteArraySet<DataBatchListener> batchListeners;
+    private final ChangeBatcher batcher;
     private final NavigableMap<Long, DataEntry> memoryMap;
+    private final XrefStore xrefs;
+    private final AnalysisMetrics metrics;
+    // mirrors which addresses are covered by the entities of the memory map
+    private CoverageMap coverage;
+    // the entries of an opened database that weren't accessed yet or null
+    private AnalysisDatabase.StoredEntries stored;
+    // records the comments of the user if set
+    private EditJournal journal;
 
     /**
      * Construct a new disassembly data object.
      */
     public DisassemblyData() {
         this.listeners = new CopyOnWriteArraySet<>();
+        this.batchListeners = new CopyOnWriteArraySet<>();
+        this.batcher = new ChangeBatcher(this, DEFAULT_BATCH_INTERVAL, DEFAULT_BATCH_CHANGES);
         this.memoryMap = new TreeMap<>();
+        this.xrefs = new XrefStore();
+        this.metrics = new AnalysisMetrics();
+    }
+
+    /**
+     * Returns the metrics of the analysis that fills this data object
+     * @return the metrics, shared with the disassembler
+     */
+    public AnalysisMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -47,23 +81,178 @@ public class DisassemblyData {
         listeners.remove(listener);
     }
 
+    /**
+     * Adds a listener that will be informed about changes of the memory map
+     * in batches. This should be preferred over {@link DataListener} if the
+     * listener is slow, e.g. because it updates a user interface.
+     * @param listener the listener to add
+     */
+    public void addBatchListener(DataBatchListener listener) {
+        batchListeners.add(listener);
+    }
+
+    /**
+     * Removes a batch listener
+     * @param listener the listener to remove
+     */
+    public void removeBatchListener(DataBatchListener listener) {
+        batchListeners.remove(listener);
+    }
+
+    /**
+     * Sets when the changes are delivered to the batch listeners
+     * @param intervalMillis the maximum time in milliseconds that a change is held back
+     * @param maxChanges the number of changes that causes a batch to be delivered before the interval passed
+     */
+    public void setBatchLimits(long intervalMillis, int maxChanges) {
+        batcher.setLimits(intervalMillis, maxChanges);
+    }
+
     void tellListeners(long memAddr) {
+        if(!batchListeners.isEmpty()) {
+            batcher.add(memAddr);
+        }
+        if(listeners.isEmpty()) {
+            return;
+        }
         DataEntry entry = getInfoOnExactAddress(memAddr);
+        long start = System.nanoTime();
         for(DataListener listener : listeners) {
             listener.onAnalyzeChange(memAddr, entry);
         }
+        metrics.addListenerTime(start);
+    }
+
+    // called by the batcher thread, the listeners are called without holding the lock
+    void tellBatchListeners(long[] memAddrs) {
+        DataEntry[] entries = new DataEntry[memAddrs.length];
+        synchronized(this) {
+            for(int i = 0; i < memAddrs.length; i++) {
+                entries[i] = getEntry(memAddrs[i]);
+            }
+        }
+        long start = System.nanoTime();
+        for(DataBatchListener listener : batchListeners) {
+            listener.onAnalyzeChanges(memAddrs, entries);
+        }
+        metrics.addListenerTime(start);
     }
 
     private void put(long memAddr, DataEntry entry) {
         memoryMap.put(memAddr, entry);
+        updateCoverage(memAddr, memAddr);
         tellListeners(memAddr);
     }
 
+    // returns the entry of an address, creating it from the stored entries if needed
+    private DataEntry getEntry(long memAddr) {
+        DataEntry entry = memoryMap.get(memAddr);
+        if(entry == null && stored != null) {
+            int index = stored.find(memAddr);
+            if(index >= 0) {
+                entry = restore(index);
+            }
+        }
+        return entry;
+    }
+
+    private DataEntry restore(int index) {
+        AnalysisDatabase.StoredEntries from = stored;
+        DataEntry entry = new DataEntry(this, from.getAddress(index));
+        memoryMap.put(entry.getAddress(), entry);
+        from.take(index, this, entry);
+        if(stored == from && from.size() == 0) {
+            stored = null;
+        }
+        return entry;
+    }
+
+    // like NavigableMap.floorEntry, but includes the stored entries
+    private Entry<Long, DataEntry> floorEntry(long memAddr) {
+        if(stored != null) {
+            int index = stored.floor(memAddr);
+            if(index >= 0) {
+                Long key = memoryMap.floorKey(memAddr);
+                if(key == null || key < stored.getAddress(index)) {
+                    restore(index);
+                }
+            }
+        }
+        return memoryMap.floorEntry(memAddr);
+    }
+
+    // creates the stored entries in [start, end) and the first one behind it, so
+    // the memory map can be iterated over that range
+    private void restoreRange(long start, long end) {
+        while(stored != null) {
+            int index = stored.ceiling(start);
+            if(index < 0) {
+                break;
+            }
+            start = stored.getAddress(index);
+            if(start >= end) {
+                Long key = memoryMap.ceilingKey(end);
+                if(key == null || key > start) {
+                    restore(index);
+                }
+                break;
+            }
+            restore(index);
+        }
+    }
+
     synchronized void clear(long addr) {
-        memoryMap.remove(addr);
+        DataEntry entry = getEntry(addr);
+        if(entry != null) {
+            memoryMap.remove(addr);
+            updateCoverage(addr, getEnd(addr, entry.getEntity()));
+        }
         tellListeners(addr);
     }
 
+    private static long getEnd(long memAddr, DecodedEntity entity) {
+        if(entity == null) {
+            return memAddr;
+        }
+        return memAddr + entity.getSize();
+    }
+
+    // An entity covers the addresses up to its end or the next entry, whatever comes first.
+    // A change of the entry at memAddr affects the coverage from the previous entry up to
+    // the end of the changed entity, oldEnd is the end of the entity that was removed there.
+    private void updateCoverage(long memAddr, long oldEnd) {
+        if(coverage == null) {
+            return;
+        }
+        DataEntry entry = memoryMap.get(memAddr);
+        DecodedEntity entity = entry != null ? entry.getEntity() : null;
+        coverage.setInstructionStart(memAddr, entity instanceof Instruction);
+
+        Entry<Long, DataEntry> lower = floorEntry(memAddr - 1);
+        long start = memAddr;
+        long end = Math.max(memAddr + 1, Math.max(oldEnd, getEnd(memAddr, entity)));
+        if(lower != null) {
+            start = lower.getKey();
+            end = Math.max(end, getEnd(start, lower.getValue().getEntity()));
+        }
+        coverage.setCovered(start, end, false);
+        restoreRange(start, end);
+
+        Iterator<Entry<Long, DataEntry>> it = memoryMap.tailMap(start, true).entrySet().iterator();
+        Entry<Long, DataEntry> cur = it.hasNext() ? it.next() : null;
+        while(cur != null && cur.getKey() < end) {
+            Entry<Long, DataEntry> next = it.hasNext() ? it.next() : null;
+            long to = getEnd(cur.getKey(), cur.getValue().getEntity());
+            if(next != null) {
+                to = Math.min(to, next.getKey());
+            }
+            if(to > cur.getKey()) {
+                coverage.setCovered(cur.getKey(), to, true);
+            }
+            cur = next;
+        }
+    }
+
     // clears instruction or data and attached data, but not function start, image start etc.
     synchronized void clearDecodedEntity(long memAddr) {
         DataEntry entry = getInfoCoveringAddress(memAddr);
@@ -71,21 +260,90 @@ public class DisassemblyData {
             // nothing to do as there is no code or data
             return;
         }
+        long oldEnd = getEnd(entry.getAddress(), entry.getEntity());
         entry.setEntity(null);
         entry.clearAttachedData();
-        // entry.clearReferences();
+        updateCoverage(entry.getAddress(), oldEnd);
         tellListeners(memAddr);
 
-        // clear to-references (stored as from-references at destination)
-        for(Long refAddr : memoryMap.keySet()) {
-            DataEntry refEntry = memoryMap.get(refAddr);
-            if(refEntry.removeReference(entry)) {
+        // clear to-references, only the entries referenced by this one are affected
+        for(long refAddr : xrefs.removeReferencesFrom(entry.getAddress())) {
+            tellListeners(refAddr);
+        }
+    }
+
+    // clears the instructions that start in [start, end)
+    synchronized void clearInstructions(long start, long end) {
+        if(start >= end) {
+            return;
+        }
+        restoreRange(start, end);
+        List<DataEntry> entries = new ArrayList<>(memoryMap.subMap(start, end).values());
+        for(DataEntry entry : entries) {
+            if(entry.hasInstruction()) {
+                long oldEnd = getEnd(entry.getAddress(), entry.getEntity());
+                entry.setEntity(null);
+                entry.clearAttachedData();
+                updateCoverage(entry.getAddress(), oldEnd);
+                removeIfEmpty(entry);
+            }
+        }
+    }
+
+    // clears the given data object and the references to it
+    synchronized void clearData(Data data) {
+        long memAddr = data.getMemAddress();
+        DataEntry entry = getInfoOnExactAddress(memAddr);
+        if(entry == null || entry.getEntity() != data) {
+            return;
+        }
+        entry.setEntity(null);
+        updateCoverage(memAddr, getEnd(memAddr, data));
+        for(long refAddr : xrefs.getSources(memAddr)) {
+            DataEntry ref = getEntry(refAddr);
+            if(ref != null && ref.getAttachedData() == data) {
+                ref.clearAttachedData();
                 tellListeners(refAddr);
             }
         }
+        removeIfEmpty(entry);
+    }
+
+    synchronized void removeReference(long srcAddress, long dstAddress) {
+        DataEntry dst = getInfoOnExactAddress(dstAddress);
+        if(xrefs.remove(srcAddress, dstAddress) && dst != null) {
+            removeIfEmpty(dst);
+        }
+    }
+
+    synchronized void removeFunction(Function function) {
+        DataEntry start = getInfoOnExactAddress(function.getStartAddress());
+        if(start != null && start.getStartFunction() == function) {
+            start.setStartFunction(null);
+            removeIfEmpty(start);
+        }
+        DataEntry end = getInfoOnExactAddress(function.getEndAddress());
+        if(end != null && end.getEndFunction() == function) {
+            end.setEndFunction(null);
+            removeIfEmpty(end);
+        }
+    }
+
+    private void removeIfEmpty(DataEntry entry) {
+        long memAddr = entry.getAddress();
+        if(entry.isEmpty() && memoryMap.get(memAddr) == entry) {
+            memoryMap.remove(memAddr);
+            updateCoverage(memAddr, memAddr);
+        }
+        tellListeners(memAddr);
     }
 
     synchronized void insertImageFileWithSections(ImageFile file) {
+        coverage = new CoverageMap(file.getSections());
+        for(Entry<Long, DataEntry> entry : memoryMap.entrySet()) {
+            updateCoverage(entry.getKey(), entry.getKey());
+        }
+
         long imageAddress = 0L;
         if(file.getSections().size() > 0) {
             imageAddress = file.getSections().get(0).getStartAddress();
@@ -95,7 +353,7 @@ public class DisassemblyData {
             old.setStartImageFile(file);
             tellListeners(imageAddress);
         } else {
-            DataEntry entry = new DataEntry(imageAddress);
+            DataEntry entry = new DataEntry(this, imageAddress);
             entry.setStartImageFile(file);
             put(imageAddress, entry);
         }
@@ -108,7 +366,7 @@ public class DisassemblyData {
                 old.setStartSection(section);
                 tellListeners(memAddrStart);
             } else {
-                DataEntry entry = new DataEntry(memAddrStart);
+                DataEntry entry = new DataEntry(this, memAddrStart);
                 entry.setStartSection(section);
                 put(memAddrStart, entry);
             }
@@ -118,7 +376,7 @@ public class DisassemblyData {
                 old.setEndSection(section);
                 tellListeners(memAddrEnd);
             } else {
-                DataEntry entry = new DataEntry(memAddrEnd);
+                DataEntry entry = new DataEntry(this, memAddrEnd);
                 entry.setEndSection(section);
                 put(memAddrEnd, entry);
             }
@@ -130,17 +388,18 @@ public class DisassemblyData {
         DataEntry old = getInfoOnExactAddress(memAddr);
         if(old != null) {
             // already got info for this address, add entity
+            long oldEnd = getEnd(memAddr, old.getEntity());
             old.setEntity(entity);
+            updateCoverage(memAddr, oldEnd);
             tellListeners(memAddr);
             return old;
         } else {
             // check if another entry covers this address, i.e. there is data or an opcode that starts before
-            DecodedEntity covering = findEntityOnAddress(memAddr);
-            if(covering != null) {
+            if(isCovered(memAddr)) {
                 throw new IllegalArgumentException("address covered by other entity");
             } else {
                 // new entity entry as nothing covered the address
-                DataEntry entry = new DataEntry(memAddr);
+                DataEntry entry = new DataEntry(this, memAddr);
                 entry.setEntity(entity);
                 put(memAddr, entry);
                 return entry;
@@ -160,7 +419,7 @@ public class DisassemblyData {
         }
 
         if(startEntry == null) {
-            startEntry = new DataEntry(start);
+            startEntry = new DataEntry(this, start);
             put(start, startEntry);
         }
         startEntry.setStartFunction(function);
@@ -186,7 +445,7 @@ public class DisassemblyData {
 
         DataEntry newEntry = getInfoOnExactAddress(newEnd);
         if(newEntry == null) {
-            newEntry = new DataEntry(newEnd);
+            newEntry = new DataEntry(this, newEnd);
             put(newEnd, newEntry);
         }
         newEntry.setEndFunction(function);
@@ -197,13 +456,130 @@ public class DisassemblyData {
     synchronized void insertReference(DataEntry srcEntry, long dstAddress, boolean isWrite) {
         DataEntry entry = getInfoOnExactAddress(dstAddress);
         if(entry == null) {
-            entry = new DataEntry(dstAddress);
+            entry = new DataEntry(this, dstAddress);
             put(dstAddress, entry);
         }
-        entry.addReferenceFrom(srcEntry, isWrite);
+        xrefs.add(srcEntry.getAddress(), dstAddress, isWrite);
         tellListeners(dstAddress);
     }
 
+    // used by the entries to look up their references
+    synchronized boolean hasReferencesTo(long memAddr) {
+        return xrefs.hasReferencesTo(memAddr);
+    }
+
+    synchronized Map<DataEntry, Boolean> getReferences(long memAddr) {
+        long[] srcs = xrefs.getSources(memAddr);
+        DataEntry[] entries = new DataEntry[srcs.length];
+        boolean[] writes = new boolean[srcs.length];
+        for(int i = 0; i < srcs.length; i++) {
+            entries[i] = getEntry(srcs[i]);
+            if(entries[i] == null) {
+                // the source entry was removed, e.g. because it was cleared by the user
+                entries[i] = new DataEntry(this, srcs[i]);
+            }
+            writes[i] = xrefs.isWrite(srcs[i], memAddr);
+        }
+        return new ReferenceMap(entries, writes);
+    }
+
+    // uses the entries of a stored analysis, they are created when they are accessed
+    synchronized void restoreEntries(AnalysisDatabase.StoredEntries entries) {
+        stored = entries.size() > 0 ? entries : null;
+        // the entries that exist already, e.g. the section starts, take the stored information now
+        // taking an entry can create the entry of its attached data, so the existing ones are copied
+        for(DataEntry entry : new ArrayList<>(memoryMap.values())) {
+            int index = stored != null ? stored.find(entry.getAddress()) : -1;
+            if(index >= 0) {
+                entries.take(index, this, entry);
+                if(entries.size() == 0) {
+                    stored = null;
+                }
+            }
+        }
+    }
+
+    // replaces all references, they should be sorted by destination and then by source
+    synchronized void restoreReferences(long[] srcs, long[] dsts, boolean[] writes, int count) {
+        xrefs.load(srcs, dsts, writes, count);
+    }
+
+    // sets the coverage of the restored entries in one pass and informs the listeners about them
+    synchronized void restoreDone() {
+        if(coverage != null) {
+            // the entries of the memory map and the stored ones are merged by address
+            Iterator<Entry<Long, DataEntry>> it = memoryMap.entrySet().iterator();
+            Entry<Long, DataEntry> mapped = it.hasNext() ? it.next() : null;
+            int index = stored != null ? stored.ceiling(Long.MIN_VALUE) : -1;
+            long memAddr = 0, end = 0;
+            boolean instruction = false, valid = false;
+            while(mapped != null || index >= 0) {
+                long next;
+                if(index < 0 || (mapped != null && mapped.getKey() < stored.getAddress(index))) {
+                    next = mapped.getKey();
+                } else {
+                    next = stored.getAddress(index);
+                }
+                if(valid) {
+                    setCoverage(memAddr, Math.min(end, next), instruction);
+                }
+                memAddr = next;
+                valid = true;
+                if(mapped != null && mapped.getKey() == next) {
+                    DecodedEntity entity = mapped.getValue().getEntity();
+                    instruction = entity instanceof Instruction;
+                    end = getEnd(next, entity);
+                    mapped = it.hasNext() ? it.next() : null;
+                } else {
+                    instruction = stored.isInstruction(index);
+                    end = stored.getEnd(index);
+                    index = stored.next(index);
+                }
+            }
+            if(valid) {
+                setCoverage(memAddr, end, instruction);
+            }
+        }
+        if(listeners.isEmpty() && batchListeners.isEmpty()) {
+            // nothing needs the entries yet
+            return;
+        }
+        long[] memAddrs = new long[getEntryCount()];
+        int count = 0;
+        for(long memAddr : memoryMap.keySet()) {
+            memAddrs[count++] = memAddr;
+        }
+        for(int index = stored != null ? stored.ceiling(Long.MIN_VALUE) : -1; index >= 0; index = stored.next(index)) {
+            memAddrs[count++] = stored.getAddress(index);
+        }
+        Arrays.sort(memAddrs, 0, count);
+        for(int i = 0; i < count; i++) {
+            tellListeners(memAddrs[i]);
+        }
+    }
+
+    private void setCoverage(long memAddr, long to, boolean instruction) {
+        coverage.setInstructionStart(memAddr, instruction);
+        if(to > memAddr) {
+            coverage.setCovered(memAddr, to, true);
+        }
+    }
+
+    synchronized void setJournal(EditJournal journal) {
+        this.journal = journal;
+    }
+
+    // the entries in ascending order, the caller must hold the lock while using them
+    Collection<DataEntry> getEntries() {
+        restoreRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        return memoryMap.values();
+    }
+
+    // the caller must hold the lock while using the store
+    XrefStore getReferenceStore() {
+        return xrefs;
+    }
+
     /**
      * Attaches a user comment to a given memory address
      * @param memAddr the memory address to attach the comment to
@@ -212,10 +588,13 @@ public class DisassemblyData {
     public synchronized void insertComment(long memAddr, String comment) {
         DataEntry entry = getInfoOnExactAddress(memAddr);
         if(entry == null) {
-            entry = new DataEntry(memAddr);
+            entry = new DataEntry(this, memAddr);
             put(memAddr, entry);
         }
         entry.setComment(comment);
+        if(journal != null) {
+            journal.comment(memAddr, comment);
+        }
         tellListeners(memAddr);
     }
 
@@ -229,8 +608,7 @@ public class DisassemblyData {
      * @return the data entry started at the given address or null
      */
     public synchronized DataEntry getInfoOnExactAddress(long memAddr) {
-        DataEntry entry = memoryMap.get(memAddr);
-        return entry;
+        return getEntry(memAddr);
     }
 
     /**
@@ -243,7 +621,7 @@ public class DisassemblyData {
      */
     public synchronized DataEntry getInfoCoveringAddress(long memAddr) {
         // check if the last instruction at lower addresses overlaps
-        Entry<Long, DataEntry> floorEntry = memoryMap.floorEntry(memAddr);
+        Entry<Long, DataEntry> floorEntry = floorEntry(memAddr);
         if(floorEntry == null) {
             return null;
         }
@@ -273,7 +651,36 @@ public class DisassemblyData {
         return entry.getEntity();
     }
 
+    /**
+     * Checks whether an instruction starts at the given address
+     * @param memAddr the address to check
+     * @return true iff an instruction starts at the exact address
+     */
+    public synchronized boolean isInstructionStart(long memAddr) {
+        if(coverage != null && coverage.contains(memAddr)) {
+            return coverage.isInstructionStart(memAddr);
+        }
+        return getEntityOnExactAddress(memAddr) instanceof Instruction;
+    }
+
+    /**
+     * Checks whether the given address is covered by an instruction or data,
+     * i.e. whether {@link DisassemblyData#getInfoCoveringAddress(long)} returns
+     * an entry with an entity
+     * @param memAddr the address to check
+     * @return true iff the address is covered by an entity
+     */
+    public synchronized boolean isCovered(long memAddr) {
+        if(coverage != null && coverage.contains(memAddr)) {
+            return coverage.isCovered(memAddr);
+        }
+        return findEntityOnAddress(memAddr) != null;
+    }
+
     synchronized DecodedEntity findEntityOnAddress(long memAddr) {
+        if(coverage != null && coverage.contains(memAddr) && !coverage.isCovered(memAddr)) {
+            return null;
+        }
         DataEntry entry = getInfoCoveringAddress(memAddr);
         if(entry == null) {
             return null;
@@ -281,12 +688,67 @@ public class DisassemblyData {
         return entry.getEntity();
     }
 
+    // returns the ranges in [start, end) for which findEntityOnAddress returns an entity,
+    // stored as pairs of first and behind-last address in ascending order
+    synchronized long[] getCoveredRanges(long start, long end) {
+        if(coverage != null && start < end && coverage.contains(start, end)) {
+            return coverage.getCoveredRanges(start, end);
+        }
+
+        long[] res = new long[16];
+        int count = 0;
+
+        Entry<Long, DataEntry> floor = floorEntry(start);
+        long first = floor != null ? floor.getKey() : start;
+        restoreRange(first, end);
+        Iterator<Entry<Long, DataEntry>> it = memoryMap.subMap(first, true, end, false).entrySet().iterator();
+        Entry<Long, DataEntry> cur = it.hasNext() ? it.next() : null;
+        while(cur != null) {
+            Entry<Long, DataEntry> next = it.hasNext() ? it.next() : null;
+            DecodedEntity entity = cur.getValue().getEntity();
+            if(entity != null) {
+                // the entity only covers the addresses up to the next entry
+                long from = Math.max(cur.getKey(), start);
+                long to = Math.min(cur.getKey() + entity.getSize(), end);
+                if(next != null) {
+                    to = Math.min(to, next.getKey());
+                }
+                if(from < to) {
+                    if(count == res.length) {
+                        res = Arrays.copyOf(res, count * 2);
+                    }
+                    res[count++] = from;
+                    res[count++] = to;
+                }
+            }
+            cur = next;
+        }
+        return Arrays.copyOf(res, count);
+    }
+
     /**
      * Returns the total number of entries in the memory map
      * @return the number of entries contained in the memory map
      */
     public synchronized int getEntryCount() {
-        return memoryMap.size();
+        return memoryMap.size() + (stored != null ? stored.size() : 0);
+    }
+
+    // estimates the heap of the memory map and the references, the entries of an opened
+    // database that weren't accessed yet are only in the mapped file
+    synchronized long estimateMemory() {
+        return BYTES_PER_ENTRY * memoryMap.size() + xrefs.estimateMemory();
+    }
+
+    /**
+     * Allows a visitor to visit all entries in the memory map. The data is locked
+     * during the traversal, so the visitor shouldn't wait for other threads.
+     * @param visitor a visitor that will be called with each entry
+     */
+    public synchronized void visitEntries(DataEntryVisitor visitor) {
+        for(DataEntry entry : getEntries()) {
+            visitor.onVisit(entry);
+        }
     }
 
     /**
@@ -294,6 +756,7 @@ public class DisassemblyData {
      * @param visitor a visitor that will be called with each entry
      */
     public synchronized void visitInstructions(InstructionVisitor visitor) {
+        restoreRange(Long.MIN_VALUE, Long.MAX_VALUE);
         for(long addr : memoryMap.keySet()) {
             DataEntry entry = memoryMap.get(addr);
             DecodedEntity entity = entry.getEntity();
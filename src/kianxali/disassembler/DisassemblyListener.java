@@ -21,7 +21,8 @@ public interface DisassemblyListener {
     void onAnalyzeError(long memAddr, String reason);
 
     /**
-     * Will be called when the analysis stops
+     * Will be called when the analysis stops, i.e. when the analysis thread
+     * has finished its work or was stopped
      */
     void onAnalyzeStop();
 }
@@ -0,0 +1,296 @@
+package kianxali.disassembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.loader.PatchListener;
+
+/**
+ * Records the edits of the user in a journal next to an {@link AnalysisDatabase}:
+ * comments, function names and patches. Each edit is appended to the journal when it
+ * is made, so keeping it costs a small write instead of writing the whole database.
+ * The records are written to the file immediately but only forced to the storage
+ * device when the journal is compacted or closed.
+ * When the journal grows beyond a limit, it is compacted by a background thread: the
+ * database is written again and the journal only keeps the records that were appended
+ * while the database was written. The records set a value instead of changing it, so
+ * replaying a record that is already contained in the database doesn't change anything.
+ * This way, the journal can always be replayed after opening the database, even if the
+ * program stopped during a compaction.
+ * A function name can't be applied when the function wasn't found yet by the analysis,
+ * e.g. because the database was saved as a checkpoint. The disassembler assigns it when
+ * it finds the function, until then the compaction keeps the record in the journal.
+ * The format is big-endian: a header with magic and image size, followed by records of
+ * type, address, payload length and payload. The payload is a UTF-8 string or the
+ * patched bytes, a length of -1 stands for a removed comment.
+ * @author fwi
+ *
+ */
+final class EditJournal implements PatchListener, Runnable {
+    private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
+    private static final int MAGIC = 0x4B584A4C; // "KXJL"
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 4;
+    private static final long COMPACT_SIZE = 1 << 20;
+
+    private static final byte COMMENT = 1;
+    private static final byte RENAME = 2;
+    private static final byte PATCH = 3;
+
+    private final Path database, path;
+    private final Disassembler disassembler;
+    private final DisassemblyData data;
+    private final ByteSequence bytes;
+    // serializes the compactions, acquired before the disassembler and this journal
+    private final Object compactLock;
+    private FileChannel channel;
+    private long size, nextCompaction;
+    private Thread compactor;
+
+    EditJournal(Path database, Disassembler disassembler, DisassemblyData data, ImageFile imageFile) {
+        this.database = database;
+        this.path = database.resolveSibling(database.getFileName() + ".journal");
+        this.disassembler = disassembler;
+        this.data = data;
+        this.bytes = imageFile.getBytes();
+        this.compactLock = new Object();
+    }
+
+    Path getDatabase() {
+        return database;
+    }
+
+    /**
+     * Applies the records of an existing journal and opens it for appending. A record
+     * that was only partially written, e.g. because the program was killed, is dropped.
+     * @return the file offsets of the replayed patches that changed the image
+     * @throws IOException if the journal couldn't be read or belongs to another image
+     */
+    synchronized List<Long> open() throws IOException {
+        List<Long> patched = new ArrayList<>();
+        long valid = HEADER_SIZE;
+        if(Files.exists(path)) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+            if(buf.remaining() >= HEADER_SIZE) {
+                if(buf.getInt() != MAGIC || buf.getLong() != bytes.getSize()) {
+                    throw new IOException("the journal doesn't belong to the image file: " + path);
+                }
+                while(buf.remaining() >= RECORD_HEADER_SIZE) {
+                    byte type = buf.get();
+                    long addr = buf.getLong();
+                    int length = buf.getInt();
+                    if(length > buf.remaining()) {
+                        break;
+                    }
+                    byte[] payload = null;
+                    if(length >= 0) {
+                        payload = new byte[length];
+                        buf.get(payload);
+                    }
+                    apply(type, addr, payload, patched);
+                    valid = buf.position();
+                }
+            }
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() < HEADER_SIZE) {
+            writeHeader(channel);
+        } else if(channel.size() > valid) {
+            LOG.warning("Dropping incomplete record at the end of " + path);
+            channel.truncate(valid);
+        }
+        size = valid;
+        nextCompaction = size + COMPACT_SIZE;
+
+        data.setJournal(this);
+        bytes.addPatchListener(this);
+        return patched;
+    }
+
+    private void apply(byte type, long addr, byte[] payload, List<Long> patched) throws IOException {
+        switch(type) {
+        case COMMENT:
+            data.insertComment(addr, payload != null ? new String(payload, StandardCharsets.UTF_8) : null);
+            break;
+        case RENAME:
+            disassembler.restoreFunctionName(addr, new String(payload, StandardCharsets.UTF_8));
+            break;
+        case PATCH:
+            bytes.lock();
+            try {
+                boolean changed = false;
+                for(int i = 0; i < payload.length; i++) {
+                    if(bytes.readSByte(addr + i) != payload[i]) {
+                        bytes.patchByte(addr + i, payload[i]);
+                        changed = true;
+                    }
+                }
+                if(changed) {
+                    patched.add(addr);
+                }
+            } finally {
+                bytes.unlock();
+            }
+            break;
+        default:
+            throw new IOException(String.format("invalid journal record type %d in %s", type, path));
+        }
+    }
+
+    private void writeHeader(FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(bytes.getSize());
+        header.flip();
+        while(header.hasRemaining()) {
+            out.write(header, header.position());
+        }
+    }
+
+    void comment(long memAddr, String comment) {
+        append(COMMENT, memAddr, comment != null ? comment.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    void rename(Function fun) {
+        append(RENAME, fun.getStartAddress(), fun.getName().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void onPatch(long offset, int count) {
+        byte[] patch = new byte[count];
+        for(int i = 0; i < count; i++) {
+            patch[i] = bytes.readSByte(offset + i);
+        }
+        append(PATCH, offset, patch);
+    }
+
+    private static ByteBuffer createRecord(byte type, long addr, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + (payload != null ? payload.length : 0));
+        record.put(type).putLong(addr).putInt(payload != null ? payload.length : -1);
+        if(payload != null) {
+            record.put(payload);
+        }
+        record.flip();
+        return record;
+    }
+
+    private synchronized void append(byte type, long addr, byte[] payload) {
+        if(channel == null) {
+            return;
+        }
+        ByteBuffer record = createRecord(type, addr, payload);
+        try {
+            while(record.hasRemaining()) {
+                size += channel.write(record, size);
+            }
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, "Couldn't write edit to journal: " + e.getMessage(), e);
+            return;
+        }
+
+        if(size >= nextCompaction && compactor == null) {
+            compactor = new Thread(this, "kianxali journal compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            compact();
+        } catch(IllegalStateException e) {
+            // the analyzer is running, try again when the journal has grown further
+            LOG.fine("Postponing journal compaction: " + e.getMessage());
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, "Couldn't compact journal: " + e.getMessage(), e);
+        } finally {
+            synchronized(this) {
+                compactor = null;
+                nextCompaction = size + COMPACT_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Writes the database and removes the records that were appended before it was written,
+     * except for the names of functions that weren't found yet
+     * @throws IOException if the database or the journal couldn't be written
+     * @throws IllegalStateException if the analyzer is running
+     */
+    void compact() throws IOException {
+        synchronized(compactLock) {
+            long mark;
+            synchronized(this) {
+                if(channel == null) {
+                    return;
+                }
+                mark = size;
+            }
+            Map<Long, String> names;
+            synchronized(disassembler) {
+                // the names must match the written database
+                disassembler.writeDatabase(database);
+                names = disassembler.getPendingNames();
+            }
+            synchronized(this) {
+                if(channel != null) {
+                    trim(mark, names);
+                }
+            }
+        }
+    }
+
+    // replaces the journal with one that only contains the pending names and the records starting at mark
+    private void trim(long mark, Map<Long, String> names) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeHeader(out);
+            long pos = HEADER_SIZE;
+            // the names come first, so the records after the mark still take precedence
+            for(Map.Entry<Long, String> name : names.entrySet()) {
+                ByteBuffer record = createRecord(RENAME, name.getKey(), name.getValue().getBytes(StandardCharsets.UTF_8));
+                while(record.hasRemaining()) {
+                    pos += out.write(record, pos);
+                }
+            }
+            while(mark < size) {
+                long count = channel.transferTo(mark, size - mark, out.position(pos));
+                mark += count;
+                pos += count;
+            }
+            out.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+    }
+
+    /**
+     * Stops recording edits and closes the journal
+     * @throws IOException if the journal couldn't be written
+     */
+    synchronized void close() throws IOException {
+        bytes.removePatchListener(this);
+        data.setJournal(null);
+        if(channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+}
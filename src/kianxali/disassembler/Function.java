@@ -18,6 +18,14 @@ public class Function {
         this.name = String.format("sub_%X", startAddr);
     }
 
+    // restores a stored function without informing the listener
+    Function(long startAddr, long endAddr, String name, AddressNameListener nameListener) {
+        this.startAddress = startAddr;
+        this.nameListener = nameListener;
+        this.endAddress = endAddr;
+        this.name = name;
+    }
+
     /**
      * Changes the name of the function
      * @param name the new name
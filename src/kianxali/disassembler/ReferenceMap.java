@@ -0,0 +1,101 @@
+package kianxali.disassembler;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of the entries that refer to an address, taken from the
+ * cross references of {@link DisassemblyData}. The value is true iff the
+ * reference is a write access. The entries are sorted by their address.
+ * @author fwi
+ *
+ */
+final class ReferenceMap extends AbstractMap<DataEntry, Boolean> {
+    private final DataEntry[] sources;
+    private final boolean[] writes;
+
+    ReferenceMap(DataEntry[] sources, boolean[] writes) {
+        this.sources = sources;
+        this.writes = writes;
+    }
+
+    private int indexOf(Object key) {
+        if(!(key instanceof DataEntry)) {
+            return -1;
+        }
+        long addr = ((DataEntry) key).getAddress();
+        int lo = 0, hi = sources.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long cur = sources[mid].getAddress();
+            if(addr < cur) {
+                hi = mid - 1;
+            } else if(addr > cur) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return sources.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Boolean get(Object key) {
+        int i = indexOf(key);
+        if(i < 0) {
+            return null;
+        }
+        return writes[i];
+    }
+
+    @Override
+    public Set<Map.Entry<DataEntry, Boolean>> entrySet() {
+        return new AbstractSet<Map.Entry<DataEntry, Boolean>>() {
+            @Override
+            public int size() {
+                return sources.length;
+            }
+
+            @Override
+            public Iterator<Map.Entry<DataEntry, Boolean>> iterator() {
+                return new Iterator<Map.Entry<DataEntry, Boolean>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < sources.length;
+                    }
+
+                    @Override
+                    public Map.Entry<DataEntry, Boolean> next() {
+                        if(next >= sources.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<DataEntry, Boolean> res = new SimpleImmutableEntry<>(sources[next], writes[next]);
+                        next++;
+                        return res;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("references can't be removed");
+                    }
+                };
+            }
+        };
+    }
+}
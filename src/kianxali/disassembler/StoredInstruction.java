@@ -0,0 +1,159 @@
+package kianxali.disassembler;
+
+import java.util.List;
+import java.util.Map;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.Data;
+import kianxali.decoder.Decoder;
+import kianxali.decoder.FlowSummary;
+import kianxali.decoder.Instruction;
+import kianxali.decoder.Operand;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.util.OutputFormatter;
+
+/**
+ * An instruction that was loaded from an {@link AnalysisDatabase}. Only its address
+ * and size are stored, so the coverage of the memory map can be restored without
+ * decoding anything. The instruction is decoded from the image file when any other
+ * information is needed, e.g. when it becomes visible in the GUI.
+ * @author fwi
+ *
+ */
+final class StoredInstruction implements Instruction {
+    private final long memAddr;
+    private final int size;
+    private final Source source;
+    private volatile Instruction decoded;
+
+    /**
+     * Decodes the stored instructions of an image file, shared by all of them
+     */
+    static final class Source {
+        private final ImageFile imageFile;
+        private final Context ctx;
+        private final Decoder decoder;
+        private ByteSequence view;
+
+        Source(ImageFile imageFile) {
+            this.imageFile = imageFile;
+            this.ctx = imageFile.createContext();
+            this.decoder = ctx.createInstructionDecoder();
+        }
+
+        synchronized Instruction decode(long memAddr) {
+            if(view == null) {
+                view = imageFile.getByteSequenceView(memAddr);
+            } else {
+                view.seek(imageFile.toFileAddress(memAddr));
+            }
+            ctx.setInstructionPointer(memAddr);
+            Instruction res = decoder.decodeOpcode(ctx, view);
+            if(res == null) {
+                throw new IllegalStateException(String.format("stored instruction at %08X can't be decoded", memAddr));
+            }
+            return res;
+        }
+    }
+
+    StoredInstruction(long memAddr, int size, Source source) {
+        this.memAddr = memAddr;
+        this.size = size;
+        this.source = source;
+    }
+
+    private Instruction get() {
+        Instruction res = decoded;
+        if(res == null) {
+            res = source.decode(memAddr);
+            decoded = res;
+        }
+        return res;
+    }
+
+    @Override
+    public long getMemAddress() {
+        return memAddr;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String asString(OutputFormatter format) {
+        return get().asString(format);
+    }
+
+    @Override
+    public boolean stopsTrace() {
+        return get().stopsTrace();
+    }
+
+    @Override
+    public boolean isFunctionCall() {
+        return get().isFunctionCall();
+    }
+
+    @Override
+    public boolean isUnconditionalJump() {
+        return get().isUnconditionalJump();
+    }
+
+    @Override
+    public String getMnemonic() {
+        return get().getMnemonic();
+    }
+
+    @Override
+    public List<Operand> getOperands() {
+        return get().getOperands();
+    }
+
+    @Override
+    public List<Operand> getSrcOperands() {
+        return get().getSrcOperands();
+    }
+
+    @Override
+    public List<Operand> getDestOperands() {
+        return get().getDestOperands();
+    }
+
+    @Override
+    public List<Long> getBranchAddresses() {
+        return get().getBranchAddresses();
+    }
+
+    @Override
+    public Map<Data, Boolean> getAssociatedData() {
+        return get().getAssociatedData();
+    }
+
+    @Override
+    public Map<Long, Boolean> getProbableDataPointers() {
+        return get().getProbableDataPointers();
+    }
+
+    @Override
+    public FlowSummary getFlowSummary() {
+        return get().getFlowSummary();
+    }
+
+    @Override
+    public short[] getRawBytes() {
+        return get().getRawBytes();
+    }
+
+    @Override
+    public String getDescription() {
+        return get().getDescription();
+    }
+
+    @Override
+    public String toString() {
+        return get().toString();
+    }
+}
@@ -0,0 +1,330 @@
+package kianxali.disassembler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.Decoder;
+import kianxali.decoder.FlowSummary;
+import kianxali.decoder.Instruction;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.loader.Section;
+
+/**
+ * Decodes execution traces ahead of the {@link Disassembler} using a thread pool.
+ * Each trace follows the branches and code pointers of its instructions, so the
+ * workers discover the code in parallel while the disassembler is still busy
+ * with earlier work items.
+ * Every instruction address is claimed atomically before it is decoded, so no
+ * address is decoded by more than one thread. The disassembler takes the decoded
+ * instructions in its usual order and decodes an instruction itself if it
+ * isn't available, so the result doesn't depend on the number of threads.
+ * Only the addresses of executable sections are decoded ahead. A taken instruction
+ * is removed from the result map and only a bit remembers that it was taken, so the
+ * map only holds the instructions that are ahead of the disassembler. Their number
+ * is limited, a trace stops when the limit is reached and is then decoded by the
+ * disassembler itself.
+ * The disassembler still stores every instruction and analyzes the data on its own
+ * thread. This takes most of the analysis time, so the predecoder only hides the
+ * decoding itself.
+ * @author fwi
+ *
+ */
+final class TracePredecoder {
+    // the number of decoded instructions that may wait for the disassembler
+    private static final int MAX_AHEAD = 1 << 16;
+    // a decoded instruction and its entry in the result map, measured with x86 code
+    private static final long BYTES_PER_INSTRUCTION = 330;
+
+    // states of an address in the result map, the decoded instruction is stored otherwise
+    private static final Object PENDING = new Object();
+    private static final Object FAILED = new Object();
+
+    private final ImageFile imageFile;
+    private final ExecutorService pool;
+    private final ConcurrentMap<Long, Object> results;
+    private final AtomicInteger ahead;
+    private final AddressBits scheduled, taken;
+    private final ThreadLocal<Worker> workers;
+    private volatile boolean cancelled;
+
+    // the decoding state of a pool thread
+    private static final class Worker {
+        private final Context ctx;
+        private final Decoder decoder;
+        private final ByteSequence seq;
+
+        Worker(ImageFile imageFile, long memAddr) {
+            this.ctx = imageFile.createContext();
+            this.decoder = ctx.createInstructionDecoder();
+            this.seq = imageFile.getByteSequenceView(memAddr);
+        }
+    }
+
+    // one bit for each address of the executable sections, the pages are allocated on first use
+    private static final class AddressBits {
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+        private final long[] starts, ends;
+        private final AtomicReferenceArray<AtomicIntegerArray>[] pages;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AddressBits(List<Section> sections) {
+            List<Section> sorted = new ArrayList<>();
+            for(Section section : sections) {
+                if(section.isExecutable()) {
+                    sorted.add(section);
+                }
+            }
+            Collections.sort(sorted, new Comparator<Section>() {
+                @Override
+                public int compare(Section o1, Section o2) {
+                    return Long.compare(o1.getStartAddress(), o2.getStartAddress());
+                }
+            });
+
+            int count = 0;
+            starts = new long[sorted.size()];
+            ends = new long[sorted.size()];
+            for(Section section : sorted) {
+                long start = section.getStartAddress();
+                long end = section.getEndAddress() + 1;
+                if(count > 0 && start < ends[count - 1]) {
+                    // only the part that isn't covered by the previous section is added
+                    start = ends[count - 1];
+                }
+                if(start >= end) {
+                    continue;
+                }
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+
+            pages = new AtomicReferenceArray[count];
+            for(int i = 0; i < count; i++) {
+                pages[i] = new AtomicReferenceArray<>((int) ((ends[i] - starts[i] + PAGE_SIZE - 1) >>> PAGE_BITS));
+            }
+        }
+
+        private int findSection(long memAddr) {
+            int lo = 0, hi = pages.length - 1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(memAddr < starts[mid]) {
+                    hi = mid - 1;
+                } else if(memAddr >= ends[mid]) {
+                    lo = mid + 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        boolean contains(long memAddr) {
+            return findSection(memAddr) >= 0;
+        }
+
+        boolean get(long memAddr) {
+            int section = findSection(memAddr);
+            if(section < 0) {
+                return false;
+            }
+            long offset = memAddr - starts[section];
+            AtomicIntegerArray page = pages[section].get((int) (offset >>> PAGE_BITS));
+            if(page == null) {
+                return false;
+            }
+            int bit = (int) offset & (PAGE_SIZE - 1);
+            return (page.get(bit >>> 5) & (1 << bit)) != 0;
+        }
+
+        // returns false if the bit was set already or the address isn't contained
+        boolean set(long memAddr) {
+            int section = findSection(memAddr);
+            if(section < 0) {
+                return false;
+            }
+            long offset = memAddr - starts[section];
+            int index = (int) (offset >>> PAGE_BITS);
+            AtomicIntegerArray page = pages[section].get(index);
+            if(page == null) {
+                pages[section].compareAndSet(index, null, new AtomicIntegerArray(PAGE_SIZE / 32));
+                page = pages[section].get(index);
+            }
+            int bit = (int) offset & (PAGE_SIZE - 1);
+            int mask = 1 << bit;
+            while(true) {
+                int word = page.get(bit >>> 5);
+                if((word & mask) != 0) {
+                    return false;
+                } else if(page.compareAndSet(bit >>> 5, word, word | mask)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a predecoder that runs its traces on the given pool
+     * @param imageFile the image file to decode
+     * @param pool the pool that executes the traces
+     */
+    TracePredecoder(ImageFile imageFile, ExecutorService pool) {
+        this.imageFile = imageFile;
+        this.pool = pool;
+        this.results = new ConcurrentHashMap<>();
+        this.ahead = new AtomicInteger();
+        this.scheduled = new AddressBits(imageFile.getSections());
+        this.taken = new AddressBits(imageFile.getSections());
+        this.workers = new ThreadLocal<>();
+    }
+
+    /**
+     * Starts decoding a trace at the given address unless that happened already
+     * @param memAddr the start address of the trace
+     */
+    void schedule(final long memAddr) {
+        if(cancelled || taken.get(memAddr) || !scheduled.set(memAddr)) {
+            return;
+        }
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decodeTrace(memAddr);
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            // the pool was shut down, the disassembler will decode the trace itself
+        }
+    }
+
+    /**
+     * Returns the instruction that was decoded at the given address and removes it.
+     * Waits if it is currently being decoded. If the address wasn't decoded yet, it is
+     * marked as taken so that no worker will decode it.
+     * @param memAddr the address of the instruction
+     * @return the decoded instruction or null if the caller must decode it itself
+     */
+    Instruction take(long memAddr) {
+        if(!taken.set(memAddr)) {
+            // not decoded ahead or already taken before
+            return null;
+        }
+        // a worker that claims the address after this point sees the taken bit and gives up
+        Object res = results.get(memAddr);
+        while(res == PENDING) {
+            // decoding a single instruction doesn't take long
+            Thread.yield();
+            res = results.get(memAddr);
+        }
+        if(res != null && results.remove(memAddr, res)) {
+            ahead.decrementAndGet();
+        }
+        if(res instanceof Instruction && !cancelled) {
+            return (Instruction) res;
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the heap that is used by the decoded instructions that wait for the disassembler
+     * @return the estimated size in bytes
+     */
+    long estimateMemory() {
+        return BYTES_PER_INSTRUCTION * ahead.get();
+    }
+
+    /**
+     * Removes the decoded instructions that weren't taken by the disassembler, e.g.
+     * because a trace ran into misaligned code. Should be called when the disassembler
+     * has no more work so they don't count against the look-ahead limit.
+     */
+    void prune() {
+        for(Map.Entry<Long, Object> entry : results.entrySet()) {
+            Object res = entry.getValue();
+            if(res != PENDING && results.remove(entry.getKey(), res)) {
+                ahead.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stops all traces of this predecoder, e.g. because the image was patched
+     */
+    void cancel() {
+        cancelled = true;
+        results.clear();
+    }
+
+    // claims an address for the calling worker
+    private boolean claim(long memAddr) {
+        if(cancelled || ahead.get() >= MAX_AHEAD || taken.get(memAddr) || !imageFile.isValidAddress(memAddr)) {
+            return false;
+        }
+        if(results.putIfAbsent(memAddr, PENDING) != null) {
+            return false;
+        }
+        if(taken.get(memAddr)) {
+            // the disassembler took the address in the meantime
+            results.remove(memAddr, PENDING);
+            return false;
+        }
+        return true;
+    }
+
+    private void decodeTrace(long memAddr) {
+        while(taken.contains(memAddr) && claim(memAddr)) {
+            Instruction inst = null;
+            try {
+                Worker worker = workers.get();
+                if(worker == null) {
+                    worker = new Worker(imageFile, memAddr);
+                    workers.set(worker);
+                }
+                worker.ctx.setInstructionPointer(memAddr);
+                worker.seq.seek(imageFile.toFileAddress(memAddr));
+                inst = worker.decoder.decodeOpcode(worker.ctx, worker.seq);
+            } catch(RuntimeException e) {
+                // the disassembler will decode it again to report the error
+                inst = null;
+            } finally {
+                ahead.incrementAndGet();
+                results.put(memAddr, inst != null ? inst : FAILED);
+            }
+            if(inst == null) {
+                break;
+            }
+
+            FlowSummary flow = inst.getFlowSummary();
+            for(int i = 0; i < flow.getBranchCount(); i++) {
+                schedule(flow.getBranchAddress(i));
+            }
+            for(int i = 0; i < flow.getProbablePointerCount(); i++) {
+                long addr = flow.getProbablePointer(i);
+                if(imageFile.isCodeAddress(addr)) {
+                    schedule(addr);
+                }
+            }
+
+            if(flow.stopsTrace()) {
+                break;
+            }
+            memAddr += inst.getSize();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package kianxali.disassembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import kianxali.decoder.Data;
+import kianxali.disassembler.DependencyTracker.Product;
+import kianxali.util.LongMap;
+
+/**
+ * The work queue of the {@link Disassembler}. The work is done in ascending
+ * order of the addresses. All pending work for an address is merged, so a function
+ * that is called from many places is queued only once. An address whose code was
+ * already taken from the queue is not queued again unless the new request is
+ * stronger, i.e. it was careful before and is not careful now.
+ * The queue and the visited set grow with the number of distinct addresses,
+ * not with the number of references to them.
+ * This class is not thread-safe.
+ * @author fwi
+ *
+ */
+final class WorkQueue {
+    // a merged request without producers and its slot in the pending map, measured
+    private static final long BYTES_PER_WORK = 64;
+    // a slot of the visited map, the flags are shared
+    private static final long BYTES_PER_VISITED = 48;
+
+    private final LongMap<Work> pending;
+    // code addresses that were taken from the queue, the value is the careful flag
+    private final LongMap<Boolean> visited;
+    // min-heap of the pending addresses, each address is contained once
+    private long[] heap;
+    private int heapSize;
+
+    /**
+     * The merged work for an address
+     */
+    static final class Work {
+        final long address;
+        // whether a trace should be decoded at the address
+        boolean code;
+        // only add trace if it runs without decoder errors; used for unknown function detection etc.
+        boolean careful;
+        // whether any request didn't depend on other analysis results
+        boolean root;
+        // the traces or data that requested the code
+        List<Product> producers;
+        // the data items to analyze and the products that requested them
+        List<Data> data;
+        List<Product> dataProducers;
+
+        private Work(long address) {
+            this.address = address;
+            this.producers = Collections.emptyList();
+            this.data = Collections.emptyList();
+            this.dataProducers = Collections.emptyList();
+        }
+
+        private void addProducer(Product producer) {
+            if(producer == null) {
+                root = true;
+            } else if(!producers.contains(producer)) {
+                if(producers.isEmpty()) {
+                    producers = new ArrayList<>(1);
+                }
+                producers.add(producer);
+            }
+        }
+
+        private void addData(Data item, Product producer) {
+            if(data.isEmpty()) {
+                data = new ArrayList<>(1);
+                dataProducers = new ArrayList<>(1);
+            }
+            data.add(item);
+            dataProducers.add(producer);
+        }
+    }
+
+    WorkQueue() {
+        this.pending = new LongMap<>();
+        this.visited = new LongMap<>();
+        this.heap = new long[16];
+    }
+
+    /**
+     * Requests a trace to be decoded at an address
+     * @param address the start address of the trace
+     * @param careful whether the trace should only be added if it can be decoded without errors
+     * @param producer the product that requested the trace or null if it is a root
+     * @return true iff the address wasn't pending as code before
+     */
+    boolean addCode(long address, boolean careful, Product producer) {
+        Boolean visitedCareful = visited.get(address);
+        if(visitedCareful != null && (careful || !visitedCareful)) {
+            // already decoded with the same or a stronger request
+            return false;
+        }
+
+        Work work = getWork(address);
+        work.addProducer(producer);
+        if(work.code) {
+            work.careful &= careful;
+            return false;
+        }
+        work.code = true;
+        work.careful = careful;
+        return true;
+    }
+
+    /**
+     * Requests a data item to be analyzed
+     * @param data the data item
+     * @param producer the product that requested the data or null if it is a root
+     */
+    void addData(Data data, Product producer) {
+        getWork(data.getMemAddress()).addData(data, producer);
+    }
+
+    private Work getWork(long address) {
+        Work work = pending.get(address);
+        if(work == null) {
+            work = new Work(address);
+            pending.put(address, work);
+            push(address);
+        }
+        return work;
+    }
+
+    /**
+     * Removes the work with the lowest address from the queue
+     * @return the merged work for the address or null if the queue is empty
+     */
+    Work poll() {
+        if(heapSize == 0) {
+            return null;
+        }
+        Work work = pending.remove(pop());
+        if(work.code) {
+            visited.put(work.address, work.careful);
+        }
+        return work;
+    }
+
+    /**
+     * Returns the addresses of the pending traces
+     * @return the start addresses of the traces in no specific order
+     */
+    long[] getPendingCode() {
+        long[] res = new long[heapSize];
+        int count = 0;
+        for(int i = 0; i < heapSize; i++) {
+            if(pending.get(heap[i]).code) {
+                res[count++] = heap[i];
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    /**
+     * Returns the pending work, e.g. to save it as a checkpoint
+     * @return the merged work of each pending address in ascending order
+     */
+    List<Work> getPending() {
+        long[] addrs = Arrays.copyOf(heap, heapSize);
+        Arrays.sort(addrs);
+        List<Work> res = new ArrayList<>(addrs.length);
+        for(long addr : addrs) {
+            res.add(pending.get(addr));
+        }
+        return res;
+    }
+
+    /**
+     * Forgets which addresses were visited, e.g. because the image file was patched
+     * and the traces could have a different result now
+     */
+    void clearVisited() {
+        visited.clear();
+    }
+
+    boolean isEmpty() {
+        return heapSize == 0;
+    }
+
+    int size() {
+        return heapSize;
+    }
+
+    /**
+     * Estimates the heap that is used by the pending and visited addresses
+     * @return the estimated size in bytes
+     */
+    long estimateMemory() {
+        return 8L * heap.length + BYTES_PER_WORK * pending.size() + BYTES_PER_VISITED * visited.size();
+    }
+
+    private void push(long address) {
+        if(heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        }
+        int i = heapSize++;
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(heap[parent] <= address) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = address;
+    }
+
+    private long pop() {
+        long res = heap[0];
+        long last = heap[--heapSize];
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= heapSize) {
+                break;
+            }
+            if(child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if(last <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return res;
+    }
+}
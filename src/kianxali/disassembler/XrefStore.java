@@ -0,0 +1,515 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+
+import kianxali.util.LongMap;
+
+/**
+ * Stores the cross references of the disassembly, i.e. pairs of source and destination
+ * address with a flag that tells whether the source writes to the destination.
+ * Most references are kept in compressed sparse rows: the destinations are stored once
+ * in a sorted array and point to the sorted sources that refer to them. The same
+ * references are indexed by their source as well, so both questions "what refers to X"
+ * and "what does X refer to" are answered with a binary search.
+ * New references are appended to a buffer that is chained by address. The buffer is
+ * merged into the sorted arrays in bulk when it reaches a quarter of their size, removed
+ * references are only marked until then. So no objects are created for the references
+ * except for the chain heads of the buffer.
+ * This class is not thread-safe, {@link DisassemblyData} synchronizes the access.
+ * @author fwi
+ *
+ */
+final class XrefStore {
+    private static final byte WRITE = 1;
+    private static final byte REMOVED = 2;
+    private static final int MIN_BUFFER = 1024;
+    // a chain head of the buffer: a slot of the LongMap and the boxed position
+    private static final long BYTES_PER_HEAD = 64;
+    private static final long[] NO_ADDRESSES = new long[0];
+
+    // sorted by destination: the sources of toKeys[k] are toSrcs[toOffsets[k]] to toSrcs[toOffsets[k + 1] - 1]
+    private long[] toKeys, toSrcs;
+    private int[] toOffsets;
+    private byte[] toFlags;
+    // sorted by source: the destinations of fromKeys[k] and the positions of the references in toSrcs
+    private long[] fromKeys, fromDsts;
+    private int[] fromOffsets, fromPos;
+    private int removedCount;
+
+    // references that were added after the last compaction, chained by destination and by source
+    private long[] bufSrcs, bufDsts;
+    private byte[] bufFlags;
+    private int[] bufNextTo, bufNextFrom;
+    private int bufCount;
+    private final LongMap<Integer> bufHeadTo, bufHeadFrom;
+
+    private int size;
+
+    XrefStore() {
+        this.bufHeadTo = new LongMap<>();
+        this.bufHeadFrom = new LongMap<>();
+        clear();
+    }
+
+    /**
+     * Removes all references
+     */
+    void clear() {
+        toKeys = NO_ADDRESSES;
+        toSrcs = NO_ADDRESSES;
+        toOffsets = new int[1];
+        toFlags = new byte[0];
+        fromKeys = NO_ADDRESSES;
+        fromDsts = NO_ADDRESSES;
+        fromOffsets = new int[1];
+        fromPos = new int[0];
+        removedCount = 0;
+        clearBuffer(16);
+        size = 0;
+    }
+
+    private void clearBuffer(int capacity) {
+        bufSrcs = new long[capacity];
+        bufDsts = new long[capacity];
+        bufFlags = new byte[capacity];
+        bufNextTo = new int[capacity];
+        bufNextFrom = new int[capacity];
+        bufCount = 0;
+        bufHeadTo.clear();
+        bufHeadFrom.clear();
+    }
+
+    /**
+     * Returns the number of references
+     * @return the number of stored references
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the heap that is used by the references
+     * @return the estimated size in bytes
+     */
+    long estimateMemory() {
+        long res = 8L * (toKeys.length + toSrcs.length + fromKeys.length + fromDsts.length + bufSrcs.length + bufDsts.length);
+        res += 4L * (toOffsets.length + fromOffsets.length + fromPos.length + bufNextTo.length + bufNextFrom.length);
+        res += toFlags.length + bufFlags.length;
+        return res + BYTES_PER_HEAD * (bufHeadTo.size() + bufHeadFrom.size());
+    }
+
+    /**
+     * Adds a reference or updates the flag of an existing one
+     * @param src the address that refers to the destination
+     * @param dst the referenced address
+     * @param isWrite true iff the reference is a write access
+     * @return true iff the reference didn't exist before
+     */
+    boolean add(long src, long dst, boolean isWrite) {
+        byte flag = isWrite ? WRITE : 0;
+        int pos = findCompacted(src, dst);
+        if(pos >= 0) {
+            toFlags[pos] = flag;
+            return false;
+        }
+        pos = findBuffered(src, dst);
+        if(pos >= 0) {
+            bufFlags[pos] = flag;
+            return false;
+        }
+
+        if(bufCount == bufSrcs.length) {
+            int capacity = bufCount * 2;
+            bufSrcs = Arrays.copyOf(bufSrcs, capacity);
+            bufDsts = Arrays.copyOf(bufDsts, capacity);
+            bufFlags = Arrays.copyOf(bufFlags, capacity);
+            bufNextTo = Arrays.copyOf(bufNextTo, capacity);
+            bufNextFrom = Arrays.copyOf(bufNextFrom, capacity);
+        }
+        pos = bufCount++;
+        bufSrcs[pos] = src;
+        bufDsts[pos] = dst;
+        bufFlags[pos] = flag;
+        bufNextTo[pos] = link(bufHeadTo, dst, pos);
+        bufNextFrom[pos] = link(bufHeadFrom, src, pos);
+        size++;
+
+        if(bufCount >= Math.max(MIN_BUFFER, toSrcs.length / 4)) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the content of the store with the given references
+     * @param srcs the source addresses
+     * @param dsts the destination addresses
+     * @param writes true for the references that are write accesses
+     * @param count the number of references in the arrays
+     */
+    void load(long[] srcs, long[] dsts, boolean[] writes, int count) {
+        clear();
+        for(int i = 1; i < count; i++) {
+            if(compare(dsts[i - 1], srcs[i - 1], dsts[i], srcs[i]) >= 0) {
+                // not sorted by destination or with duplicates, take the slow path
+                for(int j = 0; j < count; j++) {
+                    add(srcs[j], dsts[j], writes[j]);
+                }
+                return;
+            }
+        }
+
+        long[] sortedDsts = Arrays.copyOf(dsts, count);
+        toKeys = uniqueKeys(sortedDsts);
+        toOffsets = offsets(sortedDsts, toKeys);
+        toSrcs = Arrays.copyOf(srcs, count);
+        toFlags = new byte[count];
+        int[] positions = new int[count];
+        for(int i = 0; i < count; i++) {
+            toFlags[i] = writes[i] ? WRITE : 0;
+            positions[i] = i;
+        }
+
+        fromPos = sort(positions, toSrcs, sortedDsts);
+        long[] fromSrcs = new long[count];
+        fromDsts = new long[count];
+        for(int i = 0; i < count; i++) {
+            fromSrcs[i] = toSrcs[fromPos[i]];
+            fromDsts[i] = sortedDsts[fromPos[i]];
+        }
+        fromKeys = uniqueKeys(fromSrcs);
+        fromOffsets = offsets(fromSrcs, fromKeys);
+        size = count;
+    }
+
+    // makes pos the head of the chain for the address and returns the previous head
+    private static int link(LongMap<Integer> heads, long addr, int pos) {
+        Integer old = heads.put(addr, pos);
+        if(old == null) {
+            return -1;
+        }
+        return old;
+    }
+
+    /**
+     * Removes a reference
+     * @param src the address that refers to the destination
+     * @param dst the referenced address
+     * @return true iff the reference existed
+     */
+    boolean remove(long src, long dst) {
+        int pos = findCompacted(src, dst);
+        if(pos >= 0) {
+            toFlags[pos] = REMOVED;
+            removedCount++;
+            size--;
+            if(removedCount > toSrcs.length / 2) {
+                compact();
+            }
+            return true;
+        }
+        pos = findBuffered(src, dst);
+        if(pos >= 0) {
+            bufFlags[pos] = REMOVED;
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all references of a source address
+     * @param src the address that refers to other addresses
+     * @return the destinations of the removed references in ascending order
+     */
+    long[] removeReferencesFrom(long src) {
+        long[] res = getDestinations(src);
+        for(long dst : res) {
+            remove(src, dst);
+        }
+        return res;
+    }
+
+    /**
+     * Checks whether a reference exists and is a write access
+     * @param src the address that refers to the destination
+     * @param dst the referenced address
+     * @return true iff the reference exists and is a write access
+     */
+    boolean isWrite(long src, long dst) {
+        int pos = findCompacted(src, dst);
+        if(pos >= 0) {
+            return toFlags[pos] == WRITE;
+        }
+        pos = findBuffered(src, dst);
+        return pos >= 0 && bufFlags[pos] == WRITE;
+    }
+
+    /**
+     * Checks whether any address refers to the given address
+     * @param dst the referenced address
+     * @return true iff there is a reference to the address
+     */
+    boolean hasReferencesTo(long dst) {
+        int k = Arrays.binarySearch(toKeys, dst);
+        if(k >= 0) {
+            for(int pos = toOffsets[k]; pos < toOffsets[k + 1]; pos++) {
+                if(toFlags[pos] != REMOVED) {
+                    return true;
+                }
+            }
+        }
+        Integer head = bufHeadTo.get(dst);
+        for(int pos = head != null ? head : -1; pos >= 0; pos = bufNextTo[pos]) {
+            if(bufFlags[pos] != REMOVED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the addresses that refer to the given address
+     * @param dst the referenced address
+     * @return the source addresses in ascending order
+     */
+    long[] getSources(long dst) {
+        long[] res = NO_ADDRESSES;
+        int count = 0;
+        int k = Arrays.binarySearch(toKeys, dst);
+        if(k >= 0) {
+            res = new long[toOffsets[k + 1] - toOffsets[k]];
+            for(int pos = toOffsets[k]; pos < toOffsets[k + 1]; pos++) {
+                if(toFlags[pos] != REMOVED) {
+                    res[count++] = toSrcs[pos];
+                }
+            }
+        }
+        int sorted = count;
+        Integer head = bufHeadTo.get(dst);
+        for(int pos = head != null ? head : -1; pos >= 0; pos = bufNextTo[pos]) {
+            if(bufFlags[pos] != REMOVED) {
+                if(count == res.length) {
+                    res = Arrays.copyOf(res, Math.max(4, count * 2));
+                }
+                res[count++] = bufSrcs[pos];
+            }
+        }
+        res = Arrays.copyOf(res, count);
+        if(sorted < count) {
+            Arrays.sort(res);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the addresses that the given address refers to
+     * @param src the address that refers to other addresses
+     * @return the destination addresses in ascending order
+     */
+    long[] getDestinations(long src) {
+        long[] res = NO_ADDRESSES;
+        int count = 0;
+        int k = Arrays.binarySearch(fromKeys, src);
+        if(k >= 0) {
+            res = new long[fromOffsets[k + 1] - fromOffsets[k]];
+            for(int i = fromOffsets[k]; i < fromOffsets[k + 1]; i++) {
+                if(toFlags[fromPos[i]] != REMOVED) {
+                    res[count++] = fromDsts[i];
+                }
+            }
+        }
+        int sorted = count;
+        Integer head = bufHeadFrom.get(src);
+        for(int pos = head != null ? head : -1; pos >= 0; pos = bufNextFrom[pos]) {
+            if(bufFlags[pos] != REMOVED) {
+                if(count == res.length) {
+                    res = Arrays.copyOf(res, Math.max(4, count * 2));
+                }
+                res[count++] = bufDsts[pos];
+            }
+        }
+        res = Arrays.copyOf(res, count);
+        if(sorted < count) {
+            Arrays.sort(res);
+        }
+        return res;
+    }
+
+    // returns the position of a live reference in the sorted arrays or -1
+    private int findCompacted(long src, long dst) {
+        int k = Arrays.binarySearch(toKeys, dst);
+        if(k < 0) {
+            return -1;
+        }
+        int pos = Arrays.binarySearch(toSrcs, toOffsets[k], toOffsets[k + 1], src);
+        if(pos < 0 || toFlags[pos] == REMOVED) {
+            return -1;
+        }
+        return pos;
+    }
+
+    // returns the position of a live reference in the buffer or -1
+    private int findBuffered(long src, long dst) {
+        Integer head = bufHeadTo.get(dst);
+        for(int pos = head != null ? head : -1; pos >= 0; pos = bufNextTo[pos]) {
+            if(bufSrcs[pos] == src && bufFlags[pos] != REMOVED) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    // merges the buffer into the sorted arrays and drops the removed references
+    private void compact() {
+        int[] buffered = new int[bufCount];
+        int liveBuffered = 0;
+        for(int pos = 0; pos < bufCount; pos++) {
+            if(bufFlags[pos] != REMOVED) {
+                buffered[liveBuffered++] = pos;
+            }
+        }
+        buffered = Arrays.copyOf(buffered, liveBuffered);
+        int[] bufByDst = sort(buffered, bufDsts, bufSrcs);
+        int[] bufBySrc = sort(buffered, bufSrcs, bufDsts);
+
+        // merge by destination, remember where the old references moved to
+        int[] moved = new int[toSrcs.length];
+        int[] bufMoved = new int[bufCount];
+        long[] dsts = new long[size];
+        long[] srcs = new long[size];
+        byte[] flags = new byte[size];
+        int count = 0;
+        int k = 0, pos = 0, b = 0;
+        while(true) {
+            while(pos < toSrcs.length && toFlags[pos] == REMOVED) {
+                pos++;
+            }
+            while(pos < toSrcs.length && pos >= toOffsets[k + 1]) {
+                k++;
+            }
+            boolean hasOld = pos < toSrcs.length;
+            boolean hasNew = b < bufByDst.length;
+            if(!hasOld && !hasNew) {
+                break;
+            }
+            if(hasOld && (!hasNew || compare(toKeys[k], toSrcs[pos], bufDsts[bufByDst[b]], bufSrcs[bufByDst[b]]) < 0)) {
+                dsts[count] = toKeys[k];
+                srcs[count] = toSrcs[pos];
+                flags[count] = toFlags[pos];
+                moved[pos++] = count++;
+            } else {
+                int i = bufByDst[b++];
+                dsts[count] = bufDsts[i];
+                srcs[count] = bufSrcs[i];
+                flags[count] = bufFlags[i];
+                bufMoved[i] = count++;
+            }
+        }
+
+        // merge by source using the new positions
+        long[] fromSrcs = new long[size];
+        long[] newFromDsts = new long[size];
+        int[] newFromPos = new int[size];
+        count = 0;
+        k = 0;
+        int i = 0;
+        b = 0;
+        while(true) {
+            while(i < fromPos.length && toFlags[fromPos[i]] == REMOVED) {
+                i++;
+            }
+            while(i < fromPos.length && i >= fromOffsets[k + 1]) {
+                k++;
+            }
+            boolean hasOld = i < fromPos.length;
+            boolean hasNew = b < bufBySrc.length;
+            if(!hasOld && !hasNew) {
+                break;
+            }
+            if(hasOld && (!hasNew || compare(fromKeys[k], fromDsts[i], bufSrcs[bufBySrc[b]], bufDsts[bufBySrc[b]]) < 0)) {
+                fromSrcs[count] = fromKeys[k];
+                newFromDsts[count] = fromDsts[i];
+                newFromPos[count++] = moved[fromPos[i++]];
+            } else {
+                int j = bufBySrc[b++];
+                fromSrcs[count] = bufSrcs[j];
+                newFromDsts[count] = bufDsts[j];
+                newFromPos[count++] = bufMoved[j];
+            }
+        }
+
+        toKeys = uniqueKeys(dsts);
+        toOffsets = offsets(dsts, toKeys);
+        toSrcs = srcs;
+        toFlags = flags;
+        fromKeys = uniqueKeys(fromSrcs);
+        fromOffsets = offsets(fromSrcs, fromKeys);
+        fromDsts = newFromDsts;
+        fromPos = newFromPos;
+        removedCount = 0;
+        clearBuffer(Math.max(16, bufSrcs.length / 2));
+    }
+
+    private static int compare(long major1, long minor1, long major2, long minor2) {
+        if(major1 != major2) {
+            return Long.compare(major1, major2);
+        }
+        return Long.compare(minor1, minor2);
+    }
+
+    // returns the distinct values of a sorted array
+    private static long[] uniqueKeys(long[] sorted) {
+        long[] res = new long[sorted.length];
+        int count = 0;
+        for(int i = 0; i < sorted.length; i++) {
+            if(count == 0 || res[count - 1] != sorted[i]) {
+                res[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    // returns the row offsets of the keys in a sorted array, followed by its length
+    private static int[] offsets(long[] sorted, long[] keys) {
+        int[] res = new int[keys.length + 1];
+        int k = 0;
+        for(int i = 0; i < sorted.length; i++) {
+            if(sorted[i] != keys[k]) {
+                res[++k] = i;
+            }
+        }
+        res[keys.length] = sorted.length;
+        return res;
+    }
+
+    // returns the positions sorted by the major and then the minor values, using a merge sort
+    private static int[] sort(int[] positions, long[] major, long[] minor) {
+        int[] res = positions.clone();
+        int[] tmp = new int[res.length];
+        for(int width = 1; width < res.length; width *= 2) {
+            for(int lo = 0; lo < res.length; lo += 2 * width) {
+                int mid = Math.min(lo + width, res.length);
+                int hi = Math.min(lo + 2 * width, res.length);
+                int i = lo, j = mid, t = lo;
+                while(i < mid && j < hi) {
+                    if(compare(major[res[j]], minor[res[j]], major[res[i]], minor[res[i]]) < 0) {
+                        tmp[t++] = res[j++];
+                    } else {
+                        tmp[t++] = res[i++];
+                    }
+                }
+                while(i < mid) {
+                    tmp[t++] = res[i++];
+                }
+                while(j < hi) {
+                    tmp[t++] = res[j++];
+                }
+            }
+            int[] swap = res;
+            res = tmp;
+            tmp = swap;
+        }
+        return res;
+    }
+}
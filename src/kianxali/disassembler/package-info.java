@@ -3,7 +3,8 @@
  * gets an {@link ImageFile} and fills a {@link DisassemblyData} instance,
  * informing {@link DisassemblyListener} implementations during the analysis.
  * Information about the discovered entries can be received by {@link kianxali.disassembler.DataListener}
- * implementations that register at the {@link kianxali.disassembler.DisassemblyData}
+ * implementations that register at the {@link kianxali.disassembler.DisassemblyData},
+ * or in batches by {@link kianxali.disassembler.DataBatchListener} implementations
  * @author fwi
  *
  */
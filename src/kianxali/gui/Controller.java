@@ -2,8 +2,9 @@ package kianxali.gui;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,7 +17,7 @@ import kianxali.decoder.Data;
 import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Instruction;
 import kianxali.disassembler.DataEntry;
-import kianxali.disassembler.DataListener;
+import kianxali.disassembler.DataBatchListener;
 import kianxali.disassembler.Disassembler;
 import kianxali.disassembler.DisassemblyData;
 import kianxali.disassembler.DisassemblyListener;
@@ -28,10 +29,8 @@ import kianxali.gui.views.KianxaliGUI;
 import kianxali.gui.views.StatusView;
 import kianxali.loader.ByteSequence;
 import kianxali.loader.ImageFile;
-import kianxali.loader.elf.ELFFile;
-import kianxali.loader.mach_o.FatFile;
-import kianxali.loader.mach_o.MachOFile;
-import kianxali.loader.pe.PEFile;
+import kianxali.loader.ImageLoader;
+import kianxali.loader.ImageLoader.ArchitectureChooser;
 import kianxali.scripting.ScriptManager;
 import kianxali.util.OutputFormatter;
 
@@ -41,7 +40,7 @@ import kianxali.util.OutputFormatter;
  * @author fwi
  *
  */
-public class Controller implements DisassemblyListener, DataListener {
+public class Controller implements DisassemblyListener, DataBatchListener {
     private static final Logger LOG = Logger.getLogger("kianxali.gui.controller");
 
     private ImageDocument imageDoc;
@@ -49,6 +48,7 @@ public class Controller implements DisassemblyListener, DataListener {
     private DisassemblyData disassemblyData;
     private long beginDisassembleTime;
     private ImageFile imageFile;
+    private Path imagePath;
     private FunctionList functionList;
     private StringList stringList;
     private final OutputFormatter formatter;
@@ -87,83 +87,41 @@ public class Controller implements DisassemblyListener, DataListener {
         }
     }
 
-    private void loadPEFile(Path path) {
-        LOG.fine("Loading as PE file");
+    private void loadImageFile(Path path) {
         try {
-            imageFile = new PEFile(path);
-        } catch(Exception e) {
-            LOG.log(Level.SEVERE, "Invalid PE file: " + e.getMessage(), e);
-            showError("Invalid PE file: " + e.getMessage());
-        }
-    }
-
-    private void loadMachOFile(Path path) {
-        LOG.fine("Loading as Mach-O file");
-        try {
-            imageFile = new MachOFile(path, 0);
-        } catch(Exception e) {
-            LOG.log(Level.SEVERE, "Invalid Mach-O file: " + e.getMessage(), e);
-            showError("Invalid Mach-O file: " + e.getMessage());
-            return;
-        }
-    }
-
-    private void loadFatFile(Path path) {
-        // a fat file contains multiple mach headers for different architectures, let user choose
-        LOG.fine("Loading as fat file");
-        try {
-            FatFile fatFile = new FatFile(path);
-            Map<String, Long> archTypes = fatFile.getArchitectures();
-            Object[] arches = new Object[archTypes.size()];
-            int i = 0;
-            for(String arch : archTypes.keySet()) {
-                arches[i++] = arch;
-            }
-            Object arch = JOptionPane.showInputDialog(gui,
-                    "Multiple architectures found in fat file.\nWhich one should be analyzed?", "Fat file detected",
-                    JOptionPane.PLAIN_MESSAGE, null, arches, arches[0]);
-            if(arch == null) {
-                return;
+            ImageFile loaded = ImageLoader.load(path, new ArchitectureChooser() {
+                @Override
+                public String choose(List<String> architectures) {
+                    // a fat file contains multiple mach headers for different architectures, let user choose
+                    Object[] arches = architectures.toArray();
+                    return (String) JOptionPane.showInputDialog(gui,
+                            "Multiple architectures found in fat file.\nWhich one should be analyzed?", "Fat file detected",
+                            JOptionPane.PLAIN_MESSAGE, null, arches, arches[0]);
+                }
+            });
+            if(loaded != null) {
+                imageFile = loaded;
             }
-            long offset = archTypes.get(arch);
-            imageFile = new MachOFile(path, offset);
         } catch(Exception e) {
-            LOG.log(Level.SEVERE, "Invalid Mach-O file: " + e.getMessage(), e);
-            showError("Invalid Mach-O file: " + e.getMessage());
-            return;
-        }
-    }
-
-    private void loadELFFile(Path path) {
-        LOG.fine("Loading as ELF file");
-        try {
-            imageFile = new ELFFile(path);
-        } catch(Exception e) {
-            LOG.log(Level.SEVERE, "Invalid ELF file: " + e.getMessage(), e);
-            showError("Invalid ELF file: " + e.getMessage());
-            return;
+            LOG.log(Level.SEVERE, "Invalid image file: " + e.getMessage(), e);
+            showError("Invalid image file: " + e.getMessage());
         }
     }
 
     public void onFileOpened(Path path) {
         try {
             ImageFile old = imageFile;
-            if(PEFile.isPEFile(path)) {
-                loadPEFile(path);
-            } else if(MachOFile.isMachOFile(path)) {
-                loadMachOFile(path);
-            } else if(FatFile.isFatFile(path)) {
-                loadFatFile(path);
-            } else if(ELFFile.isELFFile(path)) {
-                loadELFFile(path);
-            } else {
-                showError("<html>Unknown file type.<br>Supported are: <ul><li>PE (Windows .exe)</li><li>ELF (Unix, Linux)</li><li>MachO (OS X)</li><li>Fat MachO (OS X)</li></ul></html>");
-            }
+            loadImageFile(path);
 
             if(imageFile == old) {
                 return;
             }
 
+            if(disassembler != null) {
+                disassembler.stopJournal();
+                disassemblyData.getMetrics().unregister();
+            }
+            imagePath = path;
             initialAnalyzeDone = false;
 
             // reset data structures and GUI if another file was previously loaded
@@ -181,11 +139,18 @@ public class Controller implements DisassemblyListener, DataListener {
             stringList = new StringList();
 
             disassemblyData = new DisassemblyData();
-            disassemblyData.addListener(this);
-            disassemblyData.addListener(functionList);
-            disassemblyData.addListener(stringList);
-
-            disassembler = new Disassembler(imageFile, disassemblyData);
+            disassemblyData.getMetrics().register(path.getFileName().toString());
+            disassemblyData.addBatchListener(this);
+            disassemblyData.addBatchListener(functionList);
+            disassemblyData.addBatchListener(stringList);
+
+            Path database = getDatabasePath(path);
+            if(Files.exists(database)) {
+                LOG.info("Opening stored analysis " + database);
+                disassembler = Disassembler.openDatabase(imageFile, disassemblyData, database);
+            } else {
+                disassembler = new Disassembler(imageFile, disassemblyData);
+            }
             disassembler.addListener(this);
             formatter.setAddressNameResolve(disassembler);
 
@@ -197,6 +162,11 @@ public class Controller implements DisassemblyListener, DataListener {
         }
     }
 
+    // the analysis of an image is stored next to it
+    private static Path getDatabasePath(Path imagePath) {
+        return imagePath.resolveSibling(imagePath.getFileName() + ".kxdb");
+    }
+
     public void onScrollChange(long memAddr) {
         if(imageFile.isValidAddress(memAddr)) {
             long offset = imageFile.toFileAddress(memAddr);
@@ -211,7 +181,7 @@ public class Controller implements DisassemblyListener, DataListener {
     }
 
     @Override
-    public void onAnalyzeChange(final long memAddr, final DataEntry entry) {
+    public void onAnalyzeChanges(final long[] memAddrs, final DataEntry[] entries) {
         if(gui.getImageView().getDocument() == imageDoc && !SwingUtilities.isEventDispatchThread()) {
             // if the document is visible already, do it in the EDT
             // TODO: invokeAndWait deadlocks because this causes the cross references to repaint,
@@ -219,12 +189,16 @@ public class Controller implements DisassemblyListener, DataListener {
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
-                    changeAnalyzeRaw(memAddr, entry);
+                    for(int i = 0; i < memAddrs.length; i++) {
+                        changeAnalyzeRaw(memAddrs[i], entries[i]);
+                    }
                 }
             });
         } else {
             // not visible or already in EDT: edit directly
-            changeAnalyzeRaw(memAddr, entry);
+            for(int i = 0; i < memAddrs.length; i++) {
+                changeAnalyzeRaw(memAddrs[i], entries[i]);
+            }
         }
     }
 
@@ -268,6 +242,7 @@ public class Controller implements DisassemblyListener, DataListener {
                     "Analysis finished after %.2f seconds, got %d entities",
                     duration, disassemblyData.getEntryCount())
                 );
+        LOG.fine("Analysis metrics: " + disassemblyData.getMetrics());
 
         // only perform the following steps on the first run, i.e. not when a script calls reanalyze etc.
         if(initialAnalyzeDone) {
@@ -288,6 +263,13 @@ public class Controller implements DisassemblyListener, DataListener {
             }
         });
         initialAnalyzeDone = true;
+
+        // record the edits from now on, the analysis itself is saved on exit
+        try {
+            disassembler.startJournal(getDatabasePath(imagePath));
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, "Couldn't open journal: " + e.getMessage(), e);
+        }
     }
 
     public void onFunctionDoubleClick(Function fun) {
@@ -454,6 +436,21 @@ public class Controller implements DisassemblyListener, DataListener {
     }
 
     public void onExitRequest() {
+        if(disassembler != null) {
+            Path database = getDatabasePath(imagePath);
+            try {
+                disassembler.saveDatabase(database);
+            } catch(IllegalStateException e) {
+                LOG.info("Analysis wasn't finished, not saving it");
+            } catch(IOException e) {
+                LOG.log(Level.WARNING, "Couldn't save analysis to " + database + ": " + e.getMessage(), e);
+            }
+            try {
+                disassembler.stopJournal();
+            } catch(IOException e) {
+                LOG.log(Level.WARNING, "Couldn't close journal: " + e.getMessage(), e);
+            }
+        }
         gui.dispose();
     }
 
@@ -7,10 +7,10 @@ import javax.swing.AbstractListModel;
 import javax.swing.SwingUtilities;
 
 import kianxali.disassembler.DataEntry;
-import kianxali.disassembler.DataListener;
+import kianxali.disassembler.DataBatchListener;
 import kianxali.disassembler.Function;
 
-public class FunctionList extends AbstractListModel<Function> implements DataListener {
+public class FunctionList extends AbstractListModel<Function> implements DataBatchListener {
     private static final long serialVersionUID = 1L;
     private final NavigableSet<FunctionEntry> functions;
 
@@ -56,36 +56,42 @@ public class FunctionList extends AbstractListModel<Function> implements DataLis
     }
 
     @Override
-    public synchronized void onAnalyzeChange(final long memAddr, final DataEntry entry) {
+    public synchronized void onAnalyzeChanges(final long[] memAddrs, final DataEntry[] entries) {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                Integer oldIndex = getIndex(memAddr);
-                if(oldIndex != null) {
-                    // update entry
-                    if((entry == null || entry.getStartFunction() == null)) {
-                        // remove function
-                        functions.remove(new FunctionEntry(memAddr));
-                        fireIntervalRemoved(this, oldIndex, oldIndex);
-                    } else {
-                        // changing entry
-                        int index = getIndex(memAddr);
-                        functions.remove(new FunctionEntry(memAddr));
-                        functions.add(new FunctionEntry(memAddr, entry.getStartFunction()));
-                        fireContentsChanged(this, index, index);
-                    }
-                } else {
-                    // add entry
-                    if(entry == null || entry.getStartFunction() == null) {
-                        return;
-                    }
-                    functions.add(new FunctionEntry(memAddr, entry.getStartFunction()));
-                    int index = getIndex(memAddr);
-                    fireIntervalAdded(this, index, index);
+                for(int i = 0; i < memAddrs.length; i++) {
+                    update(memAddrs[i], entries[i]);
                 }
             }
         });
     }
 
+    private void update(long memAddr, DataEntry entry) {
+        Integer oldIndex = getIndex(memAddr);
+        if(oldIndex != null) {
+            // update entry
+            if((entry == null || entry.getStartFunction() == null)) {
+                // remove function
+                functions.remove(new FunctionEntry(memAddr));
+                fireIntervalRemoved(this, oldIndex, oldIndex);
+            } else {
+                // changing entry
+                int index = getIndex(memAddr);
+                functions.remove(new FunctionEntry(memAddr));
+                functions.add(new FunctionEntry(memAddr, entry.getStartFunction()));
+                fireContentsChanged(this, index, index);
+            }
+        } else {
+            // add entry
+            if(entry == null || entry.getStartFunction() == null) {
+                return;
+            }
+            functions.add(new FunctionEntry(memAddr, entry.getStartFunction()));
+            int index = getIndex(memAddr);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
     @Override
     public synchronized int getSize() {
         return functions.size();
@@ -9,9 +9,9 @@ import javax.swing.SwingUtilities;
 import kianxali.decoder.Data;
 import kianxali.decoder.Data.DataType;
 import kianxali.disassembler.DataEntry;
-import kianxali.disassembler.DataListener;
+import kianxali.disassembler.DataBatchListener;
 
-public class StringList extends AbstractListModel<Data> implements DataListener {
+public class StringList extends AbstractListModel<Data> implements DataBatchListener {
     private static final long serialVersionUID = 1L;
     private final NavigableSet<StringEntry> strings;
 
@@ -57,40 +57,46 @@ public class StringList extends AbstractListModel<Data> implements DataListener
     }
 
     @Override
-    public void onAnalyzeChange(final long memAddr, final DataEntry entry) {
+    public void onAnalyzeChanges(final long[] memAddrs, final DataEntry[] entries) {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                Integer oldIndex = getIndex(memAddr);
-                Data data = null;
-                if(entry != null && entry.getEntity() instanceof Data) {
-                    data = (Data) entry.getEntity();
-                }
-                if(oldIndex != null) {
-                    // update entry
-                    if(data == null || data.getType() != DataType.STRING) {
-                        // remove entry
-                        strings.remove(new StringEntry(memAddr));
-                        fireIntervalRemoved(this, oldIndex, oldIndex);
-                    } else {
-                        // changing entry
-                        int index = getIndex(memAddr);
-                        strings.remove(new StringEntry(memAddr));
-                        strings.add(new StringEntry(memAddr, data));
-                        fireContentsChanged(this, index, index);
-                    }
-                } else {
-                    // add entry
-                    if(data == null || data.getType() != DataType.STRING) {
-                        return;
-                    }
-                    strings.add(new StringEntry(memAddr, data));
-                    int index = getIndex(memAddr);
-                    fireIntervalAdded(this, index, index);
+                for(int i = 0; i < memAddrs.length; i++) {
+                    update(memAddrs[i], entries[i]);
                 }
             }
         });
     }
 
+    private void update(long memAddr, DataEntry entry) {
+        Integer oldIndex = getIndex(memAddr);
+        Data data = null;
+        if(entry != null && entry.getEntity() instanceof Data) {
+            data = (Data) entry.getEntity();
+        }
+        if(oldIndex != null) {
+            // update entry
+            if(data == null || data.getType() != DataType.STRING) {
+                // remove entry
+                strings.remove(new StringEntry(memAddr));
+                fireIntervalRemoved(this, oldIndex, oldIndex);
+            } else {
+                // changing entry
+                int index = getIndex(memAddr);
+                strings.remove(new StringEntry(memAddr));
+                strings.add(new StringEntry(memAddr, data));
+                fireContentsChanged(this, index, index);
+            }
+        } else {
+            // add entry
+            if(data == null || data.getType() != DataType.STRING) {
+                return;
+            }
+            strings.add(new StringEntry(memAddr, data));
+            int index = getIndex(memAddr);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
     @Override
     public int getSize() {
         return strings.size();
@@ -1,53 +1,129 @@
 package kianxali.loader;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class represents a stream of bytes and allows to read the standard x86
- * data types from the stream. The file is completely loaded into an array instead
- * of using memory mapped I/O because it should be possible to store data files
- * of the disassembler that can be loaded without having the actual image file.
+ * data types from the stream. Files are mapped into memory, so only the pages
+ * that are actually read are loaded and the OS can share them between processes.
+ * The mapping is read-only. A page is copied to the heap when it is patched for
+ * the first time and the copy is used from then on, so the patches never reach
+ * the file and the file is never opened for writing.
+ * Since a buffer is limited to 2 GB, large files are split into several regions.
+ * Each sequence has a cursor in one of the regions, reads that cross the end of a
+ * region are assembled byte by byte. Once a region contains a patched page, the
+ * cursor moves through that region page by page.
+ * A sequence must only be used by one thread at a time. Other threads can read
+ * through their own views, see {@link #duplicate()}, or use the read methods that
+ * take an absolute offset: they don't move the cursor and don't need the lock.
+ * The lock is only needed to patch the bytes shared by all views.
+ * The patched ranges are recorded so that the patches can be stored without the
+ * rest of the file, and {@link PatchListener} instances are informed about them.
  * @author fwi
  *
  */
 public final class ByteSequence {
-    private final byte[] data;
-    private final ByteBuffer bytes;
+    private static final int REGION_BITS = 30;
+    private static final long REGION_SIZE = 1L << REGION_BITS;
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // shared by all views, region i starts at i * REGION_SIZE; their cursors are never moved
+    private final ByteBuffer[] regions;
+    private final long size;
+    // the file the sequence was loaded from or null
+    private final Path source;
+    private final PatchLog patches;
     private final ReentrantLock lock;
+    private ByteOrder order;
+    // the cursor in the current region or page, the offset where it starts and the
+    // page generation when it was selected
+    private ByteBuffer bytes;
+    private long base;
+    private int generation;
+
+    // the patches of a sequence and all its views
+    private static final class PatchLog {
+        // the patched ranges, maps start offsets to end offsets
+        final NavigableMap<Long, Long> all = new TreeMap<>();
+        // the ranges that were patched since the sequence was saved to savedTo
+        final NavigableMap<Long, Long> unsaved = new TreeMap<>();
+        final List<PatchListener> listeners = new CopyOnWriteArrayList<>();
+        // the copies of the patched pages by region, null for regions without patches
+        final ByteBuffer[][] pages;
+        // incremented after a page was copied, cursors that were selected before must be moved again
+        volatile int generation;
+        Path savedTo;
+
+        PatchLog(int regionCount) {
+            pages = new ByteBuffer[regionCount][];
+        }
+    }
+
+    private ByteSequence(ByteBuffer[] regions, long size, Path source) {
+        this.regions = regions;
+        this.size = size;
+        this.source = source;
+        this.patches = new PatchLog(regions.length);
+        this.lock = new ReentrantLock();
+        this.order = ByteOrder.LITTLE_ENDIAN;
+        selectRegion(0);
+    }
 
     private ByteSequence(byte[] input, boolean doCopy) {
-        if(doCopy) {
-            this.data = new byte[input.length];
-            System.arraycopy(input, 0, data, 0, input.length);
-        } else {
-            this.data = input;
-        }
-        this.bytes = ByteBuffer.wrap(data);
-        this.bytes.order(ByteOrder.LITTLE_ENDIAN);
+        this(new ByteBuffer[] {ByteBuffer.wrap(doCopy ? Arrays.copyOf(input, input.length) : input)}, input.length, null);
+    }
+
+    // a view that shares the bytes of another sequence but has its own cursor and lock
+    private ByteSequence(ByteSequence other) {
+        this.regions = other.regions;
+        this.size = other.size;
+        this.source = other.source;
+        this.patches = other.patches;
         this.lock = new ReentrantLock();
+        this.order = other.order;
+        selectRegion(other.getPosition());
     }
 
     /**
-     * Construct a new byte sequence from a given path.
+     * Construct a new byte sequence from a given path. The file is mapped into
+     * memory read-only, changes to the sequence are not written to the file.
      * @param path the path describing the file to be opened
      * @return the byte sequence for the file
      * @throws IOException if the file couldn't be read
      */
     public static ByteSequence fromFile(Path path) throws IOException {
-        File file = path.toFile();
-        FileInputStream fileStream = new FileInputStream(file);
-        byte[] input = new byte[(int) file.length()];
-        fileStream.read(input);
-        fileStream.close();
-        return new ByteSequence(input, false);
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = (int) Math.max(1, (size + REGION_SIZE - 1) >>> REGION_BITS);
+            ByteBuffer[] regions = new ByteBuffer[count];
+            for(int i = 0; i < count; i++) {
+                long start = (long) i << REGION_BITS;
+                int length = (int) Math.min(REGION_SIZE, size - start);
+                // mappings stay valid after the channel is closed
+                regions[i] = channel.map(MapMode.READ_ONLY, start, length);
+            }
+            return new ByteSequence(regions, size, path);
+        }
     }
 
     /**
@@ -60,13 +136,124 @@ public final class ByteSequence {
         return new ByteSequence(bytes, true);
     }
 
+    /**
+     * Creates a view of this sequence. The view shares the bytes including all patches,
+     * but it has its own cursor and lock, so it can be read by another thread without
+     * locking this sequence.
+     * @return a new view of this sequence, positioned at the current cursor
+     */
+    public ByteSequence duplicate() {
+        return new ByteSequence(this);
+    }
+
+    // moves the cursor to the region that contains the offset or to its page if the region was patched
+    private void selectRegion(long offset) {
+        if(offset < 0 || offset > size) {
+            throw new IllegalArgumentException("invalid offset: " + offset);
+        }
+        int index = (int) Math.min(offset >>> REGION_BITS, regions.length - 1);
+        long regionStart = (long) index << REGION_BITS;
+        // the generation must be read first, the pages were stored before it was incremented
+        generation = patches.generation;
+        ByteBuffer[] copies = patches.pages[index];
+        if(copies == null) {
+            bytes = regions[index].duplicate();
+            base = regionStart;
+        } else {
+            int capacity = regions[index].capacity();
+            int page = (int) (Math.min(offset - regionStart, capacity - 1) >>> PAGE_BITS);
+            int pageStart = page << PAGE_BITS;
+            if(copies[page] != null) {
+                bytes = copies[page].duplicate();
+            } else {
+                ByteBuffer part = regions[index].duplicate();
+                part.limit(Math.min(capacity, pageStart + PAGE_SIZE));
+                part.position(pageStart);
+                bytes = part.slice();
+            }
+            base = regionStart + pageStart;
+        }
+        bytes.order(order);
+        bytes.position((int) (offset - base));
+    }
+
+    // returns the copy of the page that contains the offset, copies it if needed; needs the patch lock
+    private ByteBuffer copyPage(long offset) {
+        int index = (int) (offset >>> REGION_BITS);
+        ByteBuffer region = regions[index];
+        ByteBuffer[] copies = patches.pages[index];
+        if(copies == null) {
+            copies = new ByteBuffer[(region.capacity() + PAGE_SIZE - 1) >>> PAGE_BITS];
+            patches.pages[index] = copies;
+        }
+        int page = (int) ((offset - ((long) index << REGION_BITS)) >>> PAGE_BITS);
+        if(copies[page] == null) {
+            ByteBuffer part = region.duplicate();
+            part.limit(Math.min(region.capacity(), (page << PAGE_BITS) + PAGE_SIZE));
+            part.position(page << PAGE_BITS);
+            ByteBuffer copy = ByteBuffer.allocate(part.remaining());
+            copy.put(part);
+            copies[page] = copy;
+            patches.generation++;
+        }
+        return copies[page];
+    }
+
+    // writes the bytes of a value into the page copies, the regions are never modified
+    private void writeAt(long offset, long value, int count) {
+        if(offset < 0 || offset + count > size) {
+            throw new BufferOverflowException();
+        }
+        synchronized(patches) {
+            for(int i = 0; i < count; i++) {
+                int shift = order == ByteOrder.LITTLE_ENDIAN ? 8 * i : 8 * (count - 1 - i);
+                long cur = offset + i;
+                copyPage(cur).put((int) (cur & (PAGE_SIZE - 1)), (byte) (value >>> shift));
+            }
+        }
+    }
+
+    // the slow path for reads that cross the end of the current region
+    private long readAcross(int count) {
+        long res = 0;
+        for(int i = 0; i < count; i++) {
+            long b = nextByte() & 0xFF;
+            if(order == ByteOrder.LITTLE_ENDIAN) {
+                res |= b << (8 * i);
+            } else {
+                res = (res << 8) | b;
+            }
+        }
+        return res;
+    }
+
+    private byte nextByte() {
+        if(!bytes.hasRemaining()) {
+            long offset = getPosition();
+            if(offset >= size) {
+                throw new BufferUnderflowException();
+            }
+            selectRegion(offset);
+        }
+        return bytes.get();
+    }
+
+    // patches the bytes at the cursor and moves the cursor behind them
+    private void patch(long value, int count) {
+        long offset = getPosition();
+        writeAt(offset, value, count);
+        // the page could have been copied, so the cursor is moved again
+        seek(offset + count);
+        recordPatch(offset, count);
+    }
+
     /**
      * Applies a patch to the byte sequence. This only happens in memory.
      * @param offset the file offset to patch
      * @param b the byte to write at the given offset
      */
     public void patchByte(long offset, byte b) {
-        bytes.position((int) offset);
+        seek(offset);
         patchByte(b);
     }
 
@@ -75,7 +262,7 @@ public final class ByteSequence {
      * @param b the byte to write at the current location
      */
     public void patchByte(byte b) {
-        bytes.put(b);
+        patch(b, 1);
     }
 
     /**
@@ -83,7 +270,7 @@ public final class ByteSequence {
      * @param w the word to write at the current location
      */
     public void patchWord(short w) {
-        bytes.putShort(w);
+        patch(w, 2);
     }
 
     /**
@@ -91,14 +278,83 @@ public final class ByteSequence {
      * @param d the dword to write at the current location
      */
     public void patchDWord(int d) {
-        bytes.putInt(d);
+        patch(d, 4);
     }
     /**
      * Applies a patch to the current location.
      * @param q the qword to write at the current location
      */
     public void patchQWord(long q) {
-        bytes.putLong(q);
+        patch(q, 8);
+    }
+
+    private void recordPatch(long start, int count) {
+        synchronized(patches) {
+            addRange(patches.all, start, start + count);
+            addRange(patches.unsaved, start, start + count);
+        }
+        for(PatchListener listener : patches.listeners) {
+            listener.onPatch(start, count);
+        }
+    }
+
+    // merges the range with the overlapping and adjacent ranges
+    private static void addRange(NavigableMap<Long, Long> ranges, long start, long end) {
+        Entry<Long, Long> lower = ranges.floorEntry(start);
+        if(lower != null && lower.getValue() >= start) {
+            start = lower.getKey();
+            end = Math.max(end, lower.getValue());
+        }
+        Iterator<Entry<Long, Long>> it = ranges.subMap(start, true, end, true).entrySet().iterator();
+        while(it.hasNext()) {
+            end = Math.max(end, it.next().getValue());
+            it.remove();
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * Adds a listener that will be informed about the patches of this sequence
+     * and all its views
+     * @param listener the listener to add
+     */
+    public void addPatchListener(PatchListener listener) {
+        patches.listeners.add(listener);
+    }
+
+    /**
+     * Removes a patch listener
+     * @param listener the listener to remove
+     */
+    public void removePatchListener(PatchListener listener) {
+        patches.listeners.remove(listener);
+    }
+
+    /**
+     * Returns the ranges that were patched in this sequence or any of its views
+     * @return pairs of start offset and end offset (exclusive) in ascending order
+     */
+    public long[] getPatchedRanges() {
+        synchronized(patches) {
+            long[] res = new long[2 * patches.all.size()];
+            int i = 0;
+            for(Entry<Long, Long> range : patches.all.entrySet()) {
+                res[i++] = range.getKey();
+                res[i++] = range.getValue();
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Feeds the bytes of the sequence into a message digest as they were loaded,
+     * i.e. without the patches
+     * @param digest the digest to update
+     */
+    public void digestOriginal(MessageDigest digest) {
+        for(ByteBuffer region : regions) {
+            digest.update(region.duplicate());
+        }
     }
 
     /**
@@ -122,6 +378,7 @@ public final class ByteSequence {
      * @param endian the byte order to use
      */
     public void setByteOrder(ByteOrder endian) {
+        order = endian;
         bytes.order(endian);
     }
 
@@ -130,7 +387,12 @@ public final class ByteSequence {
      * @param offset the offset to position the cursor to
      */
     public void seek(long offset) {
-        bytes.position((int) offset);
+        long pos = offset - base;
+        if(pos >= 0 && pos <= bytes.limit() && generation == patches.generation) {
+            bytes.position((int) pos);
+        } else {
+            selectRegion(offset);
+        }
     }
 
     /**
@@ -138,15 +400,15 @@ public final class ByteSequence {
      * @param amount the number of bytes to skip the cursor
      */
     public void skip(long amount) {
-        bytes.position((int) (bytes.position() + amount));
+        seek(getPosition() + amount);
     }
 
     /**
      * Returns the current position of the cursor
-     * @return the cursor's offset in the byte array
+     * @return the cursor's offset in the sequence
      */
     public long getPosition() {
-        return bytes.position();
+        return base + bytes.position();
     }
 
     /**
@@ -154,15 +416,23 @@ public final class ByteSequence {
      * @return true iff at least one byte can be read after the cursor
      */
     public boolean hasMore() {
-        return bytes.hasRemaining();
+        return getPosition() < size;
     }
 
     /**
      * Returns the number of bytes that can be read after the cursor
-     * @return the number of bytes that can be read after the cursor
+     * @return the number of bytes that can be read after the cursor, at most Integer.MAX_VALUE
      */
     public int getRemaining() {
-        return bytes.remaining();
+        return (int) Math.min(Integer.MAX_VALUE, size - getPosition());
+    }
+
+    /**
+     * Returns the total number of bytes in the sequence
+     * @return the size of the sequence
+     */
+    public long getSize() {
+        return size;
     }
 
     /**
@@ -170,7 +440,7 @@ public final class ByteSequence {
      * @return the byte read
      */
     public short readUByte() {
-        return (short) (bytes.get() & 0xFF);
+        return (short) (readSByte() & 0xFF);
     }
 
     /**
@@ -178,6 +448,9 @@ public final class ByteSequence {
      * @return the byte read
      */
     public byte readSByte() {
+        if(!bytes.hasRemaining()) {
+            return nextByte();
+        }
         return bytes.get();
     }
 
@@ -186,7 +459,7 @@ public final class ByteSequence {
      * @return the word read
      */
     public int readUWord() {
-        return bytes.getShort() & 0xFFFF;
+        return readSWord() & 0xFFFF;
     }
 
     /**
@@ -194,6 +467,9 @@ public final class ByteSequence {
      * @return the word read
      */
     public short readSWord() {
+        if(bytes.remaining() < 2) {
+            return (short) readAcross(2);
+        }
         return bytes.getShort();
     }
 
@@ -202,7 +478,7 @@ public final class ByteSequence {
      * @return the dword read
      */
     public long readUDword() {
-        return bytes.getInt() & 0xFFFFFFFFL;
+        return readSDword() & 0xFFFFFFFFL;
     }
 
     /**
@@ -210,6 +486,9 @@ public final class ByteSequence {
      * @return the dword read
      */
     public int readSDword() {
+        if(bytes.remaining() < 4) {
+            return (int) readAcross(4);
+        }
         return bytes.getInt();
     }
 
@@ -218,6 +497,9 @@ public final class ByteSequence {
      * @return the qword read
      */
     public long readSQword() {
+        if(bytes.remaining() < 8) {
+            return readAcross(8);
+        }
         return bytes.getLong();
     }
 
@@ -226,7 +508,7 @@ public final class ByteSequence {
      * @return the float read
      */
     public float readFloat() {
-        return bytes.getFloat();
+        return Float.intBitsToFloat(readSDword());
     }
 
     /**
@@ -234,7 +516,120 @@ public final class ByteSequence {
      * @return the double read
      */
     public double readDouble() {
-        return bytes.getDouble();
+        return Double.longBitsToDouble(readSQword());
+    }
+
+    // reads bytes at an absolute offset without using the cursor
+    private long readAt(long offset, int count) {
+        if(offset < 0 || offset + count > size) {
+            throw new IndexOutOfBoundsException("invalid offset: " + offset);
+        }
+        int index = (int) (offset >>> REGION_BITS);
+        int pos = (int) (offset - ((long) index << REGION_BITS));
+        ByteBuffer region = regions[index];
+        long res;
+        if(pos + count <= region.limit() && (patches.generation == 0 || patches.pages[index] == null)) {
+            // the shared regions use big endian
+            switch(count) {
+            case 1:     return region.get(pos);
+            case 2:     res = region.getShort(pos); break;
+            case 4:     res = region.getInt(pos); break;
+            default:    res = region.getLong(pos); break;
+            }
+            if(order == ByteOrder.BIG_ENDIAN) {
+                return res;
+            }
+            switch(count) {
+            case 2:     return Short.reverseBytes((short) res);
+            case 4:     return Integer.reverseBytes((int) res);
+            default:    return Long.reverseBytes(res);
+            }
+        }
+
+        res = 0;
+        for(int i = 0; i < count; i++) {
+            long b = byteAt(offset + i) & 0xFF;
+            if(order == ByteOrder.LITTLE_ENDIAN) {
+                res |= b << (8 * i);
+            } else {
+                res = (res << 8) | b;
+            }
+        }
+        return res;
+    }
+
+    // reads a byte at an absolute offset from its page copy or from the region
+    private byte byteAt(long offset) {
+        int index = (int) (offset >>> REGION_BITS);
+        int pos = (int) (offset - ((long) index << REGION_BITS));
+        ByteBuffer[] copies = patches.generation != 0 ? patches.pages[index] : null;
+        if(copies != null && copies[pos >>> PAGE_BITS] != null) {
+            return copies[pos >>> PAGE_BITS].get(pos & (PAGE_SIZE - 1));
+        }
+        return regions[index].get(pos);
+    }
+
+    /**
+     * Reads a unsigned byte from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the byte read
+     */
+    public short readUByte(long offset) {
+        return (short) (readAt(offset, 1) & 0xFF);
+    }
+
+    /**
+     * Reads a signed byte from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the byte read
+     */
+    public byte readSByte(long offset) {
+        return (byte) readAt(offset, 1);
+    }
+
+    /**
+     * Reads a unsigned word (16 bit) from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the word read
+     */
+    public int readUWord(long offset) {
+        return (int) (readAt(offset, 2) & 0xFFFF);
+    }
+
+    /**
+     * Reads a signed word (16 bit) from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the word read
+     */
+    public short readSWord(long offset) {
+        return (short) readAt(offset, 2);
+    }
+
+    /**
+     * Reads a unsigned dword (32 bit) from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the dword read
+     */
+    public long readUDword(long offset) {
+        return readAt(offset, 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reads a signed dword (32 bit) from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the dword read
+     */
+    public int readSDword(long offset) {
+        return (int) readAt(offset, 4);
+    }
+
+    /**
+     * Reads a signed qword (64 bit) from an absolute offset without moving the cursor
+     * @param offset the offset to read from
+     * @return the qword read
+     */
+    public long readSQword(long offset) {
+        return readAt(offset, 8);
     }
 
     /**
@@ -244,7 +639,7 @@ public final class ByteSequence {
     public String readString() {
         StringBuilder res = new StringBuilder();
         do {
-            byte b = bytes.get();
+            byte b = readSByte();
             if(b != 0) {
                 res.append((char) b);
             } else {
@@ -263,7 +658,7 @@ public final class ByteSequence {
     public String readString(int maxLen) {
         StringBuilder res = new StringBuilder();
         for(int i = 0; i < maxLen; i++) {
-            byte b = bytes.get();
+            byte b = readSByte();
             if(b != 0) {
                 res.append((char) b);
             }
@@ -272,18 +667,66 @@ public final class ByteSequence {
     }
 
     /**
-     * Saves a version of the byte array that contains all the patches
-     * @param path the path to save the array to
+     * Saves a version of the file that contains all the patches. If the destination
+     * is the original file or the destination of the previous save, only the ranges
+     * that were patched since then are written. Otherwise, the original file is copied
+     * first, so the cost of a save depends on the number of patches rather than on the
+     * file size. The file is synchronized with the storage device once at the end.
+     * @param path the path to save the file to
      * @throws IOException if the file couldn't be written
      */
     public void savePatched(Path path) throws IOException {
-        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rws");
-        FileChannel channel = file.getChannel();
+        synchronized(patches) {
+            NavigableMap<Long, Long> ranges = patches.all;
+            boolean sameSize = Files.exists(path) && Files.size(path) == size;
+            // the mapping is never written, so the original file only lacks the patches
+            boolean isSource = sameSize && source != null && Files.isSameFile(source, path);
+            if(sameSize && path.equals(patches.savedTo)) {
+                ranges = patches.unsaved;
+            } else if(!isSource && source != null) {
+                Files.copy(source, path, StandardCopyOption.REPLACE_EXISTING);
+            } else if(!isSource) {
+                ranges = null;
+            }
 
-        bytes.rewind();
-        channel.write(bytes);
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                if(ranges == null) {
+                    // there is no original file, so the whole sequence is written
+                    channel.truncate(size);
+                    writeRange(channel, 0, size);
+                } else {
+                    for(Entry<Long, Long> range : ranges.entrySet()) {
+                        writeRange(channel, range.getKey(), range.getValue());
+                    }
+                }
+                channel.force(false);
+            }
+            patches.savedTo = path;
+            patches.unsaved.clear();
+        }
+    }
 
-        channel.close();
-        file.close();
+    // writes the range page by page, taking the patched pages from their copies
+    private void writeRange(FileChannel channel, long start, long end) throws IOException {
+        while(start < end) {
+            int index = (int) (start >>> REGION_BITS);
+            long regionStart = (long) index << REGION_BITS;
+            int pos = (int) (start - regionStart);
+            int pageStart = pos & ~(PAGE_SIZE - 1);
+            ByteBuffer[] copies = patches.pages[index];
+            ByteBuffer part;
+            if(copies != null && copies[pageStart >>> PAGE_BITS] != null) {
+                part = copies[pageStart >>> PAGE_BITS].duplicate();
+                part.limit((int) Math.min(part.capacity(), end - regionStart - pageStart));
+                part.position(pos - pageStart);
+            } else {
+                part = regions[index].duplicate();
+                part.limit((int) Math.min(Math.min(part.capacity(), pageStart + PAGE_SIZE), end - regionStart));
+                part.position(pos);
+            }
+            while(part.hasRemaining()) {
+                start += channel.write(part, start);
+            }
+        }
     }
 }
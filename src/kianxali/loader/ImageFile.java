@@ -20,7 +20,7 @@ public abstract class ImageFile {
 
     protected ImageFile(Path path) throws IOException {
         this.imageFile = ByteSequence.fromFile(path);
-        this.fileSize = imageFile.getRemaining();
+        this.fileSize = imageFile.getSize();
         this.fileName = path.getFileName().toString();
     }
 
@@ -38,6 +38,13 @@ public abstract class ImageFile {
      */
     public abstract List<Section> getSections();
 
+    /**
+     * Returns the index that maps memory addresses and file offsets to the sections
+     * of the file. It is created once when the file is loaded.
+     * @return the section index of the file
+     */
+    public abstract SectionIndex getSectionIndex();
+
     /**
      * Creates a CPU context for the target CPU described in the file
      * @return the context matching the expectations of the image file
@@ -79,7 +86,10 @@ public abstract class ImageFile {
     }
 
     /**
-     * Returns a byte sequence for a given virtual memory location
+     * Returns the shared byte sequence of the file positioned at a given virtual memory
+     * location. It should only be used to patch the file, readers should use
+     * {@link #getByteSequenceView(long)} or the absolute read methods of
+     * {@link #getBytes()} so that they don't need the lock.
      * @param memAddress the memory address where the byte sequence should point at
      * @param locked whether the sequence should be locked for exclusive access
      * @return a byte sequence pointing at the given memory address
@@ -97,18 +107,36 @@ public abstract class ImageFile {
         return imageFile;
     }
 
+    /**
+     * Returns a new byte sequence for a given virtual memory location that doesn't
+     * need to be locked because it has its own cursor, see {@link ByteSequence#duplicate()}.
+     * This allows several threads to read the image file at the same time.
+     * @param memAddress the memory address where the byte sequence should point at
+     * @return a new byte sequence pointing at the given memory address
+     */
+    public ByteSequence getByteSequenceView(long memAddress) {
+        ByteSequence res = imageFile.duplicate();
+        res.seek(toFileAddress(memAddress));
+        return res;
+    }
+
+    /**
+     * Returns the bytes of the file for reads at absolute file offsets, e.g.
+     * {@link ByteSequence#readUDword(long)}. These reads don't use the cursor,
+     * so they can be done by any thread without locking.
+     * @return the byte sequence of the file, its cursor must not be used
+     */
+    public ByteSequence getBytes() {
+        return imageFile;
+    }
+
     /**
      * Returns the section that covers a given memory address
      * @param memAddress the memory address to examine
      * @return the section that covers the memory address or null
      */
     public Section getSectionForMemAddress(long memAddress) {
-        for(Section sec : getSections()) {
-            if(memAddress >= sec.getStartAddress() && memAddress <= sec.getEndAddress()) {
-                return sec;
-            }
-        }
-        return null;
+        return getSectionIndex().getSection(memAddress);
     }
 
     /**
@@ -117,7 +145,7 @@ public abstract class ImageFile {
      * @return true iff there is a virtual memory section that covers the address
      */
     public boolean isValidAddress(long memAddress) {
-        return getSectionForMemAddress(memAddress) != null;
+        return getSectionIndex().contains(memAddress);
     }
 
     /**
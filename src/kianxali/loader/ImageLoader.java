@@ -0,0 +1,71 @@
+package kianxali.loader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import kianxali.loader.elf.ELFFile;
+import kianxali.loader.mach_o.FatFile;
+import kianxali.loader.mach_o.MachOFile;
+import kianxali.loader.pe.PEFile;
+
+/**
+ * Detects the format of an image file and loads it with the matching loader.
+ * @author fwi
+ *
+ */
+public final class ImageLoader {
+    /** A description of the formats that can be loaded */
+    public static final String SUPPORTED_FORMATS = "PE (Windows .exe), ELF (Unix, Linux), Mach-O (OS X) and fat Mach-O (OS X)";
+
+    /**
+     * Chooses which architecture of a fat file should be loaded
+     */
+    public interface ArchitectureChooser {
+        /**
+         * Will be called when a file contains images for multiple architectures
+         * @param architectures the names of the architectures in ascending order
+         * @return the architecture to load or null to cancel loading
+         */
+        String choose(List<String> architectures);
+    }
+
+    private ImageLoader() {
+    }
+
+    /**
+     * Loads an image file, the format is detected by the content of the file
+     * @param path the file to load
+     * @param chooser decides which architecture is loaded from a fat file
+     * @return the loaded image file or null if the chooser cancelled loading
+     * @throws IOException if the file couldn't be read or has an unknown format
+     */
+    public static ImageFile load(Path path, ArchitectureChooser chooser) throws IOException {
+        if(PEFile.isPEFile(path)) {
+            return new PEFile(path);
+        } else if(MachOFile.isMachOFile(path)) {
+            return new MachOFile(path, 0);
+        } else if(FatFile.isFatFile(path)) {
+            // a fat file contains multiple mach headers for different architectures
+            Map<String, Long> archTypes = new FatFile(path).getArchitectures();
+            List<String> arches = new ArrayList<>(archTypes.keySet());
+            Collections.sort(arches);
+            String arch = chooser.choose(arches);
+            if(arch == null) {
+                return null;
+            }
+            Long offset = archTypes.get(arch);
+            if(offset == null) {
+                throw new IOException("Unknown architecture: " + arch);
+            }
+            return new MachOFile(path, offset);
+        } else if(ELFFile.isELFFile(path)) {
+            return new ELFFile(path);
+        } else {
+            throw new IOException("Unknown file type, supported are " + SUPPORTED_FORMATS);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package kianxali.loader;
+
+/**
+ * A listener that is informed when the bytes of a {@link ByteSequence} are patched
+ * @author fwi
+ *
+ */
+public interface PatchListener {
+    /**
+     * Will be called after bytes were patched. The patching thread still holds the
+     * lock of the sequence, so the listener can read the new bytes with the read
+     * methods that take an absolute offset.
+     * @param offset the file offset of the first patched byte
+     * @param count the number of patched bytes
+     */
+    void onPatch(long offset, int count);
+}
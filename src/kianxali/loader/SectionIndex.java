@@ -0,0 +1,244 @@
+package kianxali.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * An immutable index over the sections of an image file. It maps memory
+ * addresses to sections and translates between memory addresses and file
+ * offsets using a binary search, so no objects are created for lookups.
+ * If sections overlap, the one that was added first wins, just like a linear
+ * search through the section list would do.
+ * Use {@link SectionIndex.Builder} to create an index.
+ * @author fwi
+ *
+ */
+public final class SectionIndex {
+    private final List<Section> sections;
+    private final long[] memStarts, fileOffsets;
+    private final Ranges memRanges, fileRanges;
+
+    // disjoint ranges with inclusive ends, sorted by start, each assigned to a section
+    private static final class Ranges {
+        private final long[] starts, ends;
+        private final int[] owners;
+
+        private Ranges(long[] starts, long[] ends, int[] owners) {
+            this.starts = starts;
+            this.ends = ends;
+            this.owners = owners;
+        }
+
+        // returns the section that owns the address or -1
+        private int find(long addr) {
+            int lo = 0, hi = starts.length - 1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(addr < starts[mid]) {
+                    hi = mid - 1;
+                } else if(addr > ends[mid]) {
+                    lo = mid + 1;
+                } else {
+                    return owners[mid];
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Collects the sections of an image file in the order of their priority
+     */
+    public static final class Builder {
+        private final List<Section> sections;
+        private long[] fileOffsets, fileSizes;
+
+        public Builder() {
+            this.sections = new ArrayList<>();
+            this.fileOffsets = new long[8];
+            this.fileSizes = new long[8];
+        }
+
+        /**
+         * Adds a section to the index
+         * @param section the section to add
+         * @param fileOffset the file offset that corresponds to the start address of the section
+         * @param fileSize the number of bytes starting at the file offset that belong to the section
+         * @return this builder
+         */
+        public Builder add(Section section, long fileOffset, long fileSize) {
+            int i = sections.size();
+            if(i == fileOffsets.length) {
+                fileOffsets = Arrays.copyOf(fileOffsets, i * 2);
+                fileSizes = Arrays.copyOf(fileSizes, i * 2);
+            }
+            sections.add(section);
+            fileOffsets[i] = fileOffset;
+            fileSizes[i] = fileSize;
+            return this;
+        }
+
+        /**
+         * Creates the index of the added sections
+         * @return the new index
+         */
+        public SectionIndex build() {
+            return new SectionIndex(this);
+        }
+    }
+
+    private SectionIndex(Builder builder) {
+        int count = builder.sections.size();
+        this.sections = Collections.unmodifiableList(new ArrayList<>(builder.sections));
+        this.memStarts = new long[count];
+        this.fileOffsets = Arrays.copyOf(builder.fileOffsets, count);
+
+        long[] memEnds = new long[count];
+        long[] fileEnds = new long[count];
+        for(int i = 0; i < count; i++) {
+            Section section = sections.get(i);
+            memStarts[i] = section.getStartAddress();
+            memEnds[i] = section.getEndAddress();
+            // an empty file range ends before it starts and is ignored
+            fileEnds[i] = fileOffsets[i] + builder.fileSizes[i] - 1;
+        }
+        this.memRanges = claim(memStarts, memEnds);
+        this.fileRanges = claim(fileOffsets, fileEnds);
+    }
+
+    // assigns each address to the first range that contains it
+    private static Ranges claim(final long[] starts, final long[] ends) {
+        List<Integer> valid = new ArrayList<>(starts.length);
+        for(int i = 0; i < starts.length; i++) {
+            if(ends[i] >= starts[i]) {
+                valid.add(i);
+            }
+        }
+        Integer[] opening = valid.toArray(new Integer[valid.size()]);
+        Arrays.sort(opening, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(starts[o1], starts[o2]);
+            }
+        });
+
+        // sweep through the addresses, the active range with the lowest index owns them
+        TreeSet<Integer> active = new TreeSet<>();
+        PriorityQueue<Integer> activeByEnd = new PriorityQueue<>(Math.max(1, opening.length), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(ends[o1], ends[o2]);
+            }
+        });
+        long[] resStarts = new long[opening.length];
+        long[] resEnds = new long[opening.length];
+        int[] owners = new int[opening.length];
+        int count = 0;
+        int next = 0;
+        long cur = 0;
+        while(true) {
+            if(active.isEmpty()) {
+                if(next == opening.length) {
+                    break;
+                }
+                cur = starts[opening[next]];
+            }
+            while(next < opening.length && starts[opening[next]] == cur) {
+                active.add(opening[next]);
+                activeByEnd.add(opening[next]);
+                next++;
+            }
+
+            int owner = active.first();
+            long end = ends[activeByEnd.peek()];
+            if(next < opening.length && starts[opening[next]] - 1 < end) {
+                end = starts[opening[next]] - 1;
+            }
+            if(count > 0 && owners[count - 1] == owner && resEnds[count - 1] == cur - 1) {
+                resEnds[count - 1] = end;
+            } else {
+                if(count == owners.length) {
+                    resStarts = Arrays.copyOf(resStarts, count * 2);
+                    resEnds = Arrays.copyOf(resEnds, count * 2);
+                    owners = Arrays.copyOf(owners, count * 2);
+                }
+                resStarts[count] = cur;
+                resEnds[count] = end;
+                owners[count] = owner;
+                count++;
+            }
+
+            while(!activeByEnd.isEmpty() && ends[activeByEnd.peek()] == end) {
+                active.remove(activeByEnd.poll());
+            }
+            if(end == Long.MAX_VALUE) {
+                break;
+            }
+            cur = end + 1;
+        }
+        return new Ranges(Arrays.copyOf(resStarts, count), Arrays.copyOf(resEnds, count), Arrays.copyOf(owners, count));
+    }
+
+    /**
+     * Returns the sections of the index in the order they were added
+     * @return an unmodifiable list of the sections
+     */
+    public List<Section> getSections() {
+        return sections;
+    }
+
+    /**
+     * Returns the section that covers a given memory address
+     * @param memAddress the memory address to examine
+     * @return the section that covers the memory address or null
+     */
+    public Section getSection(long memAddress) {
+        int i = memRanges.find(memAddress);
+        if(i < 0) {
+            return null;
+        }
+        return sections.get(i);
+    }
+
+    /**
+     * Checks whether a memory address is covered by a section
+     * @param memAddress the memory address to examine
+     * @return true iff a section covers the address
+     */
+    public boolean contains(long memAddress) {
+        return memRanges.find(memAddress) >= 0;
+    }
+
+    /**
+     * Converts a memory address into a file offset
+     * @param memAddress the memory address to convert
+     * @return the file offset of the address in its section
+     * @throws IllegalArgumentException if no section covers the address
+     */
+    public long toFileOffset(long memAddress) {
+        int i = memRanges.find(memAddress);
+        if(i < 0) {
+            throw new IllegalArgumentException(String.format("invalid memory address: %X", memAddress));
+        }
+        return fileOffsets[i] + (memAddress - memStarts[i]);
+    }
+
+    /**
+     * Converts a file offset into a memory address
+     * @param fileOffset the file offset to convert
+     * @return the memory address of the offset in its section
+     * @throws IllegalArgumentException if no section contains the offset
+     */
+    public long toMemAddress(long fileOffset) {
+        int i = fileRanges.find(fileOffset);
+        if(i < 0) {
+            throw new IllegalArgumentException("invalid file offset: " + fileOffset);
+        }
+        return memStarts[i] + (fileOffset - fileOffsets[i]);
+    }
+}
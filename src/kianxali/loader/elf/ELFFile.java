@@ -17,6 +17,7 @@ import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
 import kianxali.loader.ImageFile;
 import kianxali.loader.Section;
+import kianxali.loader.SectionIndex;
 
 /**
  * Implements a loader for ELF files, see package info for used references.
@@ -28,7 +29,7 @@ public class ELFFile extends ImageFile {
     private final ELFHeader header;
     private final Map<Long, String> imports;
     private final Map<Long, String> stringTable;
-    private List<Section> loadedSections;
+    private SectionIndex sectionIndex;
 
     public ELFFile(Path path) throws IOException {
         super(path);
@@ -68,7 +69,7 @@ public class ELFFile extends ImageFile {
     }
 
     private void loadSections() {
-        loadedSections = new ArrayList<>(header.getSectionHeaders().size());
+        SectionIndex.Builder builder = new SectionIndex.Builder();
         for(SectionHeader section : header.getSectionHeaders()) {
             if(section.getAddress() == 0) {
                 // only analyze sections that are actually loaded
@@ -82,8 +83,10 @@ public class ELFFile extends ImageFile {
             long offset = section.getOffset();
             boolean executable = section.isExecutable();
 
-            loadedSections.add(new ELFSection(name, offset, start, end, executable));
+            // the end address is inclusive, so is the end of the file range
+            builder.add(new ELFSection(name, offset, start, end, executable), offset, end - start + 1);
         }
+        sectionIndex = builder.build();
     }
 
     private List<ELFSymbol> readSymbols(SectionHeader symSection) {
@@ -153,7 +156,12 @@ public class ELFFile extends ImageFile {
 
     @Override
     public List<Section> getSections() {
-        return Collections.unmodifiableList(loadedSections);
+        return sectionIndex.getSections();
+    }
+
+    @Override
+    public SectionIndex getSectionIndex() {
+        return sectionIndex;
     }
 
     @Override
@@ -167,22 +175,12 @@ public class ELFFile extends ImageFile {
 
     @Override
     public long toFileAddress(long memAddress) {
-        ELFSection section = (ELFSection) getSectionForMemAddress(memAddress);
-        long diff = memAddress - section.getStartAddress();
-        return section.getOffset() + diff;
-   }
+        return sectionIndex.toFileOffset(memAddress);
+    }
 
     @Override
     public long toMemAddress(long fileOffset) {
-        for(Section sec : loadedSections) {
-            ELFSection section = (ELFSection) sec;
-            long size = section.getEndAddress() - section.getStartAddress();
-            if(fileOffset >= section.getOffset() && fileOffset <= section.getOffset() + size) {
-                long diff = fileOffset - section.getOffset();
-                return section.getStartAddress() + diff;
-            }
-        }
-        throw new UnsupportedOperationException("invalid file offset: " + fileOffset);
+        return sectionIndex.toMemAddress(fileOffset);
     }
 
     @Override
@@ -11,6 +11,7 @@ import java.util.Map;
 import kianxali.decoder.Context;
 import kianxali.loader.ImageFile;
 import kianxali.loader.Section;
+import kianxali.loader.SectionIndex;
 
 /**
  * Implements a parser for the fat file format that can include Mach-O files
@@ -63,6 +64,11 @@ public class FatFile extends ImageFile {
         throw new UnsupportedOperationException("not a mach file");
     }
 
+    @Override
+    public SectionIndex getSectionIndex() {
+        throw new UnsupportedOperationException("not a mach file");
+    }
+
     @Override
     public Context createContext() {
         throw new UnsupportedOperationException("not a mach file");
@@ -5,7 +5,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +15,7 @@ import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
 import kianxali.loader.ImageFile;
 import kianxali.loader.Section;
+import kianxali.loader.SectionIndex;
 
 /**
  * Implements a loader for the Mach-O format. See package info for
@@ -25,6 +25,7 @@ import kianxali.loader.Section;
  */
 public class MachOFile extends ImageFile {
     private MachHeader machHeader;
+    private SectionIndex sectionIndex;
 
     public MachOFile(Path path, long offset) throws IOException {
         super(path);
@@ -45,16 +46,23 @@ public class MachOFile extends ImageFile {
         imageFile.setByteOrder(ByteOrder.LITTLE_ENDIAN);
         machHeader = new MachHeader(imageFile, offset);
         imageFile.unlock();
+
+        SectionIndex.Builder builder = new SectionIndex.Builder();
+        for(MachSection section : machHeader.getSections()) {
+            // the end address is inclusive, so is the end of the file range
+            builder.add(section, section.getFileOffset(), section.getVirtualSize() + 1);
+        }
+        sectionIndex = builder.build();
     }
 
     @Override
     public List<Section> getSections() {
-        List<MachSection> sections = machHeader.getSections();
-        List<Section> res = new ArrayList<Section>(sections.size());
-        for(Section sec : sections) {
-            res.add(sec);
-        }
-        return res;
+        return sectionIndex.getSections();
+    }
+
+    @Override
+    public SectionIndex getSectionIndex() {
+        return sectionIndex;
     }
 
     @Override
@@ -77,20 +85,12 @@ public class MachOFile extends ImageFile {
 
     @Override
     public long toFileAddress(long memAddress) {
-        MachSection section = (MachSection) getSectionForMemAddress(memAddress);
-        long diff = memAddress - section.getStartAddress();
-        return section.getFileOffset() + diff;
+        return sectionIndex.toFileOffset(memAddress);
     }
 
     @Override
     public long toMemAddress(long fileOffset) {
-        for(MachSection section : machHeader.getSections()) {
-            if(fileOffset >= section.getFileOffset() && fileOffset <= section.getFileOffset() + section.getVirtualSize()) {
-                long diff = fileOffset - section.getFileOffset();
-                return section.getStartAddress() + diff;
-            }
-        }
-        throw new UnsupportedOperationException("invalid file offset: " + fileOffset);
+        return sectionIndex.toMemAddress(fileOffset);
     }
 
     @Override
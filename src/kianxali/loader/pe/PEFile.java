@@ -5,8 +5,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -16,6 +14,7 @@ import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
 import kianxali.loader.ImageFile;
 import kianxali.loader.Section;
+import kianxali.loader.SectionIndex;
 
 /**
  * Implements a loader for the PE file format. See the package info for the used
@@ -28,7 +27,7 @@ public class PEFile extends ImageFile implements AddressConverter {
     private DOSStub dosStub;
     private PEHeader peHeader;
     private OptionalHeader optionalHeader;
-    private List<PESection> sections;
+    private SectionIndex sectionIndex;
     private Imports imports;
 
     public PEFile(Path path) throws IOException {
@@ -62,24 +61,16 @@ public class PEFile extends ImageFile implements AddressConverter {
 
     @Override
     public long rvaToFile(long rva) {
-        for(PESection header : sections) {
-            long memOffset = header.getVirtualAddressRVA();
-            if(rva >= memOffset && rva <= memOffset + header.getRawSize()) {
-                return rva - memOffset + header.getFilePosition();
-            }
+        long mem = rvaToMemory(rva);
+        if(!sectionIndex.contains(mem)) {
+            throw new IllegalArgumentException("invalid rva: " + rva);
         }
-        throw new IllegalArgumentException("invalid rva: " + rva);
+        return sectionIndex.toFileOffset(mem);
     }
 
     @Override
     public long fileToRVA(long offset) {
-        for(PESection header : sections) {
-            long fileOffset = header.getFilePosition();
-            if(offset >= fileOffset && offset < fileOffset + header.getRawSize()) {
-                return offset - header.getFilePosition() + header.getVirtualAddressRVA();
-            }
-        }
-        throw new IllegalArgumentException("invalid offset: " + offset);
+        return memoryToRVA(sectionIndex.toMemAddress(offset));
     }
 
     @Override
@@ -108,10 +99,12 @@ public class PEFile extends ImageFile implements AddressConverter {
 
         optionalHeader = new OptionalHeader(imageFile);
 
-        sections = new ArrayList<>(peHeader.getNumSections());
+        SectionIndex.Builder builder = new SectionIndex.Builder();
         for(int i = 0; i < peHeader.getNumSections(); i++) {
-            sections.add(i, new PESection(imageFile, this));
+            PESection section = new PESection(imageFile, this);
+            builder.add(section, section.getFilePosition(), section.getRawSize());
         }
+        sectionIndex = builder.build();
         imageFile.unlock();
     }
 
@@ -138,11 +131,12 @@ public class PEFile extends ImageFile implements AddressConverter {
 
     @Override
     public List<Section> getSections() {
-        List<Section> res = new ArrayList<>(sections.size());
-        for(Section section : sections) {
-            res.add(section);
-        }
-        return Collections.unmodifiableList(res);
+        return sectionIndex.getSections();
+    }
+
+    @Override
+    public SectionIndex getSectionIndex() {
+        return sectionIndex;
     }
 
     @Override
@@ -148,17 +148,15 @@ public class ScriptManager implements ScriptAPI {
             throw new IllegalStateException("no image loaded");
         }
 
-        ByteSequence seq = image.getByteSequence(addr, true);
-        long res;
+        ByteSequence seq = image.getBytes();
+        long offset = image.toFileAddress(addr);
         switch(size) {
-        case 8:  res = seq.readUByte(); break;
-        case 16: res = seq.readUWord(); break;
-        case 32: res = seq.readUDword(); break;
-        case 64: res = seq.readSQword(); break;
-        default: seq.unlock(); throw new UnsupportedOperationException("Invalid size: " + size);
+        case 8:  return (long) seq.readUByte(offset);
+        case 16: return (long) seq.readUWord(offset);
+        case 32: return seq.readUDword(offset);
+        case 64: return seq.readSQword(offset);
+        default: throw new UnsupportedOperationException("Invalid size: " + size);
         }
-        seq.unlock();
-        return res;
     }
 
     @Override
@@ -0,0 +1,113 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import kianxali.disassembler.AnalysisBudget;
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.loader.ImageFile;
+
+import org.junit.Test;
+
+public class AnalysisDatabaseTest {
+    @Test
+    public void testSaveAndOpen() throws Exception {
+        Path image = TestImage.write();
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        try {
+            ImageFile file = new TestImage(image);
+            DisassemblyData data = new DisassemblyData();
+            Disassembler dasm = new Disassembler(file, data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            TestImage.patchNop(file, 0x1015, 5);
+            DisassemblerTest.runAnalysis(dasm, 0x1015L);
+            data.insertComment(0x1020, "loads the string");
+            data.getInfoOnExactAddress(0x1010).getStartFunction().setName("first");
+            dasm.saveDatabase(database);
+            List<String> saved = DisassemblerTest.describe(data);
+
+            data = new DisassemblyData();
+            dasm = Disassembler.openDatabase(new TestImage(image), data, database);
+            assertEquals(saved.size(), data.getEntryCount());
+            assertTrue(dasm.isAnalysisComplete());
+
+            // an address inside an instruction finds the entry that wasn't accessed yet
+            DataEntry entry = data.getInfoCoveringAddress(0x1022);
+            assertEquals(0x1020, entry.getAddress());
+            assertEquals("loads the string", entry.getComment());
+            assertEquals("first", data.getInfoOnExactAddress(0x1010).getStartFunction().getName());
+            assertEquals(saved, DisassemblerTest.describe(data));
+        } finally {
+            Files.delete(database);
+            Files.delete(image);
+        }
+    }
+
+    @Test
+    public void testContinueCheckpoint() throws Exception {
+        Path image = TestImage.write();
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        try {
+            DisassemblyData data = new DisassemblyData();
+            Disassembler dasm = new Disassembler(new TestImage(image), data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            List<String> complete = DisassemblerTest.describe(data);
+
+            // stop after the first trace, the database keeps the pending work
+            data = new DisassemblyData();
+            dasm = new Disassembler(new TestImage(image), data);
+            dasm.setBudget(new AnalysisBudget(0, 1, 0));
+            DisassemblerTest.runAnalysis(dasm, null);
+            assertFalse(dasm.isAnalysisComplete());
+            dasm.saveDatabase(database);
+
+            for(int threads = 1; threads <= 2; threads++) {
+                data = new DisassemblyData();
+                dasm = Disassembler.openDatabase(new TestImage(image), data, database, threads);
+                assertFalse(dasm.isAnalysisComplete());
+                DisassemblerTest.runAnalysis(dasm, null);
+                assertTrue(dasm.isAnalysisComplete());
+                assertEquals(complete, DisassemblerTest.describe(data));
+            }
+        } finally {
+            Files.delete(database);
+            Files.delete(image);
+        }
+    }
+
+    @Test
+    public void testRejectsOtherImage() throws Exception {
+        Path image = TestImage.write();
+        Path other = TestImage.write();
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        try {
+            Disassembler dasm = new Disassembler(new TestImage(image), new DisassemblyData());
+            DisassemblerTest.runAnalysis(dasm, null);
+            dasm.saveDatabase(database);
+
+            // same size and entry point, only the string differs
+            byte[] bytes = Files.readAllBytes(other);
+            bytes[0x100] = 'h';
+            Files.write(other, bytes);
+            try {
+                Disassembler.openDatabase(new TestImage(other), new DisassemblyData(), database);
+                fail("database of another image opened");
+            } catch(IOException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(database);
+            Files.delete(other);
+            Files.delete(image);
+        }
+    }
+}
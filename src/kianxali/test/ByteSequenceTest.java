@@ -0,0 +1,184 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import kianxali.loader.ByteSequence;
+
+import org.junit.Test;
+
+public class ByteSequenceTest {
+    private static final int PAGE_SIZE = 4096;
+
+    // three pages where each byte contains the low bits of its offset
+    private static byte[] createBytes() {
+        byte[] res = new byte[3 * PAGE_SIZE];
+        for(int i = 0; i < res.length; i++) {
+            res[i] = (byte) i;
+        }
+        return res;
+    }
+
+    @Test
+    public void testPatchAcrossPageBoundary() {
+        byte[] original = createBytes();
+        ByteSequence seq = ByteSequence.fromBytes(original);
+        seq.seek(PAGE_SIZE - 2);
+        seq.patchDWord(0x11223344);
+        assertEquals(PAGE_SIZE + 2, seq.getPosition());
+        assertArrayEquals(new long[] {PAGE_SIZE - 2, PAGE_SIZE + 2}, seq.getPatchedRanges());
+
+        seq.seek(PAGE_SIZE - 3);
+        assertEquals((byte) (PAGE_SIZE - 3), seq.readSByte());
+        assertEquals(0x11223344, seq.readSDword());
+        assertEquals((byte) (PAGE_SIZE + 2), seq.readSByte());
+        assertEquals(0x11223344, seq.readSDword(PAGE_SIZE - 2));
+        assertEquals(0x44, seq.readUByte(PAGE_SIZE - 2));
+        assertEquals(0x11, seq.readUByte(PAGE_SIZE + 1));
+
+        // the array the sequence was created from isn't changed
+        assertArrayEquals(createBytes(), original);
+    }
+
+    @Test
+    public void testViewSelectedBeforePageWasCopied() {
+        ByteSequence seq = ByteSequence.fromBytes(createBytes());
+        ByteSequence view = seq.duplicate();
+        view.seek(PAGE_SIZE + 0x10);
+        assertEquals(0x10, view.readUByte());
+
+        // the other sequence copies the page the view's cursor is in
+        seq.patchByte(PAGE_SIZE + 0x20, (byte) 0xAA);
+
+        // moving the cursor inside the same page must use the copy
+        view.seek(PAGE_SIZE + 0x20);
+        assertEquals(0xAA, view.readUByte());
+        assertEquals(0xAA, view.readUByte(PAGE_SIZE + 0x20));
+        view.seek(PAGE_SIZE + 0x1F);
+        assertEquals(0xAA1F, view.readUWord());
+
+        // a view created afterwards starts at the cursor of its origin
+        ByteSequence later = seq.duplicate();
+        assertEquals(PAGE_SIZE + 0x21, later.getPosition());
+        later.skip(-1);
+        assertEquals(0xAA, later.readUByte());
+        assertArrayEquals(new long[] {PAGE_SIZE + 0x20, PAGE_SIZE + 0x21}, view.getPatchedRanges());
+    }
+
+    @Test
+    public void testReadsAcrossPageEnds() {
+        ByteSequence seq = ByteSequence.fromBytes(createBytes());
+        // a patch in the middle page makes the cursor move through the region page by page
+        seq.patchByte(PAGE_SIZE + 1, (byte) 0xEE);
+
+        seq.seek(PAGE_SIZE - 1);
+        assertEquals(0x00FF, seq.readUWord());
+        seq.seek(PAGE_SIZE - 1);
+        assertEquals(0x02EE00FFL, seq.readUDword());
+        seq.seek(2 * PAGE_SIZE - 4);
+        assertEquals(0x03020100FFFEFDFCL, seq.readSQword());
+        assertEquals(2 * PAGE_SIZE + 4, seq.getPosition());
+
+        // byte by byte through both page ends
+        seq.seek(PAGE_SIZE - 2);
+        for(long offset = PAGE_SIZE - 2; offset < 2 * PAGE_SIZE + 2; offset++) {
+            byte expected = offset == PAGE_SIZE + 1 ? (byte) 0xEE : (byte) offset;
+            assertEquals(expected, seq.readSByte());
+            assertEquals(expected, seq.readSByte(offset));
+        }
+
+        seq.setByteOrder(ByteOrder.BIG_ENDIAN);
+        seq.seek(PAGE_SIZE - 1);
+        assertEquals(0xFF00EE02L, seq.readUDword());
+        assertEquals(0xFF00EE02L, seq.readUDword(PAGE_SIZE - 1));
+    }
+
+    @Test
+    public void testUnderflowAtEnd() {
+        ByteSequence seq = ByteSequence.fromBytes(createBytes());
+        long size = seq.getSize();
+        for(int patched = 0; patched < 2; patched++) {
+            seq.seek(size - 3);
+            assertEquals(3, seq.getRemaining());
+            try {
+                seq.readSDword();
+                fail("read behind the end");
+            } catch(BufferUnderflowException e) {
+                // expected
+            }
+            try {
+                seq.readSDword(size - 3);
+                fail("read behind the end");
+            } catch(IndexOutOfBoundsException e) {
+                // expected
+            }
+
+            seq.seek(size - 1);
+            assertEquals((byte) (size - 1), seq.readSByte());
+            assertEquals(false, seq.hasMore());
+            try {
+                seq.readSByte();
+                fail("read behind the end");
+            } catch(BufferUnderflowException e) {
+                // expected
+            }
+
+            // the same with the last page copied
+            seq.patchByte(size - 8, (byte) 0);
+        }
+    }
+
+    @Test
+    public void testSavePatched() throws Exception {
+        byte[] original = createBytes();
+        Path source = Files.createTempFile("kianxali", ".bin");
+        Path saved = Files.createTempFile("kianxali", ".bin");
+        Path other = Files.createTempFile("kianxali", ".bin");
+        try {
+            Files.write(source, original);
+            ByteSequence seq = ByteSequence.fromFile(source);
+            seq.patchByte(0x10, (byte) 0xA0);
+            seq.seek(PAGE_SIZE - 1);
+            seq.patchWord((short) 0x0B0A);
+
+            // the first save copies the source and writes the patches
+            seq.savePatched(saved);
+            byte[] expected = createBytes();
+            expected[0x10] = (byte) 0xA0;
+            expected[PAGE_SIZE - 1] = 0x0A;
+            expected[PAGE_SIZE] = 0x0B;
+            assertArrayEquals(expected, Files.readAllBytes(saved));
+
+            // the second save only writes the new patch, so an unrelated change of the file stays
+            byte[] marked = Files.readAllBytes(saved);
+            marked[2 * PAGE_SIZE] = 0x55;
+            Files.write(saved, marked);
+            seq.patchByte(2 * PAGE_SIZE + 1, (byte) 0xC0);
+            seq.savePatched(saved);
+            expected[2 * PAGE_SIZE + 1] = (byte) 0xC0;
+            byte[] incremental = expected.clone();
+            incremental[2 * PAGE_SIZE] = 0x55;
+            assertArrayEquals(incremental, Files.readAllBytes(saved));
+
+            // another destination gets a full copy again
+            seq.savePatched(other);
+            assertArrayEquals(expected, Files.readAllBytes(other));
+
+            // the source was never written and the sequence still reads the patches
+            assertArrayEquals(original, Files.readAllBytes(source));
+            assertEquals(0x0B0A, seq.readUWord(PAGE_SIZE - 1));
+            assertArrayEquals(new long[] {0x10, 0x11, PAGE_SIZE - 1, PAGE_SIZE + 1, 2 * PAGE_SIZE + 1, 2 * PAGE_SIZE + 2},
+                    seq.getPatchedRanges());
+        } finally {
+            Files.delete(other);
+            Files.delete(saved);
+            Files.delete(source);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kianxali.decoder.DecodedEntity;
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.DataEntryVisitor;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.DisassemblyListener;
+import kianxali.loader.ImageFile;
+import kianxali.util.OutputFormatter;
+
+import org.junit.Test;
+
+public class DisassemblerTest {
+    // runs the analysis until the analyzer stops by itself
+    static void runAnalysis(Disassembler dasm, Long reanalyze) throws InterruptedException {
+        final Object lock = new Object();
+        final boolean[] stopped = new boolean[1];
+        DisassemblyListener listener = new DisassemblyListener() {
+            @Override
+            public void onAnalyzeStart() {
+            }
+
+            @Override
+            public void onAnalyzeError(long memAddr, String reason) {
+            }
+
+            @Override
+            public void onAnalyzeStop() {
+                synchronized(lock) {
+                    stopped[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        };
+        dasm.addListener(listener);
+        if(reanalyze != null) {
+            dasm.reanalyze(reanalyze);
+        } else {
+            dasm.startAnalyzer();
+        }
+        synchronized(lock) {
+            while(!stopped[0]) {
+                lock.wait();
+            }
+        }
+        dasm.removeListener(listener);
+    }
+
+    // describes every entry of the memory map including its references and attached data
+    static List<String> describe(DisassemblyData data) {
+        final List<String> res = new ArrayList<>();
+        final OutputFormatter format = new OutputFormatter();
+        data.visitEntries(new DataEntryVisitor() {
+            @Override
+            public void onVisit(DataEntry entry) {
+                StringBuilder line = new StringBuilder(String.format("%08X", entry.getAddress()));
+                DecodedEntity entity = entry.getEntity();
+                if(entity != null) {
+                    line.append(" " + entity.asString(format));
+                }
+                if(entry.getAttachedData() != null) {
+                    line.append(String.format(" data %08X", entry.getAttachedData().getMemAddress()));
+                }
+                List<String> refs = new ArrayList<>();
+                for(DataEntry ref : entry.getReferences().keySet()) {
+                    refs.add(String.format("%08X", ref.getAddress()));
+                }
+                Collections.sort(refs);
+                line.append(" refs " + refs);
+                res.add(line.toString());
+            }
+        });
+        return res;
+    }
+
+    private static List<String> analyze(Path path, int threads, boolean patchFirst) throws Exception {
+        ImageFile image = new TestImage(path);
+        DisassemblyData data = new DisassemblyData();
+        Disassembler dasm = new Disassembler(image, data, threads);
+        if(patchFirst) {
+            TestImage.patchNop(image, 0x1015, 5);
+            runAnalysis(dasm, null);
+        } else {
+            runAnalysis(dasm, null);
+            TestImage.patchNop(image, 0x1015, 5);
+            runAnalysis(dasm, 0x1015L);
+        }
+        return describe(data);
+    }
+
+    @Test
+    public void testReanalyzeMatchesFreshAnalysis() throws Exception {
+        Path path = TestImage.write();
+        try {
+            // the same number of threads is used so that only the reanalysis can make a difference
+            for(int threads = 1; threads <= 2; threads++) {
+                List<String> fresh = analyze(path, threads, true);
+                List<String> incremental = analyze(path, threads, false);
+                assertEquals(fresh, incremental);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
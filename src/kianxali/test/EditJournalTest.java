@@ -0,0 +1,155 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kianxali.disassembler.AnalysisBudget;
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.DisassemblyListener;
+import kianxali.loader.ImageFile;
+
+import org.junit.Test;
+
+public class EditJournalTest {
+    private static final long HELPER = 0x1030;
+
+    private static Path journalOf(Path database) {
+        return database.resolveSibling(database.getFileName() + ".journal");
+    }
+
+    // counts down when the analyzer stops
+    private static CountDownLatch awaitStop(Disassembler dasm) {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        dasm.addListener(new DisassemblyListener() {
+            @Override
+            public void onAnalyzeStart() {
+            }
+
+            @Override
+            public void onAnalyzeError(long memAddr, String reason) {
+            }
+
+            @Override
+            public void onAnalyzeStop() {
+                stopped.countDown();
+            }
+        });
+        return stopped;
+    }
+
+    @Test
+    public void testReplayAfterAbruptExit() throws Exception {
+        Path image = TestImage.write();
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        Path journal = journalOf(database);
+        try {
+            ImageFile file = new TestImage(image);
+            DisassemblyData data = new DisassemblyData();
+            Disassembler dasm = new Disassembler(file, data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            dasm.saveDatabase(database);
+
+            // edit without saving or closing the journal, the last record is only partially written
+            dasm.startJournal(database);
+            data.insertComment(0x1020, "loads the string");
+            data.getInfoOnExactAddress(0x1010).getStartFunction().setName("first");
+            TestImage.patchNop(file, 0x1015, 5);
+            DisassemblerTest.runAnalysis(dasm, 0x1015L);
+            data.insertComment(0x1000, "entry");
+            long complete = Files.size(journal);
+            Files.write(journal, new byte[] {1, 0, 0}, StandardOpenOption.APPEND);
+
+            // the database doesn't contain the edits, they are replayed and the patch is analyzed again
+            file = new TestImage(image);
+            data = new DisassemblyData();
+            dasm = Disassembler.openDatabase(file, data, database);
+            CountDownLatch stopped = awaitStop(dasm);
+            dasm.startJournal(database);
+            assertTrue(stopped.await(10, TimeUnit.SECONDS));
+            assertEquals(complete, Files.size(journal));
+            // the database doesn't store which traces depended on the patched one, so only
+            // the patched code is compared and the trace at 1030 stays
+            List<String> patched = DisassemblerTest.describe(data);
+            for(long memAddr = 0x1015; memAddr < 0x101A; memAddr++) {
+                assertTrue(patched.contains(String.format("%08X nop refs []", memAddr)));
+            }
+            assertTrue(patched.contains("0000101A retn refs []"));
+            assertEquals("loads the string", data.getInfoOnExactAddress(0x1020).getComment());
+            assertEquals("entry", data.getInfoOnExactAddress(0x1000).getComment());
+            assertEquals("first", data.getInfoOnExactAddress(0x1010).getStartFunction().getName());
+            assertEquals((byte) 0x90, file.getBytes().readSByte(file.toFileAddress(0x1015)));
+
+            // records are appended behind the dropped one
+            data.insertComment(0x1000, null);
+            dasm.stopJournal();
+            data = new DisassemblyData();
+            dasm = Disassembler.openDatabase(new TestImage(image), data, database);
+            stopped = awaitStop(dasm);
+            dasm.startJournal(database);
+            assertTrue(stopped.await(10, TimeUnit.SECONDS));
+            assertNull(data.getInfoOnExactAddress(0x1000).getComment());
+            assertEquals("loads the string", data.getInfoOnExactAddress(0x1020).getComment());
+            dasm.stopJournal();
+        } finally {
+            Files.deleteIfExists(journal);
+            Files.delete(database);
+            Files.delete(image);
+        }
+    }
+
+    @Test
+    public void testNameOfUnknownFunctionSurvivesCompaction() throws Exception {
+        Path image = TestImage.write();
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        try {
+            // a checkpoint that stops after the first trace, so the function at 1030 isn't known
+            DisassemblyData data = new DisassemblyData();
+            Disassembler dasm = new Disassembler(new TestImage(image), data);
+            dasm.setBudget(new AnalysisBudget(0, 1, 0));
+            DisassemblerTest.runAnalysis(dasm, null);
+            assertNull(data.getInfoOnExactAddress(HELPER));
+            dasm.saveDatabase(database);
+
+            // continue the analysis and rename the new function, then exit without saving
+            data = new DisassemblyData();
+            dasm = Disassembler.openDatabase(new TestImage(image), data, database);
+            dasm.startJournal(database);
+            DisassemblerTest.runAnalysis(dasm, null);
+            data.getInfoOnExactAddress(HELPER).getStartFunction().setName("helper");
+
+            // the replayed name can't be assigned yet, compacting must keep it
+            data = new DisassemblyData();
+            dasm = Disassembler.openDatabase(new TestImage(image), data, database);
+            dasm.startJournal(database);
+            assertNull(data.getInfoOnExactAddress(HELPER));
+            dasm.saveDatabase(database);
+            dasm.stopJournal();
+
+            // the name is assigned when the analysis finds the function
+            data = new DisassemblyData();
+            ImageFile file = new TestImage(image);
+            dasm = Disassembler.openDatabase(file, data, database);
+            dasm.startJournal(database);
+            DisassemblerTest.runAnalysis(dasm, null);
+            DataEntry entry = data.getInfoOnExactAddress(HELPER);
+            assertNotNull(entry);
+            assertEquals("helper", entry.getStartFunction().getName());
+            dasm.stopJournal();
+        } finally {
+            Files.deleteIfExists(journalOf(database));
+            Files.delete(database);
+            Files.delete(image);
+        }
+    }
+}
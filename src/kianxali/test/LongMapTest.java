@@ -0,0 +1,108 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import kianxali.util.LongMap;
+
+import org.junit.Test;
+
+public class LongMapTest {
+    // the slot of a key in a map with 16 slots, same hash as LongMap
+    private static int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & 15;
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        LongMap<String> map = new LongMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(0x401000L, "a"));
+        assertNull(map.put(-1L, "b"));
+        assertEquals("a", map.put(0x401000L, "c"));
+        assertEquals(2, map.size());
+        assertEquals("c", map.get(0x401000L));
+        assertEquals("b", map.get(-1L));
+        assertNull(map.get(0L));
+        assertTrue(map.containsKey(-1L));
+
+        assertEquals("b", map.remove(-1L));
+        assertNull(map.remove(-1L));
+        assertFalse(map.containsKey(-1L));
+        assertEquals(1, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0x401000L));
+
+        try {
+            map.put(1L, null);
+            fail("null value accepted");
+        } catch(NullPointerException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRemoveShiftsCollidingKeys() {
+        // keys that collide in the same slot and one in the next slot, so removing
+        // the first key has to move the following ones back into the gap
+        long[] keys = new long[4];
+        int count = 0;
+        int home = slot(0);
+        for(long key = 0; count < 3; key++) {
+            if(slot(key) == home) {
+                keys[count++] = key;
+            }
+        }
+        for(long key = 0; ; key++) {
+            if(slot(key) == ((home + 1) & 15)) {
+                keys[count++] = key;
+                break;
+            }
+        }
+
+        for(int first = 0; first < keys.length; first++) {
+            LongMap<Long> map = new LongMap<>();
+            for(long key : keys) {
+                map.put(key, key);
+            }
+            assertEquals(Long.valueOf(keys[first]), map.remove(keys[first]));
+            for(int i = 0; i < keys.length; i++) {
+                if(i == first) {
+                    assertNull(map.get(keys[i]));
+                } else {
+                    assertEquals(Long.valueOf(keys[i]), map.get(keys[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        // addresses in a small range, so the probe sequences overlap and wrap around
+        LongMap<Integer> map = new LongMap<>();
+        Map<Long, Integer> model = new HashMap<>();
+        Random random = new Random(7);
+        for(int i = 0; i < 100000; i++) {
+            long key = 0x400000L + random.nextInt(2000) * 4;
+            if(random.nextInt(5) < 2) {
+                assertEquals(model.remove(key), map.remove(key));
+            } else {
+                assertEquals(model.put(key, i), map.put(key, i));
+            }
+            assertEquals(model.size(), map.size());
+        }
+        for(long key = 0x400000L; key < 0x400000L + 2000 * 4; key += 2) {
+            assertEquals(model.get(key), map.get(key));
+        }
+    }
+}
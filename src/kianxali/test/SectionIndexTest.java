@@ -0,0 +1,190 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import kianxali.loader.Section;
+import kianxali.loader.SectionIndex;
+
+import org.junit.Test;
+
+public class SectionIndexTest {
+    private static final class TestSection implements Section {
+        private final long start, end;
+
+        TestSection(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String getName() {
+            return String.format("%X-%X", start, end);
+        }
+
+        @Override
+        public boolean isExecutable() {
+            return false;
+        }
+
+        @Override
+        public long getStartAddress() {
+            return start;
+        }
+
+        @Override
+        public long getEndAddress() {
+            return end;
+        }
+    }
+
+    private static void assertInvalidAddress(SectionIndex index, long memAddress) {
+        assertNull(index.getSection(memAddress));
+        assertFalse(index.contains(memAddress));
+        try {
+            index.toFileOffset(memAddress);
+            fail("address accepted: " + memAddress);
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertInvalidOffset(SectionIndex index, long fileOffset) {
+        try {
+            index.toMemAddress(fileOffset);
+            fail("offset accepted: " + fileOffset);
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBoundaries() {
+        Section text = new TestSection(0x1000, 0x1FFF);
+        Section data = new TestSection(0x3000, 0x30FF);
+        SectionIndex index = new SectionIndex.Builder()
+            .add(data, 0x1000, 0x100)
+            .add(text, 0x0, 0x1000)
+            .build();
+
+        assertSame(text, index.getSection(0x1000));
+        assertSame(text, index.getSection(0x1FFF));
+        assertSame(data, index.getSection(0x3000));
+        assertSame(data, index.getSection(0x30FF));
+        assertInvalidAddress(index, 0xFFF);
+        assertInvalidAddress(index, 0x2000);
+        assertInvalidAddress(index, 0x2FFF);
+        assertInvalidAddress(index, 0x3100);
+
+        assertEquals(0x0, index.toFileOffset(0x1000));
+        assertEquals(0xFFF, index.toFileOffset(0x1FFF));
+        assertEquals(0x1000, index.toFileOffset(0x3000));
+        assertEquals(0x10FF, index.toFileOffset(0x30FF));
+
+        assertEquals(0x1000, index.toMemAddress(0x0));
+        assertEquals(0x1FFF, index.toMemAddress(0xFFF));
+        assertEquals(0x3000, index.toMemAddress(0x1000));
+        assertEquals(0x30FF, index.toMemAddress(0x10FF));
+        assertInvalidOffset(index, -1);
+        assertInvalidOffset(index, 0x1100);
+    }
+
+    @Test
+    public void testOverlappingSectionsFirstWins() {
+        Section outer = new TestSection(0x1000, 0x4FFF);
+        Section inner = new TestSection(0x2000, 0x2FFF);
+        Section tail = new TestSection(0x4000, 0x5FFF);
+        // the inner section is added first, so it splits the outer one
+        SectionIndex index = new SectionIndex.Builder()
+            .add(inner, 0x10000, 0x1000)
+            .add(outer, 0x0, 0x4000)
+            .add(tail, 0x3000, 0x2000)
+            .build();
+
+        assertSame(outer, index.getSection(0x1FFF));
+        assertSame(inner, index.getSection(0x2000));
+        assertSame(inner, index.getSection(0x2FFF));
+        assertSame(outer, index.getSection(0x3000));
+        assertSame(outer, index.getSection(0x4FFF));
+        assertSame(tail, index.getSection(0x5000));
+        assertSame(tail, index.getSection(0x5FFF));
+        assertInvalidAddress(index, 0x6000);
+
+        // each address is translated with the section that owns it
+        assertEquals(0x10000, index.toFileOffset(0x2000));
+        assertEquals(0x2000, index.toFileOffset(0x3000));
+        assertEquals(0x4000, index.toFileOffset(0x5000));
+
+        // the file ranges of outer and tail overlap as well
+        assertEquals(0x4000, index.toMemAddress(0x3000));
+        assertEquals(0x4FFF, index.toMemAddress(0x3FFF));
+        assertEquals(0x5000, index.toMemAddress(0x4000));
+        assertEquals(0x2000, index.toMemAddress(0x10000));
+    }
+
+    @Test
+    public void testEmptyFileRange() {
+        // an uninitialized section occupies memory but no bytes of the file
+        Section text = new TestSection(0x1000, 0x1FFF);
+        Section bss = new TestSection(0x2000, 0x2FFF);
+        SectionIndex index = new SectionIndex.Builder()
+            .add(bss, 0x1000, 0)
+            .add(text, 0x0, 0x1000)
+            .build();
+
+        assertSame(bss, index.getSection(0x2000));
+        assertTrue(index.contains(0x2FFF));
+        assertEquals(0x1000, index.toFileOffset(0x2000));
+        assertEquals(0x1FFF, index.toMemAddress(0xFFF));
+        assertInvalidOffset(index, 0x1000);
+    }
+
+    @Test
+    public void testHighestAddresses() {
+        Section top = new TestSection(Long.MAX_VALUE - 0xFFF, Long.MAX_VALUE);
+        Section below = new TestSection(Long.MAX_VALUE - 0x1FFF, Long.MAX_VALUE - 0x800);
+        SectionIndex index = new SectionIndex.Builder()
+            .add(top, 0x1000, 0x1000)
+            .add(below, 0x0, 0x1000)
+            .build();
+
+        assertSame(below, index.getSection(Long.MAX_VALUE - 0x1000));
+        assertSame(top, index.getSection(Long.MAX_VALUE - 0xFFF));
+        assertSame(top, index.getSection(Long.MAX_VALUE));
+        assertEquals(0x1FFF, index.toFileOffset(Long.MAX_VALUE));
+        assertInvalidAddress(index, Long.MAX_VALUE - 0x2000);
+    }
+
+    @Test
+    public void testMatchesLinearSearch() {
+        Random random = new Random(3);
+        for(int round = 0; round < 50; round++) {
+            int count = 1 + random.nextInt(8);
+            Section[] sections = new Section[count];
+            SectionIndex.Builder builder = new SectionIndex.Builder();
+            for(int i = 0; i < count; i++) {
+                long start = random.nextInt(64) * 0x10;
+                sections[i] = new TestSection(start, start + random.nextInt(32) * 0x10 + 0xF);
+                builder.add(sections[i], i * 0x1000, sections[i].getEndAddress() - start + 1);
+            }
+            SectionIndex index = builder.build();
+
+            for(long addr = -1; addr < 0x600; addr++) {
+                Section expected = null;
+                for(Section section : sections) {
+                    if(addr >= section.getStartAddress() && addr <= section.getEndAddress()) {
+                        expected = section;
+                        break;
+                    }
+                }
+                assertSame(expected, index.getSection(addr));
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package kianxali.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86Context;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.loader.Section;
+import kianxali.loader.SectionIndex;
+
+// a 32 bit image with a code section at file offset 0 and a data section of 100h bytes behind it.
+// The code is mapped to 1000h, the data to the next 1000h boundary behind the code, i.e. 2000h
+// for the default code.
+class TestImage extends ImageFile {
+    static final long CODE_START = 0x1000;
+    private static final int DATA_SIZE = 0x100;
+
+    // two functions load the address of the same string, the first one also calls a third function
+    private static final int[] CODE = {
+        0xE8, 0x0B, 0x00, 0x00, 0x00,   // 1000: call 1010h
+        0xE8, 0x16, 0x00, 0x00, 0x00,   // 1005: call 1020h
+        0xC3,                           // 100A: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xB8, 0x00, 0x20, 0x00, 0x00,   // 1010: mov eax, 2000h
+        0xE8, 0x16, 0x00, 0x00, 0x00,   // 1015: call 1030h
+        0xC3,                           // 101A: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xBB, 0x00, 0x20, 0x00, 0x00,   // 1020: mov ebx, 2000h
+        0xC3,                           // 1025: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xC3,                           // 1030: ret
+    };
+
+    private static final class TestSection implements Section {
+        private final String name;
+        private final boolean executable;
+        private final long start, end;
+
+        TestSection(String name, boolean executable, long start, long end) {
+            this.name = name;
+            this.executable = executable;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isExecutable() {
+            return executable;
+        }
+
+        @Override
+        public long getStartAddress() {
+            return start;
+        }
+
+        @Override
+        public long getEndAddress() {
+            return end;
+        }
+    }
+
+    private final SectionIndex index;
+
+    TestImage(Path path) throws IOException {
+        super(path);
+        long codeSize = Files.size(path) - DATA_SIZE;
+        long dataStart = getDataStart(codeSize);
+        index = new SectionIndex.Builder()
+            .add(new TestSection(".text", true, CODE_START, CODE_START + codeSize - 1), 0, codeSize)
+            .add(new TestSection(".data", false, dataStart, dataStart + DATA_SIZE - 1), codeSize, DATA_SIZE)
+            .build();
+    }
+
+    // the address of the data section behind code of the given size, the code is padded to 100h bytes
+    static long getDataStart(long codeSize) {
+        long padded = (codeSize + 0xFF) & ~0xFF;
+        return CODE_START + ((padded + 0xFFF) & ~0xFFF);
+    }
+
+    // writes the default image to a temporary file
+    static Path write() throws IOException {
+        byte[] code = new byte[CODE.length];
+        for(int i = 0; i < CODE.length; i++) {
+            code[i] = (byte) CODE[i];
+        }
+        return write(code);
+    }
+
+    // writes an image with the given code to a temporary file
+    static Path write(byte[] code) throws IOException {
+        int codeSize = (code.length + 0xFF) & ~0xFF;
+        byte[] image = new byte[codeSize + DATA_SIZE];
+        System.arraycopy(code, 0, image, 0, code.length);
+        byte[] text = "Hello, world!".getBytes("US-ASCII");
+        System.arraycopy(text, 0, image, codeSize, text.length);
+
+        Path path = Files.createTempFile("kianxali", ".bin");
+        Files.write(path, image);
+        return path;
+    }
+
+    static void patchNop(ImageFile image, long memAddr, int length) {
+        ByteSequence seq = image.getByteSequence(memAddr, true);
+        try {
+            for(int i = 0; i < length; i++) {
+                seq.patchByte(image.toFileAddress(memAddr + i), (byte) 0x90);
+            }
+        } finally {
+            seq.unlock();
+        }
+    }
+
+    @Override
+    public List<Section> getSections() {
+        return index.getSections();
+    }
+
+    @Override
+    public SectionIndex getSectionIndex() {
+        return index;
+    }
+
+    @Override
+    public Context createContext() {
+        return new X86Context(Model.ANY, ExecutionMode.PROTECTED);
+    }
+
+    @Override
+    public long getCodeEntryPointMem() {
+        return CODE_START;
+    }
+
+    @Override
+    public long toFileAddress(long memAddress) {
+        return index.toFileOffset(memAddress);
+    }
+
+    @Override
+    public long toMemAddress(long fileOffset) {
+        return index.toMemAddress(fileOffset);
+    }
+
+    @Override
+    public Map<Long, String> getImports() {
+        return Collections.emptyMap();
+    }
+}
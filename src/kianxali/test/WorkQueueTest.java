@@ -0,0 +1,148 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import kianxali.disassembler.AnalysisBudget;
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.DataListener;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.loader.ImageFile;
+
+import org.junit.Test;
+
+// the work queue is covered through the order and the number of work items of the analysis
+public class WorkQueueTest {
+    // the calls are requested in descending order
+    private static final int[] DESCENDING_CALLS = {
+        0xE8, 0x2B, 0x00, 0x00, 0x00,   // 1000: call 1030h
+        0xE8, 0x16, 0x00, 0x00, 0x00,   // 1005: call 1020h
+        0xE8, 0x01, 0x00, 0x00, 0x00,   // 100A: call 1010h
+        0xC3,                           // 100F: ret
+        0xC3,                           // 1010: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xC3,                           // 1020: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xC3,                           // 1030: ret
+    };
+
+    // two functions call the same function and read the same data, so both requests are queued before either is handled
+    private static final int[] SHARED_CALLEE = {
+        0xE8, 0x1B, 0x00, 0x00, 0x00,   // 1000: call 1020h
+        0xE8, 0x26, 0x00, 0x00, 0x00,   // 1005: call 1030h
+        0xC3,                           // 100A: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xA1, 0x00, 0x20, 0x00, 0x00,   // 1020: mov eax, [2000h]
+        0xE8, 0x16, 0x00, 0x00, 0x00,   // 1025: call 1040h
+        0xC3,                           // 102A: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xA1, 0x00, 0x20, 0x00, 0x00,   // 1030: mov eax, [2000h]
+        0xE8, 0x06, 0x00, 0x00, 0x00,   // 1035: call 1040h
+        0xC3,                           // 103A: ret
+        0xCC, 0xCC, 0xCC, 0xCC, 0xCC,
+        0xC3,                           // 1040: ret
+    };
+
+    private static byte[] toBytes(int[] code) {
+        byte[] res = new byte[code.length];
+        for(int i = 0; i < code.length; i++) {
+            res[i] = (byte) code[i];
+        }
+        return res;
+    }
+
+    // records the addresses of the instructions in the order in which they were stored
+    private static Set<Long> recordInstructions(DisassemblyData data) {
+        final Set<Long> res = new LinkedHashSet<>();
+        data.addListener(new DataListener() {
+            @Override
+            public void onAnalyzeChange(long memAddr, DataEntry entry) {
+                if(entry != null && entry.hasInstruction()) {
+                    res.add(memAddr);
+                }
+            }
+        });
+        return res;
+    }
+
+    @Test
+    public void testTracesInAddressOrder() throws Exception {
+        Path image = TestImage.write(toBytes(DESCENDING_CALLS));
+        try {
+            DisassemblyData data = new DisassemblyData();
+            Set<Long> order = recordInstructions(data);
+            Disassembler dasm = new Disassembler(new TestImage(image), data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            assertEquals(Arrays.asList(0x1000L, 0x1005L, 0x100AL, 0x100FL, 0x1010L, 0x1020L, 0x1030L), new ArrayList<>(order));
+            assertEquals(4, data.getMetrics().getCodeWorkCount());
+        } finally {
+            Files.delete(image);
+        }
+    }
+
+    @Test
+    public void testPendingWorkKeepsOrder() throws Exception {
+        Path image = TestImage.write(toBytes(DESCENDING_CALLS));
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        try {
+            // stop after the first trace, the three calls are pending
+            DisassemblyData data = new DisassemblyData();
+            Disassembler dasm = new Disassembler(new TestImage(image), data);
+            dasm.setBudget(new AnalysisBudget(0, 1, 0));
+            DisassemblerTest.runAnalysis(dasm, null);
+            assertFalse(dasm.isAnalysisComplete());
+            dasm.saveDatabase(database);
+
+            data = new DisassemblyData();
+            dasm = Disassembler.openDatabase(new TestImage(image), data, database);
+            Set<Long> order = recordInstructions(data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            assertTrue(dasm.isAnalysisComplete());
+            assertEquals(Arrays.asList(0x1010L, 0x1020L, 0x1030L), new ArrayList<>(order));
+            assertEquals(3, data.getMetrics().getCodeWorkCount());
+        } finally {
+            Files.delete(database);
+            Files.delete(image);
+        }
+    }
+
+    @Test
+    public void testMergesDuplicateRequests() throws Exception {
+        Path image = TestImage.write(toBytes(SHARED_CALLEE));
+        try {
+            DisassemblyData data = new DisassemblyData();
+            ImageFile file = new TestImage(image);
+            Disassembler dasm = new Disassembler(file, data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            // 1040h is requested twice but traced once, the data is analyzed for each request
+            assertEquals(4, data.getMetrics().getCodeWorkCount());
+            assertEquals(2, data.getMetrics().getDataWorkCount());
+
+            // the merged work remembers both requesters, so removing one keeps the callee and the data
+            TestImage.patchNop(file, 0x1020, 10);
+            DisassemblerTest.runAnalysis(dasm, 0x1020L);
+            List<String> incremental = DisassemblerTest.describe(data);
+
+            data = new DisassemblyData();
+            file = new TestImage(image);
+            TestImage.patchNop(file, 0x1020, 10);
+            DisassemblerTest.runAnalysis(new Disassembler(file, data), null);
+            assertEquals(DisassemblerTest.describe(data), incremental);
+            assertTrue(incremental.contains("00001040 retn refs [00001035]"));
+            assertTrue(data.getInfoOnExactAddress(0x2000).hasData());
+        } finally {
+            Files.delete(image);
+        }
+    }
+}
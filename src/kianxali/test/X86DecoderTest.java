@@ -1,11 +1,22 @@
 package kianxali.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import kianxali.decoder.Decoder;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionRecord;
+import kianxali.decoder.InstructionRecord.OperandKind;
 import kianxali.decoder.arch.x86.X86Context;
+import kianxali.decoder.arch.x86.X86Mnemonic;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86CPU.X86Register;
 import kianxali.loader.ByteSequence;
 import kianxali.util.OutputFormatter;
 
@@ -50,6 +61,75 @@ public class X86DecoderTest {
         testControlDebug();
     }
 
+    @Test
+    public void testSharedDecoder() throws InterruptedException {
+        final Decoder decoder = ctx32.createInstructionDecoder();
+        assertSame(decoder, new X86Context(Model.ANY, ExecutionMode.PROTECTED).createInstructionDecoder());
+
+        // the same decoder must work concurrently as long as every thread has its own context
+        final byte[] code = {(byte) 0x64, (byte) 0x67, (byte) 0xA3, 0x00, 0x00, (byte) 0x8D, 0x44, (byte) 0x98, 0x04};
+        final List<String> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    X86Context ctx = new X86Context(Model.ANY, ExecutionMode.PROTECTED);
+                    for(int j = 0; j < 1000; j++) {
+                        ByteSequence seq = ByteSequence.fromBytes(code);
+                        String first = decoder.decodeOpcode(ctx, seq).asString(format).toLowerCase();
+                        String second = decoder.decodeOpcode(ctx, seq).asString(format).toLowerCase();
+                        if(!first.equals("mov dword ptr fs:[0], eax") || !second.equals("lea eax, dword ptr [eax + 4 * ebx + 4]")) {
+                            synchronized(errors) {
+                                errors.add(first + " / " + second);
+                            }
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("decoding errors: " + errors, 0, errors.size());
+    }
+
+    @Test
+    public void testRecordDecode() {
+        Decoder decoder = ctx32.createInstructionDecoder();
+        InstructionRecord rec = new InstructionRecord();
+        byte[] code = {(byte) 0x8D, 0x44, (byte) 0x98, 0x04, (byte) 0xE8, 0x00, 0x01, 0x00, 0x00};
+        ByteSequence seq = ByteSequence.fromBytes(code);
+
+        // lea eax, dword ptr [eax + 4 * ebx + 4]
+        ctx32.setInstructionPointer(0x1000);
+        assertTrue(decoder.decodeOpcode(ctx32, seq, rec));
+        assertEquals(0x1000, rec.getAddress());
+        assertEquals(4, rec.getLength());
+        assertEquals(X86Mnemonic.LEA.ordinal(), rec.getMnemonic());
+        assertEquals(2, rec.getOperandCount());
+        assertEquals(OperandKind.REGISTER, rec.getOperandKind(0));
+        assertEquals(X86Register.EAX.ordinal(), rec.getRegister(0));
+        assertEquals(OperandKind.MEMORY, rec.getOperandKind(1));
+        assertEquals(X86Register.EAX.ordinal(), rec.getRegister(1));
+        assertEquals(X86Register.EBX.ordinal(), rec.getIndexRegister(1));
+        assertEquals(4, rec.getScale(1));
+        assertEquals(4, rec.getValue(1));
+        assertEquals(32, rec.getPointerSize(1));
+
+        // call 0x1109, the same record is reused
+        ctx32.setInstructionPointer(0x1004);
+        assertTrue(decoder.decodeOpcode(ctx32, seq, rec));
+        assertEquals(5, rec.getLength());
+        assertEquals(X86Mnemonic.CALL.ordinal(), rec.getMnemonic());
+        assertEquals(1, rec.getOperandCount());
+        assertEquals(OperandKind.IMMEDIATE, rec.getOperandKind(0));
+        assertEquals(0x1109, rec.getValue(0));
+        assertFalse(decoder.decodeOpcode(ctx32, seq, rec));
+    }
+
     private void testVM() {
         checkOpcode32(new short[] {0x0F, 0x01, 0xC1}, "vmcall");
         checkOpcode32(new short[] {0x0F, 0x01, 0xC2}, "vmlaunch");
@@ -697,5 +777,10 @@ public class X86DecoderTest {
         Instruction inst = decoder.decodeOpcode(ct, seq);
         assertEquals(expected.toLowerCase(), inst.asString(format).toLowerCase());
         assertEquals(opcode.length, inst.getSize());
+
+        // the length-only mode must agree with the full decoder
+        seq.seek(0);
+        assertEquals(expected, opcode.length, decoder.decodeLength(ct, seq));
+        assertEquals(opcode.length, seq.getPosition());
     }
 }
@@ -0,0 +1,140 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+
+import org.junit.Test;
+
+// the cross references are covered through DataEntry.getReferences() of an analyzed image
+public class XrefStoreTest {
+    // the opcodes of mov eax, [addr] and mov [addr], eax, followed by a ModRM byte for an absolute address
+    private static final int MOV_LOAD = 0x8B;
+    private static final int MOV_STORE = 0x89;
+    private static final int MODRM_ABSOLUTE = 0x05;
+    private static final int SIZE = 6;
+    private static final int NOP = 0x90;
+    // enough references to merge the buffer of the store several times
+    private static final int COUNT = 3000;
+    // the first bytes of the data section contain a string that could cover the dwords behind it
+    private static final int FIRST_TARGET = 0x10;
+    private static final int TARGETS = 60;
+
+    private final long dataStart = TestImage.getDataStart(COUNT * SIZE + 1);
+    private final int[] opcodes = new int[COUNT];
+    private final long[] targets = new long[COUNT];
+
+    private static long sourceOf(int i) {
+        return TestImage.CODE_START + i * SIZE;
+    }
+
+    // one trace of loads and stores with random targets in the data section
+    private byte[] generate(Random random) {
+        byte[] code = new byte[COUNT * SIZE + 1];
+        for(int i = 0; i < COUNT; i++) {
+            opcodes[i] = random.nextBoolean() ? MOV_LOAD : MOV_STORE;
+            targets[i] = dataStart + FIRST_TARGET + random.nextInt(TARGETS) * 4;
+            code[i * SIZE] = (byte) opcodes[i];
+            code[i * SIZE + 1] = (byte) MODRM_ABSOLUTE;
+            for(int j = 0; j < 4; j++) {
+                code[i * SIZE + 2 + j] = (byte) (targets[i] >> (8 * j));
+            }
+        }
+        code[COUNT * SIZE] = (byte) 0xC3;
+        return code;
+    }
+
+    private static void patch(ImageFile image, long memAddr, int value) {
+        ByteSequence seq = image.getByteSequence(memAddr, true);
+        try {
+            seq.patchByte(image.toFileAddress(memAddr), (byte) value);
+        } finally {
+            seq.unlock();
+        }
+    }
+
+    // compares the references of every target with the instructions that are currently in the image
+    private void assertReferences(DisassemblyData data) {
+        Map<Long, Map<Long, Boolean>> expected = new TreeMap<>();
+        for(int i = 0; i < COUNT; i++) {
+            if(opcodes[i] == NOP) {
+                continue;
+            }
+            Map<Long, Boolean> sources = expected.get(targets[i]);
+            if(sources == null) {
+                sources = new TreeMap<>();
+                expected.put(targets[i], sources);
+            }
+            sources.put(sourceOf(i), opcodes[i] == MOV_STORE);
+        }
+
+        int count = 0;
+        for(int k = 0; k < TARGETS; k++) {
+            long target = dataStart + FIRST_TARGET + k * 4;
+            Map<Long, Boolean> sources = new TreeMap<>();
+            DataEntry entry = data.getInfoOnExactAddress(target);
+            if(entry != null) {
+                for(Map.Entry<DataEntry, Boolean> ref : entry.getReferences().entrySet()) {
+                    sources.put(ref.getKey().getAddress(), ref.getValue());
+                }
+            }
+            Map<Long, Boolean> want = expected.get(target);
+            assertEquals(want != null ? want : new TreeMap<Long, Boolean>(), sources);
+            count += sources.size();
+        }
+        assertTrue(count > COUNT / 2);
+    }
+
+    @Test
+    public void testReferencesAfterAnalysisPatchesAndReopen() throws Exception {
+        Path image = TestImage.write(generate(new Random(17)));
+        Path database = Files.createTempFile("kianxali", ".kxdb");
+        try {
+            ImageFile file = new TestImage(image);
+            DisassemblyData data = new DisassemblyData();
+            Disassembler dasm = new Disassembler(file, data);
+            DisassemblerTest.runAnalysis(dasm, null);
+            assertReferences(data);
+
+            // remove some references and turn loads into stores and back, then analyze the trace again
+            Random random = new Random(18);
+            for(int round = 0; round < 3; round++) {
+                for(int n = 0; n < 200; n++) {
+                    int i = random.nextInt(COUNT);
+                    if(opcodes[i] == NOP) {
+                        continue;
+                    }
+                    if(random.nextInt(3) == 0) {
+                        TestImage.patchNop(file, sourceOf(i), SIZE);
+                        opcodes[i] = NOP;
+                    } else {
+                        opcodes[i] = opcodes[i] == MOV_LOAD ? MOV_STORE : MOV_LOAD;
+                        patch(file, sourceOf(i), opcodes[i]);
+                    }
+                }
+                DisassemblerTest.runAnalysis(dasm, TestImage.CODE_START);
+                assertReferences(data);
+            }
+
+            // the references are loaded in bulk when the database is opened
+            dasm.saveDatabase(database);
+            data = new DisassemblyData();
+            Disassembler.openDatabase(new TestImage(image), data, database);
+            assertReferences(data);
+        } finally {
+            Files.delete(database);
+            Files.delete(image);
+        }
+    }
+}
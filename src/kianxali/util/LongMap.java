@@ -0,0 +1,178 @@
+package kianxali.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive long keys, e.g. memory addresses. It uses open
+ * addressing with linear probing, so no objects are created for the keys and
+ * entries. Null values are not allowed, get returns null for missing keys.
+ * This class is not thread-safe.
+ * @param <V> the type of the values
+ * @author fwi
+ *
+ */
+public final class LongMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Creates an empty map
+     */
+    public LongMap() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+    }
+
+    // spreads addresses that only differ in the upper bits
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value stored for a key
+     * @param key the key to look up
+     * @return the value or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        if(i < 0) {
+            return null;
+        }
+        return (V) values[i];
+    }
+
+    /**
+     * Checks whether a key is stored in the map
+     * @param key the key to check
+     * @return true iff the map contains a value for the key
+     */
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Stores a value for a key, replacing the old value
+     * @param key the key
+     * @param value the value, must not be null
+     * @return the old value or null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if(value == null) {
+            throw new NullPointerException("null values are not allowed");
+        }
+        if(2 * (size + 1) > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes a key from the map
+     * @param key the key to remove
+     * @return the removed value or null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if(i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        size--;
+
+        // move following entries of the probe sequence into the gap
+        int mask = keys.length - 1;
+        int gap = i;
+        i = (i + 1) & mask;
+        while(values[i] != null) {
+            int home = hash(keys[i]) & mask;
+            if(((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        values[gap] = null;
+        return old;
+    }
+
+    /**
+     * Returns the number of keys in the map
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the map is empty
+     * @return true iff the map doesn't contain any key
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all keys from the map
+     */
+    public void clear() {
+        if(keys.length > MIN_CAPACITY) {
+            keys = new long[MIN_CAPACITY];
+            values = new Object[MIN_CAPACITY];
+        } else {
+            Arrays.fill(values, null);
+        }
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldValues[j] == null) {
+                continue;
+            }
+            int i = hash(oldKeys[j]) & mask;
+            while(values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+}